@@ -0,0 +1,75 @@
+package eu.europeana.sitemap.benchmarks;
+
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Generates realistic record data for benchmarks. The data is generated with a fixed seed, so all runs use the same
+ * data.
+ */
+final class BenchmarkData {
+
+    /** Number of different records, a power of 2 so benchmarks can cycle through them using a bit mask */
+    static final int NR_RECORDS = 4096;
+    static final int RECORDS_MASK = NR_RECORDS - 1;
+
+    static final String WEBSITE_BASE_URL = "https://www.europeana.eu";
+    static final String RECORD_URL_PREFIX = WEBSITE_BASE_URL + "/item";
+
+    private static final long SEED = 42L;
+    private static final long FIRST_UPDATE = 1_400_000_000_000L;
+    private static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private BenchmarkData() {
+        // empty constructor to prevent initialization
+    }
+
+    /**
+     * @return record ids (the 'about' field) that look like the ones in our database, e.g.
+     * /2048128/618580_Acordes_1e4f1e32
+     */
+    static String[] recordIds() {
+        Random random = new Random(SEED);
+        String[] result = new String[NR_RECORDS];
+        for (int i = 0; i < NR_RECORDS; i++) {
+            result[i] = "/" + (9_200_000 + random.nextInt(1_000_000)) + "/" + "record_" + random.nextInt(1_000_000)
+                    + "_" + Long.toHexString(random.nextLong());
+        }
+        return result;
+    }
+
+    /**
+     * @return record ids that contain characters that need to be escaped or take more than 1 byte in UTF-8
+     */
+    static String[] specialRecordIds() {
+        String[] result = recordIds();
+        for (int i = 0; i < result.length; i++) {
+            result[i] = result[i] + (i % 2 == 0 ? "_Café_&_Thé" : "_'Ωμέγα'");
+        }
+        return result;
+    }
+
+    /**
+     * @return last-modified dates spread over about 10 years
+     */
+    static Date[] lastModifiedDates() {
+        Random random = new Random(SEED);
+        Date[] result = new Date[NR_RECORDS];
+        for (int i = 0; i < NR_RECORDS; i++) {
+            result[i] = new Date(FIRST_UPDATE + random.nextInt(3650) * MS_PER_DAY + random.nextInt((int) MS_PER_DAY));
+        }
+        return result;
+    }
+
+    /**
+     * @return content tiers 0 - 4
+     */
+    static int[] contentTiers() {
+        Random random = new Random(SEED);
+        int[] result = new int[NR_RECORDS];
+        for (int i = 0; i < NR_RECORDS; i++) {
+            result[i] = random.nextInt(5);
+        }
+        return result;
+    }
+}
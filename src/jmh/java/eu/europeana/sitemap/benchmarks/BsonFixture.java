@@ -0,0 +1,125 @@
+package eu.europeana.sitemap.benchmarks;
+
+import eu.europeana.sitemap.Constants;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * A batch of aggregation results in BSON format, exactly as the Mongo driver receives them from the server (so one
+ * document per record, each starting with its length).
+ *
+ * By default the batch is generated from the same data as the other benchmarks. A recorded batch can be used instead
+ * by setting the system property {@value #FIXTURE_PROPERTY} to a file with concatenated BSON documents, for example a
+ * mongodump of a collection that was filled with the output of the record aggregation pipeline ($out stage).
+ */
+final class BsonFixture {
+
+    static final String FIXTURE_PROPERTY = "sitemap.bson.fixture";
+
+    /** Very old records don't have a timestampUpdated field, roughly 1 in 50 in our fixture */
+    private static final int NO_TIMESTAMP_RATE = 50;
+    private static final String[] METADATA_TIERS = {"A", "B", "C"};
+    private static final int OBJECT_ID_LENGTH = 12;
+    private static final long SEED = 42L;
+
+    private final byte[] bytes;
+    private final int[] offsets;
+
+    private BsonFixture(byte[] bytes) {
+        this.bytes = bytes;
+        this.offsets = findDocumentOffsets(bytes);
+    }
+
+    /**
+     * @return the recorded batch if the fixture system property is set, otherwise a generated batch of
+     * BenchmarkData.NR_RECORDS documents
+     */
+    static BsonFixture load() {
+        String fileName = System.getProperty(FIXTURE_PROPERTY);
+        if (fileName == null || fileName.isEmpty()) {
+            return new BsonFixture(generate());
+        }
+        try {
+            return new BsonFixture(Files.readAllBytes(Path.of(fileName)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading BSON fixture " + fileName, e);
+        }
+    }
+
+    /**
+     * Encode documents that look like the output of UpdateRecordServiceUtils.getPipeline(), e.g.
+     * <pre>{_id: ObjectId(...), about: "/9200001/record_1_abc", timestampUpdated: ISODate(...), contentTier: "2", metadataTier: "A"}</pre>
+     */
+    private static byte[] generate() {
+        String[] recordIds = BenchmarkData.recordIds();
+        Date[] lastModified = BenchmarkData.lastModifiedDates();
+        int[] contentTiers = BenchmarkData.contentTiers();
+        Random random = new Random(SEED);
+        DocumentCodec codec = new DocumentCodec();
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        for (int i = 0; i < BenchmarkData.NR_RECORDS; i++) {
+            byte[] id = new byte[OBJECT_ID_LENGTH];
+            random.nextBytes(id);
+            Document doc = new Document(Constants.ID, new ObjectId(id))
+                    .append(Constants.ABOUT, recordIds[i]);
+            if (i % NO_TIMESTAMP_RATE != 0) {
+                doc.append(Constants.LASTUPDATED, lastModified[i]);
+            }
+            doc.append(Constants.CONTENT_TIER, String.valueOf(contentTiers[i]))
+                    .append(Constants.METADATA_TIER, METADATA_TIERS[random.nextInt(METADATA_TIERS.length)]);
+            try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+                codec.encode(writer, doc, EncoderContext.builder().build());
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    private static int[] findDocumentOffsets(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int[] result = new int[BenchmarkData.NR_RECORDS];
+        int count = 0;
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (count == result.length) {
+                result = Arrays.copyOf(result, result.length * 2);
+            }
+            result[count++] = offset;
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + length > bytes.length) {
+                throw new IllegalArgumentException("Invalid BSON document at offset " + offset);
+            }
+            offset += length;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return the number of documents in the batch
+     */
+    int size() {
+        return offsets.length;
+    }
+
+    /**
+     * @param index index of a document in the batch
+     * @return a buffer that contains only the bytes of the document
+     */
+    ByteBuffer document(int index) {
+        int end = (index + 1 < offsets.length ? offsets[index + 1] : bytes.length);
+        return ByteBuffer.wrap(bytes, offsets[index], end - offsets[index]).slice();
+    }
+}
@@ -0,0 +1,59 @@
+package eu.europeana.sitemap.benchmarks;
+
+import eu.europeana.sitemap.s3.S3Checksum;
+import eu.europeana.sitemap.storage.SitemapStorage;
+
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory storage stand-in for benchmarks. Only the size of saved files is kept, so long-running benchmarks don't
+ * run out of memory and saving a file costs (almost) nothing compared to generating it.
+ */
+public class DiscardingSitemapStorage implements SitemapStorage {
+
+    private final Map<String, Long> fileSizes = new ConcurrentHashMap<>();
+
+    @Override
+    public String save(String fileName, String contentType, String contentEncoding, byte[] contents, byte[] md5) {
+        fileSizes.put(fileName, (long) contents.length);
+        return S3Checksum.toETag(md5 == null ? S3Checksum.md5(contents, 0, contents.length) : md5);
+    }
+
+    @Override
+    public String copy(String sourceFileName, String fileName) {
+        return null;
+    }
+
+    @Override
+    public boolean exists(String fileName) {
+        return fileSizes.containsKey(fileName);
+    }
+
+    @Override
+    public InputStream getAsStream(String fileName) {
+        return null;
+    }
+
+    @Override
+    public byte[] getAsBytes(String fileName) {
+        return null;
+    }
+
+    @Override
+    public List<FileInfo> list() {
+        List<FileInfo> result = new ArrayList<>();
+        Instant now = Instant.now();
+        fileSizes.forEach((name, size) -> result.add(new FileInfo(name, now, size)));
+        return result;
+    }
+
+    @Override
+    public void delete(String fileName) {
+        fileSizes.remove(fileName);
+    }
+}
@@ -0,0 +1,78 @@
+package eu.europeana.sitemap.benchmarks;
+
+import eu.europeana.sitemap.config.PortalUrl;
+import eu.europeana.sitemap.service.update.UpdateRecordServiceUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creating record and entity urls and calculating the priority of a record. The PortalUrl bean is configured
+ * with the default sitemap.properties.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(2)
+@State(Scope.Thread)
+public class PortalUrlBenchmark {
+
+    private static final String[] ENTITY_TYPES = {"agent", "concept", "timespan", "organization"};
+    private static final int ENTITY_TYPES_MASK = 3;
+
+    private AnnotationConfigApplicationContext context;
+    private PortalUrl portalUrl;
+
+    private final String[] recordIds = BenchmarkData.recordIds();
+    private final String[] entityIds = new String[BenchmarkData.NR_RECORDS];
+    private final int[] contentTiers = BenchmarkData.contentTiers();
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = new AnnotationConfigApplicationContext(PortalUrl.class);
+        portalUrl = context.getBean(PortalUrl.class);
+        for (int i = 0; i < entityIds.length; i++) {
+            entityIds[i] = "http://data.europeana.eu/" + ENTITY_TYPES[i & ENTITY_TYPES_MASK] + "/base/" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String getRecordUrl() {
+        return portalUrl.getRecordUrl(recordIds[index++ & BenchmarkData.RECORDS_MASK]);
+    }
+
+    @Benchmark
+    public String getEntityUrl() {
+        int i = index++ & BenchmarkData.RECORDS_MASK;
+        return portalUrl.getEntityUrl("en", ENTITY_TYPES[i & ENTITY_TYPES_MASK], entityIds[i]);
+    }
+
+    @Benchmark
+    public String getPriorityForTiers() {
+        return UpdateRecordServiceUtils.getPriorityForTiers(contentTiers[index++ & BenchmarkData.RECORDS_MASK]);
+    }
+
+    @Benchmark
+    public byte[] getPriorityBytesForTiers() {
+        return UpdateRecordServiceUtils.getPriorityBytesForTiers(contentTiers[index++ & BenchmarkData.RECORDS_MASK]);
+    }
+}
@@ -0,0 +1,110 @@
+package eu.europeana.sitemap.benchmarks;
+
+import eu.europeana.sitemap.Constants;
+import eu.europeana.sitemap.mongo.RecordProjection;
+import eu.europeana.sitemap.mongo.RecordProjectionCodec;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding a single record from the aggregation results and reading the fields we need for the sitemap,
+ * using different decoding strategies:
+ * <ul>
+ *     <li>document: decode into a org.bson.Document and convert fields the same way as UpdateRecordService used to</li>
+ *     <li>rawDocument: copy the bytes into a RawBsonDocument and only read the fields we need</li>
+ *     <li>projectionCodec: decode straight into a RecordProjection with the RecordProjectionCodec that
+ *     UpdateRecordService uses, skipping unknown fields</li>
+ * </ul>
+ * No Mongo server is needed, records are replayed from a BSON fixture (see BsonFixture). Each operation is one record,
+ * so with the gc profiler the gc.alloc.rate.norm value is the number of bytes allocated per record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(2)
+@State(Scope.Thread)
+public class RecordDecodingBenchmark {
+
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+    private final DocumentCodec documentCodec = new DocumentCodec();
+    private final RawBsonDocumentCodec rawDocumentCodec = new RawBsonDocumentCodec();
+    private final RecordProjectionCodec projectionCodec = new RecordProjectionCodec();
+
+    private BsonFixture fixture;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixture = BsonFixture.load();
+    }
+
+    private BsonReader nextRecord() {
+        if (++index == fixture.size()) {
+            index = 0;
+        }
+        return new BsonBinaryReader(fixture.document(index));
+    }
+
+    @Benchmark
+    public void document(Blackhole blackhole) {
+        Document doc = documentCodec.decode(nextRecord(), DECODER_CONTEXT);
+        String about = doc.get(Constants.ABOUT).toString();
+        int contentTier = Integer.parseInt(doc.get(Constants.CONTENT_TIER).toString());
+        String metaDataTier = doc.get(Constants.METADATA_TIER).toString();
+        Object timestampUpdated = doc.get(Constants.LASTUPDATED);
+        Date dateUpdated = (timestampUpdated == null ? null : (Date) timestampUpdated);
+        blackhole.consume(about);
+        blackhole.consume(contentTier);
+        blackhole.consume(metaDataTier);
+        blackhole.consume(dateUpdated);
+        blackhole.consume(doc.get(Constants.ID));
+    }
+
+    @Benchmark
+    public void rawDocument(Blackhole blackhole) {
+        RawBsonDocument doc = rawDocumentCodec.decode(nextRecord(), DECODER_CONTEXT);
+        String about = doc.getString(Constants.ABOUT).getValue();
+        int contentTier = Integer.parseInt(doc.getString(Constants.CONTENT_TIER).getValue());
+        String metaDataTier = doc.getString(Constants.METADATA_TIER).getValue();
+        BsonValue timestampUpdated = doc.get(Constants.LASTUPDATED);
+        long lastModified = (timestampUpdated == null ? Long.MIN_VALUE : timestampUpdated.asDateTime().getValue());
+        blackhole.consume(about);
+        blackhole.consume(contentTier);
+        blackhole.consume(metaDataTier);
+        blackhole.consume(lastModified);
+        blackhole.consume(doc.get(Constants.ID));
+    }
+
+    @Benchmark
+    public void projectionCodec(Blackhole blackhole) {
+        RecordProjection record = projectionCodec.decode(nextRecord(), DECODER_CONTEXT);
+        blackhole.consume(record.about());
+        blackhole.consume(record.contentTier());
+        blackhole.consume(record.metadataTier());
+        blackhole.consume(record.timestampUpdated());
+        blackhole.consume(record.id());
+    }
+}
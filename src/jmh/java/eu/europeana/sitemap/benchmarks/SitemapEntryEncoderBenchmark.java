@@ -0,0 +1,65 @@
+package eu.europeana.sitemap.benchmarks;
+
+import eu.europeana.sitemap.service.update.SitemapEntryEncoder;
+import eu.europeana.sitemap.service.update.UpdateRecordServiceUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a single sitemap entry, for plain record ids (the common case) and for record ids that need
+ * escaping or contain non-ascii characters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(2)
+@State(Scope.Thread)
+public class SitemapEntryEncoderBenchmark {
+
+    @Param({"true", "false"})
+    public boolean plainIds;
+
+    private SitemapEntryEncoder encoder;
+
+    private final byte[] recordUrlPrefix = SitemapEntryEncoder.toBytes(BenchmarkData.RECORD_URL_PREFIX);
+    private final Date[] lastModified = BenchmarkData.lastModifiedDates();
+    private final int[] contentTiers = BenchmarkData.contentTiers();
+    private String[] recordIds;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        recordIds = plainIds ? BenchmarkData.recordIds() : BenchmarkData.specialRecordIds();
+        encoder = new SitemapEntryEncoder();
+        encoder.setOutput(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void encodeItem() {
+        int i = index++ & BenchmarkData.RECORDS_MASK;
+        encoder.encodeItem(recordUrlPrefix, recordIds[i], UpdateRecordServiceUtils.getPriorityBytesForTiers(contentTiers[i]),
+                lastModified[i]);
+    }
+
+    @Benchmark
+    public int getEncodedLength() {
+        int i = index++ & BenchmarkData.RECORDS_MASK;
+        return encoder.getEncodedLength(recordUrlPrefix, recordIds[i],
+                UpdateRecordServiceUtils.getPriorityBytesForTiers(contentTiers[i]), lastModified[i]);
+    }
+}
@@ -0,0 +1,77 @@
+package eu.europeana.sitemap.benchmarks;
+
+import eu.europeana.sitemap.Constants;
+import eu.europeana.sitemap.SitemapType;
+import eu.europeana.sitemap.service.Deployment;
+import eu.europeana.sitemap.service.update.SitemapEntryEncoder;
+import eu.europeana.sitemap.service.update.SitemapGenerator;
+import eu.europeana.sitemap.service.update.SitemapUploader;
+import eu.europeana.sitemap.service.update.UpdateRecordServiceUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of finishing a full (45,000 items) record sitemap file: writing the closing tag, flushing and
+ * compressing the remaining data, calculating the content hash and checksum and handing it over to the uploader.
+ * The file is filled before each invocation, so that isn't included in the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(2)
+@State(Scope.Thread)
+public class SitemapFileBenchmark {
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private SitemapUploader uploader;
+    private SitemapGenerator generator;
+
+    private final byte[] recordUrlPrefix = SitemapEntryEncoder.toBytes(BenchmarkData.RECORD_URL_PREFIX);
+    private final String[] recordIds = BenchmarkData.recordIds();
+    private final Date[] lastModified = BenchmarkData.lastModifiedDates();
+    private final int[] contentTiers = BenchmarkData.contentTiers();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        uploader = new SitemapUploader(new DiscardingSitemapStorage(), 0, 0);
+        generator = new SitemapGenerator(SitemapType.RECORD, new DiscardingSitemapStorage(), null, uploader, gzip);
+        // one more item per file than we add, so files are never finished automatically
+        generator.init(Deployment.BLUE, BenchmarkData.WEBSITE_BASE_URL, Constants.ITEMS_PER_SITEMAP_FILE + 1);
+    }
+
+    @Setup(Level.Invocation)
+    public void fillFile() {
+        for (int i = 0; i < Constants.ITEMS_PER_SITEMAP_FILE; i++) {
+            int r = i & BenchmarkData.RECORDS_MASK;
+            generator.addItem(recordUrlPrefix, recordIds[r],
+                    UpdateRecordServiceUtils.getPriorityBytesForTiers(contentTiers[r]), lastModified[r], null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        uploader.close();
+    }
+
+    @Benchmark
+    public void finishSitemapFile() {
+        generator.completeSitemapFile();
+    }
+}
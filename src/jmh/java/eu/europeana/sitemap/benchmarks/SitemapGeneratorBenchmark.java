@@ -0,0 +1,76 @@
+package eu.europeana.sitemap.benchmarks;
+
+import eu.europeana.sitemap.Constants;
+import eu.europeana.sitemap.SitemapType;
+import eu.europeana.sitemap.service.Deployment;
+import eu.europeana.sitemap.service.update.SitemapEntryEncoder;
+import eu.europeana.sitemap.service.update.SitemapGenerator;
+import eu.europeana.sitemap.service.update.SitemapUploader;
+import eu.europeana.sitemap.service.update.UpdateRecordServiceUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-record cost of adding items to the record sitemap, including finishing (and saving) a file every
+ * 45,000 items. Saved files are discarded, so this only measures generation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(2)
+@State(Scope.Thread)
+public class SitemapGeneratorBenchmark {
+
+    @Param({"true", "false"})
+    public boolean withPriorityAndLastmod;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private SitemapUploader uploader;
+    private SitemapGenerator generator;
+
+    private final byte[] recordUrlPrefix = SitemapEntryEncoder.toBytes(BenchmarkData.RECORD_URL_PREFIX);
+    private final String[] recordIds = BenchmarkData.recordIds();
+    private final Date[] lastModified = BenchmarkData.lastModifiedDates();
+    private final int[] contentTiers = BenchmarkData.contentTiers();
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        uploader = new SitemapUploader(new DiscardingSitemapStorage(), 0, 0);
+        generator = new SitemapGenerator(SitemapType.RECORD, new DiscardingSitemapStorage(), null, uploader, gzip);
+        generator.init(Deployment.BLUE, BenchmarkData.WEBSITE_BASE_URL, Constants.ITEMS_PER_SITEMAP_FILE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        uploader.close();
+    }
+
+    @Benchmark
+    public void addItem() {
+        int i = index++ & BenchmarkData.RECORDS_MASK;
+        if (withPriorityAndLastmod) {
+            generator.addItem(recordUrlPrefix, recordIds[i],
+                    UpdateRecordServiceUtils.getPriorityBytesForTiers(contentTiers[i]), lastModified[i], null);
+        } else {
+            generator.addItem(recordUrlPrefix, recordIds[i], null, null, null);
+        }
+    }
+}
@@ -7,16 +7,24 @@ public final class Constants {
 
     public static final String XML_EXTENSION = ".xml";
     public static final String TXT_EXTENSION = ".txt";
+    public static final String GZIP_EXTENSION = ".gz";
+    public static final String GZIP_ENCODING = "gzip";
     public static final char PATH_SEPARATOR = '/';
     public static final char DASH = '-';
     public static final String SITEMAP_RECORD_FILENAME_BASE = "sitemap-record";
     public static final String SITEMAP_ENTITY_FILENAME_BASE = "sitemap-entity";
     public static final String SITEMAP_INDEX_SUFFIX = "-index";
     public static final String SITEMAP_ACTIVE_DEPLOYMENT_SUFFIX = "-active";
+    public static final String SITEMAP_MANIFEST_SUFFIX = "-manifest";
+    public static final String SITEMAP_CHECKPOINT_SUFFIX = "-checkpoint";
+    public static final String SITEMAP_URLS_SUFFIX = "-urls";
+    public static final String SITEMAP_ADDED_SUFFIX = "-added";
+    public static final String SITEMAP_REMOVED_SUFFIX = "-removed";
 
     // MONGO Constants
 
     /** Used mongo fields **/
+    public static final String ID = "_id";
     public static final String ABOUT = "about";
     public static final String LASTUPDATED = "timestampUpdated";
     public static final String QUALITY_ANNOTATIONS_BODY = "qualityAnnotations.body";
@@ -32,6 +40,10 @@ public final class Constants {
     public static final String AND = "$and";
     public static final String IN = "$in";
     public static final String GTE = "$gte";
+    public static final String GT = "$gt";
+    public static final String LTE = "$lte";
+    public static final String SORT = "$sort";
+    public static final String SAMPLE = "$sample";
 
     private Constants() {
         // empty constructor to prevent initialization
@@ -37,16 +37,91 @@ public final class StorageFileName {
      * @return sitemap file name
      */
     public static String getSitemapFileName(SitemapType type, Deployment blueGreen, String appendix) {
+        return getSitemapFileName(type, blueGreen, appendix, false);
+    }
+
+    /**
+     * Generates the file name of a sitemap file as it is (or should be) stored in the object storage
+     * @param type sitemap type (record or entity)
+     * @param blueGreen deployment type (blue or green)
+     * @param appendix appendix that is added to the file name (e.g. ?from=0&to=1000), can be null or empty
+     * @param compressed if true the name of a gzip-compressed file is returned (.xml.gz extension)
+     * @return sitemap file name
+     */
+    public static String getSitemapFileName(SitemapType type, Deployment blueGreen, String appendix, boolean compressed) {
         StringBuilder sb = new StringBuilder(type.getFileNameBase())
                 .append(Constants.DASH)
                 .append(blueGreen)
                 .append(Constants.XML_EXTENSION);
+        if (compressed) {
+            sb.append(Constants.GZIP_EXTENSION);
+        }
         if (StringUtils.isNotEmpty(appendix)) {
             sb.append(appendix);
         }
         return sb.toString();
     }
 
+    /**
+     * Generates the name of the manifest file (with hashes of all sitemap files) of a deployment as it is (or should
+     * be) stored in the object storage
+     * @param type sitemap type (record or entity)
+     * @param blueGreen deployment type (blue or green)
+     * @return manifest file name
+     */
+    public static String getSitemapManifestFileName(SitemapType type, Deployment blueGreen) {
+        return type.getFileNameBase() + Constants.DASH + blueGreen + Constants.SITEMAP_MANIFEST_SUFFIX
+                + Constants.TXT_EXTENSION;
+    }
+
+    /**
+     * Generates the name of the checkpoint file of a deployment (used for resuming an interrupted generation) as it is
+     * (or should be) stored in the object storage
+     * @param type sitemap type (record or entity)
+     * @param blueGreen deployment type (blue or green)
+     * @return checkpoint file name
+     */
+    public static String getSitemapCheckpointFileName(SitemapType type, Deployment blueGreen) {
+        return type.getFileNameBase() + Constants.DASH + blueGreen + Constants.SITEMAP_CHECKPOINT_SUFFIX
+                + Constants.TXT_EXTENSION;
+    }
+
+    /**
+     * Generates the name of the file with all urls in the sitemap files of a deployment (sorted, one url per line and
+     * gzip-compressed) as it is (or should be) stored in the object storage
+     * @param type sitemap type (record or entity)
+     * @param blueGreen deployment type (blue or green)
+     * @return url list file name
+     */
+    public static String getSitemapUrlListFileName(SitemapType type, Deployment blueGreen) {
+        return type.getFileNameBase() + Constants.DASH + blueGreen + Constants.SITEMAP_URLS_SUFFIX
+                + Constants.TXT_EXTENSION + Constants.GZIP_EXTENSION;
+    }
+
+    /**
+     * Generates the name of the changelog file of a deployment (with the urls that were added or removed compared to
+     * the previous deployment) as it is (or should be) stored in the object storage
+     * @param type sitemap type (record or entity)
+     * @param blueGreen deployment type (blue or green)
+     * @param added if true the name of the file with added urls is returned, otherwise the file with removed urls
+     * @return changelog file name
+     */
+    public static String getSitemapChangelogFileName(SitemapType type, Deployment blueGreen, boolean added) {
+        return type.getFileNameBase() + Constants.DASH + blueGreen
+                + (added ? Constants.SITEMAP_ADDED_SUFFIX : Constants.SITEMAP_REMOVED_SUFFIX)
+                + Constants.TXT_EXTENSION + Constants.GZIP_EXTENSION;
+    }
+
+    /**
+     * Check if a stored file is gzip-compressed
+     * @param fileName name of the file in the object storage
+     * @return true if the file name has a .xml.gz or .txt.gz extension, otherwise false
+     */
+    public static boolean isCompressed(String fileName) {
+        return fileName.contains(Constants.XML_EXTENSION + Constants.GZIP_EXTENSION)
+                || fileName.endsWith(Constants.TXT_EXTENSION + Constants.GZIP_EXTENSION);
+    }
+
     /**
      * Generate the name of the file containing the active deployment (blue/green).
      * @param type sitemap type (record or entity)
@@ -47,13 +47,15 @@ public class PortalUrl {
      * @param baseUrl baseUrl used for generating the result
      * @param type sitemap type (record or entity)
      * @param appendix appendix of the file (e.g. ?from=0&to=45000)
+     * @param compressed if true the url of the gzip-compressed file is returned
      * @return the url of a public sitemap file
      */
-    private static String getSitemapUrlPlain(String baseUrl, SitemapType type, String appendix) {
+    private static String getSitemapUrlPlain(String baseUrl, SitemapType type, String appendix, boolean compressed) {
         return baseUrl +
                 Constants.PATH_SEPARATOR +
                 type.getFileNameBase() +
                 Constants.XML_EXTENSION +
+                (compressed ? Constants.GZIP_EXTENSION : "") +
                 appendix;
     }
 
@@ -66,7 +68,21 @@ public class PortalUrl {
      * @return the url of a public sitemap file
      */
     public static String getSitemapUrlEncoded(String baseUrl, SitemapType type, String appendix) {
-        return StringEscapeUtils.escapeXml10(getSitemapUrlPlain(baseUrl, type, appendix));
+        return getSitemapUrlEncoded(baseUrl, type, appendix, false);
+    }
+
+    /**
+     * Return the public url of a (possibly gzip-compressed) sitemap file (as it appears in the sitemap index file)
+     * but url encoded
+     *
+     * @param baseUrl baseUrl used for generating the result
+     * @param type sitemap type (record or entity)
+     * @param appendix appendix of the file (e.g. ?from=0&to=45000)
+     * @param compressed if true the url of the gzip-compressed file (.xml.gz) is returned
+     * @return the url of a public sitemap file
+     */
+    public static String getSitemapUrlEncoded(String baseUrl, SitemapType type, String appendix, boolean compressed) {
+        return StringEscapeUtils.escapeXml10(getSitemapUrlPlain(baseUrl, type, appendix, compressed));
     }
 
 
@@ -87,7 +103,15 @@ public class PortalUrl {
      * @return portal record page url
      */
     public String getRecordUrl(String europeanaId) {
-        return portalBaseUrl + recordPortalPath + europeanaId;
+        return getRecordUrlPrefix() + europeanaId;
+    }
+
+    /**
+     * Return the first part of all portal record page urls, so without the CHO id
+     * @return portal record page url prefix
+     */
+    public String getRecordUrlPrefix() {
+        return portalBaseUrl + recordPortalPath;
     }
 
     /**
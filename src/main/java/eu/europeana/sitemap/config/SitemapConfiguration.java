@@ -3,17 +3,39 @@ package eu.europeana.sitemap.config;
 
 import eu.europeana.s3.S3ObjectStorageClient;
 import eu.europeana.sitemap.exceptions.SiteMapConfigException;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.mongo.MongoBatchMetricsListener;
 import eu.europeana.sitemap.mongo.MongoProvider;
+import eu.europeana.sitemap.s3.S3MultipartUploader;
+import eu.europeana.sitemap.service.update.FileRecordSource;
+import eu.europeana.sitemap.service.update.MongoRecordSource;
+import eu.europeana.sitemap.service.update.RecordQueryStrategy;
+import eu.europeana.sitemap.service.update.RecordSource;
+import eu.europeana.sitemap.service.update.RecordSourceType;
+import eu.europeana.sitemap.service.update.RecordTierFilter;
+import eu.europeana.sitemap.service.update.SyntheticRecordSource;
+import eu.europeana.sitemap.service.update.SitemapGenerator;
+import eu.europeana.sitemap.storage.InMemorySitemapStorage;
+import eu.europeana.sitemap.storage.LocalSitemapStorage;
+import eu.europeana.sitemap.storage.S3SitemapStorage;
+import eu.europeana.sitemap.storage.SitemapStorage;
+import eu.europeana.sitemap.storage.StorageType;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import jakarta.annotation.PostConstruct;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.PropertySource;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
 
 /**
  * Class that contains all configuration settings
@@ -23,6 +45,8 @@ import java.net.URISyntaxException;
 @PropertySource(value = "classpath:sitemap.user.properties", ignoreResourceNotFound = true)
 public class SitemapConfiguration {
 
+    private static final int MB = 1024 * 1024;
+
     @Value("${admin.apikey}")
     private String adminKey;
 
@@ -33,17 +57,47 @@ public class SitemapConfiguration {
     private String recordContentTier;
     @Value("${record.metadata.tier}")
     private String recordMetadataTier;
+    @Value("${record.source:mongo}")
+    private String recordSourceName;
+    private RecordSourceType recordSourceType;
+    @Value("${record.synthetic.count:60000000}")
+    private long recordSyntheticCount;
+    @Value("${record.synthetic.seed:42}")
+    private long recordSyntheticSeed;
+    @Value("${record.synthetic.rate:0}")
+    private int recordSyntheticRate;
+    @Value("${record.file.path:}")
+    private String recordFilePath;
+    @Value("${record.query.strategy:aggregate}")
+    private String recordQueryStrategyName;
+    private RecordQueryStrategy recordQueryStrategy;
+    @Value("${record.query.threads:1}")
+    private int recordQueryThreads;
+    @Value("${record.query.prefetch.records:50000}")
+    private int recordQueryPrefetchRecords;
+    @Value("${record.query.explain:true}")
+    private boolean recordQueryExplain;
     @Value("${mongodb.connectionUrl}")
     private String mongoConnectionUrl;
     @Value("${mongodb.record.dbname}")
     private String mongoDatabase;
+    @Value("${mongodb.metrics.batches:false}")
+    private boolean mongoBatchMetrics;
 
     @Value("${entity.api.url}")
     private String entityApiUrl;
     @Value("${entity.api.wskey}")
     private String entityApiKey;
+    @Value("${entity.api.concurrency:4}")
+    private int entityApiConcurrency;
     private URI entityApi;
 
+    @Value("${storage.type:s3}")
+    private String storageTypeName;
+    private StorageType storageType;
+    @Value("${storage.local.path:#{null}}")
+    private String storageLocalPath;
+
     @Value("${s3.key}")
     private String key;
     @Value("${s3.secret}")
@@ -54,6 +108,38 @@ public class SitemapConfiguration {
     private String bucket;
     @Value("${s3.endpoint}")
     private String endpoint;
+    @Value("${s3.etag.md5:true}")
+    private boolean s3Md5ETags;
+    @Value("${s3.multipart.enabled:false}")
+    private boolean multipartEnabled;
+    @Value("${s3.multipart.partsize.mb:5}")
+    private int multipartPartSizeMb;
+    @Value("${s3.multipart.threads:2}")
+    private int multipartThreads;
+    @Value("${s3.upload.threads:2}")
+    private int uploadThreads;
+    @Value("${s3.upload.maxinflight.mb:64}")
+    private int uploadMaxInFlightMb;
+    @Value("${sitemap.gzip.enabled:false}")
+    private boolean gzipEnabled;
+    @Value("${sitemap.file.maxsize.mb:50}")
+    private int sitemapFileMaxSizeMb;
+    @Value("${sitemap.checkpoint.maxage.hours:24}")
+    private int checkpointMaxAgeHours;
+    @Value("${sitemap.checkpoint.interval.seconds:60}")
+    private int checkpointIntervalSeconds;
+    @Value("${sitemap.delta.enabled:false}")
+    private boolean deltaEnabled;
+    @Value("${sitemap.delta.fullgeneration.days:7}")
+    private int deltaFullGenerationDays;
+    @Value("${sitemap.delta.maxchanged:500000}")
+    private int deltaMaxChangedRecords;
+    @Value("${sitemap.changelog.enabled:false}")
+    private boolean changelogEnabled;
+    @Value("${sitemap.changelog.memory.urls:1000000}")
+    private int changelogMemoryUrls;
+    @Value("${sitemap.changelog.temp.dir:}")
+    private String changelogTempDir;
 
     @Value("${spring.mail.from:#{null}}")
     private String mailFrom;
@@ -79,6 +165,66 @@ public class SitemapConfiguration {
         } catch (URISyntaxException e) {
             throw new SiteMapConfigException("Property entity.api.url is incorrect: " + entityApiUrl, e);
         }
+        if (entityApiConcurrency <= 0) {
+            throw new SiteMapConfigException("Property entity.api.concurrency should be larger than 0");
+        }
+
+        this.storageType = StorageType.fromString(storageTypeName);
+        if (storageType == null) {
+            throw new SiteMapConfigException("Property storage.type is incorrect: " + storageTypeName);
+        }
+        if (storageType == StorageType.LOCAL && StringUtils.isBlank(storageLocalPath)) {
+            throw new SiteMapConfigException("Property storage.local.path is not set");
+        }
+        this.recordSourceType = RecordSourceType.fromString(recordSourceName);
+        if (recordSourceType == null) {
+            throw new SiteMapConfigException("Property record.source is incorrect: " + recordSourceName);
+        }
+        if (recordSyntheticCount < 0 || recordSyntheticRate < 0) {
+            throw new SiteMapConfigException("Properties record.synthetic.count and record.synthetic.rate can't be negative");
+        }
+        if (recordSourceType == RecordSourceType.FILE && FileRecordSource.Format.fromFileName(recordFilePath) == null) {
+            throw new SiteMapConfigException("Property record.file.path should be a .bson, .json, .jsonl or .ndjson file");
+        }
+        this.recordQueryStrategy = RecordQueryStrategy.fromString(recordQueryStrategyName);
+        if (recordQueryStrategy == null) {
+            throw new SiteMapConfigException("Property record.query.strategy is incorrect: " + recordQueryStrategyName);
+        }
+        if (recordQueryThreads < 1) {
+            throw new SiteMapConfigException("Property record.query.threads should be at least 1");
+        }
+        if (multipartEnabled && storageType != StorageType.S3) {
+            throw new SiteMapConfigException("Property s3.multipart.enabled can only be used with storage.type s3");
+        }
+
+        if (multipartEnabled && multipartPartSizeMb * MB < S3MultipartUploader.MIN_PART_SIZE) {
+            throw new SiteMapConfigException("Property s3.multipart.partsize.mb should be at least "
+                    + (S3MultipartUploader.MIN_PART_SIZE / MB));
+        }
+        if (multipartThreads < 0) {
+            throw new SiteMapConfigException("Property s3.multipart.threads can't be negative");
+        }
+
+        if (uploadThreads > 0 && uploadMaxInFlightMb <= 0) {
+            throw new SiteMapConfigException("Property s3.upload.maxinflight.mb should be larger than 0");
+        }
+
+        if (checkpointIntervalSeconds < 0) {
+            throw new SiteMapConfigException("Property sitemap.checkpoint.interval.seconds can't be negative");
+        }
+
+        if (deltaEnabled && deltaMaxChangedRecords <= 0) {
+            throw new SiteMapConfigException("Property sitemap.delta.maxchanged should be larger than 0");
+        }
+
+        if (changelogEnabled && changelogMemoryUrls <= 0) {
+            throw new SiteMapConfigException("Property sitemap.changelog.memory.urls should be larger than 0");
+        }
+
+        if (sitemapFileMaxSizeMb <= 0 || (long) sitemapFileMaxSizeMb * MB > SitemapGenerator.MAX_BYTES_PER_SITEMAP) {
+            throw new SiteMapConfigException("Property sitemap.file.maxsize.mb should be between 1 and "
+                    + (SitemapGenerator.MAX_BYTES_PER_SITEMAP / MB));
+        }
 
         // trim to avoid problems with accidental trailing spaces
         this.portalBaseUrl = this.portalBaseUrl.trim();
@@ -86,28 +232,177 @@ public class SitemapConfiguration {
 
     /**
      * Location where all sitemap files are stored
+     * @return storage implementation selected with the storage.type property
+     * @throws URISyntaxException when the configured S3 endpoint is not a valid URI
+     * @throws IOException when the local storage directory can't be created
+     */
+    @Bean
+    public SitemapStorage sitemapStorage() throws URISyntaxException, IOException {
+        LogManager.getLogger(SitemapConfiguration.class).info("Using {} storage", storageType);
+        return switch (storageType) {
+            case S3 -> new S3SitemapStorage(objectStorageClient(), multipartUploader(), s3Md5ETags);
+            case LOCAL -> new LocalSitemapStorage(Path.of(storageLocalPath.trim()));
+            case MEMORY -> new InMemorySitemapStorage();
+        };
+    }
+
+    /**
+     * S3 storage client, only created when S3 storage is used
      * @return object storage client
      * @throws URISyntaxException when the configured endpoint is not a valid URI
      */
     @Bean
+    @Lazy
     public S3ObjectStorageClient objectStorageClient() throws URISyntaxException {
         // for IBM Cloud S3 storage we need to provide an endpoint
         return new S3ObjectStorageClient(key, secret, region, bucket, new URI(endpoint));
     }
 
     /**
-     * Create a new Mongo provider bean
+     * Used for streaming sitemap files to the object storage (if enabled)
+     * @return multipart uploader
+     * @throws URISyntaxException when the configured endpoint is not a valid URI
+     */
+    @Bean
+    public S3MultipartUploader multipartUploader() throws URISyntaxException {
+        return new S3MultipartUploader(key, secret, region, bucket, new URI(endpoint), multipartEnabled,
+                multipartPartSizeMb * MB, multipartThreads);
+    }
+
+    /**
+     * Metrics for sitemap generation. If there's no meter registry (e.g. when only part of the application is loaded),
+     * the global registry is used
+     * @param meterRegistry meter registry created by Spring-Boot actuator
+     * @return SitemapMetrics bean
+     */
+    @Bean
+    public SitemapMetrics sitemapMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+        return new SitemapMetrics(meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+    }
+
+    /**
+     * Create a new Mongo provider bean. Batch metrics are optional, because with a command listener the driver copies
+     * every reply and the listener has to parse each batch again to count the documents.
+     * @param metrics used for recording metrics of batches retrieved from Mongo (if enabled)
      * @return MongoProvider bean
      */
     @Bean
-    public MongoProvider mongoProvider() {
-        return new MongoProvider(mongoConnectionUrl, mongoDatabase);
+    @Lazy
+    public MongoProvider mongoProvider(SitemapMetrics metrics) {
+        return new MongoProvider(mongoConnectionUrl, mongoDatabase,
+                mongoBatchMetrics ? new MongoBatchMetricsListener(metrics) : null);
+    }
+
+    /**
+     * Where records are read from when generating the record sitemap
+     * @param mongoProvider Mongo provider, only created when records are read from Mongo
+     * @param metrics used for recording metrics of reading records
+     * @return record source implementation selected with the record.source property
+     */
+    @Bean
+    public RecordSource recordSource(ObjectProvider<MongoProvider> mongoProvider, SitemapMetrics metrics) {
+        LogManager.getLogger(SitemapConfiguration.class).info("Using {} record source", recordSourceType);
+        return switch (recordSourceType) {
+            case MONGO -> new MongoRecordSource(mongoProvider.getObject(), this, metrics);
+            case SYNTHETIC -> new SyntheticRecordSource(recordSyntheticCount, recordSyntheticSeed, recordSyntheticRate);
+            case FILE -> new FileRecordSource(Path.of(recordFilePath.trim()),
+                    new RecordTierFilter(recordContentTier, recordMetadataTier),
+                    Runtime.getRuntime().availableProcessors());
+        };
     }
 
     public String getPortalBaseUrl() {
         return portalBaseUrl;
     }
 
+    /**
+     * @return number of threads used for saving sitemap files in the background (0 means files are saved during
+     * generation)
+     */
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    /**
+     * @return maximum number of bytes that can be waiting to be saved
+     */
+    public int getUploadMaxInFlightBytes() {
+        return uploadMaxInFlightMb * MB;
+    }
+
+    /**
+     * @return maximum size in bytes of an (uncompressed) sitemap file
+     */
+    public long getSitemapFileMaxBytes() {
+        return (long) sitemapFileMaxSizeMb * MB;
+    }
+
+    /**
+     * @return true if sitemap files should be gzip-compressed, otherwise false
+     */
+    public boolean isGzipEnabled() {
+        return gzipEnabled;
+    }
+
+    /**
+     * @return maximum age in hours of a checkpoint for it to be used to resume an interrupted record sitemap
+     * generation, 0 means generation is never resumed
+     */
+    public int getCheckpointMaxAgeHours() {
+        return checkpointMaxAgeHours;
+    }
+
+    /**
+     * @return minimum number of seconds between two checkpoints, 0 means a checkpoint is saved after each sitemap file
+     */
+    public int getCheckpointIntervalSeconds() {
+        return checkpointIntervalSeconds;
+    }
+
+    /**
+     * @return true if the record sitemap update should only regenerate files that contain changed records
+     */
+    public boolean isDeltaEnabled() {
+        return deltaEnabled;
+    }
+
+    /**
+     * @return maximum number of days since the last full record sitemap generation, after that all files are
+     * regenerated again
+     */
+    public int getDeltaFullGenerationDays() {
+        return deltaFullGenerationDays;
+    }
+
+    /**
+     * @return maximum number of changed records for a delta update, if more records changed all files are regenerated
+     */
+    public int getDeltaMaxChangedRecords() {
+        return deltaMaxChangedRecords;
+    }
+
+    /**
+     * @return true if a list of added and removed urls should be published after each update
+     */
+    public boolean isChangelogEnabled() {
+        return changelogEnabled;
+    }
+
+    /**
+     * @return maximum number of urls kept in memory when sorting the urls for the changelog
+     */
+    public int getChangelogMemoryUrls() {
+        return changelogMemoryUrls;
+    }
+
+    /**
+     * @return directory for temporary files of the changelog
+     */
+    public Path getChangelogTempDirectory() {
+        return Path.of(StringUtils.isBlank(changelogTempDir) ? System.getProperty("java.io.tmpdir")
+                : changelogTempDir.trim());
+    }
+
     public String getRecordContentTier() {
         return recordContentTier;
     }
@@ -116,6 +411,35 @@ public class SitemapConfiguration {
         return recordMetadataTier;
     }
 
+    /**
+     * @return how the record collection is queried
+     */
+    public RecordQueryStrategy getRecordQueryStrategy() {
+        return recordQueryStrategy;
+    }
+
+    /**
+     * @return number of threads used to read records from Mongo, if 1 then all records are read with one query
+     */
+    public int getRecordQueryThreads() {
+        return recordQueryThreads;
+    }
+
+    /**
+     * @return maximum number of records that are read ahead on a separate thread (when using 1 query thread),
+     * if 0 then records are read on the generating thread
+     */
+    public int getRecordQueryPrefetchRecords() {
+        return recordQueryPrefetchRecords;
+    }
+
+    /**
+     * @return true if the query plan of the record query should be checked (and logged) before generation starts
+     */
+    public boolean isRecordQueryExplain() {
+        return recordQueryExplain;
+    }
+
     public String getEntityApiUrl() {
         return entityApi.toString();
     }
@@ -146,6 +470,13 @@ public class SitemapConfiguration {
         return entityApi;
     }
 
+    /**
+     * @return maximum number of pages that are requested from the Entity API at the same time
+     */
+    public int getEntityApiConcurrency() {
+        return entityApiConcurrency;
+    }
+
     public String getMailFrom() {
         return mailFrom;
     }
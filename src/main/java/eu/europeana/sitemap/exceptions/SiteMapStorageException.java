@@ -0,0 +1,30 @@
+package eu.europeana.sitemap.exceptions;
+
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Error that is thrown if one or more sitemap files could not be saved to storage
+ */
+@ResponseStatus(HttpStatus.INTERNAL_SERVER_ERROR)
+public class SiteMapStorageException extends SiteMapException {
+
+    /**
+     * Error that is thrown if one or more sitemap files could not be saved to storage
+     * @param msg error message
+     */
+    public SiteMapStorageException(String msg) {
+        super(msg);
+    }
+
+    /**
+     * Error that is thrown if one or more sitemap files could not be saved to storage
+     * @param msg error message
+     * @param t throwable that caused the exception
+     */
+    public SiteMapStorageException(String msg, Throwable t) {
+        super(msg, t);
+    }
+
+}
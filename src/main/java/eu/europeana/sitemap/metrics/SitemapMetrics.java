@@ -0,0 +1,271 @@
+package eu.europeana.sitemap.metrics;
+
+import eu.europeana.sitemap.SitemapType;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Micrometer metrics for sitemap generation. When running as a web application these are available at
+ * /actuator/prometheus, command-line runs can push them to a Prometheus Pushgateway (see sitemap.properties).
+ *
+ * To keep overhead low, we don't update meters for every item. Items and bytes are counted when a sitemap file is
+ * finished and the gauges for the current file read the generator's state only when metrics are collected.
+ */
+public class SitemapMetrics {
+
+    private static final String PREFIX = "sitemap.";
+    private static final String TAG_TYPE = "type";
+    private static final String TAG_UNCHANGED = "unchanged";
+    private static final String TAG_COMMAND = "command";
+    private static final String TAG_OUTCOME = "outcome";
+    private static final String TAG_WAITING = "waiting";
+    private static final String SUCCESS = "success";
+    private static final String FAILURE = "failure";
+
+    private final MeterRegistry registry;
+    private final Map<SitemapType, CurrentFile> currentFiles = new EnumMap<>(SitemapType.class);
+
+    private final Counter storageRetries;
+    private final Counter storageFailedSaves;
+    private final Timer storageSaveSuccess;
+    private final Timer storageSaveFailure;
+    private final Counter mongoCursorRestarts;
+    private final Timer prefetchReaderStall;
+    private final Timer prefetchGeneratorStall;
+    private volatile DoubleSupplier prefetchQueue;
+
+    /**
+     * State of the sitemap file that is being generated, set by the generator
+     */
+    private static final class CurrentFile {
+        private volatile DoubleSupplier items;
+        private volatile DoubleSupplier fillRatio;
+
+        private static double get(DoubleSupplier supplier) {
+            return (supplier == null ? 0 : supplier.getAsDouble());
+        }
+    }
+
+    /**
+     * Create new sitemap metrics
+     * @param registry the registry to which all meters are added
+     */
+    public SitemapMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (SitemapType type : SitemapType.values()) {
+            CurrentFile currentFile = new CurrentFile();
+            currentFiles.put(type, currentFile);
+            Gauge.builder(PREFIX + "file.items", currentFile, file -> CurrentFile.get(file.items))
+                    .description("Number of items in the sitemap file that is being generated")
+                    .tag(TAG_TYPE, type.toString())
+                    .register(registry);
+            Gauge.builder(PREFIX + "file.fill", currentFile, file -> CurrentFile.get(file.fillRatio))
+                    .description("How full the sitemap file that is being generated is, in number of items or bytes "
+                            + "(whichever is closest to the maximum), between 0 and 1")
+                    .tag(TAG_TYPE, type.toString())
+                    .register(registry);
+        }
+        this.storageRetries = Counter.builder(PREFIX + "storage.save.retries")
+                .description("Number of times saving a file was retried")
+                .register(registry);
+        this.storageFailedSaves = Counter.builder(PREFIX + "storage.save.failed")
+                .description("Number of files that could not be saved, even after retrying")
+                .register(registry);
+        this.storageSaveSuccess = storageSaveTimer(SUCCESS);
+        this.storageSaveFailure = storageSaveTimer(FAILURE);
+        this.mongoCursorRestarts = Counter.builder(PREFIX + "mongo.cursor.restarts")
+                .description("Number of times a record query was restarted after a temporary error")
+                .register(registry);
+        Gauge.builder(PREFIX + "prefetch.queue", this, metrics -> CurrentFile.get(metrics.prefetchQueue))
+                .description("Number of records read from Mongo that are waiting to be added to a sitemap file")
+                .register(registry);
+        this.prefetchReaderStall = prefetchStallTimer("reader");
+        this.prefetchGeneratorStall = prefetchStallTimer("generator");
+    }
+
+    /**
+     * @return metrics that are not recorded anywhere, e.g. for use in tests or benchmarks
+     */
+    public static SitemapMetrics noop() {
+        // a composite registry without any registries only creates no-op meters
+        return new SitemapMetrics(new CompositeMeterRegistry());
+    }
+
+    private Timer storageSaveTimer(String outcome) {
+        return Timer.builder(PREFIX + "storage.save")
+                .description("Duration of a single attempt to save a file to the storage")
+                .tag(TAG_OUTCOME, outcome)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private Timer prefetchStallTimer(String waiting) {
+        return Timer.builder(PREFIX + "prefetch.stall")
+                .description("Time spent waiting because the prefetch queue was full (reader waiting) or empty "
+                        + "(generator waiting)")
+                .tag(TAG_WAITING, waiting)
+                .register(registry);
+    }
+
+    /**
+     * Set where the gauges for the current file of a sitemap type get their values from. Note that suppliers are
+     * called on the thread that collects metrics, so they shouldn't do any locking.
+     * @param type the sitemap type that is being generated
+     * @param items supplies the number of items in the current file
+     * @param fillRatio supplies how full the current file is (between 0 and 1)
+     */
+    public void setCurrentFile(SitemapType type, DoubleSupplier items, DoubleSupplier fillRatio) {
+        CurrentFile currentFile = currentFiles.get(type);
+        currentFile.items = items;
+        currentFile.fillRatio = fillRatio;
+    }
+
+    /**
+     * Reset the gauges for the current file of a sitemap type, because generation has finished or failed
+     * @param type the sitemap type that was generated
+     */
+    public void clearCurrentFile(SitemapType type) {
+        setCurrentFile(type, null, null);
+    }
+
+    /**
+     * Record that a sitemap file was generated
+     * @param type the sitemap type
+     * @param items number of items in the file
+     * @param bytes number of (uncompressed) bytes in the file
+     * @param durationMs how long it took to generate the file
+     * @param unchanged true if the file is the same as in the active deployment
+     */
+    public void fileGenerated(SitemapType type, long items, long bytes, long durationMs, boolean unchanged) {
+        String typeName = type.toString();
+        Counter.builder(PREFIX + "items")
+                .description("Number of items written to sitemap files")
+                .tag(TAG_TYPE, typeName)
+                .register(registry)
+                .increment(items);
+        Counter.builder(PREFIX + "encoded")
+                .description("Number of (uncompressed) bytes written to sitemap files")
+                .baseUnit(BaseUnits.BYTES)
+                .tag(TAG_TYPE, typeName)
+                .register(registry)
+                .increment(bytes);
+        Timer.builder(PREFIX + "file.generation")
+                .description("Time it takes to fill a sitemap file")
+                .tag(TAG_TYPE, typeName)
+                .register(registry)
+                .record(durationMs, TimeUnit.MILLISECONDS);
+        fileWritten(type, unchanged);
+    }
+
+    /**
+     * Record that a sitemap file was written (or copied) to the storage
+     * @param type the sitemap type
+     * @param unchanged true if the file is the same as in the active deployment
+     */
+    public void fileWritten(SitemapType type, boolean unchanged) {
+        Counter.builder(PREFIX + "files")
+                .description("Number of sitemap files written")
+                .tag(TAG_TYPE, type.toString())
+                .tag(TAG_UNCHANGED, String.valueOf(unchanged))
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * Record a single attempt to save a file to the storage
+     * @param durationNanos how long the attempt took
+     * @param success true if the file was saved successfully
+     * @param retry true if this was not the first attempt to save the file
+     */
+    public void storageSave(long durationNanos, boolean success, boolean retry) {
+        (success ? storageSaveSuccess : storageSaveFailure).record(durationNanos, TimeUnit.NANOSECONDS);
+        if (retry) {
+            storageRetries.increment();
+        }
+    }
+
+    /**
+     * Record that a file could not be saved
+     */
+    public void storageSaveFailed() {
+        storageFailedSaves.increment();
+    }
+
+    /**
+     * Set where the prefetch queue gauge gets its value from
+     * @param size supplies the number of records in the prefetch queue
+     */
+    public void setPrefetchQueue(DoubleSupplier size) {
+        this.prefetchQueue = size;
+    }
+
+    /**
+     * Reset the prefetch queue gauge, because reading has finished
+     */
+    public void clearPrefetchQueue() {
+        setPrefetchQueue(null);
+    }
+
+    /**
+     * Record that reading or generating had to wait for the other side of the prefetch queue
+     * @param generatorWaiting true if the generator waited for records, false if the reader waited for space in the queue
+     * @param durationNanos how long the wait took
+     */
+    public void prefetchStall(boolean generatorWaiting, long durationNanos) {
+        (generatorWaiting ? prefetchGeneratorStall : prefetchReaderStall).record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record a batch of documents that was retrieved from Mongo
+     * @param command the name of the Mongo command (e.g. getMore)
+     * @param durationNanos how long it took to retrieve the batch
+     * @param nrDocuments number of documents in the batch, or -1 if the command failed
+     */
+    public void mongoBatch(String command, long durationNanos, int nrDocuments) {
+        Timer.builder(PREFIX + "mongo.batch")
+                .description("Time it takes to retrieve a batch of documents from Mongo")
+                .tag(TAG_COMMAND, command)
+                .tag(TAG_OUTCOME, nrDocuments < 0 ? FAILURE : SUCCESS)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+        if (nrDocuments >= 0) {
+            DistributionSummary.builder(PREFIX + "mongo.batch.documents")
+                    .description("Number of documents in a batch retrieved from Mongo")
+                    .tag(TAG_COMMAND, command)
+                    .register(registry)
+                    .record(nrDocuments);
+        }
+    }
+
+    /**
+     * Record that a record query was restarted after a temporary error
+     */
+    public void mongoCursorRestarted() {
+        mongoCursorRestarts.increment();
+    }
+
+    /**
+     * Record the retrieval of a page of entities from the Entity API
+     * @param durationNanos how long it took to retrieve the page
+     * @param success true if the page was retrieved successfully
+     */
+    public void entityPage(long durationNanos, boolean success) {
+        Timer.builder(PREFIX + "entity.page")
+                .description("Time it takes to retrieve a page of entities from the Entity API")
+                .tag(TAG_OUTCOME, success ? SUCCESS : FAILURE)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+}
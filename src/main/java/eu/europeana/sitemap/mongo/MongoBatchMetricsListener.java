@@ -0,0 +1,60 @@
+package eu.europeana.sitemap.mongo;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandSucceededEvent;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the latency and size of each batch of documents the Mongo driver retrieves. For aggregations and queries
+ * the first batch is returned by the aggregate or find command itself, all following batches by getMore commands.
+ */
+public class MongoBatchMetricsListener implements CommandListener {
+
+    private static final Set<String> BATCH_COMMANDS = Set.of("aggregate", "find", "getMore");
+    private static final String CURSOR = "cursor";
+    private static final String FIRST_BATCH = "firstBatch";
+    private static final String NEXT_BATCH = "nextBatch";
+
+    private final SitemapMetrics metrics;
+
+    /**
+     * Create a new listener
+     * @param metrics where batch metrics are recorded
+     */
+    public MongoBatchMetricsListener(SitemapMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        if (BATCH_COMMANDS.contains(event.getCommandName())) {
+            metrics.mongoBatch(event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS),
+                    getBatchSize(event.getResponse()));
+        }
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        if (BATCH_COMMANDS.contains(event.getCommandName())) {
+            metrics.mongoBatch(event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), -1);
+        }
+    }
+
+    private static int getBatchSize(BsonDocument response) {
+        BsonDocument cursor = response.getDocument(CURSOR, null);
+        if (cursor == null) {
+            return 0;
+        }
+        BsonArray batch = cursor.getArray(NEXT_BATCH, null);
+        if (batch == null) {
+            batch = cursor.getArray(FIRST_BATCH, null);
+        }
+        return (batch == null ? 0 : batch.size());
+    }
+}
@@ -1,13 +1,16 @@
 package eu.europeana.sitemap.mongo;
 
 import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.event.CommandListener;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
 
 /**
  * Connects to the (production) mongo server to retrieve all records.
@@ -20,6 +23,7 @@ public class MongoProvider {
 
     private final MongoClient mongoClient;
     private final MongoCollection<Document> collection;
+    private final MongoCollection<RecordProjection> recordCollection;
 
     /**
      * Create a new MongoClient based on a connectionUrl
@@ -28,13 +32,31 @@ public class MongoProvider {
      * @param database database to use (should be filled when used record database is different from authentication database)
      */
     public MongoProvider(String connectionUrl, String database) {
+        this(connectionUrl, database, null);
+    }
+
+    /**
+     * Create a new MongoClient based on a connectionUrl
+     *
+     * @param connectionUrl url with the authentication database
+     * @param database database to use (should be filled when used record database is different from authentication database)
+     * @param commandListener if not null, this listener is notified of all commands sent to Mongo (e.g. to gather metrics)
+     */
+    public MongoProvider(String connectionUrl, String database, CommandListener commandListener) {
         ConnectionString connection = new ConnectionString(connectionUrl);
         if (StringUtils.isEmpty(database)) {
             database = connection.getDatabase();
         }
         LOG.info("Connecting to Mongo {} database at {}...", database, connection.getHosts());
-        this.mongoClient = MongoClients.create(connection);
+        MongoClientSettings.Builder settings = MongoClientSettings.builder().applyConnectionString(connection);
+        if (commandListener != null) {
+            settings.addCommandListener(commandListener);
+        }
+        this.mongoClient = MongoClients.create(settings.build());
         this.collection = this.mongoClient.getDatabase(database).getCollection("record");
+        this.recordCollection = collection.withDocumentClass(RecordProjection.class)
+                .withCodecRegistry(CodecRegistries.fromRegistries(
+                        CodecRegistries.fromCodecs(new RecordProjectionCodec()), collection.getCodecRegistry()));
         LOG.info("Mongo record collection retrieved.");
     }
 
@@ -54,4 +76,12 @@ public class MongoProvider {
     public MongoCollection<Document> getCollection() {
         return collection;
     }
+
+    /**
+     * @return the record collection, with results decoded into RecordProjections instead of Documents. Only use this
+     * for queries that return the fields of a RecordProjection.
+     */
+    public MongoCollection<RecordProjection> getRecordCollection() {
+        return recordCollection;
+    }
 }
@@ -0,0 +1,23 @@
+package eu.europeana.sitemap.mongo;
+
+/**
+ * The fields of a record that we need for the sitemap, see RecordProjectionCodec
+ * @param id the record's _id (ObjectId or String), null if unknown
+ * @param about the record id, e.g. /9200001/record_1_abc
+ * @param contentTier the record's content tier, -1 if unknown
+ * @param metadataTier the record's metadata tier (e.g. 'A'), 0 if unknown
+ * @param timestampUpdated when the record was last updated in epoch milliseconds, NO_TIMESTAMP if unknown (very old
+ *                         records do not have a timestampUpdated field)
+ */
+public record RecordProjection(Object id, String about, int contentTier, char metadataTier, long timestampUpdated) {
+
+    /** Value of timestampUpdated if a record doesn't have one */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    /**
+     * @return true if the record has a timestampUpdated
+     */
+    public boolean hasTimestampUpdated() {
+        return timestampUpdated != NO_TIMESTAMP;
+    }
+}
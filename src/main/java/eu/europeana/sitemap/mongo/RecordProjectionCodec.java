@@ -0,0 +1,209 @@
+package eu.europeana.sitemap.mongo;
+
+import eu.europeana.sitemap.Constants;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+
+/**
+ * Decodes records returned by the record query straight into a RecordProjection, without creating a Document first.
+ * Fields we don't need are skipped without decoding them. The codec can read the output of both query strategies:
+ * <ul>
+ *     <li>aggregation results with the tiers as separate fields, e.g. <pre>{contentTier: "2", metadataTier: "A"}</pre></li>
+ *     <li>find results with the tier urls of the first and last quality annotation (see RecordTierFilter), e.g.
+ *     <pre>{contentTierValue: "http://www.europeana.eu/schemas/epf/contentTier2",
+ *     metadataTierValue: "http://www.europeana.eu/schemas/epf/metadataTierA"}</pre></li>
+ *     <li>complete records with the quality annotations, where the first annotation holds the content tier and the last
+ *     one the metadata tier, e.g. <pre>{qualityAnnotations: [{body: "http://www.europeana.eu/schemas/epf/contentTier2"},
+ *     {body: "http://www.europeana.eu/schemas/epf/metadataTierA"}]}</pre></li>
+ * </ul>
+ * Note that the Mongo driver decodes an entire batch at once, so each record gets its own (small) RecordProjection.
+ * Encoding writes the aggregation form, so projections can be stored and read back (e.g. in test data).
+ * The codec itself has no state and can be shared between threads.
+ */
+public class RecordProjectionCodec implements Codec<RecordProjection> {
+
+    /** Name of the field with the quality annotations of a record */
+    public static final String QUALITY_ANNOTATIONS = "qualityAnnotations";
+    /** Name of the field with the content tier url (body of the first quality annotation) */
+    public static final String CONTENT_TIER_URL = "contentTierValue";
+    /** Name of the field with the metadata tier url (body of the last quality annotation) */
+    public static final String METADATA_TIER_URL = "metadataTierValue";
+    private static final String BODY = "body";
+    // tiers are small numbers, this prevents overflow when parsing
+    private static final int MAX_TIER_DIGITS = 9;
+
+    @Override
+    public RecordProjection decode(BsonReader reader, DecoderContext decoderContext) {
+        Object id = null;
+        String about = null;
+        int contentTier = -1;
+        char metadataTier = 0;
+        long timestampUpdated = RecordProjection.NO_TIMESTAMP;
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            BsonType type = reader.getCurrentBsonType();
+            switch (name) {
+                case Constants.ID -> id = readId(reader, type);
+                case Constants.ABOUT -> about = (type == BsonType.STRING ? reader.readString() : skip(reader));
+                case Constants.LASTUPDATED -> {
+                    if (type == BsonType.DATE_TIME) {
+                        timestampUpdated = reader.readDateTime();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                case Constants.CONTENT_TIER -> contentTier = parseContentTier(
+                        type == BsonType.STRING ? reader.readString() : skip(reader));
+                case Constants.METADATA_TIER -> metadataTier = parseMetadataTier(
+                        type == BsonType.STRING ? reader.readString() : skip(reader));
+                case CONTENT_TIER_URL -> contentTier = parseContentTier(getTierValue(
+                        type == BsonType.STRING ? reader.readString() : skip(reader), Constants.CONTENT_TIER));
+                case METADATA_TIER_URL -> metadataTier = parseMetadataTier(getTierValue(
+                        type == BsonType.STRING ? reader.readString() : skip(reader), Constants.METADATA_TIER));
+                case QUALITY_ANNOTATIONS -> {
+                    if (type == BsonType.ARRAY) {
+                        String[] firstAndLast = readFirstAndLastBody(reader);
+                        contentTier = parseContentTier(getTierValue(firstAndLast[0], Constants.CONTENT_TIER));
+                        metadataTier = parseMetadataTier(getTierValue(firstAndLast[1], Constants.METADATA_TIER));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return new RecordProjection(id, about, contentTier, metadataTier, timestampUpdated);
+    }
+
+    private static Object readId(BsonReader reader, BsonType type) {
+        if (type == BsonType.OBJECT_ID) {
+            return reader.readObjectId();
+        }
+        if (type == BsonType.STRING) {
+            return reader.readString();
+        }
+        return skip(reader);
+    }
+
+    private static String skip(BsonReader reader) {
+        reader.skipValue();
+        return null;
+    }
+
+    /**
+     * Reads an array of annotations and returns the body of the first and the last one (null if missing)
+     */
+    private static String[] readFirstAndLastBody(BsonReader reader) {
+        String[] result = new String[2];
+        boolean first = true;
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String body = null;
+            if (reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+                reader.readStartDocument();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    if (BODY.equals(reader.readName()) && reader.getCurrentBsonType() == BsonType.STRING) {
+                        body = reader.readString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.readEndDocument();
+            } else {
+                reader.skipValue();
+            }
+            if (first) {
+                result[0] = body;
+                first = false;
+            }
+            result[1] = body;
+        }
+        reader.readEndArray();
+        return result;
+    }
+
+    /**
+     * Returns the part of a tier url after the tier name, e.g. "2" for "http://www.europeana.eu/schemas/epf/contentTier2"
+     * @param url the tier url
+     * @param tierName either contentTier or metadataTier
+     * @return tier value, or null if the url is null or doesn't contain the tier name
+     */
+    static String getTierValue(String url, String tierName) {
+        if (url == null) {
+            return null;
+        }
+        int index = url.lastIndexOf(tierName);
+        if (index < 0) {
+            return null;
+        }
+        return url.substring(index + tierName.length());
+    }
+
+    /**
+     * @return content tier as a number, -1 if tier is null or not a (positive) number
+     */
+    public static int parseContentTier(String tier) {
+        if (tier == null || tier.isEmpty() || tier.length() > MAX_TIER_DIGITS) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = 0; i < tier.length(); i++) {
+            char c = tier.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * @return metadata tier as a character, 0 if tier is null or not a single character
+     */
+    public static char parseMetadataTier(String tier) {
+        if (tier == null || tier.length() != 1) {
+            return 0;
+        }
+        return tier.charAt(0);
+    }
+
+    /**
+     * Writes a record projection in the same form as the aggregation results, so it can be decoded again.
+     * Unknown values (no id, no tiers or no timestampUpdated) are left out.
+     */
+    @Override
+    public void encode(BsonWriter writer, RecordProjection value, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        if (value.id() instanceof ObjectId objectId) {
+            writer.writeObjectId(Constants.ID, objectId);
+        } else if (value.id() != null) {
+            writer.writeString(Constants.ID, value.id().toString());
+        }
+        if (value.about() != null) {
+            writer.writeString(Constants.ABOUT, value.about());
+        }
+        if (value.contentTier() >= 0) {
+            writer.writeString(Constants.CONTENT_TIER, Integer.toString(value.contentTier()));
+        }
+        if (value.metadataTier() != 0) {
+            writer.writeString(Constants.METADATA_TIER, String.valueOf(value.metadataTier()));
+        }
+        if (value.hasTimestampUpdated()) {
+            writer.writeDateTime(Constants.LASTUPDATED, value.timestampUpdated());
+        }
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public Class<RecordProjection> getEncoderClass() {
+        return RecordProjection.class;
+    }
+}
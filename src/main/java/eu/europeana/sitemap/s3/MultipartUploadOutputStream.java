@@ -0,0 +1,406 @@
+package eu.europeana.sitemap.s3;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Output stream that sends all written data to S3 in parts of a fixed size, so we never have to keep an entire file
+ * in memory. The multipart upload is only started when the first part is full; files that are smaller than one part
+ * are saved with a single put request when the stream is closed.
+ *
+ * Full parts can be handed to an executor, so writing can continue while a part is uploaded. Part buffers are taken
+ * from a (shared) pool and returned as soon as a part is uploaded, so writing blocks when all buffers are in use.
+ *
+ * If an upload fails the multipart upload is aborted, so no orphaned parts are left behind in the bucket.
+ *
+ * All requests include a Content-MD5 header so S3 rejects data that got corrupted during transfer. The ETags that S3
+ * returns are compared with the checksums we calculated, so callers can check if the file was saved correctly
+ * without sending another request. That's not possible if S3 reports the object is encrypted with KMS or customer
+ * keys, see S3Checksum.
+ */
+public class MultipartUploadOutputStream extends OutputStream {
+
+    private static final Logger LOG = LogManager.getLogger(MultipartUploadOutputStream.class);
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private String key;
+    private final String contentType;
+    private final String contentEncoding;
+
+    private final PartBufferPool bufferPool;
+    private final Executor executor; // null means parts are uploaded by the writing thread
+    private byte[] partBuffer;
+    private int partBufferSize;
+
+    private String uploadId;
+    private final List<Future<PartResult>> parts = new ArrayList<>();
+    private volatile boolean aborted;
+    private String expectedETag;
+    private long bytesWritten;
+    private String eTag;
+    private boolean md5ETag = true; // false if S3 reports an encryption that doesn't use MD5 checksums as ETag
+    private boolean closed;
+
+    /**
+     * Create a new stream for uploading one file. Nothing is sent to S3 until the first part is full or the stream is
+     * closed. Parts are uploaded by the thread that writes the data.
+     * @param s3Client the client used to send data to S3
+     * @param bucket name of the bucket to write to
+     * @param key the key (file name) of the object to create
+     * @param contentType content-type of the object
+     * @param contentEncoding content-encoding of the object, can be null
+     * @param partSize size of each uploaded part in bytes, note that S3 requires this to be at least 5 MB
+     */
+    public MultipartUploadOutputStream(S3Client s3Client, String bucket, String key, String contentType,
+                                       String contentEncoding, int partSize) {
+        this(s3Client, bucket, key, contentType, contentEncoding, new PartBufferPool(partSize, 1), null);
+    }
+
+    /**
+     * Create a new stream for uploading one file. Nothing is sent to S3 until the first part is full or the stream is
+     * closed.
+     * @param s3Client the client used to send data to S3
+     * @param bucket name of the bucket to write to
+     * @param key the key (file name) of the object to create
+     * @param contentType content-type of the object
+     * @param contentEncoding content-encoding of the object, can be null
+     * @param bufferPool pool from which part buffers are taken
+     * @param executor executor that uploads full parts, if null parts are uploaded by the writing thread
+     */
+    MultipartUploadOutputStream(S3Client s3Client, String bucket, String key, String contentType,
+                                String contentEncoding, PartBufferPool bufferPool, Executor executor) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.bufferPool = bufferPool;
+        this.executor = executor;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (partBuffer == null) {
+            partBuffer = bufferPool.take();
+        }
+        partBuffer[partBufferSize++] = (byte) b;
+        bytesWritten++;
+        if (partBufferSize == partBuffer.length) {
+            uploadPart();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (partBuffer == null) {
+                partBuffer = bufferPool.take();
+            }
+            int toCopy = Math.min(remaining, partBuffer.length - partBufferSize);
+            System.arraycopy(b, offset, partBuffer, partBufferSize, toCopy);
+            partBufferSize += toCopy;
+            bytesWritten += toCopy;
+            offset += toCopy;
+            remaining -= toCopy;
+            if (partBufferSize == partBuffer.length) {
+                uploadPart();
+            }
+        }
+    }
+
+    /**
+     * Uploads the remaining data, waits until all parts are uploaded and completes the upload.
+     * @throws IOException when saving the data to S3 failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (uploadId == null) {
+                putObject();
+            } else {
+                if (partBufferSize > 0) {
+                    submitPart();
+                }
+                completeMultipartUpload();
+            }
+        } catch (SdkException e) {
+            abort();
+            throw new IOException("Error saving file " + key + " to S3", e);
+        } finally {
+            releasePartBuffer();
+        }
+    }
+
+    /**
+     * Cancel the upload. Parts that are being uploaded are waited for and any parts that were already sent to S3 are
+     * removed. Calling this method after the stream was closed successfully has no effect.
+     */
+    public void abort() {
+        closed = true;
+        aborted = true;
+        releasePartBuffer();
+        if (uploadId != null && eTag == null) {
+            // parts that haven't started yet are skipped, parts that are being sent are finished first, so they
+            // don't end up in the bucket after we aborted the upload
+            awaitParts();
+            LOG.warn("Aborting multipart upload of file {}", key);
+            try {
+                s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .build());
+            } catch (SdkException e) {
+                LOG.error("Error aborting multipart upload {} of file {}", uploadId, key, e);
+            }
+            uploadId = null;
+        }
+    }
+
+    /**
+     * @return the key (file name) of the object that is uploaded
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Change the key (file name) of the object. This is only possible as long as the data fits in one part, because
+     * S3 can't rename a multipart upload that has already started.
+     * @param newKey the new key of the object
+     * @return true if the key was changed, false if the multipart upload was already started under the old key
+     */
+    public boolean changeKey(String newKey) {
+        if (uploadId != null || closed) {
+            return false;
+        }
+        this.key = newKey;
+        return true;
+    }
+
+    /**
+     * @return the eTag of the saved object, or null if the stream isn't closed (yet)
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Compare the ETag of the saved object with the checksum of the data we sent
+     * @return MATCH if the object was saved correctly, MISMATCH if it wasn't, UNKNOWN if we can't tell from the ETag
+     * (or the stream isn't closed yet)
+     */
+    public S3Checksum.ETagCheck checkETag() {
+        if (eTag == null) {
+            return S3Checksum.ETagCheck.UNKNOWN;
+        }
+        return S3Checksum.check(eTag, expectedETag, md5ETag);
+    }
+
+    /**
+     * @return the total number of bytes written to this stream
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void putObject() {
+        LOG.debug("Saving file {} with a single put request ({} bytes)", key, partBufferSize);
+        byte[] data = (partBuffer == null ? new byte[0] : partBuffer);
+        byte[] md5 = S3Checksum.md5(data, 0, partBufferSize);
+        expectedETag = S3Checksum.toETag(md5);
+        PutObjectResponse response = s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .contentType(contentType)
+                        .contentEncoding(contentEncoding)
+                        .contentLength((long) partBufferSize)
+                        .contentMD5(S3Checksum.toContentMd5(md5))
+                        .build(),
+                RequestBody.fromInputStream(new ByteArrayInputStream(data, 0, partBufferSize), partBufferSize));
+        md5ETag = S3Checksum.hasMd5ETag(response.serverSideEncryption(), response.sseCustomerAlgorithm());
+        eTag = response.eTag();
+    }
+
+    private void completeMultipartUpload() throws IOException {
+        List<CompletedPart> completedParts = new ArrayList<>(parts.size());
+        List<byte[]> partMd5s = new ArrayList<>(parts.size());
+        for (Future<PartResult> part : parts) {
+            PartResult result = getPartResult(part);
+            completedParts.add(result.part());
+            partMd5s.add(result.md5());
+            md5ETag = md5ETag && result.md5ETag();
+        }
+        LOG.debug("Completing multipart upload of file {} ({} parts, {} bytes)", key, completedParts.size(), bytesWritten);
+        expectedETag = S3Checksum.toMultipartETag(partMd5s);
+        CompleteMultipartUploadResponse response = s3Client.completeMultipartUpload(
+                CompleteMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                        .build());
+        md5ETag = md5ETag && S3Checksum.hasMd5ETag(response.serverSideEncryption(), null);
+        eTag = response.eTag();
+    }
+
+    private PartResult getPartResult(Future<PartResult> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new IllegalStateException("Interrupted while waiting for parts of file " + key + " to be uploaded", e);
+        } catch (ExecutionException e) {
+            abort();
+            if (e.getCause() instanceof IOException ioe) {
+                throw ioe;
+            }
+            throw new IOException("Error uploading part of file " + key + " to S3", e.getCause());
+        }
+    }
+
+    private void uploadPart() throws IOException {
+        try {
+            if (uploadId == null) {
+                uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .contentType(contentType)
+                        .contentEncoding(contentEncoding)
+                        .build()).uploadId();
+                LOG.debug("Started multipart upload {} for file {}", uploadId, key);
+            }
+        } catch (SdkException e) {
+            abort();
+            throw new IOException("Error starting multipart upload of file " + key + " to S3", e);
+        }
+        submitPart();
+    }
+
+    /**
+     * Hands the current part buffer to the executor, the buffer is returned to the pool when the part is uploaded.
+     * Fails if the upload of this or any previous part failed.
+     */
+    private void submitPart() throws IOException {
+        int partNumber = parts.size() + 1;
+        byte[] buffer = partBuffer;
+        int size = partBufferSize;
+        partBuffer = null;
+        partBufferSize = 0;
+        FutureTask<PartResult> task = new FutureTask<>(() -> {
+            try {
+                return aborted ? null : sendPart(partNumber, buffer, size);
+            } finally {
+                bufferPool.release(buffer);
+            }
+        });
+        parts.add(task);
+        if (executor == null) {
+            task.run();
+        } else {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                parts.remove(task);
+                bufferPool.release(buffer);
+                abort();
+                throw new IOException("Error uploading part " + partNumber + " of file " + key + ", uploader is shut down", e);
+            }
+        }
+        for (Future<PartResult> part : parts) {
+            if (part.isDone()) {
+                getPartResult(part);
+            }
+        }
+    }
+
+    private PartResult sendPart(int partNumber, byte[] buffer, int size) throws IOException {
+        byte[] md5 = S3Checksum.md5(buffer, 0, size);
+        UploadPartResponse response;
+        try {
+            response = s3Client.uploadPart(UploadPartRequest.builder()
+                            .bucket(bucket)
+                            .key(key)
+                            .uploadId(uploadId)
+                            .partNumber(partNumber)
+                            .contentLength((long) size)
+                            .contentMD5(S3Checksum.toContentMd5(md5))
+                            .build(),
+                    RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, size), size));
+        } catch (SdkException e) {
+            throw new IOException("Error uploading part " + partNumber + " of file " + key + " to S3", e);
+        }
+        String partETag = response.eTag();
+        boolean partMd5ETag = S3Checksum.hasMd5ETag(response.serverSideEncryption(), response.sseCustomerAlgorithm());
+        if (S3Checksum.check(partETag, S3Checksum.toETag(md5), partMd5ETag) == S3Checksum.ETagCheck.MISMATCH) {
+            throw new IOException("Checksum of part " + partNumber + " of file " + key + " doesn't match (etag = "
+                    + partETag + ")");
+        }
+        LOG.debug("Uploaded part {} of file {} ({} bytes)", partNumber, key, size);
+        return new PartResult(CompletedPart.builder().partNumber(partNumber).eTag(partETag).build(), md5, partMd5ETag);
+    }
+
+    private void awaitParts() {
+        for (Future<PartResult> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                LOG.debug("Upload of a part of file {} failed", key, e.getCause());
+            }
+        }
+    }
+
+    private void releasePartBuffer() {
+        if (partBuffer != null) {
+            bufferPool.release(partBuffer);
+            partBuffer = null;
+            partBufferSize = 0;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Upload of file " + key + " is already closed");
+        }
+    }
+
+    private record PartResult(CompletedPart part, byte[] md5, boolean md5ETag) {
+    }
+}
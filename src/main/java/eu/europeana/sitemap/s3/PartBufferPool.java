@@ -0,0 +1,58 @@
+package eu.europeana.sitemap.s3;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fixed number of part buffers that are shared by all uploads of an S3MultipartUploader. Buffers are only allocated
+ * when they are needed and are reused after a part is uploaded. Taking a buffer blocks when all buffers are in use, so
+ * this also limits the number of parts that can be waiting to be uploaded.
+ */
+final class PartBufferPool {
+
+    private final int partSize;
+    private final Semaphore available;
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create a new pool
+     * @param partSize size of each buffer in bytes
+     * @param nrBuffers maximum number of buffers
+     */
+    PartBufferPool(int partSize, int nrBuffers) {
+        this.partSize = partSize;
+        this.available = new Semaphore(nrBuffers);
+    }
+
+    /**
+     * Take a buffer from the pool, waits until one is available
+     * @return buffer of partSize bytes, note that it may contain data of a previous part
+     */
+    byte[] take() {
+        try {
+            available.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a part buffer", e);
+        }
+        byte[] buffer = free.poll();
+        return (buffer == null ? new byte[partSize] : buffer);
+    }
+
+    /**
+     * Return a buffer to the pool, it should not be used after this
+     * @param buffer the buffer to return
+     */
+    void release(byte[] buffer) {
+        free.offer(buffer);
+        available.release();
+    }
+
+    /**
+     * @return size of each buffer in bytes
+     */
+    int getPartSize() {
+        return partSize;
+    }
+}
@@ -0,0 +1,132 @@
+package eu.europeana.sitemap.s3;
+
+import org.apache.commons.lang3.StringUtils;
+import software.amazon.awssdk.services.s3.model.ServerSideEncryption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Calculates MD5 checksums and compares them with the ETags returned by S3, so we can verify that a file was saved
+ * correctly without having to send another request.
+ *
+ * For objects saved with a single put (or copied from such an object) the ETag is the hex-encoded MD5 of the contents.
+ * For multipart uploads it's the MD5 of all concatenated part MD5s followed by a dash and the number of parts. This is
+ * only true for objects that are not encrypted or encrypted with S3 managed keys (SSE-S3). Objects encrypted with KMS
+ * or customer provided keys (SSE-KMS, DSSE-KMS, SSE-C) get an ETag that looks the same but isn't a checksum, so those
+ * can't be verified this way.
+ */
+public final class S3Checksum {
+
+    private static final Pattern MD5_ETAG = Pattern.compile("^[0-9a-fA-F]{32}(-\\d+)?$");
+
+    /**
+     * Result of comparing an ETag with the expected checksum
+     */
+    public enum ETagCheck {
+        /** ETag matches the checksum */
+        MATCH,
+        /** ETag is a checksum, but not the expected one */
+        MISMATCH,
+        /** ETag is empty or not a checksum, so we can't tell if the data was saved correctly */
+        UNKNOWN
+    }
+
+    private S3Checksum() {
+        // empty constructor to prevent initialization
+    }
+
+    /**
+     * Create a new MD5 message digest
+     * @return MD5 message digest
+     */
+    public static MessageDigest newMd5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5"); // NOSONAR not used for security, S3 requires MD5
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+    }
+
+    /**
+     * Calculate the MD5 checksum of data
+     * @param data the data
+     * @param offset start of the data in the array
+     * @param length length of the data
+     * @return MD5 checksum
+     */
+    public static byte[] md5(byte[] data, int offset, int length) {
+        MessageDigest digest = newMd5Digest();
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    /**
+     * @param md5 MD5 checksum
+     * @return checksum in the format required for the Content-MD5 header
+     */
+    public static String toContentMd5(byte[] md5) {
+        return Base64.getEncoder().encodeToString(md5);
+    }
+
+    /**
+     * @param md5 MD5 checksum
+     * @return the ETag S3 returns for an object with this checksum that was saved with a single request
+     */
+    public static String toETag(byte[] md5) {
+        return HexFormat.of().formatHex(md5);
+    }
+
+    /**
+     * @param partMd5s MD5 checksums of all parts, in order
+     * @return the ETag S3 returns for an object that was saved with a multipart upload
+     */
+    public static String toMultipartETag(List<byte[]> partMd5s) {
+        MessageDigest digest = newMd5Digest();
+        for (byte[] partMd5 : partMd5s) {
+            digest.update(partMd5);
+        }
+        return toETag(digest.digest()) + "-" + partMd5s.size();
+    }
+
+    /**
+     * Check if S3 uses the MD5 checksum as ETag for an object, based on the encryption reported in the response
+     * @param encryption server-side encryption of the object, null if not encrypted
+     * @param customerAlgorithm encryption algorithm if the object is encrypted with a customer provided key (SSE-C),
+     *                          otherwise null
+     * @return true if the ETag of the object is an MD5 checksum, false if it isn't (or we're not sure)
+     */
+    public static boolean hasMd5ETag(ServerSideEncryption encryption, String customerAlgorithm) {
+        return customerAlgorithm == null && (encryption == null || encryption == ServerSideEncryption.AES256);
+    }
+
+    /**
+     * Compare an ETag returned by S3 with the expected ETag
+     * @param eTag the ETag returned by S3 (quotes are ignored)
+     * @param expectedETag expected ETag, see toETag() and toMultipartETag()
+     * @return MATCH, MISMATCH or UNKNOWN
+     */
+    public static ETagCheck check(String eTag, String expectedETag) {
+        return check(eTag, expectedETag, true);
+    }
+
+    /**
+     * Compare an ETag returned by S3 with the expected ETag
+     * @param eTag the ETag returned by S3 (quotes are ignored)
+     * @param expectedETag expected ETag, see toETag() and toMultipartETag()
+     * @param md5ETag false if the ETag may not be an MD5 checksum (e.g. because the object is encrypted, see
+     *                hasMd5ETag()), in that case the result is always UNKNOWN
+     * @return MATCH, MISMATCH or UNKNOWN
+     */
+    public static ETagCheck check(String eTag, String expectedETag, boolean md5ETag) {
+        String value = StringUtils.strip(eTag, "\"");
+        if (!md5ETag || StringUtils.isEmpty(value) || !MD5_ETAG.matcher(value).matches()) {
+            return ETagCheck.UNKNOWN;
+        }
+        return value.equalsIgnoreCase(expectedETag) ? ETagCheck.MATCH : ETagCheck.MISMATCH;
+    }
+}
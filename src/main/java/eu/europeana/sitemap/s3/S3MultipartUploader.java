@@ -0,0 +1,220 @@
+package eu.europeana.sitemap.s3;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.ServerSideEncryption;
+
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates streams that write files to S3 using multipart uploads. This is used when generating large sitemap files,
+ * so we can send data to S3 while generation continues instead of keeping the entire file in memory.
+ * Additionally this class can be used to save files with metadata that's not supported by the S3ObjectStorageClient
+ * (e.g. content-encoding).
+ *
+ * The underlying S3 client is only created when the first upload is started.
+ *
+ * Full parts are uploaded by a small thread pool, so generation can continue while a part is sent. All uploads share
+ * a fixed number of part buffers, which limits both memory usage and the number of parts waiting to be uploaded.
+ */
+public class S3MultipartUploader implements AutoCloseable {
+
+    /** S3 doesn't accept parts smaller than 5 MB (except for the last part) */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private static final Logger LOG = LogManager.getLogger(S3MultipartUploader.class);
+
+    private final String key;
+    private final String secret;
+    private final String region;
+    private final URI endpoint;
+    private final String bucket;
+    private final boolean enabled;
+    private final int partSize;
+    private final ExecutorService partExecutor;
+    private final PartBufferPool bufferPool;
+
+    private S3Client s3Client;
+    // false once S3 reports an object is encrypted in a way that doesn't use MD5 checksums as ETag
+    private volatile boolean md5ETags = true;
+
+    /**
+     * Setup a new multipart uploader
+     * @param key S3 access key
+     * @param secret S3 secret key
+     * @param region S3 region
+     * @param bucket name of the bucket to write to
+     * @param endpoint S3 endpoint
+     * @param enabled whether multipart uploads should be used for sitemap files
+     * @param partSize size of each part in bytes
+     * @param threads number of parts that are uploaded at the same time, if 0 then parts are uploaded by the thread
+     *                that writes the data
+     */
+    public S3MultipartUploader(String key, String secret, String region, String bucket, URI endpoint, boolean enabled,
+                               int partSize, int threads) {
+        this.key = key;
+        this.secret = secret;
+        this.region = region;
+        this.bucket = bucket;
+        this.endpoint = endpoint;
+        this.enabled = enabled;
+        this.partSize = partSize;
+        if (threads > 0) {
+            AtomicInteger threadNr = new AtomicInteger();
+            this.partExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "s3-part-upload-" + threadNr.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.partExecutor = null;
+        }
+        // one buffer per thread for parts that are being uploaded, the others are for parts that are being filled
+        this.bufferPool = new PartBufferPool(partSize, 2 * Math.max(threads, 1));
+    }
+
+    /**
+     * Setup a new (enabled) multipart uploader using an existing S3 client (for testing purposes)
+     * @param s3Client client to use
+     * @param bucket name of the bucket to write to
+     * @param partSize size of each part in bytes
+     */
+    public S3MultipartUploader(S3Client s3Client, String bucket, int partSize) {
+        this(s3Client, bucket, partSize, 0);
+    }
+
+    /**
+     * Setup a new (enabled) multipart uploader using an existing S3 client (for testing purposes)
+     * @param s3Client client to use
+     * @param bucket name of the bucket to write to
+     * @param partSize size of each part in bytes
+     * @param threads number of parts that are uploaded at the same time
+     */
+    public S3MultipartUploader(S3Client s3Client, String bucket, int partSize, int threads) {
+        this(null, null, null, bucket, null, true, partSize, threads);
+        this.s3Client = s3Client;
+    }
+
+    /**
+     * @return true if sitemap files should be streamed to S3 using multipart uploads, otherwise false
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the size of each uploaded part in bytes
+     */
+    public int getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Start a new upload
+     * @param fileName the key of the object to create
+     * @param contentType content-type of the object
+     * @param contentEncoding content-encoding of the object, can be null
+     * @return output stream to which the file contents can be written, the object is saved when the stream is closed.
+     * Note that writing blocks while all part buffers are in use
+     */
+    public MultipartUploadOutputStream openUpload(String fileName, String contentType, String contentEncoding) {
+        return new MultipartUploadOutputStream(getS3Client(), bucket, fileName, contentType, contentEncoding,
+                bufferPool, partExecutor);
+    }
+
+    /**
+     * Save a file in a single request
+     * @param fileName the key of the object to create
+     * @param contentType content-type of the object
+     * @param contentEncoding content-encoding of the object, can be null
+     * @param contents contents of the object
+     * @param md5 MD5 checksum of the contents, S3 rejects the request if the received data doesn't match it
+     * @return eTag of the saved object
+     */
+    public String putObject(String fileName, String contentType, String contentEncoding, byte[] contents, byte[] md5) {
+        PutObjectResponse response = getS3Client().putObject(PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(fileName)
+                .contentType(contentType)
+                .contentEncoding(contentEncoding)
+                .contentLength((long) contents.length)
+                .contentMD5(S3Checksum.toContentMd5(md5))
+                .build(), RequestBody.fromBytes(contents));
+        checkEncryption(response.serverSideEncryption(), response.sseCustomerAlgorithm());
+        return response.eTag();
+    }
+
+    /**
+     * Copy an object within the bucket (server-side, so without downloading and uploading its contents)
+     * @param sourceKey key of the object to copy
+     * @param targetKey key of the new object
+     * @return eTag of the new object
+     */
+    public String copyObject(String sourceKey, String targetKey) {
+        CopyObjectResponse response = getS3Client().copyObject(CopyObjectRequest.builder()
+                .sourceBucket(bucket)
+                .sourceKey(sourceKey)
+                .destinationBucket(bucket)
+                .destinationKey(targetKey)
+                .build());
+        checkEncryption(response.serverSideEncryption(), response.sseCustomerAlgorithm());
+        return response.copyObjectResult().eTag();
+    }
+
+    /**
+     * @return false if S3 reported that saved or copied objects are encrypted in a way that doesn't use MD5 checksums
+     * as ETag (see S3Checksum), otherwise true. Note that this is checked after each request, so it reflects the
+     * encryption of the object that was just saved.
+     */
+    public boolean hasMd5ETags() {
+        return md5ETags;
+    }
+
+    private void checkEncryption(ServerSideEncryption encryption, String customerAlgorithm) {
+        if (md5ETags && !S3Checksum.hasMd5ETag(encryption, customerAlgorithm)) {
+            LOG.warn("Bucket {} encrypts objects with {}, saved files are verified with an extra request instead of "
+                    + "their ETag", bucket, customerAlgorithm == null ? encryption : "SSE-C");
+            md5ETags = false;
+        }
+    }
+
+    private synchronized S3Client getS3Client() {
+        if (s3Client == null) {
+            LOG.info("Creating S3 client for multipart uploads to bucket {}...", bucket);
+            s3Client = S3Client.builder()
+                    .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(key, secret)))
+                    .region(Region.of(region))
+                    .endpointOverride(endpoint)
+                    .forcePathStyle(true)
+                    .build();
+        }
+        return s3Client;
+    }
+
+    /**
+     * Stop the part upload threads and close the S3 client (if it was created)
+     */
+    @Override
+    public synchronized void close() {
+        if (partExecutor != null) {
+            partExecutor.shutdownNow();
+        }
+        if (s3Client != null) {
+            LOG.info("Shutting down S3 client for multipart uploads...");
+            s3Client.close();
+            s3Client = null;
+        }
+    }
+}
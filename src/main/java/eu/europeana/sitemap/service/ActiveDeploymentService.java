@@ -1,17 +1,15 @@
 package eu.europeana.sitemap.service;
 
-import eu.europeana.s3.S3Object;
-import eu.europeana.s3.S3ObjectStorageClient;
 import eu.europeana.sitemap.Constants;
 import eu.europeana.sitemap.SitemapType;
 import eu.europeana.sitemap.StorageFileName;
+import eu.europeana.sitemap.storage.SitemapStorage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 
-import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 
@@ -32,16 +30,16 @@ public class ActiveDeploymentService {
 
     private static final int PROGRESS_INTERVAL = 100;
 
-    private final S3ObjectStorageClient objectStorageProvider;
+    private final SitemapStorage storage;
 
     /**
      * Initialize the service
-     * @param objectStorageClient storage where active deployment info is saved
+     * @param storage storage where active deployment info is saved
      */
     @Autowired
-    public ActiveDeploymentService(S3ObjectStorageClient objectStorageClient) {
+    public ActiveDeploymentService(SitemapStorage storage) {
         LOG.debug("Init");
-        this.objectStorageProvider = objectStorageClient;
+        this.storage = storage;
     }
 
     /**
@@ -55,17 +53,18 @@ public class ActiveDeploymentService {
         String activeFileName = StorageFileName.getActiveDeploymentFileName(sitemapType);
         LOG.debug("Reading active file {}", activeFileName);
 
-        try (S3Object s3Object = objectStorageProvider.getObject(activeFileName)) {
-            if (s3Object == null) {
+        try {
+            byte[] contents = storage.getAsBytes(activeFileName);
+            if (contents == null) {
                 // if the active file does not exist we create a new one
                 LOG.error("File {} not present. Initializing new active deployment file...", activeFileName);
                 saveToStorageProvider(Deployment.GREEN, activeFileName);
                 result = Deployment.GREEN;
             } else {
-                String blueGreen = new String(s3Object.inputStream().readAllBytes(), StandardCharsets.UTF_8);
+                String blueGreen = new String(contents, StandardCharsets.UTF_8);
                 result = Deployment.fromString(blueGreen);
             }
-        } catch (IOException e) {
+        } catch (UncheckedIOException e) {
             LOG.error("Error while processing the file {} to determine the current active site map", activeFileName, e);
         }
         LOG.debug("Returning deployment {}", result);
@@ -100,20 +99,15 @@ public class ActiveDeploymentService {
         fileNameToDelete = fileNameToDelete.split(Constants.XML_EXTENSION)[0];
 
         // list files
-        String continuationToken = null;
         LOG.info("Deleting all old files with name starting with {} ...", fileNameToDelete);
-        do {
-            ListObjectsV2Response list = objectStorageProvider.listAll(continuationToken);
-            continuationToken = list.nextContinuationToken();
-            List<software.amazon.awssdk.services.s3.model.S3Object> results = list.contents();
-            if (results.isEmpty()) {
-                LOG.info("No files to remove.");
-            } else {
-                for (software.amazon.awssdk.services.s3.model.S3Object obj : results) {
-                    result = deleteInactiveFile(obj.key(), fileNameToDelete, result);
-                }
+        List<SitemapStorage.FileInfo> files = storage.list();
+        if (files.isEmpty()) {
+            LOG.info("No files to remove.");
+        } else {
+            for (SitemapStorage.FileInfo file : files) {
+                result = deleteInactiveFile(file.name(), fileNameToDelete, result);
             }
-        } while (continuationToken != null);
+        }
 
         LOG.info("Deleted {} old files", result);
         return result;
@@ -122,7 +116,7 @@ public class ActiveDeploymentService {
     private long deleteInactiveFile(String fileName, String fileNameToDelete, long filesDeleted) {
         if (fileName.startsWith(fileNameToDelete)) {
             LOG.debug("Deleting file {}", fileName);
-            objectStorageProvider.deleteObject(fileName);
+            storage.delete(fileName);
             filesDeleted++;
             // report on progress
             if (filesDeleted > 0 && filesDeleted % PROGRESS_INTERVAL == 0) {
@@ -145,13 +139,14 @@ public class ActiveDeploymentService {
     }
 
     /**
-     * Creates a new active file or updates its contents
+     * Creates a new active file or updates its contents. Note that storage implementations replace files atomically,
+     * so there's never a moment where the file is missing or incomplete
      * @param blueGreen deployment
      * @return eTag of the saved object.
      */
     private String saveToStorageProvider(Deployment blueGreen, String activeFileName) {
         LOG.debug("Saving value {} in file {} ", blueGreen, activeFileName);
-        return objectStorageProvider.putObject(activeFileName, CONTENT_TYPE_DEPLOYMENT_FILE,
+        return storage.save(activeFileName, CONTENT_TYPE_DEPLOYMENT_FILE,
                 blueGreen.toString().getBytes(StandardCharsets.UTF_8));
     }
 
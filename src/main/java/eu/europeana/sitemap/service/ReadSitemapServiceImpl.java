@@ -1,14 +1,12 @@
 package eu.europeana.sitemap.service;
 
 
-import eu.europeana.s3.S3ObjectStorageClient;
 import eu.europeana.sitemap.exceptions.SiteMapNotFoundException;
+import eu.europeana.sitemap.storage.SitemapStorage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
-import software.amazon.awssdk.services.s3.model.S3Object;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -21,7 +19,7 @@ import java.util.List;
 import java.util.Locale;
 
 /**
- * Read sitemap files directly from the object storage provider
+ * Read sitemap files directly from the storage
  *
  * @author Patrick Ehlert on 11-9-17.
  */
@@ -34,15 +32,15 @@ public class ReadSitemapServiceImpl implements ReadSitemapService {
     private static final int MB = 1024 * KB;
     private static final int GB = 1024 * MB;
 
-    private final S3ObjectStorageClient objectStorageProvider;
+    private final SitemapStorage storage;
 
     /**
      * Initialize a new service for reading sitemap files
-     * @param objectStorageProvider autowired storage provider that contains the sitemap files
+     * @param storage autowired storage that contains the sitemap files
      */
     @Autowired
-    public ReadSitemapServiceImpl (S3ObjectStorageClient objectStorageProvider) {
-        this.objectStorageProvider = objectStorageProvider;
+    public ReadSitemapServiceImpl (SitemapStorage storage) {
+        this.storage = storage;
     }
 
     /**
@@ -51,18 +49,11 @@ public class ReadSitemapServiceImpl implements ReadSitemapService {
     @Override
     public void getFilesAsStream(OutputStream out) throws IOException {
         OutputStreamWriter result = new OutputStreamWriter(out, StandardCharsets.UTF_8);
-        long count = 0;
-        String continuationToken = null;
         List<FileSummary> fileSummaries = new ArrayList<>();
-        do {
-            ListObjectsV2Response list = objectStorageProvider.listAll(continuationToken);
-            continuationToken = list.nextContinuationToken();
-            count = count + list.keyCount();
-            // we need to copy the contents to our own list so we can sort it
-            for (S3Object file : list.contents()) {
-                fileSummaries.add(new FileSummary(file.key(), file.lastModified(), file.size()));
-            }
-        } while (continuationToken != null);
+        for (SitemapStorage.FileInfo file : storage.list()) {
+            fileSummaries.add(new FileSummary(file.name(), file.lastModified(), file.size()));
+        }
+        long count = fileSummaries.size();
 
         fileSummaries.sort(Comparator.comparing(FileSummary::lastModified));
         for (FileSummary fileSummary : fileSummaries) {
@@ -104,12 +95,11 @@ public class ReadSitemapServiceImpl implements ReadSitemapService {
      */
     @Override
     public InputStream getFileAsStream(String fileName) throws SiteMapNotFoundException {
-        eu.europeana.s3.S3Object file = objectStorageProvider.getObject(fileName);
+        InputStream file = storage.getAsStream(fileName);
         if (file == null) {
             throw new SiteMapNotFoundException("File " + fileName + " not found!");
         }
-        LOG.debug("Retrieved file {} with content-type {}, last modified {}",
-                file.key(), file.getContentType(), file.getLastModified());
-        return file.inputStream();
+        LOG.debug("Retrieved file {}", fileName);
+        return file;
     }
 }
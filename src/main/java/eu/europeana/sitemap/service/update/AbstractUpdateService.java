@@ -1,24 +1,31 @@
 package eu.europeana.sitemap.service.update;
 
-import eu.europeana.s3.S3ObjectStorageClient;
 import eu.europeana.sitemap.SitemapType;
+import eu.europeana.sitemap.StorageFileName;
+import eu.europeana.sitemap.config.SitemapConfiguration;
 import eu.europeana.sitemap.exceptions.SiteMapException;
 import eu.europeana.sitemap.exceptions.UpdateAlreadyInProgressException;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.s3.S3MultipartUploader;
 import eu.europeana.sitemap.service.ActiveDeploymentService;
 import eu.europeana.sitemap.service.Deployment;
+import eu.europeana.sitemap.storage.SitemapStorage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.joda.time.Period;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Date;
 
 /**
  * Abstract class with basic functionality for updating a sitemap. This consists of several steps:
  * <ol>
  *     <li>Get the inactive deployment</li>
- *     <li>Delete all inactive sitemap files</li>
+ *     <li>Delete all inactive sitemap files, unless we can resume an interrupted generation from a checkpoint</li>
  *     <li>Generate new sitemap files (the actual data should be produced by an implementing class)</li>
- *     <li>Finish the generation (close and save open files)</li>
+ *     <li>Finish the generation (close and save open files, publish the url changelog if enabled)</li>
  *     <li>Switch the active deployment</li>
  *     <li>Notify search engines (if the index file has changed)</li>
  * </ol>
@@ -31,21 +38,31 @@ public abstract class AbstractUpdateService implements UpdateService {
     private static final String UPDATE_FINISHED = "Finished";
 
     private final SitemapType sitemapType;
-    private final S3ObjectStorageClient objectStorage;
+    private final SitemapConfiguration config;
+    private final SitemapStorage storage;
+    private final S3MultipartUploader multipartUploader;
     private final ActiveDeploymentService deploymentService;
     private final MailService mailService;
+    private final SitemapMetrics metrics;
     private final int itemsPerSitemap;
 
+    private final UpdateProgress progress;
+
     private String updateStatus = "initial";
     private Date updateStartTime;
 
-    protected AbstractUpdateService(SitemapType type, S3ObjectStorageClient objectStorage, ActiveDeploymentService deploymentService,
-                                    MailService mailService, int itemsPerSitemap) {
+    protected AbstractUpdateService(SitemapType type, SitemapConfiguration config, SitemapStorage storage,
+                                    S3MultipartUploader multipartUploader, ActiveDeploymentService deploymentService,
+                                    MailService mailService, SitemapMetrics metrics, int itemsPerSitemap) {
         this.sitemapType = type;
-        this.objectStorage = objectStorage;
+        this.config = config;
+        this.storage = storage;
+        this.multipartUploader = multipartUploader;
         this.deploymentService = deploymentService;
         this.mailService = mailService;
+        this.metrics = metrics;
         this.itemsPerSitemap = itemsPerSitemap;
+        this.progress = new UpdateProgress(type);
     }
 
     /**
@@ -53,21 +70,39 @@ public abstract class AbstractUpdateService implements UpdateService {
      */
     public void update() throws SiteMapException {
         setUpdateInProgress();
-        try {
+        progress.start();
+        boolean success = false;
+        try (SitemapUploader uploader = new SitemapUploader(storage, config.getUploadThreads(),
+                config.getUploadMaxInFlightBytes(), metrics);
+             UrlChangelog changelog = (config.isChangelogEnabled() ? new UrlChangelog(storage, sitemapType,
+                     config.getChangelogTempDirectory(), config.getChangelogMemoryUrls()) : null)) {
             // 1. Get inactive deployment
             Deployment inactive = deploymentService.getInactiveDeployment(sitemapType);
             LOG.info("Inactive deployment is {}", inactive);
 
-            // 2. Delete inactive files
-            deploymentService.deleteInactiveFiles(sitemapType);
+            // 2. Delete inactive files (if we don't resume)
+            SitemapCheckpoint checkpoint = loadCheckpoint(inactive);
+            if (checkpoint == null) {
+                deploymentService.deleteInactiveFiles(sitemapType);
+            }
 
             // 3. Generate new files
-            SitemapGenerator generator = new SitemapGenerator(sitemapType, objectStorage);
-            generator.init(inactive, this.getWebsiteBaseUrl(), itemsPerSitemap);
+            SitemapGenerator generator = new SitemapGenerator(sitemapType, storage, multipartUploader, uploader,
+                    config.isGzipEnabled(), metrics);
+            if (isResumable()) {
+                generator.enableCheckpoints(Duration.ofSeconds(config.getCheckpointIntervalSeconds()));
+            }
+            generator.setProgress(progress);
+            if (changelog != null) {
+                generator.setChangelog(changelog);
+            }
+            generator.init(inactive, this.getWebsiteBaseUrl(), itemsPerSitemap, config.getSitemapFileMaxBytes(),
+                    checkpoint);
             long generateStartTime = System.currentTimeMillis();
             this.generate(generator);
 
             // 4. Finish generation
+            progress.setPhase(UpdateProgress.Phase.FINISH);
             generator.finish();
             if (LOG.isInfoEnabled()) {
                 LOG.info("{} sitemap generation completed in {}", sitemapType,
@@ -76,8 +111,10 @@ public abstract class AbstractUpdateService implements UpdateService {
 
             // 5. Switch deployment
             LOG.debug("Switching deployment...");
+            progress.setPhase(UpdateProgress.Phase.SWITCH);
             Deployment newDeploy = deploymentService.switchDeployment(sitemapType);
             LOG.info("New deployment is now {}", newDeploy);
+            success = true;
 
         } catch (SiteMapException | RuntimeException e) {
             String message = "Error updating " + sitemapType + " sitemap";
@@ -85,10 +122,47 @@ public abstract class AbstractUpdateService implements UpdateService {
             // rethrow for GlobalExceptionHandler to handle it (log or not)
             throw new SiteMapException(message, e);
         } finally {
+            // when generation failed, the gauges would otherwise keep reporting (and referencing) the generator
+            metrics.clearCurrentFile(sitemapType);
+            progress.end(success);
             setUpdateDone();
         }
     }
 
+    /**
+     * Load the checkpoint of a previous generation that was interrupted, if we can resume that
+     * @param inactive the deployment to which files are written
+     * @return checkpoint to resume from, or null if we should start from scratch
+     */
+    private SitemapCheckpoint loadCheckpoint(Deployment inactive) {
+        if (!isResumable() || config.getCheckpointMaxAgeHours() <= 0) {
+            return null;
+        }
+        String fileName = StorageFileName.getSitemapCheckpointFileName(sitemapType, inactive);
+        SitemapCheckpoint checkpoint = SitemapCheckpoint.load(storage, fileName);
+        if (checkpoint == null) {
+            return null;
+        }
+        if (!checkpoint.matches(inactive, config.isGzipEnabled(), itemsPerSitemap, config.getSitemapFileMaxBytes())) {
+            LOG.info("Not resuming from checkpoint {} because settings have changed", fileName);
+            return null;
+        }
+        if (checkpoint.saved().isBefore(Instant.now().minus(config.getCheckpointMaxAgeHours(), ChronoUnit.HOURS))) {
+            LOG.info("Not resuming from checkpoint {} because it's too old (saved at {})", fileName, checkpoint.saved());
+            return null;
+        }
+        LOG.info("Found checkpoint {} saved at {}", fileName, checkpoint.saved());
+        return checkpoint;
+    }
+
+    /**
+     * @return true if the implementing class can continue generation after the position of the last item in a
+     * checkpoint (see SitemapGenerator.getResumePosition()), otherwise false
+     */
+    protected boolean isResumable() {
+        return false;
+    }
+
     /**
      * Do the actual sitemap generation.
      */
@@ -99,6 +173,21 @@ public abstract class AbstractUpdateService implements UpdateService {
      */
     protected abstract String getWebsiteBaseUrl();
 
+    /**
+     * @return progress of the current update, implementing classes can set the estimated number of items
+     */
+    protected UpdateProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * @see UpdateService#getUpdateStatus()
+     */
+    @Override
+    public UpdateProgress.Status getUpdateStatus() {
+        return progress.getStatus();
+    }
+
     /**
      * @see UpdateService#getSitemapType()
      */
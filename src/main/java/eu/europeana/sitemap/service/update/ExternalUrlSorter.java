@@ -0,0 +1,243 @@
+package eu.europeana.sitemap.service.update;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sorts a large number of urls with a bounded amount of memory. Urls are collected in memory until the maximum is
+ * reached, then they are sorted and written to a (compressed) spill file. When all urls are added, sorted() merges
+ * all spill files and the urls still in memory into one sorted sequence without duplicates.
+ *
+ * Urls can't contain line breaks, because spill files have one url per line. Spill files are deleted by close().
+ */
+public class ExternalUrlSorter implements AutoCloseable {
+
+    private static final Logger LOG = LogManager.getLogger(ExternalUrlSorter.class);
+
+    private static final String SPILL_FILE_PREFIX = "sitemap-urls-";
+    private static final String SPILL_FILE_SUFFIX = ".txt.gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path tempDirectory;
+    private final int maxUrlsInMemory;
+    private final List<String> urls;
+    private final List<Path> spillFiles = new ArrayList<>();
+    private final List<BufferedReader> openReaders = new ArrayList<>();
+    private long nrUrls;
+
+    /**
+     * Create a new sorter
+     * @param tempDirectory directory where spill files are written
+     * @param maxUrlsInMemory maximum number of urls kept in memory, more urls are spilled to disk
+     */
+    public ExternalUrlSorter(Path tempDirectory, int maxUrlsInMemory) {
+        if (maxUrlsInMemory <= 0) {
+            throw new IllegalArgumentException("Maximum number of urls in memory should be larger than 0");
+        }
+        this.tempDirectory = tempDirectory;
+        this.maxUrlsInMemory = maxUrlsInMemory;
+        this.urls = new ArrayList<>(Math.min(maxUrlsInMemory, BUFFER_SIZE));
+    }
+
+    /**
+     * Add a url
+     * @param url the url to add, it should not contain line breaks
+     */
+    public void add(String url) {
+        urls.add(url);
+        nrUrls++;
+        if (urls.size() >= maxUrlsInMemory) {
+            spill();
+        }
+    }
+
+    /**
+     * @return number of added urls (including duplicates)
+     */
+    public long size() {
+        return nrUrls;
+    }
+
+    /**
+     * @return number of spill files written so far
+     */
+    public int getNrSpillFiles() {
+        return spillFiles.size();
+    }
+
+    private void spill() {
+        Collections.sort(urls);
+        Path file = null;
+        try {
+            file = Files.createTempFile(tempDirectory, SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX);
+            spillFiles.add(file);
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(file), BUFFER_SIZE), StandardCharsets.UTF_8))) {
+                String previous = null;
+                for (String url : urls) {
+                    if (!url.equals(previous)) {
+                        out.write(url);
+                        out.write('\n');
+                    }
+                    previous = url;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing url spill file " + file, e);
+        }
+        LOG.debug("Spilled {} urls to {}", urls.size(), file);
+        urls.clear();
+    }
+
+    /**
+     * Merge all added urls. No urls should be added after calling this method.
+     * @return iterator over all added urls, sorted and without duplicates. It can only be used until the sorter is
+     * closed.
+     */
+    public Iterator<String> sorted() {
+        Collections.sort(urls);
+        List<Iterator<String>> runs = new ArrayList<>(spillFiles.size() + 1);
+        for (Path file : spillFiles) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(Files.newInputStream(file), BUFFER_SIZE), StandardCharsets.UTF_8));
+                openReaders.add(reader);
+                runs.add(new LineIterator(reader));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading url spill file " + file, e);
+            }
+        }
+        runs.add(urls.iterator());
+        return new MergingIterator(runs);
+    }
+
+    /**
+     * Delete all spill files
+     */
+    @Override
+    public void close() {
+        for (BufferedReader reader : openReaders) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing url spill file", e);
+            }
+        }
+        openReaders.clear();
+        for (Path file : spillFiles) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warn("Unable to delete url spill file {}", file, e);
+            }
+        }
+        spillFiles.clear();
+        urls.clear();
+    }
+
+    /**
+     * Reads a file line by line
+     */
+    static final class LineIterator implements Iterator<String> {
+        private final BufferedReader reader;
+        private String next;
+
+        LineIterator(BufferedReader reader) {
+            this.reader = reader;
+            this.next = readLine();
+        }
+
+        private String readLine() {
+            try {
+                return reader.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading urls", e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String result = next;
+            next = readLine();
+            return result;
+        }
+    }
+
+    /**
+     * Merges sorted runs of urls into one sorted sequence, skipping duplicates
+     */
+    private static final class MergingIterator implements Iterator<String> {
+
+        private record Head(String url, Iterator<String> run) {}
+
+        private final PriorityQueue<Head> heads;
+        private String previous;
+        private String next;
+
+        private MergingIterator(List<Iterator<String>> runs) {
+            this.heads = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> a.url.compareTo(b.url));
+            for (Iterator<String> run : runs) {
+                if (run.hasNext()) {
+                    heads.add(new Head(run.next(), run));
+                }
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !heads.isEmpty()) {
+                Head head = heads.poll();
+                if (head.run.hasNext()) {
+                    heads.add(new Head(head.run.next(), head.run));
+                }
+                if (!head.url.equals(previous)) {
+                    next = head.url;
+                }
+            }
+            previous = next;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String result = next;
+            advance();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.mongo.RecordProjection;
+import eu.europeana.sitemap.mongo.RecordProjectionCodec;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BSONException;
+import org.bson.BsonBinaryReader;
+import org.bson.codecs.DecoderContext;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonReader;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads records from an export of the record collection instead of from Mongo, so sitemaps can be generated without
+ * a (live) database. Supported are uncompressed mongodump files (concatenated BSON documents, *.bson) and mongoexport
+ * files with one JSON document per line (*.json, *.jsonl or *.ndjson).
+ *
+ * The file is memory-mapped in large chunks that always end on a document boundary. Before generating, all chunks are
+ * parsed in parallel and the records that pass the tier filter are put in an index that is sorted by id. The index only
+ * holds the id and file offset of each record (roughly 60 bytes per record), the records themselves are decoded again
+ * from the mapped file when they are read.
+ */
+public class FileRecordSource implements RecordSource {
+
+    private static final Logger LOG = LogManager.getLogger(FileRecordSource.class);
+
+    /** Chunks should be large enough to keep all threads busy, but a mapping can't be larger than 2 GB */
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024 * 1024;
+    private static final int BSON_LENGTH_SIZE = 4;
+    private static final Comparator<IndexEntry> ID_ORDER = (a, b) -> compareIds(a.id, b.id);
+
+    /**
+     * Supported file formats
+     */
+    public enum Format {
+        /** Concatenated BSON documents, as written by mongodump */
+        BSON,
+        /** One (extended) JSON document per line, as written by mongoexport */
+        JSONL;
+
+        /**
+         * Determine the file format from the file's extension
+         * @param fileName name of the file
+         * @return file format, or null if the extension is not recognized
+         */
+        public static Format fromFileName(String fileName) {
+            if (fileName != null) {
+                String name = fileName.trim().toLowerCase(Locale.ROOT);
+                if (name.endsWith(".bson")) {
+                    return BSON;
+                }
+                if (name.endsWith(".json") || name.endsWith(".jsonl") || name.endsWith(".ndjson")) {
+                    return JSONL;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Location of a record in the file
+     */
+    private record IndexEntry(Object id, long offset) {}
+
+    /**
+     * Result of parsing a chunk: the included records and the total number of records
+     */
+    private record ChunkIndex(List<IndexEntry> entries, long nrRecords) {}
+
+    /**
+     * Work done for each chunk when scanning the file
+     */
+    @FunctionalInterface
+    private interface ChunkTask<T> {
+        T run(ByteBuffer chunk, long chunkOffset);
+    }
+
+    private final Path file;
+    private final Format format;
+    private final RecordTierFilter tierFilter;
+    private final int threads;
+    private final int chunkSize;
+    private final RecordProjectionCodec codec = new RecordProjectionCodec();
+    private final DecoderContext decoderContext = DecoderContext.builder().build();
+
+    private FileChannel channel;
+    private FileTime fileModified;
+    private List<ByteBuffer> chunks;
+    private long[] chunkOffsets;
+    private IndexEntry[] index;
+    private long nrRecords = -1;
+
+    /**
+     * Create a new file record source. The file is loaded when prepare() is called.
+     * @param file the file to read
+     * @param tierFilter only records passing this filter are returned
+     * @param threads number of threads used for parsing the file
+     */
+    public FileRecordSource(Path file, RecordTierFilter tierFilter, int threads) {
+        this(file, tierFilter, threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    FileRecordSource(Path file, RecordTierFilter tierFilter, int threads, int chunkSize) {
+        this.file = file;
+        this.format = Format.fromFileName(file.getFileName().toString());
+        if (format == null) {
+            throw new IllegalArgumentException("Unsupported record file format: " + file);
+        }
+        this.tierFilter = tierFilter;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Map and index the file, unless that was already done and the file didn't change since then
+     */
+    @Override
+    public synchronized void prepare() {
+        try {
+            FileTime modified = Files.getLastModifiedTime(file);
+            if (index != null && modified.equals(fileModified)) {
+                return;
+            }
+            close();
+            long start = System.currentTimeMillis();
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            fileModified = modified;
+            mapChunks();
+            buildIndex();
+            LOG.info("Indexed {} of {} records in {} ({} {} chunks) in {} ms", index.length, nrRecords, file,
+                    chunks.size(), format, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException("Error reading record file " + file, e);
+        }
+    }
+
+    /**
+     * Split the file into chunks that only contain complete documents
+     */
+    private void mapChunks() throws IOException {
+        long size = channel.size();
+        List<ByteBuffer> mapped = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        long offset = 0;
+        while (offset < size) {
+            long length = Math.min(chunkSize, size - offset);
+            ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            int end = (offset + length == size ? (int) length : getLastDocumentEnd(chunk));
+            if (end == 0) {
+                throw new IOException("Document at offset " + offset + " is larger than " + chunkSize + " bytes");
+            }
+            chunk.limit(end);
+            mapped.add(chunk);
+            offsets.add(offset);
+            offset += end;
+        }
+        chunks = mapped;
+        chunkOffsets = offsets.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * @return the position after the last document that fits completely in the buffer
+     */
+    private int getLastDocumentEnd(ByteBuffer buffer) throws IOException {
+        if (format == Format.JSONL) {
+            for (int i = buffer.limit() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return i + 1;
+                }
+            }
+            return 0;
+        }
+        int position = 0;
+        while (position + BSON_LENGTH_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= BSON_LENGTH_SIZE) {
+                throw new IOException("Invalid BSON document length " + length);
+            }
+            if (length > buffer.limit() - position) {
+                break;
+            }
+            position += length;
+        }
+        return position;
+    }
+
+    private void buildIndex() {
+        List<ChunkIndex> chunkIndexes = scan((chunk, chunkOffset) -> {
+            List<IndexEntry> entries = new ArrayList<>();
+            long count = 0;
+            int position = 0;
+            while (position < chunk.limit()) {
+                int end = getDocumentEnd(chunk, position);
+                RecordProjection record = decode(chunk, chunkOffset, position, end);
+                if (record != null) {
+                    count++;
+                    if (record.id() != null && tierFilter.includes(record)) {
+                        entries.add(new IndexEntry(record.id(), chunkOffset + position));
+                    }
+                }
+                position = end;
+            }
+            return new ChunkIndex(entries, count);
+        });
+
+        long total = 0;
+        int included = 0;
+        for (ChunkIndex chunkIndex : chunkIndexes) {
+            total += chunkIndex.nrRecords;
+            included += chunkIndex.entries.size();
+        }
+        IndexEntry[] entries = new IndexEntry[included];
+        int i = 0;
+        for (ChunkIndex chunkIndex : chunkIndexes) {
+            for (IndexEntry entry : chunkIndex.entries) {
+                entries[i++] = entry;
+            }
+        }
+        // exports are usually (almost) sorted already, which makes sorting fast
+        Arrays.parallelSort(entries, ID_ORDER);
+        index = entries;
+        nrRecords = total;
+    }
+
+    /**
+     * Run a task for each chunk, using multiple threads
+     * @return the results of all chunks, in file order
+     */
+    private <T> List<T> scan(ChunkTask<T> task) {
+        AtomicInteger threadNr = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "record-file-" + threadNr.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<T>> futures = new ArrayList<>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                ByteBuffer chunk = chunks.get(i);
+                long chunkOffset = chunkOffsets[i];
+                futures.add(executor.submit(() -> task.run(chunk, chunkOffset)));
+            }
+            List<T> result = new ArrayList<>(futures.size());
+            for (Future<T> future : futures) {
+                result.add(future.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading record file", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Error reading record file", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the position after the document that starts at the provided position
+     */
+    private int getDocumentEnd(ByteBuffer chunk, int position) {
+        if (format == Format.BSON) {
+            if (chunk.limit() - position < BSON_LENGTH_SIZE) {
+                throw new IllegalStateException("Incomplete BSON document at the end of " + file);
+            }
+            int length = chunk.getInt(position);
+            if (length <= BSON_LENGTH_SIZE || length > chunk.limit() - position) {
+                throw new IllegalStateException("Invalid BSON document length " + length + " in " + file);
+            }
+            return position + length;
+        }
+        for (int i = position; i < chunk.limit(); i++) {
+            if (chunk.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return chunk.limit();
+    }
+
+    /**
+     * Decode the document between the start and end position of a chunk
+     * @return the decoded record, or null if it's an empty line
+     */
+    private RecordProjection decode(ByteBuffer chunk, long chunkOffset, int start, int end) {
+        try {
+            if (format == Format.BSON) {
+                try (BsonBinaryReader reader = new BsonBinaryReader(chunk.slice(start, end - start))) {
+                    return codec.decode(reader, decoderContext);
+                }
+            }
+            byte[] line = new byte[end - start];
+            chunk.get(start, line);
+            String json = new String(line, StandardCharsets.UTF_8);
+            if (json.isBlank()) {
+                return null;
+            }
+            return codec.decode(new JsonReader(json), decoderContext);
+        } catch (BSONException | JsonParseException e) {
+            throw new IllegalStateException("Error decoding record at offset " + (chunkOffset + start) + " of "
+                    + file, e);
+        }
+    }
+
+    private RecordProjection decode(long offset) {
+        int chunkIndex = Arrays.binarySearch(chunkOffsets, offset);
+        if (chunkIndex < 0) {
+            chunkIndex = -chunkIndex - 2;
+        }
+        ByteBuffer chunk = chunks.get(chunkIndex);
+        long chunkOffset = chunkOffsets[chunkIndex];
+        int position = (int) (offset - chunkOffset);
+        return decode(chunk, chunkOffset, position, getDocumentEnd(chunk, position));
+    }
+
+    private IndexEntry[] getIndex() {
+        IndexEntry[] result = index;
+        if (result == null) {
+            throw new IllegalStateException("Record file " + file + " is not loaded");
+        }
+        return result;
+    }
+
+    /**
+     * @return the position of the first entry in the index with an id greater than the provided id
+     */
+    private static int getPositionAfter(IndexEntry[] entries, Object id) {
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareIds(entries[middle].id, id) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compare ids in the same order as Mongo sorts ObjectIds, see RecordSource
+     */
+    static int compareIds(Object id1, Object id2) {
+        if (id1 instanceof ObjectId objectId1 && id2 instanceof ObjectId objectId2) {
+            return objectId1.compareTo(objectId2);
+        }
+        return id1.toString().compareTo(id2.toString());
+    }
+
+    /**
+     * @return the total number of records in the file (including records that are filtered out), -1 if the file is
+     * not loaded yet
+     */
+    @Override
+    public long estimateNrRecords() {
+        return nrRecords;
+    }
+
+    @Override
+    public RecordCursor read(Object after, Object upTo) {
+        IndexEntry[] entries = getIndex();
+        int from = (after == null ? 0 : getPositionAfter(entries, after));
+        int to = (upTo == null ? entries.length : getPositionAfter(entries, upTo));
+        return new RecordCursor() {
+            private int next = from;
+
+            @Override
+            public boolean hasNext() {
+                return next < to;
+            }
+
+            @Override
+            public RecordProjection next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return decode(entries[next++].offset);
+            }
+
+            @Override
+            public void close() {
+                // nothing to close, the file stays mapped
+            }
+        };
+    }
+
+    @Override
+    public List<Object> sampleIds(int size) {
+        IndexEntry[] entries = getIndex();
+        if (entries.length == 0) {
+            return Collections.emptyList();
+        }
+        List<Object> result = new ArrayList<>(size);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < size; i++) {
+            result.add(entries[random.nextInt(entries.length)].id);
+        }
+        return result;
+    }
+
+    /**
+     * Scans the entire file again, because the index only contains records that pass the tier filter. Chunks are
+     * scanned in parallel, so the number of ids found is shared to stop all scans once there are too many.
+     */
+    @Override
+    public TreeSet<String> getChangedIds(Instant since, int max) {
+        getIndex();
+        long sinceMillis = since.toEpochMilli();
+        AtomicInteger nrFound = new AtomicInteger();
+        List<List<String>> chunkIds = scan((chunk, chunkOffset) -> {
+            List<String> ids = new ArrayList<>();
+            int position = 0;
+            while (position < chunk.limit() && nrFound.get() <= max) {
+                int end = getDocumentEnd(chunk, position);
+                RecordProjection record = decode(chunk, chunkOffset, position, end);
+                if (record != null && record.id() != null && record.hasTimestampUpdated()
+                        && record.timestampUpdated() >= sinceMillis) {
+                    ids.add(record.id().toString());
+                    nrFound.incrementAndGet();
+                }
+                position = end;
+            }
+            return ids;
+        });
+        if (nrFound.get() > max) {
+            return null;
+        }
+        TreeSet<String> result = new TreeSet<>();
+        chunkIds.forEach(result::addAll);
+        return result;
+    }
+
+    @Override
+    public Object toId(String id) {
+        if (id == null) {
+            return null;
+        }
+        return (ObjectId.isValid(id) ? new ObjectId(id) : id);
+    }
+
+    /**
+     * Close the file and drop the index. Mapped memory is released once the chunks are garbage collected
+     */
+    @Override
+    public synchronized void close() {
+        index = null;
+        chunks = null;
+        chunkOffsets = null;
+        nrRecords = -1;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing record file {}", file, e);
+            }
+            channel = null;
+        }
+    }
+}
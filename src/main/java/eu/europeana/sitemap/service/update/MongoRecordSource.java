@@ -0,0 +1,201 @@
+package eu.europeana.sitemap.service.update;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import eu.europeana.sitemap.Constants;
+import eu.europeana.sitemap.config.SitemapConfiguration;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.mongo.MongoProvider;
+import eu.europeana.sitemap.mongo.RecordProjection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Reads records from the record collection in Mongo. Depending on the configured query strategy records are selected
+ * with an aggregation pipeline or a find query, see RecordQueryStrategy.
+ */
+public class MongoRecordSource implements RecordSource {
+
+    private static final Logger LOG = LogManager.getLogger(MongoRecordSource.class);
+
+    private static final int EXPLAIN_SAMPLE_SIZE = 10_000;
+    private static final String TOTAL_DOCS_EXAMINED = "totalDocsExamined";
+    private static final String NR_RETURNED = "nReturned";
+
+    private final MongoProvider mongoProvider;
+    private final SitemapConfiguration config;
+    private final SitemapMetrics metrics;
+    private final RecordQueryStrategy queryStrategy;
+    private final RecordTierFilter tierFilter;
+
+    /**
+     * Create a new Mongo record source
+     * @param mongoProvider provides access to the record collection
+     * @param config the application's configuration
+     * @param metrics used for recording query restarts
+     */
+    public MongoRecordSource(MongoProvider mongoProvider, SitemapConfiguration config, SitemapMetrics metrics) {
+        this.mongoProvider = mongoProvider;
+        this.config = config;
+        this.metrics = metrics;
+        this.queryStrategy = (config.getRecordQueryStrategy() == null ? RecordQueryStrategy.AGGREGATE
+                : config.getRecordQueryStrategy());
+        this.tierFilter = new RecordTierFilter(config.getRecordContentTier(), config.getRecordMetadataTier());
+    }
+
+    @Override
+    public void prepare() {
+        if (config.isRecordQueryExplain()) {
+            checkQueryPlan();
+        }
+    }
+
+    @Override
+    public long estimateNrRecords() {
+        try {
+            return mongoProvider.getCollection().estimatedDocumentCount();
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to estimate number of records", e);
+            return -1;
+        }
+    }
+
+    @Override
+    public RecordCursor read(Object after, Object upTo) {
+        return new ResumableRecordCursor(this::getRecordData, after, upTo, metrics);
+    }
+
+    @Override
+    public List<Object> sampleIds(int size) {
+        List<Object> result = new ArrayList<>(size);
+        for (Document doc : mongoProvider.getCollection()
+                .aggregate(UpdateRecordServiceUtils.getSampleIdsPipeline(size))) {
+            result.add(doc.get(Constants.ID));
+        }
+        return result;
+    }
+
+    @Override
+    public TreeSet<String> getChangedIds(Instant since, int max) {
+        TreeSet<String> result = new TreeSet<>();
+        MongoCollection<Document> collection = mongoProvider.getCollection();
+        try (MongoCursor<Document> cursor = collection
+                .find(new BasicDBObject(Constants.LASTUPDATED, new BasicDBObject(Constants.GTE, Date.from(since))))
+                .projection(new BasicDBObject(Constants.ID, 1))
+                .batchSize(Constants.ITEMS_PER_SITEMAP_FILE)
+                .cursor()) {
+            while (cursor.hasNext()) {
+                if (result.size() >= max) {
+                    return null;
+                }
+                result.add(cursor.next().get(Constants.ID).toString());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Object toId(String id) {
+        if (id == null) {
+            return null;
+        }
+        return ObjectId.isValid(id) ? new ObjectId(id) : id;
+    }
+
+    /**
+     * Gets the record data based on contentTier, metadataTier value
+     * Note: Don't pass value of the filter (in property file), we do not want to add
+     * @param after if not null, only records with an id greater than this are returned
+     * @param upTo if not null, only records with an id less than or equal to this are returned
+     */
+    private MongoCursor<RecordProjection> getRecordData(Object after, Object upTo) {
+        MongoCollection<RecordProjection> collection = mongoProvider.getRecordCollection();
+        if (after != null || upTo != null) {
+            LOG.debug("Starting record query for ids after {} up to {}...", after, upTo);
+        } else {
+            LOG.info("Starting record query...");
+        }
+        MongoCursor<RecordProjection> cursor;
+        if (queryStrategy == RecordQueryStrategy.FIND) {
+            cursor = findRecords(collection, after, upTo).cursor();
+        } else {
+            cursor = aggregateRecords(collection, after, upTo).cursor();
+        }
+        LOG.debug("Query finished. Retrieving records...");
+        return cursor;
+    }
+
+    private AggregateIterable<RecordProjection> aggregateRecords(MongoCollection<RecordProjection> collection, Object after, Object upTo) {
+        return collection
+                .aggregate(UpdateRecordServiceUtils.getPipeline(config.getRecordContentTier(), config.getRecordMetadataTier(),
+                        after, upTo))
+                .batchSize(Constants.ITEMS_PER_SITEMAP_FILE);
+    }
+
+    /**
+     * We force the use of the _id index, so records are streamed in the order we need. Otherwise Mongo may pick an
+     * index on the tier urls, which means it has to sort all records in memory first.
+     */
+    private FindIterable<RecordProjection> findRecords(MongoCollection<RecordProjection> collection, Object after, Object upTo) {
+        return collection
+                .find(tierFilter.getQueryFilter(after, upTo))
+                .projection(RecordTierFilter.getProjection())
+                .sort(new BasicDBObject(Constants.ID, 1))
+                .hint(new BasicDBObject(Constants.ID, 1))
+                .batchSize(Constants.ITEMS_PER_SITEMAP_FILE);
+    }
+
+    /**
+     * Ask Mongo which plan it will use for the record query and log it. Both strategies should read records using the
+     * _id index (the find query hints it, the pipeline starts with a $match and $sort on _id), otherwise all records
+     * are sorted in memory first. We only warn if that's not the case, because the query will still work.
+     *
+     * For the find strategy we also run the query on the first EXPLAIN_SAMPLE_SIZE matching records, to log how many
+     * documents the server has to fetch for the tier filter.
+     */
+    private void checkQueryPlan() {
+        try {
+            MongoCollection<RecordProjection> collection = mongoProvider.getRecordCollection();
+            Document explain = (queryStrategy == RecordQueryStrategy.FIND
+                    ? findRecords(collection, null, null).explain(ExplainVerbosity.QUERY_PLANNER)
+                    : aggregateRecords(collection, null, null).explain(ExplainVerbosity.QUERY_PLANNER));
+            Set<String> stages = UpdateRecordServiceUtils.getWinningPlanStages(explain);
+            if (UpdateRecordServiceUtils.usesIdIndex(explain)) {
+                LOG.info("Record query ({} strategy) uses query plan stages {}", queryStrategy, stages);
+            } else {
+                LOG.warn("Record query ({} strategy) doesn't use the _id index, records will be sorted in memory! "
+                        + "Query plan stages are {}", queryStrategy, stages);
+            }
+            if (queryStrategy == RecordQueryStrategy.FIND) {
+                Document stats = findRecords(collection, null, null).limit(EXPLAIN_SAMPLE_SIZE)
+                        .explain(ExplainVerbosity.EXECUTION_STATS);
+                LOG.info("Record query fetched {} documents to return the first {} records matching the tier filter",
+                        UpdateRecordServiceUtils.getExplainCount(stats, TOTAL_DOCS_EXAMINED),
+                        UpdateRecordServiceUtils.getExplainCount(stats, NR_RETURNED));
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to check query plan of record query", e);
+        }
+    }
+
+    /**
+     * Close all connections to mongo
+     */
+    @Override
+    public void close() {
+        mongoProvider.close();
+    }
+}
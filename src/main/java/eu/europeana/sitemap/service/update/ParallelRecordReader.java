@@ -0,0 +1,163 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.mongo.RecordProjection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads records sorted by id, using multiple threads. The id space is split into ranges and each range is read
+ * by a separate query on a worker thread. Records are returned in range order, so the result is exactly the same as
+ * reading all records with one query (regardless of where the ranges are split).
+ *
+ * To limit memory usage, only a few ranges are read ahead of the range that is being returned. Ranges should be
+ * small enough to be kept in memory completely.
+ * Note that record ids are compared as strings, which matches the sort order in Mongo for ObjectIds
+ */
+public class ParallelRecordReader implements Iterator<RecordProjection>, AutoCloseable {
+
+    private static final Logger LOG = LogManager.getLogger(ParallelRecordReader.class);
+
+    private static final int RANGES_AHEAD_PER_THREAD = 2;
+
+    /**
+     * Reads all records in an id range
+     */
+    @FunctionalInterface
+    public interface RangeReader {
+        /**
+         * @param after if not null, only records with an id greater than this are returned
+         * @param upTo if not null, only records with an id less than or equal to this are returned
+         * @return all records in the range, sorted by id
+         */
+        List<RecordProjection> read(Object after, Object upTo);
+    }
+
+    private final RangeReader rangeReader;
+    private final List<Object> boundaries; // ranges are (boundaries[i], boundaries[i+1]]
+    private final ExecutorService executor;
+    private final Queue<Future<List<RecordProjection>>> pendingRanges = new ArrayDeque<>();
+    private int nextRange;
+    private Iterator<RecordProjection> current = Collections.emptyIterator();
+
+    /**
+     * Start reading records
+     * @param rangeReader reads the records of a range
+     * @param after if not null, only records with an id greater than this are returned
+     * @param splitPoints sorted ids where the id space is split into ranges, see getSplitPoints()
+     * @param threads number of ranges that are read at the same time
+     */
+    public ParallelRecordReader(RangeReader rangeReader, Object after, List<Object> splitPoints, int threads) {
+        this.rangeReader = rangeReader;
+        this.boundaries = new ArrayList<>(splitPoints.size() + 2);
+        boundaries.add(after);
+        boundaries.addAll(splitPoints);
+        boundaries.add(null);
+
+        AtomicInteger threadNr = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "record-query-" + threadNr.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOG.info("Reading records in {} ranges using {} threads", getNrRanges(), threads);
+        for (int i = 0; i < threads * RANGES_AHEAD_PER_THREAD; i++) {
+            submitNextRange();
+        }
+    }
+
+    private int getNrRanges() {
+        return boundaries.size() - 1;
+    }
+
+    private void submitNextRange() {
+        if (nextRange < getNrRanges()) {
+            Object after = boundaries.get(nextRange);
+            Object upTo = boundaries.get(nextRange + 1);
+            pendingRanges.add(executor.submit(() -> rangeReader.read(after, upTo)));
+            nextRange++;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            Future<List<RecordProjection>> range = pendingRanges.poll();
+            if (range == null) {
+                return false;
+            }
+            current = awaitRange(range).iterator();
+            submitNextRange();
+        }
+        return true;
+    }
+
+    private static List<RecordProjection> awaitRange(Future<List<RecordProjection>> range) {
+        try {
+            return range.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for records", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Error reading records", e.getCause());
+        }
+    }
+
+    @Override
+    public RecordProjection next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    /**
+     * Stop all threads. Ranges that are still being read are discarded.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Determine where to split the id space, so each range has roughly the same number of records
+     * @param sampleIds ids of a random sample of records, in any order
+     * @param after if not null, ids less than or equal to this are ignored
+     * @param nrRanges the preferred number of ranges
+     * @return sorted list of at most nrRanges - 1 distinct ids
+     */
+    public static List<Object> getSplitPoints(List<?> sampleIds, Object after, int nrRanges) {
+        List<Object> ids = new ArrayList<>(sampleIds.size());
+        for (Object id : sampleIds) {
+            if (after == null || id.toString().compareTo(after.toString()) > 0) {
+                ids.add(id);
+            }
+        }
+        ids.sort(Comparator.comparing(Object::toString));
+
+        List<Object> result = new ArrayList<>();
+        for (int i = 1; i < nrRanges && !ids.isEmpty(); i++) {
+            Object splitPoint = ids.get((int) ((long) i * ids.size() / nrRanges));
+            if (result.isEmpty() || !result.get(result.size() - 1).toString().equals(splitPoint.toString())) {
+                result.add(splitPoint);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,154 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.mongo.RecordProjection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads records from a cursor on a separate thread, so waiting for Mongo to return the next batch overlaps with
+ * generating sitemap files. Records are handed over in small batches through a bounded queue. If the queue is full
+ * the reading thread waits, if it's empty the generating thread waits; both are recorded as stalls in the metrics.
+ *
+ * The cursor itself is not closed, but after close() it's no longer used by the reading thread.
+ */
+public class PrefetchingRecordReader implements Iterator<RecordProjection>, AutoCloseable {
+
+    private static final Logger LOG = LogManager.getLogger(PrefetchingRecordReader.class);
+
+    /** Number of records handed over at once, so we don't need a queue operation for every record */
+    static final int BATCH_SIZE = 1000;
+    private static final List<RecordProjection> END = Collections.emptyList();
+    private static final long CLOSE_TIMEOUT_MS = 10_000;
+
+    private final Iterator<RecordProjection> cursor;
+    private final SitemapMetrics metrics;
+    private final BlockingQueue<List<RecordProjection>> queue;
+    private final AtomicInteger recordsQueued = new AtomicInteger();
+    private final Thread readThread;
+    private volatile RuntimeException readError;
+    private Iterator<RecordProjection> current = Collections.emptyIterator();
+    private boolean ended;
+
+    /**
+     * Start reading records
+     * @param cursor the cursor to read from, it shouldn't be used by anything else until this reader is closed
+     * @param maxRecords maximum number of records waiting in the queue
+     * @param metrics where queue size and stalls are recorded
+     */
+    public PrefetchingRecordReader(Iterator<RecordProjection> cursor, int maxRecords, SitemapMetrics metrics) {
+        this.cursor = cursor;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, maxRecords / BATCH_SIZE));
+        metrics.setPrefetchQueue(recordsQueued::get);
+        this.readThread = new Thread(this::read, "record-prefetch");
+        readThread.setDaemon(true);
+        readThread.start();
+    }
+
+    private void read() {
+        try {
+            List<RecordProjection> batch = new ArrayList<>(BATCH_SIZE);
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() == BATCH_SIZE) {
+                    put(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                put(batch);
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("Stopped reading records");
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            readError = e;
+        }
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void put(List<RecordProjection> batch) throws InterruptedException {
+        recordsQueued.addAndGet(batch.size());
+        if (!queue.offer(batch)) {
+            long start = System.nanoTime();
+            queue.put(batch);
+            metrics.prefetchStall(false, System.nanoTime() - start);
+        }
+    }
+
+    private List<RecordProjection> take() {
+        List<RecordProjection> batch = queue.poll();
+        if (batch == null) {
+            long start = System.nanoTime();
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for records", e);
+            }
+            metrics.prefetchStall(true, System.nanoTime() - start);
+        }
+        recordsQueued.addAndGet(-batch.size());
+        return batch;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (ended) {
+                return false;
+            }
+            List<RecordProjection> batch = take();
+            if (batch == END) {
+                ended = true;
+                if (readError != null) {
+                    throw readError;
+                }
+                return false;
+            }
+            current = batch.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public RecordProjection next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    /**
+     * Stop the reading thread and wait until it no longer uses the cursor. Records still in the queue are discarded.
+     */
+    @Override
+    public void close() {
+        readThread.interrupt();
+        try {
+            readThread.join(CLOSE_TIMEOUT_MS);
+            if (readThread.isAlive()) {
+                LOG.warn("Thread reading records did not stop within {} ms", CLOSE_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            metrics.clearPrefetchQueue();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package eu.europeana.sitemap.service.update;
+
+import java.util.Locale;
+
+/**
+ * Enumeration of supported ways to query the record collection
+ */
+public enum RecordQueryStrategy {
+    /** Aggregation pipeline that extracts the tiers with $split on the server, see UpdateRecordServiceUtils.getPipeline() */
+    AGGREGATE,
+    /** Find query that only matches on complete tier urls and returns the first and last tier url. Tiers are extracted
+     * from the urls by the application, see RecordTierFilter */
+    FIND;
+
+    /**
+     * Initialize a query strategy from a string (case-insensitive)
+     * @param name to parse
+     * @return query strategy, or null if the name is not a supported strategy
+     */
+    public static RecordQueryStrategy fromString(String name) {
+        if (name != null) {
+            for (RecordQueryStrategy strategy : values()) {
+                if (strategy.name().equals(name.trim().toUpperCase(Locale.ROOT))) {
+                    return strategy;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,72 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.mongo.RecordProjection;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Provides the records for the record sitemap. Records are always returned sorted by id, so generation can be
+ * resumed after a certain record and the files of a delta update cover the same id ranges as before.
+ * Note that a delta update compares record ids as strings. That only matches the sort order in Mongo if all ids are
+ * ObjectIds (fixed-length lowercase hex strings); UpdateRecordService does a full generation otherwise.
+ */
+public interface RecordSource {
+
+    /**
+     * Cursor over the records of a source
+     */
+    interface RecordCursor extends Iterator<RecordProjection>, AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * Called before a new generation starts, for example to check if the source is available
+     */
+    default void prepare() {
+        // nothing to prepare by default
+    }
+
+    /**
+     * @return (fast) estimate of the total number of records in the source, including records that are filtered out
+     * because of their tiers. -1 if unknown
+     */
+    long estimateNrRecords();
+
+    /**
+     * Read records in an id range. Records may include records with tiers that should not be in the sitemap.
+     * @param after if not null, only records with an id greater than this are returned
+     * @param upTo if not null, only records with an id less than or equal to this are returned
+     * @return cursor over the records, sorted by id
+     */
+    RecordCursor read(Object after, Object upTo);
+
+    /**
+     * @param size number of ids to return
+     * @return the ids of a random sample of records, in any order
+     */
+    List<Object> sampleIds(int size);
+
+    /**
+     * @param since the date after which records should have been updated
+     * @param max maximum number of ids to return, so we don't run out of memory when many records have changed
+     * @return the ids of all records (regardless of tiers) that were updated after the provided date, or null if more
+     * than max records were updated
+     */
+    TreeSet<String> getChangedIds(Instant since, int max);
+
+    /**
+     * Convert an id that was stored as string (e.g. in a checkpoint) back to the type used by the source
+     * @param id the id as string, can be null
+     * @return the id, or null if the provided id was null
+     */
+    Object toId(String id);
+
+    /**
+     * Release all resources (e.g. connections) used by the source
+     */
+    void close();
+}
@@ -0,0 +1,31 @@
+package eu.europeana.sitemap.service.update;
+
+import java.util.Locale;
+
+/**
+ * Enumeration of supported sources of records
+ */
+public enum RecordSourceType {
+    /** Records are read from the Mongo record collection, see MongoRecordSource */
+    MONGO,
+    /** Records are generated, for testing without a Mongo database, see SyntheticRecordSource */
+    SYNTHETIC,
+    /** Records are read from a mongodump or mongoexport file, see FileRecordSource */
+    FILE;
+
+    /**
+     * Initialize a record source type from a string (case-insensitive)
+     * @param name to parse
+     * @return record source type, or null if the name is not a supported type
+     */
+    public static RecordSourceType fromString(String name) {
+        if (name != null) {
+            for (RecordSourceType type : values()) {
+                if (type.name().equals(name.trim().toUpperCase(Locale.ROOT))) {
+                    return type;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,137 @@
+package eu.europeana.sitemap.service.update;
+
+import com.mongodb.BasicDBObject;
+import eu.europeana.sitemap.Constants;
+import eu.europeana.sitemap.mongo.RecordProjection;
+import eu.europeana.sitemap.mongo.RecordProjectionCodec;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Filters records on their tiers with a find query instead of an aggregation pipeline. The find query walks the _id
+ * index in order (see MongoRecordSource), so the Mongo server still fetches every record in the id range, applies
+ * simple $in matches on the tier urls and returns a projection of the matching records. Compared to the pipeline, the
+ * server doesn't have to split the tier urls, but whether that saves noticeable CPU depends on the data and server.
+ *
+ * The tiers of a record are stored as urls in the quality annotations; the first annotation holds the content tier,
+ * the last one the metadata tier, e.g.
+ * <pre>qualityAnnotations: [{body: "http://www.europeana.eu/schemas/epf/contentTier2"}, ...,
+ *                     {body: "http://www.europeana.eu/schemas/epf/metadataTierA"}]</pre>
+ * The server only checks whether a record has one of the requested tier urls somewhere in its annotations. The
+ * projection returns the urls of the first and last annotation only, RecordProjectionCodec extracts the tiers from
+ * those and includes() checks them again, so the end result is the same as with the aggregation pipeline.
+ */
+public class RecordTierFilter {
+
+    /** Base url of all tier annotations */
+    public static final String TIER_URL_PREFIX = "http://www.europeana.eu/schemas/epf/";
+
+    private final Set<String> contentTiers;
+    private final Set<String> metadataTiers;
+    // the same tiers in the format of a RecordProjection, for fast checking
+    private final Set<Integer> contentTierValues = new HashSet<>();
+    private final Set<Character> metadataTierValues = new HashSet<>();
+
+    /**
+     * Create a new tier filter
+     * @param contentTier comma-separated content tier values to include, if empty all content tiers are included
+     * @param metadataTier comma-separated metadata tier values to include (case-insensitive), if empty all metadata
+     *                     tiers are included
+     */
+    public RecordTierFilter(String contentTier, String metadataTier) {
+        this.contentTiers = parseTiers(contentTier);
+        this.metadataTiers = parseTiers(metadataTier.toUpperCase(Locale.ROOT));
+        for (String tier : contentTiers) {
+            contentTierValues.add(RecordProjectionCodec.parseContentTier(tier));
+        }
+        for (String tier : metadataTiers) {
+            metadataTierValues.add(RecordProjectionCodec.parseMetadataTier(tier));
+        }
+    }
+
+    /**
+     * Values in the configuration may have spaces or be repeated, which doesn't matter for the $in query
+     */
+    private static Set<String> parseTiers(String tiers) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String tier : tiers.split(",")) {
+            if (!tier.isBlank()) {
+                result.add(tier.trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the query filter, for example
+     * <pre>{_id: {$gt: after, $lte: upTo},
+     *  $and: [{"qualityAnnotations.body": {$in: ["http://www.europeana.eu/schemas/epf/contentTier4"]}},
+     *         {"qualityAnnotations.body": {$in: ["http://www.europeana.eu/schemas/epf/metadataTierA"]}}]}</pre>
+     * @param after if not null, only records with an _id greater than this value are included
+     * @param upTo if not null, only records with an _id less than or equal to this value are included
+     * @return BasicDBObject with the query filter
+     */
+    public BasicDBObject getQueryFilter(Object after, Object upTo) {
+        BasicDBObject result = new BasicDBObject();
+        BasicDBObject idRange = new BasicDBObject();
+        if (after != null) {
+            idRange.append(Constants.GT, after);
+        }
+        if (upTo != null) {
+            idRange.append(Constants.LTE, upTo);
+        }
+        if (!idRange.isEmpty()) {
+            result.append(Constants.ID, idRange);
+        }
+        List<BasicDBObject> andStages = new ArrayList<>();
+        if (!contentTiers.isEmpty()) {
+            andStages.add(getTierUrlFilter(Constants.CONTENT_TIER, contentTiers));
+        }
+        if (!metadataTiers.isEmpty()) {
+            andStages.add(getTierUrlFilter(Constants.METADATA_TIER, metadataTiers));
+        }
+        if (!andStages.isEmpty()) {
+            result.append(Constants.AND, andStages);
+        }
+        return result;
+    }
+
+    private static BasicDBObject getTierUrlFilter(String tierName, Set<String> values) {
+        List<String> urls = new ArrayList<>(values.size());
+        for (String value : values) {
+            urls.add(TIER_URL_PREFIX + tierName + value);
+        }
+        return new BasicDBObject(Constants.QUALITY_ANNOTATIONS_BODY, new BasicDBObject(Constants.IN, urls));
+    }
+
+    /**
+     * Returns the fields we need from each record: about, timestampUpdated and the urls of the first and last quality
+     * annotation, so not the entire annotations array. Aggregation expressions in a find projection require Mongo 4.4+
+     * <pre>{about: 1, timestampUpdated: 1, contentTierValue: {$arrayElemAt: ["$qualityAnnotations.body", 0]},
+     *  metadataTierValue: {$arrayElemAt: ["$qualityAnnotations.body", -1]}}</pre>
+     * @return BasicDBObject with the projection
+     */
+    public static BasicDBObject getProjection() {
+        return UpdateRecordServiceUtils.getCommonProjections()
+                .append(RecordProjectionCodec.CONTENT_TIER_URL,
+                        new BasicDBObject(Constants.ARRAY_ELEMENT_AT, List.of(Constants.MONGO_QA_BODY, 0L)))
+                .append(RecordProjectionCodec.METADATA_TIER_URL,
+                        new BasicDBObject(Constants.ARRAY_ELEMENT_AT, List.of(Constants.MONGO_QA_BODY, -1L)));
+    }
+
+    /**
+     * Check the tiers of a record returned by the query. Records with unknown tiers are never included.
+     * @param record the record to check
+     * @return true if the record has a content tier and a metadata tier that should be included, otherwise false
+     */
+    public boolean includes(RecordProjection record) {
+        return record.contentTier() >= 0 && record.metadataTier() != 0
+                && (contentTierValues.isEmpty() || contentTierValues.contains(record.contentTier()))
+                && (metadataTierValues.isEmpty() || metadataTierValues.contains(record.metadataTier()));
+    }
+}
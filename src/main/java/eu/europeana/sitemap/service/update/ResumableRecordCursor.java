@@ -0,0 +1,144 @@
+package eu.europeana.sitemap.service.update;
+
+import com.mongodb.MongoCursorNotFoundException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.client.MongoCursor;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.mongo.RecordProjection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over records sorted by id that survives losing the connection to Mongo. A scan of the entire record
+ * collection takes hours, so it's quite likely that the cursor times out on the server, the primary steps down or there
+ * is a network problem. When that happens we wait a bit and restart the query after the id of the last returned record.
+ * Since records are sorted by id, no records are skipped or returned twice.
+ */
+public class ResumableRecordCursor implements RecordSource.RecordCursor {
+
+    private static final Logger LOG = LogManager.getLogger(ResumableRecordCursor.class);
+
+    private static final int MAX_RETRIES = 5;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 30_000;
+
+    /**
+     * Query for records in an id range, sorted by id
+     */
+    @FunctionalInterface
+    public interface RecordQuery {
+        /**
+         * @param after if not null, only records with an id greater than this are returned
+         * @param upTo if not null, only records with an id less than or equal to this are returned
+         * @return cursor over the records
+         */
+        MongoCursor<RecordProjection> open(Object after, Object upTo);
+    }
+
+    private final RecordQuery query;
+    private final Object upTo;
+    private final SitemapMetrics metrics;
+    private final long initialBackoffMs;
+    private MongoCursor<RecordProjection> cursor;
+    private Object lastId;
+    private int failures;
+
+    /**
+     * Create a new cursor. The query is started when the first record is requested.
+     * @param query the query to (re)start
+     * @param after if not null, only records with an id greater than this are returned
+     * @param upTo if not null, only records with an id less than or equal to this are returned
+     * @param metrics where restarts are recorded
+     */
+    public ResumableRecordCursor(RecordQuery query, Object after, Object upTo, SitemapMetrics metrics) {
+        this(query, after, upTo, metrics, INITIAL_BACKOFF_MS);
+    }
+
+    ResumableRecordCursor(RecordQuery query, Object after, Object upTo, SitemapMetrics metrics, long initialBackoffMs) {
+        this.query = query;
+        this.lastId = after;
+        this.upTo = upTo;
+        this.metrics = metrics;
+        this.initialBackoffMs = initialBackoffMs;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (true) {
+            try {
+                if (cursor == null) {
+                    cursor = query.open(lastId, upTo);
+                }
+                return cursor.hasNext();
+            } catch (MongoException e) {
+                handleError(e);
+            }
+        }
+    }
+
+    @Override
+    public RecordProjection next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RecordProjection record = cursor.next();
+        lastId = record.id();
+        failures = 0;
+        return record;
+    }
+
+    /**
+     * Wait before restarting the query, or rethrow the error if it can't be solved by retrying
+     */
+    private void handleError(MongoException e) {
+        if (!isRetryable(e) || failures >= MAX_RETRIES) {
+            throw e;
+        }
+        failures++;
+        long backoffMs = Math.min(MAX_BACKOFF_MS, initialBackoffMs << (failures - 1));
+        LOG.warn("Error reading records after {}, restarting query in {} ms (attempt {} of {}): {}", lastId, backoffMs,
+                failures, MAX_RETRIES, e.getMessage());
+        closeCursor();
+        metrics.mongoCursorRestarted();
+        try {
+            Thread.sleep(backoffMs);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to restart record query", ie);
+        }
+    }
+
+    /**
+     * @param e error thrown by the Mongo driver
+     * @return true if the error is (likely) temporary, so the query can be restarted
+     */
+    static boolean isRetryable(MongoException e) {
+        return e instanceof MongoCursorNotFoundException
+                || e instanceof MongoSocketException
+                || e instanceof MongoNotPrimaryException
+                || e instanceof MongoNodeIsRecoveringException
+                || e instanceof MongoTimeoutException;
+    }
+
+    private void closeCursor() {
+        if (cursor != null) {
+            try {
+                cursor.close();
+            } catch (RuntimeException e) {
+                LOG.debug("Error closing record cursor", e);
+            }
+            cursor = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeCursor();
+    }
+}
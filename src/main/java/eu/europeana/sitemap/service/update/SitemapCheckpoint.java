@@ -0,0 +1,175 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.service.Deployment;
+import eu.europeana.sitemap.storage.SitemapStorage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of a sitemap generation after the last completed (and saved) sitemap file. A checkpoint is saved after every
+ * sitemap file, so an interrupted generation can continue where it left off instead of starting all over again.
+ *
+ * The checkpoint is stored as a plain text file with one tab-separated key and value(s) per line. Lines of the manifest
+ * are included with a 'manifest' prefix.
+ *
+ * @param deployment the deployment to which files are written
+ * @param gzip whether sitemap files are compressed
+ * @param itemsPerSitemap maximum number of items per sitemap file
+ * @param maxBytesPerSitemap maximum size of a sitemap file
+ * @param saved date when the checkpoint was created
+ * @param generationDate start date of the generation (W3C datetime format)
+ * @param position position of the last item in the data source (e.g. a record id), can be null if unknown
+ * @param nrRecords number of items written so far
+ * @param nrSitemaps number of sitemap files written so far
+ * @param nrUnchangedSitemaps number of sitemap files that were unchanged compared to the active deployment
+ * @param indexEntries entries for the sitemap index so far
+ * @param manifest manifest of the sitemap files written so far
+ */
+public record SitemapCheckpoint(Deployment deployment, boolean gzip, int itemsPerSitemap, long maxBytesPerSitemap,
+                                Instant saved, String generationDate, String position, long nrRecords, int nrSitemaps,
+                                int nrUnchangedSitemaps, List<IndexEntry> indexEntries, SitemapManifest manifest) {
+
+    private static final Logger LOG = LogManager.getLogger(SitemapCheckpoint.class);
+
+    private static final char SEPARATOR = '\t';
+    private static final char LN = '\n';
+
+    private static final String DEPLOYMENT = "deployment";
+    private static final String GZIP = "gzip";
+    private static final String ITEMS_PER_SITEMAP = "itemsPerSitemap";
+    private static final String MAX_BYTES_PER_SITEMAP = "maxBytesPerSitemap";
+    private static final String SAVED = "saved";
+    private static final String GENERATION_DATE = "generationDate";
+    private static final String POSITION = "position";
+    private static final String NR_RECORDS = "nrRecords";
+    private static final String NR_SITEMAPS = "nrSitemaps";
+    private static final String NR_UNCHANGED_SITEMAPS = "nrUnchangedSitemaps";
+    private static final String INDEX = "index";
+    private static final String MANIFEST = "manifest";
+
+    /**
+     * Entry in the sitemap index
+     * @param location public url of a sitemap file (xml encoded)
+     * @param lastModified date when the sitemap file last changed (W3C datetime format)
+     */
+    public record IndexEntry(String location, String lastModified) {
+    }
+
+    /**
+     * Load a checkpoint from storage
+     * @param storage location where the checkpoint is saved
+     * @param fileName name of the checkpoint file
+     * @return the loaded checkpoint, or null if the file doesn't exist or couldn't be parsed
+     */
+    public static SitemapCheckpoint load(SitemapStorage storage, String fileName) {
+        byte[] bytes = storage.getAsBytes(fileName);
+        if (bytes == null) {
+            LOG.debug("No checkpoint file {} found", fileName);
+            return null;
+        }
+        try {
+            return parse(new String(bytes, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            LOG.warn("Ignoring invalid checkpoint file {}", fileName, e);
+            return null;
+        }
+    }
+
+    private static SitemapCheckpoint parse(String contents) {
+        Map<String, String> values = new HashMap<>();
+        List<IndexEntry> indexEntries = new ArrayList<>();
+        StringBuilder manifest = new StringBuilder();
+        String manifestPrefix = MANIFEST + SEPARATOR;
+        for (String line : contents.split(String.valueOf(LN))) {
+            String[] fields = line.split(String.valueOf(SEPARATOR));
+            if (INDEX.equals(fields[0]) && fields.length == 3) {
+                indexEntries.add(new IndexEntry(fields[1], fields[2]));
+            } else if (line.startsWith(manifestPrefix)) {
+                manifest.append(line, manifestPrefix.length(), line.length()).append(LN);
+            } else if (fields.length == 2) {
+                values.put(fields[0], fields[1]);
+            } else if (!line.isBlank()) {
+                throw new IllegalArgumentException("Invalid line '" + line + "'");
+            }
+        }
+        Deployment deployment = Deployment.fromString(getRequired(values, DEPLOYMENT));
+        if (deployment == null) {
+            throw new IllegalArgumentException("No valid deployment");
+        }
+        return new SitemapCheckpoint(deployment,
+                Boolean.parseBoolean(getRequired(values, GZIP)),
+                Integer.parseInt(getRequired(values, ITEMS_PER_SITEMAP)),
+                Long.parseLong(getRequired(values, MAX_BYTES_PER_SITEMAP)),
+                Instant.parse(getRequired(values, SAVED)),
+                getRequired(values, GENERATION_DATE),
+                values.get(POSITION),
+                Long.parseLong(getRequired(values, NR_RECORDS)),
+                Integer.parseInt(getRequired(values, NR_SITEMAPS)),
+                Integer.parseInt(getRequired(values, NR_UNCHANGED_SITEMAPS)),
+                indexEntries,
+                SitemapManifest.parse(manifest.toString(), "checkpoint"));
+    }
+
+    private static String getRequired(Map<String, String> values, String key) {
+        String value = values.get(key);
+        if (value == null) {
+            throw new IllegalArgumentException("No value for " + key);
+        }
+        return value;
+    }
+
+    /**
+     * Check if generation can be resumed from this checkpoint with the provided settings. If the settings differ, the
+     * resumed generation would produce different files than the ones that are already saved.
+     * @param deployment the deployment to which files are written
+     * @param gzip whether sitemap files are compressed
+     * @param itemsPerSitemap maximum number of items per sitemap file
+     * @param maxBytesPerSitemap maximum size of a sitemap file
+     * @return true if the settings are the same as when the checkpoint was created, otherwise false
+     */
+    public boolean matches(Deployment deployment, boolean gzip, int itemsPerSitemap, long maxBytesPerSitemap) {
+        return this.deployment == deployment && this.gzip == gzip && this.itemsPerSitemap == itemsPerSitemap
+                && this.maxBytesPerSitemap == maxBytesPerSitemap;
+    }
+
+    /**
+     * @return the checkpoint in text format, UTF-8 encoded
+     */
+    public byte[] toBytes() {
+        StringBuilder sb = new StringBuilder();
+        append(sb, DEPLOYMENT, deployment);
+        append(sb, GZIP, gzip);
+        append(sb, ITEMS_PER_SITEMAP, itemsPerSitemap);
+        append(sb, MAX_BYTES_PER_SITEMAP, maxBytesPerSitemap);
+        append(sb, SAVED, saved);
+        append(sb, GENERATION_DATE, generationDate);
+        if (position != null) {
+            append(sb, POSITION, position);
+        }
+        append(sb, NR_RECORDS, nrRecords);
+        append(sb, NR_SITEMAPS, nrSitemaps);
+        append(sb, NR_UNCHANGED_SITEMAPS, nrUnchangedSitemaps);
+        for (IndexEntry entry : indexEntries) {
+            sb.append(INDEX).append(SEPARATOR).append(entry.location()).append(SEPARATOR)
+                    .append(entry.lastModified()).append(LN);
+        }
+        for (String line : manifest.toText().split(String.valueOf(LN))) {
+            if (!line.isEmpty()) {
+                sb.append(MANIFEST).append(SEPARATOR).append(line).append(LN);
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void append(StringBuilder sb, String key, Object value) {
+        sb.append(key).append(SEPARATOR).append(value).append(LN);
+    }
+}
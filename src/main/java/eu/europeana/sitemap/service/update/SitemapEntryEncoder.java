@@ -0,0 +1,364 @@
+package eu.europeana.sitemap.service.update;
+
+import org.apache.commons.lang3.time.DateFormatUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.TimeZone;
+
+/**
+ * Encodes sitemap entries (url elements) directly to UTF-8 bytes. All fixed parts of an entry are encoded only once
+ * and formatted last-modified dates are cached per day, so encoding an entry doesn't create any new objects.
+ *
+ * Encoded bytes are collected in a buffer that is written to the output stream of the current sitemap file whenever
+ * it's (almost) full, so the underlying stream (e.g. a gzip stream) receives large blocks instead of many small writes.
+ * The same buffer is reused for all files.
+ *
+ * Urls are escaped for use in xml while they are encoded. Most urls don't contain any characters that need escaping, so
+ * characters are copied in a tight loop until the first character that isn't plain ascii; only then we switch to a
+ * slower loop that handles escaping and multibyte characters. Characters that are not allowed in xml (e.g. most control
+ * characters) are replaced by '?'.
+ *
+ * The encoder keeps track of the number of bytes written to the current file, and can calculate the encoded length of
+ * an entry beforehand so callers can make sure a file doesn't grow beyond a maximum size. It also calculates a
+ * (SHA-256) hash of all data written to the current file, so we can check if a file has changed since the last time.
+ */
+public final class SitemapEntryEncoder {
+
+    private static final byte[] URL_OPENING = toBytes("<url>\n<loc>");
+    private static final byte[] LOC_CLOSING = toBytes("</loc>\n");
+    private static final byte[] PRIORITY_OPENING = toBytes("<priority>");
+    private static final byte[] PRIORITY_CLOSING = toBytes("</priority>\n");
+    private static final byte[] LASTMOD_OPENING = toBytes("<lastmod>");
+    private static final byte[] LASTMOD_CLOSING = toBytes("</lastmod>\n");
+    private static final byte[] URL_CLOSING = toBytes("</url>\n");
+    private static final int FIXED_ITEM_LENGTH = URL_OPENING.length + LOC_CLOSING.length + URL_CLOSING.length;
+    private static final int FIXED_PRIORITY_LENGTH = PRIORITY_OPENING.length + PRIORITY_CLOSING.length;
+    private static final int FIXED_LASTMOD_LENGTH = LASTMOD_OPENING.length + LASTMOD_CLOSING.length;
+
+    private static final String DATE_PATTERN = DateFormatUtils.ISO_8601_EXTENDED_DATE_FORMAT.getPattern();
+    private static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final int DATE_CACHE_SIZE = 4096; // must be a power of 2, enough to hold about 11 years of dates
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Encoding a char can result in at most 6 bytes (&amp;apos; and &amp;quot;), other chars take at most 3 bytes */
+    private static final int MAX_BYTES_PER_CHAR = 6;
+
+    /** Maximum length of a url according to the sitemap protocol */
+    public static final int MAX_URL_LENGTH = 2048;
+
+    private static final char REPLACEMENT_CHAR = '?';
+    /** Escaped form of all ascii characters that can't be written as is, null for all other characters */
+    private static final byte[][] ASCII_ESCAPES = new byte[0x80][];
+    static {
+        for (char c = 0; c < 0x20; c++) {
+            if (c != '\t' && c != '\n' && c != '\r') {
+                ASCII_ESCAPES[c] = new byte[]{REPLACEMENT_CHAR};
+            }
+        }
+        ASCII_ESCAPES['&'] = toBytes("&amp;");
+        ASCII_ESCAPES['<'] = toBytes("&lt;");
+        ASCII_ESCAPES['>'] = toBytes("&gt;");
+        ASCII_ESCAPES['\''] = toBytes("&apos;");
+        ASCII_ESCAPES['"'] = toBytes("&quot;");
+    }
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private final TimeZone timeZone;
+    private final MessageDigest contentHash;
+    private final long[] cachedDays = new long[DATE_CACHE_SIZE];
+    private final byte[][] cachedDates = new byte[DATE_CACHE_SIZE][];
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int size;
+    private OutputStream out;
+    private long bytesWritten; // to the current output stream
+
+    /**
+     * Create a new encoder that formats last-modified dates using the default time zone
+     */
+    public SitemapEntryEncoder() {
+        this(TimeZone.getDefault());
+    }
+
+    /**
+     * Create a new encoder
+     * @param timeZone time zone used for formatting last-modified dates
+     */
+    public SitemapEntryEncoder(TimeZone timeZone) {
+        this.timeZone = timeZone;
+        Arrays.fill(cachedDays, Long.MIN_VALUE);
+        try {
+            this.contentHash = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not supported", e);
+        }
+    }
+
+    /**
+     * Encode a string to UTF-8 bytes. Use this for fixed values that are written often (e.g. the base url of items)
+     * @param s the string to encode
+     * @return UTF-8 encoded bytes
+     */
+    public static byte[] toBytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Set the output stream to which all further encoded bytes are written. Any bytes that are still buffered should be
+     * flushed to the previous output stream first.
+     * @param out output stream of the current sitemap file
+     */
+    public void setOutput(OutputStream out) {
+        if (size > 0) {
+            throw new IllegalStateException("Encoded data wasn't flushed to the previous output stream");
+        }
+        this.out = out;
+        this.bytesWritten = 0;
+        this.contentHash.reset();
+    }
+
+    /**
+     * Return the hash of all data written to the current output stream. Make sure to call flush() first.
+     * @return hex-encoded hash of the written data
+     */
+    public String getContentHash() {
+        if (size > 0) {
+            throw new IllegalStateException("Encoded data wasn't flushed yet");
+        }
+        return HexFormat.of().formatHex(contentHash.digest());
+    }
+
+    /**
+     * @return the number of bytes written to the current output stream so far (including bytes that are still
+     * buffered)
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Add pre-encoded bytes (e.g. a file header) to the output
+     * @param bytes the bytes to write
+     */
+    public void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+        bytesWritten += bytes.length;
+    }
+
+    /**
+     * Quickly calculate the maximum number of bytes an item can take when encoded. The actual length is usually smaller
+     * because most url characters only take 1 byte.
+     * @see #encodeItem(byte[], CharSequence, byte[], Date)
+     * @return maximum encoded length of the item
+     */
+    public int getMaxEncodedLength(byte[] urlPrefix, CharSequence url, byte[] priority, Date dateLastModified) {
+        return getEncodedLength(urlPrefix, url.length() * MAX_BYTES_PER_CHAR, priority, dateLastModified);
+    }
+
+    /**
+     * Calculate the exact number of bytes an item takes when encoded
+     * @see #encodeItem(byte[], CharSequence, byte[], Date)
+     * @return encoded length of the item
+     */
+    public int getEncodedLength(byte[] urlPrefix, CharSequence url, byte[] priority, Date dateLastModified) {
+        return getEncodedLength(urlPrefix, getEncodedUrlLength(url), priority, dateLastModified);
+    }
+
+    /**
+     * Check if a url isn't too long to be included in a sitemap. Note that we count the length before escaping and
+     * assume the prefix is plain ascii.
+     * @param urlPrefix pre-encoded first part of the url, can be null
+     * @param url (remaining part of the) url
+     * @return true if the url isn't longer than MAX_URL_LENGTH characters
+     */
+    public static boolean isValidUrlLength(byte[] urlPrefix, CharSequence url) {
+        return (urlPrefix == null ? 0 : urlPrefix.length) + url.length() <= MAX_URL_LENGTH;
+    }
+
+    private int getEncodedLength(byte[] urlPrefix, int urlLength, byte[] priority, Date dateLastModified) {
+        int length = FIXED_ITEM_LENGTH + urlLength;
+        if (urlPrefix != null) {
+            length += urlPrefix.length;
+        }
+        if (priority != null && priority.length > 0) {
+            length += FIXED_PRIORITY_LENGTH + priority.length;
+        }
+        if (dateLastModified != null) {
+            length += FIXED_LASTMOD_LENGTH + getDateBytes(dateLastModified.getTime()).length;
+        }
+        return length;
+    }
+
+    /**
+     * Encode one url element
+     * @param urlPrefix pre-encoded first part of the url (e.g. the base url of all records), can be null
+     * @param url (remaining part of the) url, this is escaped for use in xml
+     * @param priority pre-encoded priority, can be null or empty
+     * @param dateLastModified last-modified date, can be null
+     */
+    public void encodeItem(byte[] urlPrefix, CharSequence url, byte[] priority, Date dateLastModified) {
+        write(URL_OPENING);
+        if (urlPrefix != null) {
+            write(urlPrefix);
+        }
+        writeUrl(url);
+        write(LOC_CLOSING);
+
+        if (priority != null && priority.length > 0) {
+            write(PRIORITY_OPENING);
+            write(priority);
+            write(PRIORITY_CLOSING);
+        }
+
+        if (dateLastModified != null) {
+            write(LASTMOD_OPENING);
+            write(getDateBytes(dateLastModified.getTime()));
+            write(LASTMOD_CLOSING);
+        }
+
+        write(URL_CLOSING);
+        if (size >= BUFFER_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Write all buffered bytes to the output stream
+     */
+    public void flush() {
+        if (size == 0) {
+            return;
+        }
+        contentHash.update(buffer, 0, size);
+        try {
+            out.write(buffer, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing sitemap file", e);
+        }
+        size = 0;
+    }
+
+    /**
+     * Return the formatted (yyyy-MM-dd) date, we only format each day once
+     */
+    private byte[] getDateBytes(long millis) {
+        long day = Math.floorDiv(millis + timeZone.getOffset(millis), MS_PER_DAY);
+        int index = (int) (day & (DATE_CACHE_SIZE - 1));
+        if (cachedDays[index] != day) {
+            cachedDates[index] = toBytes(DateFormatUtils.format(millis, DATE_PATTERN, timeZone));
+            cachedDays[index] = day;
+        }
+        return cachedDates[index];
+    }
+
+    /**
+     * Escape and encode characters to UTF-8 straight into our buffer. Unpaired surrogates are replaced by '?', the same
+     * as String.getBytes() does.
+     */
+    private void writeUrl(CharSequence s) {
+        int length = s.length();
+        ensureCapacity(length * MAX_BYTES_PER_CHAR);
+        byte[] buf = buffer;
+        int pos = size;
+        // fast path: plain ascii characters
+        int i = 0;
+        while (i < length) {
+            char c = s.charAt(i);
+            if (c >= 0x80 || ASCII_ESCAPES[c] != null) {
+                break;
+            }
+            buf[pos++] = (byte) c;
+            i++;
+        }
+        if (i < length) {
+            pos = writeUrlSlow(s, i, buf, pos);
+        }
+        bytesWritten += pos - size;
+        size = pos;
+    }
+
+    private static int writeUrlSlow(CharSequence s, int start, byte[] buf, int position) {
+        int length = s.length();
+        int pos = position;
+        for (int i = start; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                byte[] escaped = ASCII_ESCAPES[c];
+                if (escaped == null) {
+                    buf[pos++] = (byte) c;
+                } else {
+                    System.arraycopy(escaped, 0, buf, pos, escaped.length);
+                    pos += escaped.length;
+                }
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                int codePoint = -1;
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, s.charAt(++i));
+                }
+                if (codePoint < 0) {
+                    buf[pos++] = '?';
+                } else {
+                    buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                    buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                }
+            } else if (c >= 0xFFFE) {
+                buf[pos++] = REPLACEMENT_CHAR; // not allowed in xml
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    private static int getEncodedUrlLength(CharSequence s) {
+        int length = s.length();
+        int result = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    result += 2; // 4 bytes for 2 chars
+                    i++;
+                } else if (!Character.isSurrogate(c) && c < 0xFFFE) {
+                    result += 2;
+                } // unpaired surrogates and non-characters are replaced by 1 byte
+            } else if (c >= 0x80) {
+                result++;
+            } else if (ASCII_ESCAPES[c] != null) {
+                result += ASCII_ESCAPES[c].length - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Make sure there's room for the provided number of bytes. Normally we flush regularly so the buffer never has to
+     * grow, only very large values can make the buffer larger.
+     */
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            flush();
+            if (extra > buffer.length) {
+                buffer = new byte[extra];
+            }
+        }
+    }
+}
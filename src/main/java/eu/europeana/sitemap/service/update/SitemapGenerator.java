@@ -1,17 +1,36 @@
 package eu.europeana.sitemap.service.update;
 
-import eu.europeana.s3.S3ObjectStorageClient;
+import eu.europeana.sitemap.Constants;
 import eu.europeana.sitemap.SitemapType;
 import eu.europeana.sitemap.StorageFileName;
 import eu.europeana.sitemap.config.PortalUrl;
+import eu.europeana.sitemap.exceptions.SiteMapStorageException;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.s3.MultipartUploadOutputStream;
+import eu.europeana.sitemap.s3.S3Checksum;
+import eu.europeana.sitemap.s3.S3MultipartUploader;
 import eu.europeana.sitemap.service.Deployment;
+import eu.europeana.sitemap.storage.SitemapStorage;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateFormatUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Basic implementation of generating sitemap files and sitemap index file. Note that this class doesn't involve itself
@@ -20,18 +39,56 @@ import java.util.Date;
  * All generated sitemap file names start with the provided fileNameBase followed by a 'from' and 'to' parameter attached
  * to the name (the use of these parameters allows for easy processing of requested file names in a controller).
  *
+ * A new sitemap file is started when the current file contains the maximum number of items, or when adding the next
+ * item would make the file larger than the maximum file size (never more than 50 MB uncompressed, as required by the
+ * sitemap protocol). Because of the latter the number of items per file can vary, but 'from' and 'to' always refer to
+ * the first and last item in a file.
+ *
  * When all items are added using the addItem() method you need to call finish() which will wrap up the generation process
  *
+ * Items are encoded to UTF-8 bytes straight away by a SitemapEntryEncoder. By default all bytes of a sitemap file are kept in memory until the
+ * file is finished, but if a (enabled) multipart uploader is provided, sitemap files are streamed to the storage in
+ * parts while generation continues. In that case the memory used per file is limited to one part buffer.
+ *
+ * Optionally sitemap files can be gzip-compressed while they are generated. Compressed files are stored with a .xml.gz
+ * extension and gzip content-encoding, and the sitemap index refers to the compressed files. The index file itself is
+ * never compressed.
+ *
+ * For each sitemap file we calculate a content hash and store that in a manifest file. If a sitemap file is identical
+ * to the same file in the active deployment, we copy that file in the storage instead of uploading it again (not when
+ * streaming, because then the file is already uploaded) and its last-modified date in the index is kept the same.
+ * The last-modified date of a changed file is the most recent last-modified date of its items, so crawlers can skip
+ * files of which no item was modified since their last visit (see getFileLastModified()).
+ *
+ * Finished files are handed over to a SitemapUploader that saves them (possibly in the background), so generation
+ * doesn't have to wait for that. The finish() method waits until all files are saved.
+ *
+ * Instead of generating all files again, it's also possible to carry over files from the active deployment (see
+ * addUnchangedFile()), so only files that contain changed items need to be regenerated. For that the manifest keeps
+ * track of the number of items and the id of the last item in each file.
+ *
+ * If checkpoints are enabled, a checkpoint is saved after a sitemap file (once that file and all previous files are
+ * saved), at most once per checkpoint interval. An interrupted generation can then be continued by providing the checkpoint to the init() method and adding
+ * the items that come after the checkpoint's position. The checkpoint is deleted when generation is finished.
+ *
+ * Optionally the urls of all items are collected in a UrlChangelog, so a list of urls that were added and removed
+ * compared to the active deployment can be published when generation is finished.
+ *
  * @author Patrick Ehlert
  * Created on 04-06-2018
  */
 public class SitemapGenerator {
 
+    /** Maximum size of an (uncompressed) sitemap file according to the sitemap protocol */
+    public static final long MAX_BYTES_PER_SITEMAP = 50L * 1024 * 1024;
+
     private static final Logger LOG = LogManager.getLogger(SitemapGenerator.class);
 
     /** XML definitions **/
     private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
     private static final String XML_CONTENT_TYPE = "application/xml";
+    private static final String TXT_CONTENT_TYPE = "text/plain";
+    private static final String LASTMOD_FORMAT = DateFormatUtils.ISO_8601_EXTENDED_DATETIME_TIME_ZONE_FORMAT.getPattern();
 
     private static final String SITEMAP_HEADER_OPENING = "<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">";
     private static final String SITEMAP_HEADER_CLOSING = "</sitemapindex>";
@@ -44,54 +101,112 @@ public class SitemapGenerator {
                     " xmlns:geo=\"http://www.google.com/geo/schemas/sitemap/1.0\">";
     private static final String URLSET_HEADER_CLOSING = "</urlset>";
 
-    private static final String URL_OPENING = "<url>";
-    private static final String URL_CLOSING = "</url>";
-
     private static final String LOC_OPENING = "<loc>";
     private static final String LOC_CLOSING = "</loc>";
 
-    private static final String PRIORITY_OPENING = "<priority>";
-    private static final String PRIORITY_CLOSING = "</priority>";
-
     private static final String LASTMOD_OPENING = "<lastmod>";
     private static final String LASTMOD_CLOSING = "</lastmod>";
 
     private static final char LN = '\n';
 
+    private static final byte[] SITEMAP_FILE_OPENING = SitemapEntryEncoder.toBytes(XML_HEADER + LN + URLSET_HEADER + LN);
+    private static final byte[] SITEMAP_FILE_CLOSING = SitemapEntryEncoder.toBytes(URLSET_HEADER_CLOSING);
+
     private static final String FROM_PARAM = "?from=";
     private static final String TO_PARAM = "&to=";
 
-    private static final int MAX_SAVE_ATTEMPTS = 3;
-    private static final long RETRY_SAVE_INTERVAL = 5000;
-    private static final int MS_PER_SEC = 1000;
+    private static final int INITIAL_BUFFER_SIZE = 1024 * 1024;
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+    private static final long NO_LAST_MODIFIED = Long.MIN_VALUE;
 
-    private final S3ObjectStorageClient objectStorage;
+    private final SitemapStorage storage;
+    private final S3MultipartUploader multipartUploader;
+    private final SitemapUploader uploader;
     private final SitemapType type;
+    private final boolean gzip;
+    private final SitemapMetrics metrics;
+    private final SitemapEntryEncoder encoder = new SitemapEntryEncoder();
+    private UpdateProgress progress;
+    private UrlChangelog changelog;
 
     private Deployment deployment;
+    private Deployment activeDeployment;
     private String websiteBaseUrl;
     private int itemsPerSitemap;
+    private long maxBytesPerSitemap;
 
     private boolean generationStarted;
     private boolean generationFinished;
 
+    private long nrSkippedItems; // items with a url that's too long
+    private boolean checkpointsEnabled;
+    private long checkpointIntervalMs;
+    private long lastCheckpointTime;
+    private String resumePosition; // position of the last item in the checkpoint we resumed from
+    private Object lastPosition; // position of the last added item
+
+    private SitemapManifest activeManifest; // manifest of the currently active deployment
+    private SitemapManifest manifest; // manifest of the files we generate
+    private String generationDate;
+
     private StringBuilder sitemapIndex;
-    private StringBuilder sitemap;
+    private List<SitemapCheckpoint.IndexEntry> indexEntries;
+    private ByteArrayOutputStream sitemapBuffer; // reused for all files, not used when streaming
+    private MultipartUploadOutputStream sitemapUpload; // null when not streaming
+    private GZIPOutputStream sitemapGzip; // null when not compressing
+    private boolean sitemapInProgress;
     private long fileStartTime; // this is for the current sitemap file
+    private long fileLastModified; // most recent last-modified date of the items in the current sitemap file
 
     // global stats
     private long nrRecords;
     private int nrSitemaps;
+    private int nrUnchangedSitemaps;
     private long from;
 
+    /**
+     * Setup a new sitemap generator that keeps each sitemap file in memory until it's finished and saves files on the
+     * generating thread
+     * @param type sitemap type (record or entity)
+     * @param storage location where sitemap files are saved
+     */
+    public SitemapGenerator(SitemapType type, SitemapStorage storage) {
+        this(type, storage, null, new SitemapUploader(storage, 0, 0), false);
+    }
+
     /**
      * Setup a new sitemap generator
      * @param type sitemap type (record or entity)
-     * @param objectStorage interface to S3 file storage
+     * @param storage location where sitemap files are saved
+     * @param multipartUploader if not null and enabled, sitemap files are streamed to S3 using multipart uploads (this
+     *                          requires an S3 storage)
+     * @param uploader used for saving finished files, note that the caller is responsible for closing it
+     * @param gzip if true sitemap files are gzip-compressed
      */
-    public SitemapGenerator(SitemapType type, S3ObjectStorageClient objectStorage) {
-        this.objectStorage = objectStorage;
+    public SitemapGenerator(SitemapType type, SitemapStorage storage, S3MultipartUploader multipartUploader,
+                            SitemapUploader uploader, boolean gzip) {
+        this(type, storage, multipartUploader, uploader, gzip, SitemapMetrics.noop());
+    }
+
+    /**
+     * Setup a new sitemap generator that records metrics
+     * @param type sitemap type (record or entity)
+     * @param storage location where sitemap files are saved
+     * @param multipartUploader if not null and enabled, sitemap files are streamed to S3 using multipart uploads (this
+     *                          requires an S3 storage)
+     * @param uploader used for saving finished files, note that the caller is responsible for closing it
+     * @param gzip if true sitemap files are gzip-compressed
+     * @param metrics where generation metrics are recorded
+     */
+    public SitemapGenerator(SitemapType type, SitemapStorage storage, S3MultipartUploader multipartUploader,
+                            SitemapUploader uploader, boolean gzip, SitemapMetrics metrics) {
+        this.storage = storage;
+        this.multipartUploader = multipartUploader;
+        this.uploader = uploader;
         this.type = type;
+        this.gzip = gzip;
+        this.metrics = metrics;
+        this.progress = new UpdateProgress(type);
     }
 
     /**
@@ -101,6 +216,81 @@ public class SitemapGenerator {
      * @param itemsPerSitemap number of items per sitemap file
      */
     public void init(Deployment desiredDeployment, String websiteBaseUrl, int itemsPerSitemap) {
+        init(desiredDeployment, websiteBaseUrl, itemsPerSitemap, MAX_BYTES_PER_SITEMAP);
+    }
+
+    /**
+     * Save a checkpoint after each sitemap file, so generation can be resumed if it's interrupted.
+     * This should be called before generation is started.
+     */
+    public void enableCheckpoints() {
+        enableCheckpoints(Duration.ZERO);
+    }
+
+    /**
+     * Save a checkpoint after a sitemap file if the previous checkpoint is at least minInterval old, so generation can
+     * be resumed if it's interrupted. Each checkpoint contains all index entries and the manifest so far, so saving one
+     * after every file takes quadratic time for large sitemaps.
+     * This should be called before generation is started.
+     * @param minInterval minimum time between checkpoints, zero to save a checkpoint after each file
+     */
+    public void enableCheckpoints(Duration minInterval) {
+        if (generationStarted) {
+            throw new IllegalStateException("Cannot enable checkpoints. Generation is already started.");
+        }
+        this.checkpointsEnabled = true;
+        this.checkpointIntervalMs = minInterval.toMillis();
+    }
+
+    /**
+     * Report the number of processed items and written files to the provided progress. This should be called before
+     * generation is started.
+     * @param progress progress of the update that this generation is part of
+     */
+    public void setProgress(UpdateProgress progress) {
+        if (generationStarted) {
+            throw new IllegalStateException("Cannot set progress. Generation is already started.");
+        }
+        this.progress = progress;
+    }
+
+    /**
+     * Collect the urls of all items and publish the url changelog when generation is finished. This should be called
+     * before generation is started.
+     * @param changelog used for collecting urls, note that the caller is responsible for closing it
+     */
+    public void setChangelog(UrlChangelog changelog) {
+        if (generationStarted) {
+            throw new IllegalStateException("Cannot set changelog. Generation is already started.");
+        }
+        this.changelog = changelog;
+    }
+
+    /**
+     * Prepares the sitemap generation process.
+     * @param desiredDeployment whether the saved files should be blue or green
+     * @param websiteBaseUrl base url where sitemap files can be retrieved by search engines
+     * @param itemsPerSitemap maximum number of items per sitemap file
+     * @param maxBytesPerSitemap maximum (uncompressed) size of a sitemap file, can't be more than MAX_BYTES_PER_SITEMAP
+     */
+    public void init(Deployment desiredDeployment, String websiteBaseUrl, int itemsPerSitemap, long maxBytesPerSitemap) {
+        init(desiredDeployment, websiteBaseUrl, itemsPerSitemap, maxBytesPerSitemap, null);
+    }
+
+    /**
+     * Prepares the sitemap generation process, optionally continuing an interrupted generation.
+     * @param desiredDeployment whether the saved files should be blue or green
+     * @param websiteBaseUrl base url where sitemap files can be retrieved by search engines
+     * @param itemsPerSitemap maximum number of items per sitemap file
+     * @param maxBytesPerSitemap maximum (uncompressed) size of a sitemap file, can't be more than MAX_BYTES_PER_SITEMAP
+     * @param checkpoint if not null, generation continues after the last file in this checkpoint. Only items after the
+     *                   checkpoint's position should be added.
+     */
+    public void init(Deployment desiredDeployment, String websiteBaseUrl, int itemsPerSitemap, long maxBytesPerSitemap,
+                     SitemapCheckpoint checkpoint) {
+        if (maxBytesPerSitemap <= 0 || maxBytesPerSitemap > MAX_BYTES_PER_SITEMAP) {
+            throw new IllegalArgumentException("Maximum sitemap file size should be between 1 and " + MAX_BYTES_PER_SITEMAP + " bytes");
+        }
         if (generationStarted) {
             throw new IllegalStateException("Cannot start " + type + "sitemap generation. It's already started.");
         }
@@ -109,11 +299,62 @@ public class SitemapGenerator {
         this.deployment = desiredDeployment;
         this.websiteBaseUrl = websiteBaseUrl;
         this.itemsPerSitemap = itemsPerSitemap;
+        this.maxBytesPerSitemap = maxBytesPerSitemap;
+        if (checkpoint != null && !checkpoint.matches(desiredDeployment, gzip, itemsPerSitemap, maxBytesPerSitemap)) {
+            throw new IllegalArgumentException("Checkpoint doesn't match the generation settings");
+        }
         generationStarted = true;
-        nrRecords = 0;
-        nrSitemaps = 0;
+        lastCheckpointTime = System.currentTimeMillis();
+        nrSkippedItems = 0;
+        activeDeployment = (desiredDeployment == Deployment.BLUE ? Deployment.GREEN : Deployment.BLUE);
+        activeManifest = SitemapManifest.load(storage, StorageFileName.getSitemapManifestFileName(type, activeDeployment));
         initSitemapIndex();
+        if (checkpoint == null) {
+            nrRecords = 0;
+            nrSitemaps = 0;
+            nrUnchangedSitemaps = 0;
+            manifest = new SitemapManifest();
+            manifest.setStarted(Instant.now());
+            manifest.setFullGenerationStarted(manifest.getStarted());
+            generationDate = DateFormatUtils.format(new Date(), LASTMOD_FORMAT);
+        } else {
+            LOG.info("Resuming {} sitemap generation after {} items and {} sitemap files (position {})", type,
+                    checkpoint.nrRecords(), checkpoint.nrSitemaps(), checkpoint.position());
+            nrRecords = checkpoint.nrRecords();
+            nrSitemaps = checkpoint.nrSitemaps();
+            nrUnchangedSitemaps = checkpoint.nrUnchangedSitemaps();
+            manifest = checkpoint.manifest();
+            generationDate = checkpoint.generationDate();
+            resumePosition = checkpoint.position();
+            lastPosition = checkpoint.position();
+            for (SitemapCheckpoint.IndexEntry entry : checkpoint.indexEntries()) {
+                addIndexEntry(entry.location(), entry.lastModified());
+            }
+            if (changelog != null) {
+                // the urls of files saved before the interruption are only in the storage
+                for (String manifestKey : manifest.getEntries().keySet()) {
+                    changelog.addFromSitemapFile(StorageFileName.getSitemapFileName(type, deployment,
+                            getFromToText(manifestKey), gzip));
+                }
+            }
+        }
         initSitemapFile();
+        metrics.setCurrentFile(type, this::getCurrentFileItems, this::getCurrentFileFillRatio);
+        progress.startGeneration(nrRecords, nrSitemaps);
+    }
+
+    /**
+     * Note that this is called from the thread that collects metrics, so the value may be slightly outdated
+     */
+    private double getCurrentFileItems() {
+        return (sitemapInProgress ? Math.max(0, nrRecords - from + 1) : 0);
+    }
+
+    private double getCurrentFileFillRatio() {
+        if (!sitemapInProgress) {
+            return 0;
+        }
+        return Math.max(getCurrentFileItems() / itemsPerSitemap, (double) encoder.getBytesWritten() / maxBytesPerSitemap);
     }
 
 
@@ -124,42 +365,217 @@ public class SitemapGenerator {
      * @param dateLastModified last-modified date of the webpage
      */
     public void addItem(String url, String priority, Date dateLastModified) {
+        addItem(null, url, StringUtils.isEmpty(priority) ? null : SitemapEntryEncoder.toBytes(priority), dateLastModified);
+    }
+
+    /**
+     * Add an item/webpage to a sitemap file. This variant accepts pre-encoded values, so adding an item doesn't create
+     * any new objects.
+     * @param urlPrefix UTF-8 encoded first part of the url of the webpage (see SitemapEntryEncoder.toBytes()), can be null
+     * @param url (remaining part of the) url of the webpage
+     * @param priority UTF-8 encoded priority of the webpage, can be null
+     * @param dateLastModified last-modified date of the webpage, can be null
+     */
+    public void addItem(byte[] urlPrefix, String url, byte[] priority, Date dateLastModified) {
+        addItem(urlPrefix, url, priority, dateLastModified, null);
+    }
+
+    /**
+     * Add an item/webpage to a sitemap file, including its position in the data source. The position of the last item
+     * in a sitemap file is saved in the checkpoint, so we know where to continue when generation is resumed.
+     * The url is escaped for use in xml. Items with a url longer than the sitemap protocol allows are skipped.
+     * @param urlPrefix UTF-8 encoded first part of the url of the webpage (see SitemapEntryEncoder.toBytes()), can be null
+     * @param url (remaining part of the) url of the webpage
+     * @param priority UTF-8 encoded priority of the webpage, can be null
+     * @param dateLastModified last-modified date of the webpage, can be null
+     * @param position position of the item in the data source (e.g. its id), can be null
+     */
+    public void addItem(byte[] urlPrefix, String url, byte[] priority, Date dateLastModified, Object position) {
         if (generationFinished) {
             throw new IllegalStateException("Cannot add item; " + type + " sitemap generation is already finished.");
         }
         if (!generationStarted) {
             throw new IllegalStateException("Cannot add item; " + type + " sitemap generation is not started yet.");
         }
-        appendItem(url, priority, dateLastModified);
+        if (!SitemapEntryEncoder.isValidUrlLength(urlPrefix, url)) {
+            LOG.warn("Skipping item {}, url is longer than {} characters", StringUtils.abbreviate(url, 100),
+                    SitemapEntryEncoder.MAX_URL_LENGTH);
+            nrSkippedItems++;
+            return;
+        }
+        // check if this item still fits in the current file, otherwise we start a new one
+        if (nrRecords >= from && !fitsInSitemapFile(urlPrefix, url, priority, dateLastModified)) {
+            LOG.debug("Maximum file size reached after {} items", nrRecords - from + 1);
+            finishSitemapFile();
+        }
+        encoder.encodeItem(urlPrefix, url, priority, dateLastModified);
+        if (dateLastModified != null) {
+            fileLastModified = Math.max(fileLastModified, dateLastModified.getTime());
+        }
+        if (changelog != null) {
+            changelog.add(urlPrefix, url);
+        }
+        nrRecords++;
+        lastPosition = position;
+        progress.setItemsProcessed(nrRecords);
 
         // check if this sitemap is full and we need to create a new one
-        if (nrRecords % itemsPerSitemap == 0) {
+        if (nrRecords - from + 1 >= itemsPerSitemap) {
             finishSitemapFile();
         }
     }
 
+    private boolean fitsInSitemapFile(byte[] urlPrefix, String url, byte[] priority, Date dateLastModified) {
+        long available = maxBytesPerSitemap - encoder.getBytesWritten() - SITEMAP_FILE_CLOSING.length;
+        // calculating the exact length is a bit slower, so we only do that when we get close to the maximum
+        return encoder.getMaxEncodedLength(urlPrefix, url, priority, dateLastModified) <= available
+                || encoder.getEncodedLength(urlPrefix, url, priority, dateLastModified) <= available;
+    }
+
     /**
-     * Write the current sitemap that's in progress as well as wrap up the index file. Note that this doesn't switch
-     * from blue to green (or vice versa) deployment yet
+     * Write the current sitemap that's in progress as well as wrap up the index file and wait until all files are
+     * saved. Note that this doesn't switch from blue to green (or vice versa) deployment yet
+     * @throws SiteMapStorageException when one or more files could not be saved
      */
-    public void finish() {
+    public void finish() throws SiteMapStorageException {
         if (!generationStarted) {
             throw new IllegalStateException("Cannot complete " + type + " sitemap generation. It hasn't started yet.");
         }
         if (generationFinished) {
             throw new IllegalStateException("Cannot complete " + type + " sitemap generation. It was already finished.");
         }
-        finishSitemapFile();
+        generationFinished = true;
+        if (nrRecords >= from || nrSitemaps == 0) {
+            finishSitemapFile();
+        } else {
+            discardSitemapFile();
+        }
+        metrics.clearCurrentFile(type);
         finishSitemapIndex();
+        uploader.save(StorageFileName.getSitemapManifestFileName(type, deployment), TXT_CONTENT_TYPE, manifest.toBytes());
+        uploader.awaitCompletion();
+        if (checkpointsEnabled) {
+            storage.delete(StorageFileName.getSitemapCheckpointFileName(type, deployment));
+        }
+        if (changelog != null) {
+            publishChangelog();
+        }
 
-        LOG.info("Items processed {}, written {} sitemap files and 1 sitemap index file", nrRecords, nrSitemaps);
+        LOG.info("Items processed {}, written {} sitemap files ({} unchanged) and 1 sitemap index file", nrRecords,
+                nrSitemaps, nrUnchangedSitemaps);
+        if (nrSkippedItems > 0) {
+            LOG.warn("Skipped {} items because their url was too long", nrSkippedItems);
+        }
+    }
 
-        generationFinished = true;
+    /**
+     * Finish the current sitemap file (if it contains any items), so the next item is added to a new file
+     */
+    public void completeSitemapFile() {
+        if (!generationStarted || generationFinished) {
+            throw new IllegalStateException("Cannot complete sitemap file; " + type + " sitemap generation is not in progress.");
+        }
+        if (nrRecords >= from) {
+            finishSitemapFile();
+        }
+    }
+
+    /**
+     * Carry over a sitemap file from the active deployment. The file is copied in the storage and added to the index
+     * with its original last-modified date. The file name is adjusted to the number of items generated so far.
+     * If the current sitemap file contains any items, it is finished first.
+     * @param activeFileName the name of the file in the active deployment's manifest (see getActiveManifest())
+     */
+    public void addUnchangedFile(String activeFileName) {
+        completeSitemapFile();
+        SitemapManifest.Entry entry = activeManifest.get(activeFileName);
+        String activeFromToText = getFromToText(activeFileName);
+        if (entry == null || !entry.hasItemInfo() || activeFromToText == null) {
+            throw new IllegalArgumentException("Cannot carry over file " + activeFileName + " from active deployment");
+        }
+        // we don't use the (empty) file that's already in progress
+        discardSitemapFile();
+        this.fileStartTime = System.currentTimeMillis();
+        this.from = nrRecords + 1;
+        nrRecords = nrRecords + entry.itemCount();
+        lastPosition = entry.lastId();
+        String fromToText = getFromToText(nrRecords);
+        String fileName = StorageFileName.getSitemapFileName(type, deployment, fromToText, gzip);
+        nrSitemaps++;
+        nrUnchangedSitemaps++;
+        manifest.put(getManifestKey(fromToText), entry);
+        // the result now depends on items that were generated during an earlier full generation
+        Instant activeFullGeneration = activeManifest.getFullGenerationStarted();
+        if (activeFullGeneration != null && activeFullGeneration.isBefore(manifest.getFullGenerationStarted())) {
+            manifest.setFullGenerationStarted(activeFullGeneration);
+        }
+        String activeFile = StorageFileName.getSitemapFileName(type, activeDeployment, activeFromToText, gzip);
+        uploader.copy(activeFile, fileName, XML_CONTENT_TYPE, getContentEncoding());
+        if (changelog != null) {
+            changelog.addFromSitemapFile(activeFile);
+        }
+        addIndexEntry(PortalUrl.getSitemapUrlEncoded(websiteBaseUrl, type, fromToText, gzip), entry.lastModified());
+        if (checkpointsEnabled) {
+            saveCheckpointIfDue();
+        }
+        metrics.fileWritten(type, true);
+        progress.setItemsProcessed(nrRecords);
+        progress.setFilesWritten(nrSitemaps);
+        LOG.info("Carried over sitemap file {} as {}", activeFileName, fileName);
+        initSitemapFile();
+    }
+
+    /**
+     * @return the manifest of the active deployment, this is empty if there is no active deployment (yet)
+     */
+    public SitemapManifest getActiveManifest() {
+        return activeManifest;
+    }
+
+    /**
+     * Check if all files of the active deployment can be carried over (see addUnchangedFile()). This is only possible
+     * if we know which items are in each file and the files were created with the same compression setting.
+     * @return true if all files of the active deployment can be carried over, otherwise false
+     */
+    public boolean canAddUnchangedFiles() {
+        if (activeManifest.size() == 0 || activeManifest.getStarted() == null) {
+            return false;
+        }
+        for (Map.Entry<String, SitemapManifest.Entry> entry : activeManifest.getEntries().entrySet()) {
+            if (!entry.getValue().hasItemInfo() || getFromToText(entry.getKey()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the position of the last item that was written before generation was interrupted, or null if we didn't
+     * resume an earlier generation (or the position is unknown)
+     */
+    public String getResumePosition() {
+        return resumePosition;
     }
 
     private void initSitemapIndex() {
         LOG.debug("Starting new index...");
         this.sitemapIndex = new StringBuilder().append(XML_HEADER).append(LN).append(SITEMAP_HEADER_OPENING).append(LN);
+        this.indexEntries = new ArrayList<>();
+    }
+
+    private void addIndexEntry(String location, String lastModified) {
+        indexEntries.add(new SitemapCheckpoint.IndexEntry(location, lastModified));
+        sitemapIndex.append(SITEMAP_OPENING).append(LN)
+                .append(LOC_OPENING)
+                .append(location)
+                .append(LOC_CLOSING)
+                .append(LN)
+                .append(LASTMOD_OPENING)
+                .append(lastModified)
+                .append(LASTMOD_CLOSING)
+                .append(LN)
+                .append(SITEMAP_CLOSING)
+                .append(LN);
     }
 
     private void finishSitemapIndex() {
@@ -168,118 +584,256 @@ public class SitemapGenerator {
         String fileName = StorageFileName.getSitemapIndexFileName(type, deployment);
         String fileContents = this.sitemapIndex.toString();
         LOG.debug("Generated contents for sitemap index\n{}", fileContents);
-        if (saveToStorage(fileName, fileContents)) {
-            LOG.info("Created sitemap file {}", fileName);
-        }
+        uploader.save(fileName, XML_CONTENT_TYPE, fileContents.getBytes(StandardCharsets.UTF_8));
+        LOG.info("Created sitemap file {}", fileName);
     }
 
     private void initSitemapFile() {
-        if (sitemap != null) {
+        if (sitemapInProgress) {
             throw new IllegalStateException("Cannot start new sitemap file. Existing one isn't done yet");
         }
         LOG.debug("Starting new sitemap file...");
         this.fileStartTime = System.currentTimeMillis();
+        this.fileLastModified = NO_LAST_MODIFIED;
         this.from = nrRecords + 1;
-        this.sitemap = new StringBuilder().append(XML_HEADER).append(LN).append(URLSET_HEADER).append(LN);
+        OutputStream out;
+        if (isStreaming()) {
+            // we don't know yet how many items will end up in this file, so we assume it will be full. If it's not
+            // (only the last file) we rename the upload when the file is finished, or move the saved file if the
+            // multipart upload was already started under the assumed name
+            String fileName = StorageFileName.getSitemapFileName(type, deployment, getFromToText(from + itemsPerSitemap - 1), gzip);
+            this.sitemapUpload = multipartUploader.openUpload(fileName, XML_CONTENT_TYPE, getContentEncoding());
+            out = sitemapUpload;
+        } else {
+            if (sitemapBuffer == null) {
+                this.sitemapBuffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+            }
+            sitemapBuffer.reset();
+            out = sitemapBuffer;
+        }
+        if (gzip) {
+            try {
+                this.sitemapGzip = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error starting compressed sitemap file", e);
+            }
+            out = sitemapGzip;
+        }
+        encoder.setOutput(out);
+        encoder.write(SITEMAP_FILE_OPENING);
+        sitemapInProgress = true;
+    }
+
+    private boolean isStreaming() {
+        return multipartUploader != null && multipartUploader.isEnabled();
+    }
+
+    private String getContentEncoding() {
+        return gzip ? Constants.GZIP_ENCODING : null;
     }
 
     /**
      * Closes the current sitemap file, saves it to storage and adds the sitemap file to the sitemap index
      */
     private void finishSitemapFile() {
-        if (sitemap == null) {
+        if (!sitemapInProgress) {
             throw new IllegalStateException("No sitemap file to finish!");
         }
 
-        // add fileName to index (filename is location where file is retrievable for search engines)
-        String fromToText = FROM_PARAM + from + TO_PARAM + nrRecords;
-        String sitemapFileName = PortalUrl.getSitemapUrlEncoded(websiteBaseUrl, type, fromToText);
-        LOG.debug("Add sitemap file {} to index", sitemapFileName);
-        sitemapIndex.append(SITEMAP_OPENING).append(LN)
-                .append(LOC_OPENING)
-                .append(sitemapFileName)
-                .append(LOC_CLOSING)
-                .append(LN)
-                // TODO if we can compare a sitemap file with the previous version, we can check if it has changed and include a lastmodified?
-                //.append(generateLastModified(new Date()).toString())
-                .append(SITEMAP_CLOSING)
-                .append(LN);
-
         // write sitemap file, note that the actual filename in storage also contains blue-green information
-        sitemap.append(URLSET_HEADER_CLOSING);
-        String fileName = StorageFileName.getSitemapFileName(type, deployment, fromToText);
-        String fileContents = sitemap.toString();
-        LOG.debug("Generated contents for file {}\n{}", fileName, fileContents);
+        String fromToText = getFromToText(nrRecords);
+        encoder.write(SITEMAP_FILE_CLOSING);
+        long fileItems = nrRecords - from + 1;
+        String fileName = StorageFileName.getSitemapFileName(type, deployment, fromToText, gzip);
         nrSitemaps++;
-        if (saveToStorage(fileName, fileContents)) {
-            LOG.info("Created sitemap file {} in {} ms", fileName, (System.currentTimeMillis() - fileStartTime));
+        // we flush (and compress) on this thread, completing the upload is done by the uploader
+        flushSitemapFile();
+
+        // check if the file is the same as in the active deployment
+        String manifestKey = getManifestKey(fromToText);
+        String contentHash = encoder.getContentHash();
+        SitemapManifest.Entry previous = activeManifest.get(manifestKey);
+        boolean unchanged = previous != null && previous.hash().equals(contentHash);
+        String lastModified = unchanged ? previous.lastModified() : getFileLastModified(previous);
+        manifest.put(manifestKey, new SitemapManifest.Entry(contentHash, lastModified, fileItems,
+                lastPosition == null ? null : lastPosition.toString()));
+
+        if (sitemapUpload != null) {
+            MultipartUploadOutputStream upload = sitemapUpload;
+            if (!upload.getKey().equals(fileName)) {
+                // only possible if no part was uploaded yet, otherwise finishUpload moves the file
+                upload.changeKey(fileName);
+            }
+            uploader.submit(fileName, multipartUploader.getPartSize(), () -> finishUpload(upload, fileName));
+        } else {
+            byte[] fileContents = sitemapBuffer.toByteArray();
+            if (LOG.isDebugEnabled() && !gzip) {
+                LOG.debug("Generated contents for file {}\n{}", fileName, new String(fileContents, StandardCharsets.UTF_8));
+            }
+            if (unchanged) {
+                LOG.debug("File {} is unchanged", fileName);
+                nrUnchangedSitemaps++;
+                String activeFileName = StorageFileName.getSitemapFileName(type, activeDeployment, fromToText, gzip);
+                uploader.copyOrSave(activeFileName, fileName, XML_CONTENT_TYPE, getContentEncoding(), fileContents);
+            } else {
+                uploader.save(fileName, XML_CONTENT_TYPE, getContentEncoding(), fileContents);
+            }
         }
-        sitemap = null;
-        initSitemapFile();
-    }
 
+        // add fileName to index (filename is location where file is retrievable for search engines)
+        String sitemapFileName = PortalUrl.getSitemapUrlEncoded(websiteBaseUrl, type, fromToText, gzip);
+        LOG.debug("Add sitemap file {} to index", sitemapFileName);
+        addIndexEntry(sitemapFileName, lastModified);
+        if (checkpointsEnabled && !generationFinished) {
+            saveCheckpointIfDue();
+        }
+        long duration = System.currentTimeMillis() - fileStartTime;
+        metrics.fileGenerated(type, fileItems, encoder.getBytesWritten(), duration, unchanged);
+        progress.setFilesWritten(nrSitemaps);
+        LOG.info("Created sitemap file {} in {} ms", fileName, duration);
+        sitemapInProgress = false;
+        sitemapUpload = null;
+        sitemapGzip = null;
+        if (!generationFinished) {
+            initSitemapFile();
+        }
+    }
 
-    private void appendItem(String url, String priority, Date dateLastModified) {
-        this.sitemap.append(URL_OPENING).append(LN)
-                .append(LOC_OPENING)
-                .append(url)
-                .append(LOC_CLOSING)
-                .append(LN);
+    /**
+     * Determine the last-modified date of a sitemap file that was changed (or is new). Normally that's the most recent
+     * last-modified date of its items. We use the generation date instead when items don't have a last-modified date,
+     * or when the file changed without any of its items being modified (e.g. because an item was removed or moved to
+     * another file). Otherwise crawlers that visited the file before would think it's unchanged.
+     * @param previous the same file in the active deployment, null if there is no such file
+     */
+    private String getFileLastModified(SitemapManifest.Entry previous) {
+        if (fileLastModified == NO_LAST_MODIFIED) {
+            return generationDate;
+        }
+        if (previous != null) {
+            try {
+                // lastmod dates have no milliseconds, so a date in the same second isn't newer
+                long previousSeconds = OffsetDateTime.parse(previous.lastModified()).toEpochSecond();
+                if (TimeUnit.MILLISECONDS.toSeconds(fileLastModified) <= previousSeconds) {
+                    return generationDate;
+                }
+            } catch (DateTimeParseException e) {
+                LOG.debug("Unable to parse last-modified date {} of active file", previous.lastModified(), e);
+                return generationDate;
+            }
+        }
+        return DateFormatUtils.format(fileLastModified, LASTMOD_FORMAT);
+    }
 
-        if (!StringUtils.isEmpty(priority)) {
-            this.sitemap.append(PRIORITY_OPENING)
-                    .append(priority)
-                    .append(PRIORITY_CLOSING)
-                    .append(LN);
+    /**
+     * The changelog is extra information, so we don't fail the update if it can't be published
+     */
+    private void publishChangelog() {
+        try {
+            changelog.publish(deployment, activeDeployment);
+        } catch (RuntimeException e) {
+            LOG.error("Unable to publish {} url changelog", type, e);
         }
+    }
 
-        if (dateLastModified != null) {
-            this.sitemap.append(LASTMOD_OPENING)
-                    .append(DateFormatUtils.format(dateLastModified, DateFormatUtils.ISO_8601_EXTENDED_DATE_FORMAT.getPattern()))
-                    .append(LASTMOD_CLOSING)
-                    .append(LN);
+    private void saveCheckpointIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheckpointTime >= checkpointIntervalMs) {
+            saveCheckpoint();
+            lastCheckpointTime = now;
         }
+    }
 
-        this.sitemap.append(URL_CLOSING).append(LN);
+    /**
+     * Save the current state, this is only done after all sitemap files so far are saved
+     */
+    private void saveCheckpoint() {
+        SitemapCheckpoint checkpoint = new SitemapCheckpoint(deployment, gzip, itemsPerSitemap, maxBytesPerSitemap,
+                Instant.now(), generationDate, lastPosition == null ? null : lastPosition.toString(), nrRecords,
+                nrSitemaps, nrUnchangedSitemaps, indexEntries, manifest);
+        uploader.saveAfterPrevious(StorageFileName.getSitemapCheckpointFileName(type, deployment), TXT_CONTENT_TYPE,
+                checkpoint.toBytes());
+    }
 
-        nrRecords++;
+    /**
+     * Stop writing the current sitemap file without saving it
+     */
+    private void discardSitemapFile() {
+        encoder.flush();
+        if (sitemapUpload != null) {
+            sitemapUpload.abort();
+        }
+        sitemapInProgress = false;
+        sitemapUpload = null;
+        sitemapGzip = null;
     }
 
-    private boolean saveToStorage(String key, String contents) {
-        boolean result;
+    private String getFromToText(long to) {
+        return FROM_PARAM + from + TO_PARAM + to;
+    }
 
-        LOG.debug("Saving file with key {} and contents {}", key, contents);
-        String eTag = objectStorage.putObject(key, XML_CONTENT_TYPE, contents.getBytes(StandardCharsets.UTF_8));
+    private String getManifestKey(String fromToText) {
+        return type.getFileNameBase() + Constants.XML_EXTENSION + (gzip ? Constants.GZIP_EXTENSION : "") + fromToText;
+    }
 
-        // verify is save was successful
-        int nrSaveAttempts = 1;
-        LOG.debug("Checking if file {} exists...", key);
-        result = checkIfFileExists(key);
-        while ((StringUtils.isEmpty(eTag) || !result) && (nrSaveAttempts < MAX_SAVE_ATTEMPTS)) {
-            long timeout = nrSaveAttempts * RETRY_SAVE_INTERVAL;
-            LOG.warn("Failed to save file {} to storage provider (etag = {}, siteMapCacheFileExists={}). "
-                    + "Waiting {} seconds before trying again...", key, eTag, result, (timeout / MS_PER_SEC));
-            try {
-                Thread.sleep(timeout);
-            } catch (InterruptedException e) {
-                LOG.error("Waiting period to retry saving to storage was interrupted", e);
-                Thread.currentThread().interrupt();
+    /**
+     * @return the from-to part of a manifest key, or null if the key doesn't match our type and compression setting
+     */
+    private String getFromToText(String manifestKey) {
+        String prefix = getManifestKey(FROM_PARAM);
+        return manifestKey.startsWith(prefix) ? manifestKey.substring(prefix.length() - FROM_PARAM.length()) : null;
+    }
+
+    /**
+     * Make sure all data of the current sitemap file is written (and compressed) to its output stream
+     */
+    private void flushSitemapFile() {
+        encoder.flush();
+        try {
+            if (sitemapGzip != null) {
+                sitemapGzip.finish();
             }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing sitemap file", e);
+        }
+    }
 
-            LOG.info("Retry saving the file...");
-            eTag = objectStorage.putObject(key, XML_CONTENT_TYPE, contents.getBytes(StandardCharsets.UTF_8));
-            result = checkIfFileExists(key);
-            nrSaveAttempts++;
+    /**
+     * Completes a streaming upload. Note that we can't retry a failed upload because the data is no longer in memory
+     */
+    private boolean finishUpload(MultipartUploadOutputStream upload, String fileName) {
+        try {
+            upload.close();
+        } catch (IOException e) {
+            LOG.error("Failed to save file {} to storage provider", fileName, e);
+            return false;
         }
-        if (nrSaveAttempts >= MAX_SAVE_ATTEMPTS) {
-            LOG.error("Failed to save file {} to storage provider. Giving up because we retried it {} times.", key, nrSaveAttempts);
+        LOG.debug("Uploaded {} bytes for file {}", upload.getBytesWritten(), fileName);
+        S3Checksum.ETagCheck check = upload.checkETag();
+        if (check == S3Checksum.ETagCheck.MISMATCH
+                || (check == S3Checksum.ETagCheck.UNKNOWN && StringUtils.isEmpty(upload.getETag()))) {
+            LOG.error("Failed to save file {} to storage provider (etag = {})", fileName, upload.getETag());
+            return false;
         }
-
-        return result;
+        String uploadedFileName = upload.getKey();
+        if (uploadedFileName.equals(fileName)) {
+            // only when we can't tell from the etag we need to check if the file was saved
+            return check == S3Checksum.ETagCheck.MATCH || checkIfFileExists(fileName);
+        }
+        // S3 only returns a copy result if the copy was successful, so there's no need to verify that separately
+        LOG.debug("Moving file {} to {}", uploadedFileName, fileName);
+        String eTag = multipartUploader.copyObject(uploadedFileName, fileName);
+        storage.delete(uploadedFileName);
+        if (StringUtils.isEmpty(eTag)) {
+            LOG.error("Failed to move file {} to {}", uploadedFileName, fileName);
+            return false;
+        }
+        return true;
     }
 
+
     private boolean checkIfFileExists(String id) {
-        return objectStorage.isObjectAvailable(id);
+        return storage.exists(id);
     }
 
 }
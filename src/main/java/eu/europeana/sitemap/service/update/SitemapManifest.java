@@ -0,0 +1,224 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.storage.SitemapStorage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the content hash and last-modified date of all sitemap files of one deployment. The manifest is saved
+ * together with the sitemap files, so the next generation can check which files have changed.
+ *
+ * The manifest is stored as a plain text file with one line per sitemap file: the file name (without deployment
+ * information, e.g. sitemap-record.xml?from=1&to=45000), the content hash and the last-modified date, separated by tabs.
+ * If known, the number of items in the file and the id of the last item are added as well. Together with the date when
+ * generation started, this allows the next generation to only regenerate files that contain changed items (see
+ * SitemapGenerator.addUnchangedFile()).
+ */
+public class SitemapManifest {
+
+    private static final Logger LOG = LogManager.getLogger(SitemapManifest.class);
+
+    private static final char SEPARATOR = '\t';
+    private static final char LN = '\n';
+
+    private static final String STARTED = "started";
+    private static final String FULL_GENERATION_STARTED = "fullGenerationStarted";
+
+    /**
+     * Content hash and last-modified date of one sitemap file
+     * @param hash content hash of the (uncompressed) file
+     * @param lastModified date when the file contents last changed (W3C datetime format)
+     * @param itemCount number of items in the file, 0 if unknown
+     * @param lastId id of the last item in the file, null if unknown
+     */
+    public record Entry(String hash, String lastModified, long itemCount, String lastId) {
+
+        /**
+         * Create an entry without item information
+         * @param hash content hash of the (uncompressed) file
+         * @param lastModified date when the file contents last changed (W3C datetime format)
+         */
+        public Entry(String hash, String lastModified) {
+            this(hash, lastModified, 0, null);
+        }
+
+        /**
+         * @return true if we know which items are in this file
+         */
+        public boolean hasItemInfo() {
+            return itemCount > 0 && lastId != null;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private Instant started;
+    private Instant fullGenerationStarted;
+
+    /**
+     * Load a manifest from storage
+     * @param storage location where the manifest is saved
+     * @param fileName name of the manifest file
+     * @return the loaded manifest, or an empty manifest if the file doesn't exist (or couldn't be parsed)
+     */
+    public static SitemapManifest load(SitemapStorage storage, String fileName) {
+        byte[] bytes = storage.getAsBytes(fileName);
+        if (bytes == null) {
+            LOG.info("No manifest file {} found, all sitemap files will be saved", fileName);
+            return new SitemapManifest();
+        }
+        SitemapManifest result = parse(new String(bytes, StandardCharsets.UTF_8), fileName);
+        LOG.info("Loaded manifest file {} with {} entries", fileName, result.entries.size());
+        return result;
+    }
+
+    /**
+     * Parse a manifest
+     * @param contents the manifest in text format (see toText())
+     * @param source name of the file the manifest was read from, for logging purposes
+     * @return the parsed manifest, invalid lines are ignored
+     */
+    public static SitemapManifest parse(String contents, String source) {
+        SitemapManifest result = new SitemapManifest();
+        for (String line : contents.split(String.valueOf(LN))) {
+            String[] fields = line.split(String.valueOf(SEPARATOR));
+            try {
+                if (fields.length == 2 && STARTED.equals(fields[0])) {
+                    result.started = Instant.parse(fields[1]);
+                } else if (fields.length == 2 && FULL_GENERATION_STARTED.equals(fields[0])) {
+                    result.fullGenerationStarted = Instant.parse(fields[1]);
+                } else if (fields.length == 3) {
+                    result.put(fields[0], fields[1], fields[2]);
+                } else if (fields.length == 5) {
+                    result.put(fields[0], new Entry(fields[1], fields[2], Long.parseLong(fields[3]), fields[4]));
+                } else if (!line.isBlank()) {
+                    LOG.warn("Ignoring invalid line '{}' in manifest file {}", line, source);
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                LOG.warn("Ignoring invalid line '{}' in manifest file {}", line, source, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return information about a sitemap file
+     * @param fileName name of the sitemap file (without deployment information)
+     * @return entry, or null if the manifest doesn't contain the file
+     */
+    public Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    /**
+     * Add information about a sitemap file
+     * @param fileName name of the sitemap file (without deployment information)
+     * @param hash content hash of the file
+     * @param lastModified date when the file contents last changed (W3C datetime format)
+     */
+    public void put(String fileName, String hash, String lastModified) {
+        entries.put(fileName, new Entry(hash, lastModified));
+    }
+
+    /**
+     * Add information about a sitemap file
+     * @param fileName name of the sitemap file (without deployment information)
+     * @param entry information about the file
+     */
+    public void put(String fileName, Entry entry) {
+        entries.put(fileName, entry);
+    }
+
+    /**
+     * @return date when the generation of these sitemap files started, null if unknown
+     */
+    public Instant getStarted() {
+        return started;
+    }
+
+    /**
+     * @param started date when the generation of these sitemap files started
+     */
+    public void setStarted(Instant started) {
+        this.started = started;
+    }
+
+    /**
+     * @return date when the last generation that regenerated all sitemap files started, null if unknown
+     */
+    public Instant getFullGenerationStarted() {
+        return fullGenerationStarted;
+    }
+
+    /**
+     * @param fullGenerationStarted date when the last generation that regenerated all sitemap files started
+     */
+    public void setFullGenerationStarted(Instant fullGenerationStarted) {
+        this.fullGenerationStarted = fullGenerationStarted;
+    }
+
+    /**
+     * @return all entries of this manifest (unmodifiable), in the order in which they were added
+     */
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * @return number of sitemap files in this manifest
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return total number of items in all sitemap files, or -1 if that's not known for all files
+     */
+    public long getItemCount() {
+        long result = 0;
+        for (Entry entry : entries.values()) {
+            if (!entry.hasItemInfo()) {
+                return -1;
+            }
+            result += entry.itemCount();
+        }
+        return result;
+    }
+
+    /**
+     * @return the manifest in text format, UTF-8 encoded
+     */
+    public byte[] toBytes() {
+        return toText().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the manifest in text format
+     */
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        if (started != null) {
+            sb.append(STARTED).append(SEPARATOR).append(started).append(LN);
+        }
+        if (fullGenerationStarted != null) {
+            sb.append(FULL_GENERATION_STARTED).append(SEPARATOR).append(fullGenerationStarted).append(LN);
+        }
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            sb.append(entry.getKey()).append(SEPARATOR)
+                    .append(value.hash()).append(SEPARATOR)
+                    .append(value.lastModified());
+            if (value.hasItemInfo()) {
+                sb.append(SEPARATOR).append(value.itemCount()).append(SEPARATOR).append(value.lastId());
+            }
+            sb.append(LN);
+        }
+        return sb.toString();
+    }
+}
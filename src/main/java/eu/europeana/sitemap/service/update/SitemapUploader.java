@@ -0,0 +1,338 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.exceptions.SiteMapStorageException;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.s3.S3Checksum;
+import eu.europeana.sitemap.storage.SitemapStorage;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Saves finished sitemap files to the storage in the background, so generating new files doesn't have to wait
+ * for saving (and possibly retrying) previous files.
+ *
+ * Both the number of files that are saved at the same time and the total number of bytes waiting to be saved are
+ * limited. When the byte limit is reached, submitting a new file blocks until enough earlier files are saved. If the
+ * number of threads is 0, files are saved directly on the calling thread.
+ *
+ * Saved files are verified by comparing the ETag returned by the storage with the MD5 checksum of the contents. Only
+ * when that's not possible (e.g. for encrypted objects) we send an extra request to check if the file exists.
+ *
+ * Call awaitCompletion() to wait for all files to be saved. This will throw an error if one or more files could not
+ * be saved.
+ */
+public class SitemapUploader implements AutoCloseable {
+
+    private static final Logger LOG = LogManager.getLogger(SitemapUploader.class);
+
+    private static final int MAX_SAVE_ATTEMPTS = 3;
+    private static final long RETRY_SAVE_INTERVAL = 5000;
+    private static final int MS_PER_SEC = 1000;
+
+    private final SitemapStorage storage;
+    private final SitemapMetrics metrics;
+    private final ExecutorService executor; // null if we save files on the calling thread
+    private final int maxBytesInFlight;
+    private final Semaphore bytesInFlight;
+
+    private final List<Future<?>> pendingSaves = new ArrayList<>();
+    private final Queue<String> failedFiles = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Setup a new uploader
+     * @param storage location where files are saved
+     * @param threads number of files that can be saved at the same time, if 0 then files are saved on the calling thread
+     * @param maxBytesInFlight maximum number of bytes that can be waiting to be saved
+     */
+    public SitemapUploader(SitemapStorage storage, int threads, int maxBytesInFlight) {
+        this(storage, threads, maxBytesInFlight, SitemapMetrics.noop());
+    }
+
+    /**
+     * Setup a new uploader that records the duration of saves, retries and failed saves
+     * @param storage location where files are saved
+     * @param threads number of files that can be saved at the same time, if 0 then files are saved on the calling thread
+     * @param maxBytesInFlight maximum number of bytes that can be waiting to be saved
+     * @param metrics where save metrics are recorded
+     */
+    public SitemapUploader(SitemapStorage storage, int threads, int maxBytesInFlight, SitemapMetrics metrics) {
+        this.storage = storage;
+        this.metrics = metrics;
+        this.maxBytesInFlight = maxBytesInFlight;
+        if (threads > 0) {
+            AtomicInteger threadNr = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "sitemap-upload-" + threadNr.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.bytesInFlight = new Semaphore(maxBytesInFlight);
+            LOG.info("Saving files using {} threads with max {} MB waiting to be saved", threads, maxBytesInFlight / 1024 / 1024);
+        } else {
+            this.executor = null;
+            this.bytesInFlight = null;
+        }
+    }
+
+    /**
+     * Save a file to the storage. If saving fails we retry it a few times.
+     * @param key the name of the file
+     * @param contentType the content-type of the file
+     * @param contents the contents of the file, the array should not be modified after calling this method
+     */
+    public void save(String key, String contentType, byte[] contents) {
+        save(key, contentType, null, contents);
+    }
+
+    /**
+     * Save a file to the storage. If saving fails we retry it a few times.
+     * @param key the name of the file
+     * @param contentType the content-type of the file
+     * @param contentEncoding the content-encoding of the file (e.g. gzip), can be null
+     * @param contents the contents of the file, the array should not be modified after calling this method
+     */
+    public void save(String key, String contentType, String contentEncoding, byte[] contents) {
+        submit(key, contents.length, () -> saveToStorage(key, contentType, contentEncoding, contents));
+    }
+
+    /**
+     * Save a file by making a (server-side) copy of an identical file that's already in the storage, so we
+     * don't have to upload the contents. If copying fails or isn't supported, the provided contents are saved instead.
+     * @param sourceKey the name of the identical file
+     * @param key the name of the file
+     * @param contentType the content-type of the file
+     * @param contentEncoding the content-encoding of the file (e.g. gzip), can be null
+     * @param contents the contents of the file, the array should not be modified after calling this method
+     */
+    public void copyOrSave(String sourceKey, String key, String contentType, String contentEncoding, byte[] contents) {
+        submit(key, contents.length, () ->
+                copyInStorage(sourceKey, key, S3Checksum.toETag(S3Checksum.md5(contents, 0, contents.length)))
+                || saveToStorage(key, contentType, contentEncoding, contents));
+    }
+
+    /**
+     * Save a file by making a (server-side) copy of a file that's already in the storage. If copying fails or isn't
+     * supported, the contents of the source file are read and saved instead.
+     * @param sourceKey the name of the file to copy
+     * @param key the name of the file
+     * @param contentType the content-type of the file
+     * @param contentEncoding the content-encoding of the file (e.g. gzip), can be null
+     */
+    public void copy(String sourceKey, String key, String contentType, String contentEncoding) {
+        submit(key, 0, () -> {
+            if (copyInStorage(sourceKey, key, null)) {
+                return true;
+            }
+            byte[] contents = storage.getAsBytes(sourceKey);
+            if (contents == null) {
+                LOG.error("Cannot copy file {} to {}, source file doesn't exist", sourceKey, key);
+                return false;
+            }
+            return saveToStorage(key, contentType, contentEncoding, contents);
+        });
+    }
+
+    /**
+     * Save a file, but only after all files that were submitted before are saved successfully. This is used for files
+     * that refer to previous files (e.g. a checkpoint). If one of the previous files can't be saved, this file isn't
+     * saved either.
+     * @param key the name of the file
+     * @param contentType the content-type of the file
+     * @param contents the contents of the file, the array should not be modified after calling this method
+     */
+    public void saveAfterPrevious(String key, String contentType, byte[] contents) {
+        List<Future<?>> previousSaves = new ArrayList<>(pendingSaves);
+        submit(key, contents.length, () -> awaitSaves(key, previousSaves)
+                && saveToStorage(key, contentType, null, contents));
+    }
+
+    private boolean awaitSaves(String key, List<Future<?>> saves) {
+        try {
+            for (Future<?> save : saves) {
+                save.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            LOG.error("Not saving file {} because a previous file could not be saved", key, e.getCause());
+            return false;
+        }
+        if (!failedFiles.isEmpty()) {
+            LOG.error("Not saving file {} because previous file(s) {} could not be saved", key, failedFiles);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Run a task that saves a file. The task is expected to do its own retries.
+     * @param key the name of the file that is saved by the task
+     * @param size number of bytes kept in memory by the task, until it's done
+     * @param saveTask task that saves the file and returns true if that was successful, otherwise false
+     */
+    public void submit(String key, int size, BooleanSupplier saveTask) {
+        if (!failedFiles.isEmpty()) {
+            throw new IllegalStateException("Failed to save file(s) " + failedFiles + ". Aborting generation");
+        }
+        if (executor == null) {
+            runSaveTask(key, saveTask);
+            return;
+        }
+
+        int permits = Math.min(size, maxBytesInFlight);
+        try {
+            if (!bytesInFlight.tryAcquire(permits)) {
+                LOG.debug("Waiting for previous files to be saved before saving {}...", key);
+                bytesInFlight.acquire(permits);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to save file " + key, e);
+        }
+        pendingSaves.add(executor.submit(() -> {
+            try {
+                runSaveTask(key, saveTask);
+            } finally {
+                bytesInFlight.release(permits);
+            }
+        }));
+    }
+
+    /**
+     * Wait until all submitted files are saved
+     * @throws SiteMapStorageException when one or more files could not be saved
+     */
+    public void awaitCompletion() throws SiteMapStorageException {
+        LOG.debug("Waiting for {} files to be saved...", pendingSaves.size());
+        for (Future<?> pendingSave : pendingSaves) {
+            try {
+                pendingSave.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SiteMapStorageException("Interrupted while waiting for files to be saved", e);
+            } catch (ExecutionException e) {
+                throw new SiteMapStorageException("Error saving file", e.getCause());
+            }
+        }
+        pendingSaves.clear();
+        if (!failedFiles.isEmpty()) {
+            throw new SiteMapStorageException("Failed to save " + failedFiles.size() + " file(s): " + failedFiles);
+        }
+    }
+
+    /**
+     * Stop all threads. Files that are not saved yet are discarded.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runSaveTask(String key, BooleanSupplier saveTask) {
+        boolean saved;
+        try {
+            saved = saveTask.getAsBoolean();
+        } catch (RuntimeException e) {
+            LOG.error("Error saving file {}", key, e);
+            saved = false;
+        }
+        if (!saved) {
+            failedFiles.add(key);
+            metrics.storageSaveFailed();
+        }
+    }
+
+    private boolean saveToStorage(String key, String contentType, String contentEncoding, byte[] contents) {
+        long startTime = System.currentTimeMillis();
+        byte[] md5 = S3Checksum.md5(contents, 0, contents.length);
+        String expectedETag = S3Checksum.toETag(md5);
+
+        int nrSaveAttempts = 0;
+        while (nrSaveAttempts < MAX_SAVE_ATTEMPTS) {
+            nrSaveAttempts++;
+            LOG.debug("Saving file with key {} ({} bytes)", key, contents.length);
+            String eTag = null;
+            long attemptStartTime = System.nanoTime();
+            try {
+                eTag = storage.save(key, contentType, contentEncoding, contents, md5);
+            } catch (RuntimeException e) { // type depends on the storage implementation
+                LOG.warn("Error saving file {} to storage provider", key, e);
+            }
+            long attemptDuration = System.nanoTime() - attemptStartTime;
+
+            // verify if save was successful, we only need an extra request if we can't tell from the etag
+            S3Checksum.ETagCheck check = S3Checksum.check(eTag, expectedETag, storage.hasMd5ETags());
+            boolean saved = check == S3Checksum.ETagCheck.MATCH
+                    || (check == S3Checksum.ETagCheck.UNKNOWN && StringUtils.isNotEmpty(eTag) && checkIfFileExists(key));
+            metrics.storageSave(attemptDuration, saved, nrSaveAttempts > 1);
+            if (saved) {
+                LOG.debug("Saved file {} in {} ms", key, System.currentTimeMillis() - startTime);
+                return true;
+            }
+            if (nrSaveAttempts >= MAX_SAVE_ATTEMPTS) {
+                break;
+            }
+
+            if (check == S3Checksum.ETagCheck.MISMATCH) {
+                // data got corrupted, no need to wait before trying again
+                LOG.warn("Checksum of saved file {} doesn't match (etag = {}, expected {}). Trying again...", key,
+                        eTag, expectedETag);
+                continue;
+            }
+            long timeout = nrSaveAttempts * RETRY_SAVE_INTERVAL;
+            LOG.warn("Failed to save file {} to storage provider (etag = {}). Waiting {} seconds before trying again...",
+                    key, eTag, (timeout / MS_PER_SEC));
+            try {
+                Thread.sleep(timeout);
+            } catch (InterruptedException e) {
+                LOG.error("Waiting period to retry saving to storage was interrupted", e);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            LOG.info("Retry saving the file...");
+        }
+        LOG.error("Failed to save file {} to storage provider. Giving up because we retried it {} times.", key, nrSaveAttempts);
+        return false;
+    }
+
+    private boolean copyInStorage(String sourceKey, String key, String expectedETag) {
+        try {
+            LOG.debug("Copying file {} to {}", sourceKey, key);
+            String eTag = storage.copy(sourceKey, key);
+            if (expectedETag == null && StringUtils.isNotEmpty(eTag)) {
+                // nothing to compare with, we trust the copy if the storage returns an etag
+                return true;
+            }
+            S3Checksum.ETagCheck check = S3Checksum.check(eTag, expectedETag, storage.hasMd5ETags());
+            if (check == S3Checksum.ETagCheck.MATCH
+                    || (check == S3Checksum.ETagCheck.UNKNOWN && StringUtils.isNotEmpty(eTag) && checkIfFileExists(key))) {
+                return true;
+            }
+            LOG.warn("Failed to copy file {} to {} (etag = {}, expected {}). Saving it instead...", sourceKey, key,
+                    eTag, expectedETag);
+        } catch (RuntimeException e) { // type depends on the storage implementation
+            LOG.warn("Failed to copy file {} to {}. Saving it instead...", sourceKey, key, e);
+        }
+        return false;
+    }
+
+    private boolean checkIfFileExists(String id) {
+        return storage.exists(id);
+    }
+}
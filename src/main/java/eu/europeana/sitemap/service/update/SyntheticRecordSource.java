@@ -0,0 +1,220 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.mongo.RecordProjection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates records instead of reading them from Mongo, so a full update can be tested (e.g. for throughput and memory
+ * usage) at production scale without access to the production database.
+ *
+ * Records are generated from a seed, so with the same seed and number of records the output is always the same. Each
+ * record is derived from its position only, so any id range can be generated without generating the records before it.
+ * The records look roughly like production data:
+ * <ul>
+ *     <li>records are grouped into datasets, with about ids like /2048128/BibliographicResource_3000118436216</li>
+ *     <li>content tiers 0 to 4 and metadata tiers 0, A, B and C, distributed as in production</li>
+ *     <li>timestampUpdated between 2015 and 2025, missing for 1 in 50 (very old) records</li>
+ * </ul>
+ */
+public class SyntheticRecordSource implements RecordSource {
+
+    private static final Logger LOG = LogManager.getLogger(SyntheticRecordSource.class);
+
+    /** First 4 bytes of all generated ObjectIds, the remaining 8 bytes contain the record's position */
+    private static final int ID_PREFIX = 0x5a000000;
+    private static final int ID_INDEX_OFFSET = 4;
+    private static final int RECORDS_PER_DATASET = 20_000;
+    private static final int PERCENT = 100;
+    /** Cumulative percentages of content tiers 0 to 4 */
+    private static final int[] CONTENT_TIER_PERCENTAGES = {8, 38, 63, 75, 100};
+    private static final char[] METADATA_TIERS = {'0', 'A', 'B', 'C'};
+    /** Cumulative percentages of metadata tiers 0, A, B and C */
+    private static final int[] METADATA_TIER_PERCENTAGES = {5, 45, 80, 100};
+    private static final int NO_TIMESTAMP_RATE = 50;
+    private static final long FIRST_UPDATE = ZonedDateTime.of(2015, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+    private static final long LAST_UPDATE = ZonedDateTime.of(2025, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+    private static final int RATE_CHECK_INTERVAL = 1000;
+
+    private final long nrRecords;
+    private final long seed;
+    private final int recordsPerSecond;
+
+    /**
+     * Create a new synthetic record source
+     * @param nrRecords total number of records
+     * @param seed seed for generating records
+     * @param recordsPerSecond maximum number of records a cursor returns per second, to simulate a slow database.
+     *                         If 0 records are returned as fast as possible
+     */
+    public SyntheticRecordSource(long nrRecords, long seed, int recordsPerSecond) {
+        this.nrRecords = nrRecords;
+        this.seed = seed;
+        this.recordsPerSecond = recordsPerSecond;
+        LOG.info("Using {} synthetic records (seed {}, max {} records per second)", nrRecords, seed,
+                recordsPerSecond > 0 ? recordsPerSecond : "unlimited");
+    }
+
+    @Override
+    public long estimateNrRecords() {
+        return nrRecords;
+    }
+
+    @Override
+    public RecordCursor read(Object after, Object upTo) {
+        long from = (after == null ? 0 : getIndex(after) + 1);
+        long to = (upTo == null ? nrRecords : Math.min(nrRecords, getIndex(upTo) + 1));
+        return new SyntheticCursor(from, to);
+    }
+
+    @Override
+    public List<Object> sampleIds(int size) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<Object> result = new ArrayList<>(size);
+        for (int i = 0; i < size && nrRecords > 0; i++) {
+            result.add(getId(random.nextLong(nrRecords)));
+        }
+        return result;
+    }
+
+    @Override
+    public TreeSet<String> getChangedIds(Instant since, int max) {
+        TreeSet<String> result = new TreeSet<>();
+        long sinceMillis = since.toEpochMilli();
+        for (long index = 0; index < nrRecords; index++) {
+            long timestampUpdated = getTimestampUpdated(index);
+            if (timestampUpdated != RecordProjection.NO_TIMESTAMP && timestampUpdated >= sinceMillis) {
+                if (result.size() >= max) {
+                    return null;
+                }
+                result.add(getId(index).toString());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Object toId(String id) {
+        return (id == null ? null : new ObjectId(id));
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+
+    /**
+     * @param index position of a record
+     * @return the generated record at that position
+     */
+    RecordProjection getRecord(long index) {
+        long hash = mix(seed + index);
+        int contentTier = pick(CONTENT_TIER_PERCENTAGES, hash);
+        char metadataTier = METADATA_TIERS[pick(METADATA_TIER_PERCENTAGES, hash >>> 16)];
+        return new RecordProjection(getId(index), getAbout(index, hash), contentTier, metadataTier,
+                getTimestampUpdated(index));
+    }
+
+    private String getAbout(long index, long hash) {
+        long datasetHash = mix(seed ^ (index / RECORDS_PER_DATASET));
+        String dataset = String.valueOf(2_000_000 + Math.floorMod(datasetHash, 8_000_000));
+        long localHash = mix(hash);
+        // records in the same dataset usually have the same kind of local id
+        return switch (Math.floorMod(datasetHash >>> 32, 3)) {
+            case 0 -> "/" + dataset + "/BibliographicResource_" + (3_000_000_000_000L + Math.floorMod(localHash, 1_000_000_000_000L));
+            case 1 -> "/" + dataset + "/item_" + Long.toString(localHash >>> 8, Character.MAX_RADIX);
+            default -> "/" + dataset + "/" + Math.floorMod(localHash, 10_000_000L);
+        };
+    }
+
+    private long getTimestampUpdated(long index) {
+        long hash = mix(mix(seed + index));
+        if (Math.floorMod(hash, NO_TIMESTAMP_RATE) == 0) {
+            return RecordProjection.NO_TIMESTAMP;
+        }
+        return FIRST_UPDATE + Math.floorMod(hash >>> 8, LAST_UPDATE - FIRST_UPDATE);
+    }
+
+    private static int pick(int[] cumulativePercentages, long hash) {
+        int percentage = Math.floorMod(hash & 0xFFFF, PERCENT);
+        for (int i = 0; i < cumulativePercentages.length; i++) {
+            if (percentage < cumulativePercentages[i]) {
+                return i;
+            }
+        }
+        return cumulativePercentages.length - 1;
+    }
+
+    /**
+     * SplitMix64 finalizer, turns a (sequential) number into a well-distributed hash
+     */
+    private static long mix(long value) {
+        long z = value * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    static ObjectId getId(long index) {
+        return new ObjectId(ByteBuffer.allocate(12).putInt(ID_PREFIX).putLong(index).array());
+    }
+
+    static long getIndex(Object id) {
+        ObjectId objectId = (id instanceof ObjectId oid ? oid : new ObjectId(id.toString()));
+        return ByteBuffer.wrap(objectId.toByteArray()).getLong(ID_INDEX_OFFSET);
+    }
+
+    /**
+     * Returns the records in a range of positions, optionally limited to a maximum rate
+     */
+    private final class SyntheticCursor implements RecordCursor {
+        private final long start;
+        private final long end;
+        private final long startNanos = System.nanoTime();
+        private long next;
+
+        private SyntheticCursor(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.next = start;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < end;
+        }
+
+        @Override
+        public RecordProjection next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (recordsPerSecond > 0 && (next - start) % RATE_CHECK_INTERVAL == 0) {
+                long expectedNanos = TimeUnit.SECONDS.toNanos(next - start) / recordsPerSecond;
+                long aheadNanos = expectedNanos - (System.nanoTime() - startNanos);
+                if (aheadNanos > 0) {
+                    LockSupport.parkNanos(aheadNanos);
+                }
+            }
+            return getRecord(next++);
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+    }
+}
@@ -2,14 +2,16 @@ package eu.europeana.sitemap.service.update;
 
 
 import com.jayway.jsonpath.JsonPath;
-import eu.europeana.s3.S3ObjectStorageClient;
 import eu.europeana.sitemap.SitemapType;
 import eu.europeana.sitemap.config.PortalUrl;
 import eu.europeana.sitemap.config.SitemapConfiguration;
 import eu.europeana.sitemap.exceptions.EntityQueryException;
 import eu.europeana.sitemap.exceptions.InvalidApiKeyException;
 import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.s3.S3MultipartUploader;
 import eu.europeana.sitemap.service.ActiveDeploymentService;
+import eu.europeana.sitemap.storage.SitemapStorage;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -25,12 +27,23 @@ import org.springframework.stereotype.Service;
 import java.io.IOException;
 import java.io.Serial;
 import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Service for updating the entity sitemap. This class gathers all the relevant entity data to add it to the sitemap
  * The rest of the update process is handled by the underlying abstract service.
  *
+ * Once the first page of entities tells us the total number of entities, we know which pages to request. Several
+ * pages are then requested at the same time (see entity.api.concurrency), over a pool of keep-alive connections.
+ * Pages are still added to the sitemap in page order, so the generated files don't depend on response times.
+ *
  * @author Patrick Ehlert
  * Created on 01-02-2019
  */
@@ -47,23 +60,34 @@ public class UpdateEntityService extends AbstractUpdateService {
 
     private final SitemapConfiguration config;
     private final PortalUrl portalUrl;
+    private final SitemapMetrics metrics;
 
-    private final CloseableHttpClient httpClient = HttpClients.createDefault();
+    private final CloseableHttpClient httpClient;
 
     /**
      * Initialize the service for updating entity sitemaps
      * @param config configuration to use (autowired)
-     * @param objectStorage object storage to use (autowired)
+     * @param storage storage to use (autowired)
+     * @param multipartUploader used for streaming files to the object storage if enabled (autowired)
      * @param deploymentService blue/green deployment service to use (autowired)
      * @param mailService the mail service to use (autowired)
      * @param portalUrl URL to location where Portal website is hosted (autowired)
+     * @param metrics used for recording generation metrics (autowired)
      */
     @Autowired
-    public UpdateEntityService(SitemapConfiguration config, S3ObjectStorageClient objectStorage, ActiveDeploymentService deploymentService,
-                               MailService mailService, PortalUrl portalUrl) {
-        super(SitemapType.ENTITY, objectStorage, deploymentService, mailService, ITEMS_PER_SITEMAP_FILE);
+    public UpdateEntityService(SitemapConfiguration config, SitemapStorage storage,
+                               S3MultipartUploader multipartUploader, ActiveDeploymentService deploymentService,
+                               MailService mailService, PortalUrl portalUrl, SitemapMetrics metrics) {
+        super(SitemapType.ENTITY, config, storage, multipartUploader, deploymentService, mailService, metrics,
+                ITEMS_PER_SITEMAP_FILE);
         this.config = config;
         this.portalUrl = portalUrl;
+        this.metrics = metrics;
+        // by default the client keeps connections alive and requests gzip-compressed responses
+        this.httpClient = HttpClients.custom()
+                .setMaxConnPerRoute(config.getEntityApiConcurrency())
+                .setMaxConnTotal(config.getEntityApiConcurrency())
+                .build();
     }
 
     /**
@@ -71,29 +95,92 @@ public class UpdateEntityService extends AbstractUpdateService {
      * Never call this manually! It is automatically called by the UpdateAbstractService
      */
     protected void generate(SitemapGenerator sitemapGenerator) throws SiteMapException {
-        long pageNr = 1;
-        long retrieved = 0;
-        long totalEntities = -1; // we update this value after first request (and check after each new page retrieval)
+        URI entityApi = config.getEntityApi();
+        String wsKey = config.getEntityApiKey();
+        int concurrency = config.getEntityApiConcurrency();
 
         LOG.info("Retrieving entity data...");
-        while (retrieved < totalEntities || totalEntities < 0) {
-            String entityData = this.getEntityJson(config.getEntityApi(), ENTITY_QUERY, pageNr, config.getEntityApiKey());
-
-            EntityData[] entities = this.parseEntityData(entityData);
-            for (EntityData entity : entities) {
-                LOG.debug("Adding entity {} with type {}", entity.getId(), entity.getType());
-                String url = portalUrl.getEntityUrl("en", entity.getType(), entity.getId());
-                sitemapGenerator.addItem(url, null, null); // there's no priority or lastmodified for entities
+        // we need the total number of entities from the first page to know which pages to request
+        String firstPage = this.getEntityJson(entityApi, ENTITY_QUERY, 1, wsKey);
+        long totalEntities = this.getTotalEntitiesCount(firstPage);
+        getProgress().setEstimatedItems(totalEntities);
+        long retrieved = this.addEntities(sitemapGenerator, firstPage);
+        if (retrieved == 0) {
+            return;
+        }
+
+        AtomicInteger threadNr = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "entity-page-" + threadNr.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<Future<String>> pages = new ArrayDeque<>(concurrency);
+        long nextPageNr = 2;
+        try {
+            while (true) {
+                while (pages.size() < concurrency && (nextPageNr - 1) * ENTITY_QUERY_PAGE_SIZE < totalEntities) {
+                    long pageNr = nextPageNr++;
+                    pages.add(executor.submit(() -> this.getEntityJson(entityApi, ENTITY_QUERY, pageNr, wsKey)));
+                }
+                if (pages.isEmpty()) {
+                    break;
+                }
+                String entityData = getPage(pages.poll());
+                long added = this.addEntities(sitemapGenerator, entityData);
+                retrieved = retrieved + added;
+                long newTotalEntities = this.getTotalEntitiesCount(entityData);
+                if (newTotalEntities != totalEntities) {
+                    LOG.warn("Total number of entities has changed during update! Not all entities may be listed");
+                    totalEntities = newTotalEntities;
+                    getProgress().setEstimatedItems(totalEntities);
+                }
+                if (added == 0) {
+                    // there are fewer entities than expected, so there's no point in requesting more pages
+                    break;
+                }
             }
-            retrieved = retrieved + entities.length;
-            long newTotalEntities = this.getTotalEntitiesCount(entityData);
-            if (totalEntities > 0 && newTotalEntities != totalEntities) {
-                LOG.warn("Total number of entities has changed during update! Not all entities may be listed");
+        } finally {
+            for (Future<String> page : pages) {
+                page.cancel(true);
             }
-            totalEntities = newTotalEntities;
-            pageNr++;
+            executor.shutdownNow();
+        }
+        LOG.info("Retrieved {} entities", retrieved);
+    }
+
+    /**
+     * Add all entities of a page to the sitemap
+     * @return the number of added entities
+     */
+    private long addEntities(SitemapGenerator sitemapGenerator, String entityData) {
+        EntityData[] entities = this.parseEntityData(entityData);
+        for (EntityData entity : entities) {
+            LOG.debug("Adding entity {} with type {}", entity.getId(), entity.getType());
+            String url = portalUrl.getEntityUrl("en", entity.getType(), entity.getId());
+            sitemapGenerator.addItem(url, null, null); // there's no priority or lastmodified for entities
         }
+        return entities.length;
+    }
 
+    /**
+     * Wait until a requested page is retrieved
+     */
+    private static String getPage(Future<String> page) throws SiteMapException {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrieving entity data", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SiteMapException sme) {
+                throw sme;
+            }
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new EntityQueryException("Error retrieving entity data", e.getCause());
+        }
     }
 
     @Override
@@ -115,6 +202,8 @@ public class UpdateEntityService extends AbstractUpdateService {
                 .append("&wskey=")
                 .append(wsKey);
 
+        long startTime = System.nanoTime();
+        boolean success = false;
         try {
             String requestUrl = request.toString();
             try (CloseableHttpResponse response = httpClient.execute(new HttpGet(requestUrl))) {
@@ -136,9 +225,12 @@ public class UpdateEntityService extends AbstractUpdateService {
                     LOG.debug("Response = {}", result);
                     EntityUtils.consume(entity); // make sure entity is consumed fully so connection can be reused
                 }
+                success = true;
             }
         } catch (IOException e) {
             throw new EntityQueryException("Error retrieving entity data", e);
+        } finally {
+            metrics.entityPage(System.nanoTime() - startTime, success);
         }
 
         return result;
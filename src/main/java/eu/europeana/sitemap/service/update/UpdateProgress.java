@@ -0,0 +1,182 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.SitemapType;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the current (or last) update of a sitemap type.
+ *
+ * Progress is written by the updating thread only and read by other threads (e.g. for a status request). To make sure
+ * reading doesn't slow down generation, nothing is locked and counters are updated with lazySet, which doesn't wait
+ * for the new value to become visible to other threads. Reported values can therefore be slightly behind.
+ */
+public class UpdateProgress {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Phases of an update, in the order in which they happen
+     */
+    public enum Phase {
+        /** No update was started yet */
+        IDLE,
+        /** Deleting the files of the inactive deployment */
+        DELETE,
+        /** Generating new sitemap files */
+        GENERATE,
+        /** Saving the last files and the index */
+        FINISH,
+        /** Switching the active deployment */
+        SWITCH,
+        /** Update finished successfully */
+        DONE,
+        /** Update failed */
+        FAILED
+    }
+
+    /**
+     * Status of an update at a certain point in time
+     * @param type the sitemap type that is updated
+     * @param phase current phase of the update
+     * @param started when the update started, null if no update was started yet
+     * @param elapsedSeconds number of seconds since the update started (until it ended)
+     * @param itemsProcessed number of items added to sitemap files so far
+     * @param filesWritten number of sitemap files written so far
+     * @param estimatedItems estimated total number of items, -1 if unknown
+     * @param itemsPerSecond average number of items processed per second during generation
+     * @param etaSeconds estimated number of seconds until generation is done, null if unknown
+     */
+    public record Status(SitemapType type, Phase phase, Instant started, long elapsedSeconds, long itemsProcessed,
+                         long filesWritten, long estimatedItems, double itemsPerSecond, Long etaSeconds) {
+    }
+
+    private final SitemapType type;
+
+    private volatile Phase phase = Phase.IDLE;
+    private volatile long startTime; // epoch ms, for reporting
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private volatile long generateStartNanos;
+    private volatile long generateEndNanos;
+    private volatile long itemsAtGenerateStart; // non-zero when generation is resumed from a checkpoint
+    private volatile long estimatedItems = -1;
+    private final AtomicLong itemsProcessed = new AtomicLong();
+    private final AtomicLong filesWritten = new AtomicLong();
+
+    /**
+     * Create new progress for a sitemap type
+     * @param type the sitemap type
+     */
+    public UpdateProgress(SitemapType type) {
+        this.type = type;
+    }
+
+    /**
+     * Reset all values, because a new update is started
+     */
+    void start() {
+        estimatedItems = -1;
+        itemsProcessed.set(0);
+        filesWritten.set(0);
+        generateStartNanos = 0;
+        generateEndNanos = 0;
+        endNanos = 0;
+        startTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        phase = Phase.DELETE;
+    }
+
+    /**
+     * Start generating files
+     * @param items number of items processed before (when resuming), otherwise 0
+     * @param files number of files written before (when resuming), otherwise 0
+     */
+    void startGeneration(long items, long files) {
+        itemsAtGenerateStart = items;
+        itemsProcessed.set(items);
+        filesWritten.set(files);
+        generateStartNanos = System.nanoTime();
+        phase = Phase.GENERATE;
+    }
+
+    /**
+     * Move to the next phase
+     * @param newPhase the new phase, should be FINISH or SWITCH
+     */
+    void setPhase(Phase newPhase) {
+        if (phase == Phase.GENERATE) {
+            generateEndNanos = System.nanoTime();
+        }
+        phase = newPhase;
+    }
+
+    /**
+     * The update is done
+     * @param success true if the update was successful, otherwise false
+     */
+    void end(boolean success) {
+        long now = System.nanoTime();
+        if (phase == Phase.GENERATE) {
+            generateEndNanos = now;
+        }
+        endNanos = now;
+        phase = (success ? Phase.DONE : Phase.FAILED);
+    }
+
+    /**
+     * @param estimatedItems estimated total number of items that will be processed, -1 if unknown
+     */
+    public void setEstimatedItems(long estimatedItems) {
+        this.estimatedItems = estimatedItems;
+    }
+
+    /**
+     * @param items total number of items processed so far
+     */
+    void setItemsProcessed(long items) {
+        itemsProcessed.lazySet(items);
+    }
+
+    /**
+     * @param files total number of sitemap files written so far
+     */
+    void setFilesWritten(long files) {
+        filesWritten.lazySet(files);
+    }
+
+    /**
+     * @return the current status of the update
+     */
+    public Status getStatus() {
+        return getStatus(System.nanoTime());
+    }
+
+    Status getStatus(long nowNanos) {
+        Phase currentPhase = phase;
+        if (currentPhase == Phase.IDLE) {
+            return new Status(type, currentPhase, null, 0, 0, 0, -1, 0, null);
+        }
+        long end = (endNanos == 0 ? nowNanos : endNanos);
+        long items = itemsProcessed.get();
+        long estimate = estimatedItems;
+
+        double itemsPerSecond = 0;
+        if (generateStartNanos != 0) {
+            long generateEnd = (generateEndNanos == 0 ? nowNanos : generateEndNanos);
+            long generateNanos = generateEnd - generateStartNanos;
+            if (generateNanos > 0) {
+                itemsPerSecond = (items - itemsAtGenerateStart) * NANOS_PER_SECOND / generateNanos;
+            }
+        }
+        Long etaSeconds = null;
+        if (currentPhase == Phase.GENERATE && estimate >= 0 && itemsPerSecond > 0) {
+            etaSeconds = Math.round(Math.max(0, estimate - items) / itemsPerSecond);
+        }
+        return new Status(type, currentPhase, Instant.ofEpochMilli(startTime),
+                TimeUnit.NANOSECONDS.toSeconds(end - startNanos), items, filesWritten.get(), estimate,
+                itemsPerSecond, etaSeconds);
+    }
+}
@@ -1,24 +1,32 @@
 package eu.europeana.sitemap.service.update;
 
 
-import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
-import eu.europeana.s3.S3ObjectStorageClient;
 import eu.europeana.sitemap.Constants;
 import eu.europeana.sitemap.SitemapType;
 import eu.europeana.sitemap.config.PortalUrl;
 import eu.europeana.sitemap.config.SitemapConfiguration;
 import eu.europeana.sitemap.exceptions.SiteMapException;
-import eu.europeana.sitemap.mongo.MongoProvider;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.mongo.RecordProjection;
+import eu.europeana.sitemap.s3.S3MultipartUploader;
 import eu.europeana.sitemap.service.ActiveDeploymentService;
+import eu.europeana.sitemap.storage.SitemapStorage;
 import jakarta.annotation.PreDestroy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * Service for updating the record sitemap. The primary responsibility of this class is gathering record information
@@ -32,25 +40,42 @@ public class UpdateRecordService extends AbstractUpdateService {
 
     private static final Logger LOG = LogManager.getLogger(UpdateRecordService.class);
 
+    // records updated shortly before the previous generation started may not have been included, so we go back a bit further
+    private static final Duration DELTA_MARGIN = Duration.ofHours(1);
+
+    // when reading with multiple threads, each query reads a range of about this many records (which are kept in memory)
+    private static final int RECORDS_PER_RANGE = 10_000;
+    private static final int SAMPLES_PER_RANGE = 4;
+    private static final int MAX_SAMPLES = 100_000;
+
     private final SitemapConfiguration config;
     private final PortalUrl portalUrl;
-    private final MongoProvider mongoProvider;
+    private final RecordSource recordSource;
+    private final SitemapMetrics metrics;
+
+    private RecordTierFilter tierFilter;
 
     /**
      * Initialize the service to update the record sitemap
-     * @param objectStorage the S3 object storage to write files to
+     * @param storage the storage to write files to
+     * @param multipartUploader used for streaming files to the S3 object storage (if enabled)
      * @param deploymentService the deployment service
      * @param mailService the email service
      * @param portalUrl what url is used by Portal (the website)
      * @param config the application's configuration
+     * @param recordSource provides the records
+     * @param metrics used for recording generation metrics
      */
     @Autowired
-    public UpdateRecordService(S3ObjectStorageClient objectStorage, ActiveDeploymentService deploymentService,
-                               MailService mailService, PortalUrl portalUrl, SitemapConfiguration config) {
-        super(SitemapType.RECORD, objectStorage, deploymentService, mailService, Constants.ITEMS_PER_SITEMAP_FILE);
+    public UpdateRecordService(SitemapStorage storage, S3MultipartUploader multipartUploader,
+                               ActiveDeploymentService deploymentService, MailService mailService, PortalUrl portalUrl,
+                               SitemapConfiguration config, RecordSource recordSource, SitemapMetrics metrics) {
+        super(SitemapType.RECORD, config, storage, multipartUploader, deploymentService, mailService, metrics,
+                Constants.ITEMS_PER_SITEMAP_FILE);
         this.config = config;
         this.portalUrl = portalUrl;
-        this.mongoProvider = config.mongoProvider();
+        this.recordSource = recordSource;
+        this.metrics = metrics;
     }
 
     /**
@@ -59,25 +84,202 @@ public class UpdateRecordService extends AbstractUpdateService {
      */
     @Override
     protected void generate(SitemapGenerator sitemapGenerator) throws SiteMapException {
-        MongoCursor<Document> cursor = getRecordData();
-        if (!cursor.hasNext()) {
+        tierFilter = new RecordTierFilter(config.getRecordContentTier(), config.getRecordMetadataTier());
+        recordSource.prepare();
+        getProgress().setEstimatedItems(estimateNrRecords(sitemapGenerator.getActiveManifest()));
+        String resumePosition = sitemapGenerator.getResumePosition();
+        if (resumePosition == null && canGenerateDelta(sitemapGenerator)) {
+            TreeSet<String> changedIds = getChangedRecordIds(sitemapGenerator.getActiveManifest());
+            if (changedIds != null) {
+                generateDelta(sitemapGenerator, changedIds);
+                return;
+            }
+        }
+        long nrRecords;
+        int threads = config.getRecordQueryThreads();
+        if (threads > 1) {
+            Object after = recordSource.toId(resumePosition);
+            try (ParallelRecordReader reader = new ParallelRecordReader(this::readRecords, after,
+                    getSplitPoints(after, threads), threads)) {
+                nrRecords = addRecords(sitemapGenerator, reader);
+            }
+        } else {
+            nrRecords = addRecords(sitemapGenerator, recordSource.toId(resumePosition), null);
+        }
+        if (resumePosition == null && nrRecords == 0) {
             throw new SiteMapException("No record data found!");
         }
+    }
+
+    /**
+     * Estimate the number of records in the sitemap. The number of records in the previous generation is usually the
+     * best estimate. If that's not available we use the (fast) estimate of the record source, which includes records
+     * that are filtered out because of their tiers, so that estimate is too high.
+     * @return estimated number of records, -1 if unknown
+     */
+    private long estimateNrRecords(SitemapManifest activeManifest) {
+        long previousCount = activeManifest.getItemCount();
+        if (previousCount > 0) {
+            return previousCount;
+        }
+        return recordSource.estimateNrRecords();
+    }
+
+    /**
+     * Check if we can do a delta update, i.e. only regenerate files that contain changed records
+     */
+    private boolean canGenerateDelta(SitemapGenerator sitemapGenerator) {
+        if (!config.isDeltaEnabled()) {
+            return false;
+        }
+        SitemapManifest activeManifest = sitemapGenerator.getActiveManifest();
+        if (!sitemapGenerator.canAddUnchangedFiles()) {
+            LOG.info("Regenerating all files because active deployment doesn't have the information required for a delta update");
+            return false;
+        }
+        Instant fullGenerationStarted = activeManifest.getFullGenerationStarted();
+        if (fullGenerationStarted == null || fullGenerationStarted.isBefore(
+                Instant.now().minus(config.getDeltaFullGenerationDays(), ChronoUnit.DAYS))) {
+            LOG.info("Regenerating all files because last full generation is too old (started at {})", fullGenerationStarted);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Only regenerate the files that contain records that were updated since the previous generation started, all other
+     * files are carried over from the active deployment. Each file keeps the same id range as in the active deployment;
+     * new records with an id after the last file end up in the last file (or new files after that).
+     * Note that record ids are compared as strings, which matches the sort order in Mongo for ObjectIds only (see
+     * getChangedRecordIds)
+     */
+    private void generateDelta(SitemapGenerator sitemapGenerator, TreeSet<String> changedIds) throws SiteMapException {
+        SitemapManifest activeManifest = sitemapGenerator.getActiveManifest();
+        LOG.info("Found {} changed records, starting delta update...", changedIds.size());
+
+        List<Map.Entry<String, SitemapManifest.Entry>> activeFiles = new ArrayList<>(activeManifest.getEntries().entrySet());
+        String previousLastId = null;
+        int nrRegenerated = 0;
+        for (int i = 0; i < activeFiles.size(); i++) {
+            boolean lastFile = (i == activeFiles.size() - 1);
+            String lastId = activeFiles.get(i).getValue().lastId();
+            String firstChanged = (previousLastId == null ? changedIds.ceiling("") : changedIds.higher(previousLastId));
+            if (firstChanged != null && (lastFile || firstChanged.compareTo(lastId) <= 0)) {
+                LOG.debug("Regenerating records after {} up to {}", previousLastId, lastFile ? "end" : lastId);
+                addRecords(sitemapGenerator, recordSource.toId(previousLastId),
+                        lastFile ? null : recordSource.toId(lastId));
+                sitemapGenerator.completeSitemapFile();
+                nrRegenerated++;
+            } else {
+                sitemapGenerator.addUnchangedFile(activeFiles.get(i).getKey());
+            }
+            previousLastId = lastId;
+        }
+        LOG.info("Regenerated {} of {} files", nrRegenerated, activeFiles.size());
+    }
+
+    /**
+     * Returns the ids of all records (regardless of tiers) that were updated since the active deployment was generated.
+     * A delta update compares ids as strings, so all ids (changed ones and the last ids of the active files) have to
+     * be ObjectIds: their hex strings sort the same as in Mongo, other ids (e.g. strings) don't.
+     * @return the changed ids, or null if a delta update isn't possible because too many records changed or there
+     * are ids that aren't ObjectIds
+     */
+    private TreeSet<String> getChangedRecordIds(SitemapManifest activeManifest) {
+        Instant since = activeManifest.getStarted().minus(DELTA_MARGIN);
+        LOG.info("Retrieving ids of records updated since {}...", since);
+        int max = config.getDeltaMaxChangedRecords();
+        TreeSet<String> result = recordSource.getChangedIds(since, max);
+        if (result == null) {
+            LOG.info("Regenerating all files because more than {} records were updated", max);
+            return null;
+        }
+        boolean allObjectIds = result.stream().allMatch(ObjectId::isValid) && activeManifest.getEntries().values()
+                .stream().allMatch(entry -> entry.lastId() != null && ObjectId.isValid(entry.lastId()));
+        if (!allObjectIds) {
+            LOG.warn("Regenerating all files because not all record ids are ObjectIds");
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Split the records after the provided id into ranges of about RECORDS_PER_RANGE records, based on the ids of a
+     * random sample of records
+     */
+    private List<Object> getSplitPoints(Object after, int threads) {
+        long nrRanges = Math.max(threads, recordSource.estimateNrRecords() / RECORDS_PER_RANGE + 1);
+        int sampleSize = (int) Math.min(MAX_SAMPLES, nrRanges * SAMPLES_PER_RANGE);
+        LOG.debug("Sampling {} record ids to split records into {} ranges...", sampleSize, nrRanges);
+        List<Object> sampleIds = recordSource.sampleIds(sampleSize);
+        return ParallelRecordReader.getSplitPoints(sampleIds, after, (int) Math.min(nrRanges, sampleSize));
+    }
+
+    /**
+     * Read all records in an id range into memory, called by the threads of a ParallelRecordReader
+     */
+    private List<RecordProjection> readRecords(Object after, Object upTo) {
+        List<RecordProjection> result = new ArrayList<>();
+        try (RecordSource.RecordCursor cursor = recordSource.read(after, upTo)) {
+            cursor.forEachRemaining(result::add);
+        }
+        return result;
+    }
+
+    /**
+     * Query all records in an id range and add them to the sitemap. If prefetching is enabled, records are read on a
+     * separate thread.
+     * @return the number of added records
+     */
+    private long addRecords(SitemapGenerator sitemapGenerator, Object after, Object upTo) {
+        int prefetchRecords = config.getRecordQueryPrefetchRecords();
+        try (RecordSource.RecordCursor cursor = recordSource.read(after, upTo)) {
+            if (prefetchRecords <= 0) {
+                return addRecords(sitemapGenerator, cursor);
+            }
+            try (PrefetchingRecordReader reader = new PrefetchingRecordReader(cursor, prefetchRecords, metrics)) {
+                return addRecords(sitemapGenerator, reader);
+            }
+        }
+    }
+
+    /**
+     * Add all records from the cursor to the sitemap
+     * @return the number of added records
+     */
+    private long addRecords(SitemapGenerator sitemapGenerator, Iterator<RecordProjection> cursor) {
+        long count = 0;
+        long skipped = 0;
+        // all record urls start with the same prefix, so we only encode that once
+        byte[] recordUrlPrefix = SitemapEntryEncoder.toBytes(portalUrl.getRecordUrlPrefix());
         while (cursor.hasNext()) {
-            Document doc = cursor.next();
-            // gather the required data
-            String about = doc.get(Constants.ABOUT).toString();
-            int contentTier = Integer.parseInt(doc.get(Constants.CONTENT_TIER).toString());
-            String metaDataTier = doc.get(Constants.METADATA_TIER).toString();
-            Object timestampUpdated = doc.get(Constants.LASTUPDATED);
+            RecordProjection record = cursor.next();
+            // with the find strategy, the server only did a rough selection on tiers
+            if (!tierFilter.includes(record)) {
+                skipped++;
+                continue;
+            }
             // very old records do not have a timestampUpdated or timestampCreated field
-            Date dateUpdated = (timestampUpdated == null ? null : (Date) timestampUpdated);
+            Date dateUpdated = (record.hasTimestampUpdated() ? new Date(record.timestampUpdated()) : null);
 
-            String url = portalUrl.getRecordUrl(about);
-            LOG.trace("Adding record {}, contentTier = {}, metadataTier = {} , updated = {}", url, contentTier, metaDataTier, dateUpdated);
-            sitemapGenerator.addItem(url, UpdateRecordServiceUtils.getPriorityForTiers(contentTier), dateUpdated);
+            LOG.trace("Adding record {}, contentTier = {}, metadataTier = {} , updated = {}", record.about(),
+                    record.contentTier(), record.metadataTier(), dateUpdated);
+            sitemapGenerator.addItem(recordUrlPrefix, record.about(),
+                    UpdateRecordServiceUtils.getPriorityBytesForTiers(record.contentTier()), dateUpdated, record.id());
+            count++;
         }
-        cursor.close();
+        if (skipped > 0) {
+            LOG.debug("Skipped {} records with unknown tiers or tiers that should not be included", skipped);
+        }
+        return count;
+    }
+
+    /**
+     * Records are sorted by id, so we can continue after the last record in a checkpoint
+     */
+    @Override
+    protected boolean isResumable() {
+        return true;
     }
 
     @Override
@@ -86,27 +288,12 @@ public class UpdateRecordService extends AbstractUpdateService {
     }
 
     /**
-     * Gets the record data based on contentTier, metadataTier value
-     * Note: Don't pass value of the filter (in property file), we do not want to add
-     */
-    private MongoCursor<Document> getRecordData() {
-        MongoCollection<Document> collection = mongoProvider.getCollection();
-        LOG.info("Starting record query...");
-        MongoCursor<Document> cursor = collection
-                .aggregate(UpdateRecordServiceUtils.getPipeline(config.getRecordContentTier(), config.getRecordMetadataTier()))
-                .batchSize(Constants.ITEMS_PER_SITEMAP_FILE)
-                .cursor();
-        LOG.info("Query finished. Retrieving records...");
-        return cursor;
-    }
-
-    /**
-     * Close all connections to mongo
+     * Close the record source (e.g. the connections to Mongo)
      */
     @PreDestroy
-    public void stopMongoConnections() {
-        if (mongoProvider != null) {
-            mongoProvider.close();
+    public void closeRecordSource() {
+        if (recordSource != null) {
+            recordSource.close();
         }
     }
 
@@ -2,13 +2,18 @@ package eu.europeana.sitemap.service.update;
 
 import com.mongodb.BasicDBObject;
 import eu.europeana.sitemap.Constants;
+import eu.europeana.sitemap.mongo.RecordProjectionCodec;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bson.Document;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Utils class for updating records
@@ -19,6 +24,20 @@ public final class UpdateRecordServiceUtils {
 
     private static final Logger LOG = LogManager.getLogger(UpdateRecordServiceUtils.class);
 
+    /** Query plan stage that reads documents from an index */
+    public static final String INDEX_SCAN = "IXSCAN";
+
+    private static final String WINNING_PLAN = "winningPlan";
+    private static final String STAGE = "stage";
+    private static final String KEY_PATTERN = "keyPattern";
+
+    private static final int MAX_CONTENT_TIER = 4;
+    private static final byte[][] PRIORITY_BYTES = new byte[MAX_CONTENT_TIER + 1][];
+    static {
+        for (int tier = 0; tier <= MAX_CONTENT_TIER; tier++) {
+            PRIORITY_BYTES[tier] = SitemapEntryEncoder.toBytes(getPriorityForTiers(tier));
+        }
+    }
 
     private UpdateRecordServiceUtils() {
         // empty constructor to prevent initialization
@@ -37,6 +56,19 @@ public final class UpdateRecordServiceUtils {
        return String.valueOf(priority);
     }
 
+    /**
+     * Same as getPriorityForTiers(), but returns the priority as UTF-8 encoded bytes. For all valid content tiers
+     * the bytes are only encoded once, so don't modify the returned array!
+     * @param contentTier contentTier to use for calculating priority
+     * @return UTF-8 encoded priority
+     */
+    public static byte[] getPriorityBytesForTiers(int contentTier) {
+        if (contentTier >= 0 && contentTier <= MAX_CONTENT_TIER) {
+            return PRIORITY_BYTES[contentTier];
+        }
+        return SitemapEntryEncoder.toBytes(getPriorityForTiers(contentTier));
+    }
+
     /**
      * Returns the aggregation pipeline : [
      *  {$project: {
@@ -67,9 +99,9 @@ public final class UpdateRecordServiceUtils {
         // ex: contentTierUrl:"http://www.europeana.eu/schemas/epf/contentTier2" , metadataTierUrl:"http://www.europeana.eu/schemas/epf/metadataTierA
         BasicDBObject getTiersIndividually = new BasicDBObject(Constants.PROJECT,
                 getCommonProjections()
-                        .append("contentTierValue",
+                        .append(RecordProjectionCodec.CONTENT_TIER_URL,
                                 new BasicDBObject(Constants.ARRAY_ELEMENT_AT, Arrays.asList(Constants.MONGO_QA_BODY, 0L)))
-                        .append("metadataTierValue",
+                        .append(RecordProjectionCodec.METADATA_TIER_URL,
                                 new BasicDBObject(Constants.ARRAY_ELEMENT_AT, Arrays.asList(Constants.MONGO_QA_BODY, -1L))));
 
         // extracts the value from the urls fetched previously. ex: contentTier:"2" , metadataTier:"A"
@@ -77,10 +109,10 @@ public final class UpdateRecordServiceUtils {
                 getCommonProjections()
                         .append(Constants.CONTENT_TIER,
                                 new BasicDBObject(Constants.ARRAY_ELEMENT_AT, Arrays.asList(
-                                        new BasicDBObject(Constants.SPLIT, Arrays.asList("$contentTierValue", Constants.CONTENT_TIER)), -1L)))
+                                        new BasicDBObject(Constants.SPLIT, Arrays.asList("$" + RecordProjectionCodec.CONTENT_TIER_URL, Constants.CONTENT_TIER)), -1L)))
                         .append(Constants.METADATA_TIER,
                                 new BasicDBObject(Constants.ARRAY_ELEMENT_AT, Arrays.asList(
-                                        new BasicDBObject(Constants.SPLIT, Arrays.asList("$metadataTierValue", Constants.METADATA_TIER)), -1L))));
+                                        new BasicDBObject(Constants.SPLIT, Arrays.asList("$" + RecordProjectionCodec.METADATA_TIER_URL, Constants.METADATA_TIER)), -1L))));
 
         BasicDBObject matchCriteria = getMatchCriteria(contentTier, metadataTier);
         // if content tier and metadataTier are empty, will just return the basic values without filtering
@@ -92,6 +124,60 @@ public final class UpdateRecordServiceUtils {
         return Arrays.asList(getTiersIndividually, getTierValues, matchCriteria);
     }
 
+    /**
+     * Same as getPipeline(contentTier, metadataTier), but records are sorted by id and optionally only records after
+     * the provided id are returned. Both stages come first, so they can use the _id index. The pipeline then starts with
+     * <pre>{$match: {_id: {$gt: after}}}, {$sort: {_id: 1}}</pre>
+     *
+     * @param contentTier contentTier values to be included
+     * @param metadataTier metadataTier values to be included
+     * @param after if not null, only records with an _id greater than this value are included
+     * @return List<BasicDBObject>
+     */
+    public static List<BasicDBObject> getPipeline(String contentTier, String metadataTier, Object after) {
+        return getPipeline(contentTier, metadataTier, after, null);
+    }
+
+    /**
+     * Same as getPipeline(contentTier, metadataTier, after), but only records with an id in the range (after, upTo] are
+     * returned
+     *
+     * @param contentTier contentTier values to be included
+     * @param metadataTier metadataTier values to be included
+     * @param after if not null, only records with an _id greater than this value are included
+     * @param upTo if not null, only records with an _id less than or equal to this value are included
+     * @return List<BasicDBObject>
+     */
+    public static List<BasicDBObject> getPipeline(String contentTier, String metadataTier, Object after, Object upTo) {
+        List<BasicDBObject> result = new ArrayList<>();
+        BasicDBObject idRange = new BasicDBObject();
+        if (after != null) {
+            idRange.append(Constants.GT, after);
+        }
+        if (upTo != null) {
+            idRange.append(Constants.LTE, upTo);
+        }
+        if (!idRange.isEmpty()) {
+            result.add(new BasicDBObject(Constants.MATCH, new BasicDBObject(Constants.ID, idRange)));
+        }
+        result.add(new BasicDBObject(Constants.SORT, new BasicDBObject(Constants.ID, 1)));
+        result.addAll(getPipeline(contentTier, metadataTier));
+        return result;
+    }
+
+    /**
+     * Returns a pipeline that selects the ids of random records: [{$sample: {size: size}}, {$project: {_id: 1}}]
+     * As long as the sample size is less than 5% of the collection, Mongo picks random documents without scanning the
+     * collection.
+     *
+     * @param size number of records to select
+     * @return List<BasicDBObject>
+     */
+    public static List<BasicDBObject> getSampleIdsPipeline(int size) {
+        return Arrays.asList(new BasicDBObject(Constants.SAMPLE, new BasicDBObject("size", size)),
+                new BasicDBObject(Constants.PROJECT, new BasicDBObject(Constants.ID, 1L)));
+    }
+
     /**
      * Returns the basic fields for projection
      * @return BasicDBObject from Mongo
@@ -133,4 +219,97 @@ public final class UpdateRecordServiceUtils {
         }
         return new BasicDBObject();
     }
+
+    /**
+     * Returns the names of all stages in the winning plan(s) of an explain result, for example [FETCH, IXSCAN].
+     * The location of the winning plan depends on the type of query and Mongo version (e.g. for aggregations it can be
+     * under stages.$cursor.queryPlanner), so we look for winningPlan fields anywhere in the explain result.
+     * @param explain the result of an explain command
+     * @return set of stage names, empty if no winning plan was found
+     */
+    public static Set<String> getWinningPlanStages(Document explain) {
+        Set<String> result = new LinkedHashSet<>();
+        collectStages(explain, false, result);
+        return result;
+    }
+
+    private static void collectStages(Object value, boolean inWinningPlan, Set<String> result) {
+        if (value instanceof Map<?, ?> map) {
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (inWinningPlan && STAGE.equals(entry.getKey()) && entry.getValue() instanceof String stage) {
+                    result.add(stage);
+                } else {
+                    collectStages(entry.getValue(), inWinningPlan || WINNING_PLAN.equals(entry.getKey()), result);
+                }
+            }
+        } else if (value instanceof List<?> list) {
+            for (Object item : list) {
+                collectStages(item, inWinningPlan, result);
+            }
+        }
+    }
+
+    /**
+     * Check if the winning plan of an explain result reads documents using the _id index, so documents are returned
+     * in _id order without sorting them in memory first.
+     * @param explain the result of an explain command
+     * @return true if the winning plan contains an index scan on _id only, otherwise false
+     */
+    public static boolean usesIdIndex(Document explain) {
+        return findIdIndexScan(explain, false);
+    }
+
+    private static boolean findIdIndexScan(Object value, boolean inWinningPlan) {
+        if (value instanceof Map<?, ?> map) {
+            if (inWinningPlan && INDEX_SCAN.equals(map.get(STAGE)) && map.get(KEY_PATTERN) instanceof Map<?, ?> keys
+                    && keys.size() == 1 && keys.containsKey(Constants.ID)) {
+                return true;
+            }
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (findIdIndexScan(entry.getValue(), inWinningPlan || WINNING_PLAN.equals(entry.getKey()))) {
+                    return true;
+                }
+            }
+        } else if (value instanceof List<?> list) {
+            for (Object item : list) {
+                if (findIdIndexScan(item, inWinningPlan)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first numeric value of a field anywhere in an explain result, e.g. totalDocsExamined or nReturned of
+     * the executionStats
+     * @param explain the result of an explain command (with executionStats verbosity)
+     * @param fieldName name of the field to look for
+     * @return the value of the field, or -1 if it wasn't found
+     */
+    public static long getExplainCount(Document explain, String fieldName) {
+        return findCount(explain, fieldName);
+    }
+
+    private static long findCount(Object value, String fieldName) {
+        if (value instanceof Map<?, ?> map) {
+            if (map.get(fieldName) instanceof Number number) {
+                return number.longValue();
+            }
+            for (Object item : map.values()) {
+                long result = findCount(item, fieldName);
+                if (result >= 0) {
+                    return result;
+                }
+            }
+        } else if (value instanceof List<?> list) {
+            for (Object item : list) {
+                long result = findCount(item, fieldName);
+                if (result >= 0) {
+                    return result;
+                }
+            }
+        }
+        return -1;
+    }
 }
@@ -21,4 +21,9 @@ public interface UpdateService {
      */
     public SitemapType getSitemapType();
 
+    /**
+     * @return the progress of the current update, or the result of the last update if none is in progress
+     */
+    public UpdateProgress.Status getUpdateStatus();
+
 }
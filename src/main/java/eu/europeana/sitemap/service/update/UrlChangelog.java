@@ -0,0 +1,256 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.Constants;
+import eu.europeana.sitemap.SitemapType;
+import eu.europeana.sitemap.StorageFileName;
+import eu.europeana.sitemap.service.Deployment;
+import eu.europeana.sitemap.storage.SitemapStorage;
+import org.apache.commons.text.StringEscapeUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps track of all urls in a new deployment, so we can publish which urls were added and removed compared to the
+ * previous deployment. This way consumers don't have to download and compare all sitemap files.
+ *
+ * During generation all urls are collected in an ExternalUrlSorter, so memory usage stays bounded. When generation is
+ * finished, the sorted urls are merged with the sorted url list of the previous (active) deployment. This results in
+ * 3 gzip-compressed text files with one url per line, which are saved to the storage:
+ * <ul>
+ *     <li>the sorted list of all urls in the new deployment, used for the changelog of the next deployment</li>
+ *     <li>the urls that are in the new deployment, but not in the previous one</li>
+ *     <li>the urls that were in the previous deployment, but not in the new one</li>
+ * </ul>
+ * If the previous deployment has no url list, only the url list is saved.
+ *
+ * Urls of sitemap files that are not generated by us (files carried over from the active deployment, or files
+ * generated before generation was interrupted) are read back from the storage.
+ */
+public class UrlChangelog implements AutoCloseable {
+
+    private static final Logger LOG = LogManager.getLogger(UrlChangelog.class);
+
+    private static final String TXT_CONTENT_TYPE = "text/plain";
+    private static final String LOC_OPENING = "<loc>";
+    private static final String LOC_CLOSING = "</loc>";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Number of urls in the new deployment and the number of added and removed urls
+     * @param nrUrls number of (unique) urls in the new deployment
+     * @param nrAdded number of urls not in the previous deployment, -1 if there's no url list of the previous deployment
+     * @param nrRemoved number of urls no longer in the new deployment, -1 if there's no url list of the previous
+     *                  deployment
+     */
+    public record Result(long nrUrls, long nrAdded, long nrRemoved) {
+    }
+
+    private final SitemapStorage storage;
+    private final SitemapType type;
+    private final Path tempDirectory;
+    private final ExternalUrlSorter sorter;
+    private byte[] lastUrlPrefix;
+    private String lastUrlPrefixText;
+    private boolean complete = true;
+
+    /**
+     * Start collecting urls of a new deployment
+     * @param storage storage where sitemap files and changelog files are saved
+     * @param type sitemap type (record or entity)
+     * @param tempDirectory directory where temporary files are written
+     * @param maxUrlsInMemory maximum number of urls kept in memory, more urls are written to temporary files
+     */
+    public UrlChangelog(SitemapStorage storage, SitemapType type, Path tempDirectory, int maxUrlsInMemory) {
+        this.storage = storage;
+        this.type = type;
+        this.tempDirectory = tempDirectory;
+        this.sorter = new ExternalUrlSorter(tempDirectory, maxUrlsInMemory);
+    }
+
+    /**
+     * Add the url of an item in the new deployment
+     * @param urlPrefix UTF-8 encoded first part of the url (see SitemapEntryEncoder.toBytes()), can be null
+     * @param url (remaining part of the) url
+     */
+    public void add(byte[] urlPrefix, String url) {
+        if (urlPrefix == null) {
+            sorter.add(url);
+            return;
+        }
+        // usually all items have the same prefix, so we only decode that once
+        if (urlPrefix != lastUrlPrefix) {
+            lastUrlPrefixText = new String(urlPrefix, StandardCharsets.UTF_8);
+            lastUrlPrefix = urlPrefix;
+        }
+        sorter.add(lastUrlPrefixText.concat(url));
+    }
+
+    /**
+     * Add the urls of a sitemap file that's in the storage
+     * @param fileName name of the sitemap file in the storage
+     */
+    public void addFromSitemapFile(String fileName) {
+        try (InputStream stored = storage.getAsStream(fileName)) {
+            if (stored == null) {
+                LOG.warn("Sitemap file {} not found, unable to publish a complete {} url changelog", fileName, type);
+                complete = false;
+                return;
+            }
+            InputStream in = (StorageFileName.isCompressed(fileName) ? new GZIPInputStream(stored, BUFFER_SIZE) : stored);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+            // SitemapEntryEncoder writes each loc element on a separate line
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(LOC_OPENING) && line.endsWith(LOC_CLOSING)) {
+                    sorter.add(StringEscapeUtils.unescapeXml(
+                            line.substring(LOC_OPENING.length(), line.length() - LOC_CLOSING.length())));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading urls from sitemap file " + fileName, e);
+        }
+    }
+
+    /**
+     * Compare the urls of the new deployment with the url list of the previous deployment and save the url list
+     * and changelog of the new deployment
+     * @param deployment the new deployment
+     * @param previousDeployment the deployment that is currently active
+     * @return number of urls, added urls and removed urls; null if the changelog was not published because we don't
+     * have all urls of the new deployment
+     */
+    public Result publish(Deployment deployment, Deployment previousDeployment) {
+        String urlListFileName = StorageFileName.getSitemapUrlListFileName(type, deployment);
+        String addedFileName = StorageFileName.getSitemapChangelogFileName(type, deployment, true);
+        String removedFileName = StorageFileName.getSitemapChangelogFileName(type, deployment, false);
+        // files of an interrupted generation may still be there
+        storage.delete(addedFileName);
+        storage.delete(removedFileName);
+        if (!complete) {
+            storage.delete(urlListFileName);
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        Path urlListFile = null;
+        Path addedFile = null;
+        Path removedFile = null;
+        try (InputStream previousUrlList = storage.getAsStream(
+                StorageFileName.getSitemapUrlListFileName(type, previousDeployment))) {
+            urlListFile = Files.createTempFile(tempDirectory, "sitemap-urls-", ".txt.gz");
+            addedFile = Files.createTempFile(tempDirectory, "sitemap-added-", ".txt.gz");
+            removedFile = Files.createTempFile(tempDirectory, "sitemap-removed-", ".txt.gz");
+            Iterator<String> previous = Collections.emptyIterator();
+            if (previousUrlList == null) {
+                LOG.info("No url list of previous {} deployment, only saving url list", type);
+            } else {
+                previous = new ExternalUrlSorter.LineIterator(new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(previousUrlList, BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE));
+            }
+            long[] counts;
+            try (Writer urls = openWriter(urlListFile);
+                 Writer added = openWriter(addedFile);
+                 Writer removed = openWriter(removedFile)) {
+                counts = compare(sorter.sorted(), previous, urls, added, removed);
+            }
+
+            storage.save(urlListFileName, TXT_CONTENT_TYPE, Constants.GZIP_ENCODING, urlListFile);
+            Result result;
+            if (previousUrlList == null) {
+                result = new Result(counts[0], -1, -1);
+            } else {
+                storage.save(addedFileName, TXT_CONTENT_TYPE, Constants.GZIP_ENCODING, addedFile);
+                storage.save(removedFileName, TXT_CONTENT_TYPE, Constants.GZIP_ENCODING, removedFile);
+                result = new Result(counts[0], counts[1], counts[2]);
+            }
+            LOG.info("Published {} url changelog in {} ms: {} urls, {} added, {} removed ({} spill files)", type,
+                    System.currentTimeMillis() - start, result.nrUrls(), result.nrAdded(), result.nrRemoved(),
+                    sorter.getNrSpillFiles());
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error publishing " + type + " url changelog", e);
+        } finally {
+            deleteQuietly(urlListFile);
+            deleteQuietly(addedFile);
+            deleteQuietly(removedFile);
+        }
+    }
+
+    private static Writer openWriter(Path file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file), BUFFER_SIZE),
+                StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Merge two sorted sequences of urls. All current urls are written to the url list, urls that are only in one of
+     * the two sequences are written to added or removed.
+     * @return number of current urls, number of added urls and number of removed urls
+     */
+    static long[] compare(Iterator<String> current, Iterator<String> previous, Writer urls, Writer added,
+                          Writer removed) throws IOException {
+        long nrUrls = 0;
+        long nrAdded = 0;
+        long nrRemoved = 0;
+        String currentUrl = (current.hasNext() ? current.next() : null);
+        String previousUrl = (previous.hasNext() ? previous.next() : null);
+        while (currentUrl != null || previousUrl != null) {
+            int compare = (currentUrl == null ? 1 : (previousUrl == null ? -1 : currentUrl.compareTo(previousUrl)));
+            if (compare <= 0) {
+                writeLine(urls, currentUrl);
+                nrUrls++;
+                if (compare < 0) {
+                    writeLine(added, currentUrl);
+                    nrAdded++;
+                }
+                currentUrl = (current.hasNext() ? current.next() : null);
+            }
+            if (compare >= 0) {
+                if (compare > 0) {
+                    writeLine(removed, previousUrl);
+                    nrRemoved++;
+                }
+                previousUrl = (previous.hasNext() ? previous.next() : null);
+            }
+        }
+        return new long[]{nrUrls, nrAdded, nrRemoved};
+    }
+
+    private static void writeLine(Writer out, String url) throws IOException {
+        out.write(url);
+        out.write('\n');
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warn("Unable to delete temporary file {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * Delete all temporary files
+     */
+    @Override
+    public void close() {
+        sorter.close();
+    }
+}
@@ -0,0 +1,92 @@
+package eu.europeana.sitemap.storage;
+
+import eu.europeana.sitemap.s3.S3Checksum;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps all files in memory. This is meant for testing and benchmarking, all files are lost when the application stops.
+ */
+public class InMemorySitemapStorage implements SitemapStorage {
+
+    private record StoredFile(byte[] contents, Instant lastModified, String eTag) {
+    }
+
+    private final Map<String, StoredFile> files = new ConcurrentHashMap<>();
+
+    /**
+     * @see SitemapStorage#save(String, String, String, byte[], byte[])
+     * Note that the contents are not copied, so callers shouldn't modify the provided array afterwards.
+     */
+    @Override
+    public String save(String fileName, String contentType, String contentEncoding, byte[] contents, byte[] md5) {
+        String eTag = S3Checksum.toETag(md5 == null ? S3Checksum.md5(contents, 0, contents.length) : md5);
+        files.put(fileName, new StoredFile(contents, Instant.now(), eTag));
+        return eTag;
+    }
+
+    /**
+     * @see SitemapStorage#copy(String, String)
+     */
+    @Override
+    public String copy(String sourceFileName, String fileName) {
+        StoredFile source = files.get(sourceFileName);
+        if (source == null) {
+            return null;
+        }
+        files.put(fileName, new StoredFile(source.contents(), Instant.now(), source.eTag()));
+        return source.eTag();
+    }
+
+    /**
+     * @see SitemapStorage#exists(String)
+     */
+    @Override
+    public boolean exists(String fileName) {
+        return files.containsKey(fileName);
+    }
+
+    /**
+     * @see SitemapStorage#getAsStream(String)
+     */
+    @Override
+    public InputStream getAsStream(String fileName) {
+        StoredFile file = files.get(fileName);
+        return (file == null ? null : new ByteArrayInputStream(file.contents()));
+    }
+
+    /**
+     * @see SitemapStorage#getAsBytes(String)
+     */
+    @Override
+    public byte[] getAsBytes(String fileName) {
+        StoredFile file = files.get(fileName);
+        return (file == null ? null : file.contents().clone());
+    }
+
+    /**
+     * @see SitemapStorage#list()
+     */
+    @Override
+    public List<FileInfo> list() {
+        List<FileInfo> result = new ArrayList<>();
+        for (Map.Entry<String, StoredFile> entry : files.entrySet()) {
+            result.add(new FileInfo(entry.getKey(), entry.getValue().lastModified(), entry.getValue().contents().length));
+        }
+        return result;
+    }
+
+    /**
+     * @see SitemapStorage#delete(String)
+     */
+    @Override
+    public void delete(String fileName) {
+        files.remove(fileName);
+    }
+}
@@ -0,0 +1,209 @@
+package eu.europeana.sitemap.storage;
+
+import eu.europeana.sitemap.s3.S3Checksum;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Stores files in a directory on the local file system.
+ *
+ * Files are written to a temporary file first, which is then renamed (atomically if the file system supports it), so
+ * readers never see partially written files. This is important for the active deployment files that are replaced
+ * while the application is running.
+ * Content-type and content-encoding are not stored, these are derived from the file name when files are served.
+ */
+public class LocalSitemapStorage implements SitemapStorage {
+
+    private static final Logger LOG = LogManager.getLogger(LocalSitemapStorage.class);
+
+    private static final String TEMP_FILE_PREFIX = ".";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final Path directory;
+
+    /**
+     * Setup a new local file system storage
+     * @param directory the directory where files are stored, this is created if it doesn't exist
+     * @throws IOException when the directory can't be created
+     */
+    public LocalSitemapStorage(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory.toAbsolutePath().normalize());
+        LOG.info("Storing sitemap files in {}", this.directory);
+    }
+
+    /**
+     * @see SitemapStorage#save(String, String, String, byte[], byte[])
+     */
+    @Override
+    public String save(String fileName, String contentType, String contentEncoding, byte[] contents, byte[] md5) {
+        Path file = resolve(fileName);
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(directory, TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(contents);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            moveIntoPlace(tempFile, file);
+        } catch (IOException e) {
+            deleteQuietly(tempFile);
+            throw new UncheckedIOException("Error saving file " + fileName, e);
+        }
+        return S3Checksum.toETag(md5 == null ? S3Checksum.md5(contents, 0, contents.length) : md5);
+    }
+
+    /**
+     * @see SitemapStorage#save(String, String, String, Path)
+     */
+    @Override
+    public String save(String fileName, String contentType, String contentEncoding, Path contents) {
+        Path file = resolve(fileName);
+        Path tempFile = null;
+        MessageDigest md5 = S3Checksum.newMd5Digest();
+        try {
+            tempFile = Files.createTempFile(directory, TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+            try (InputStream in = new DigestInputStream(Files.newInputStream(contents), md5)) {
+                Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moveIntoPlace(tempFile, file);
+        } catch (IOException e) {
+            deleteQuietly(tempFile);
+            throw new UncheckedIOException("Error saving file " + fileName, e);
+        }
+        return S3Checksum.toETag(md5.digest());
+    }
+
+    private static void moveIntoPlace(Path tempFile, Path file) throws IOException {
+        try {
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            LOG.warn("File system doesn't support atomic moves, replacing file {} non-atomically", file);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warn("Unable to delete temporary file {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * @see SitemapStorage#copy(String, String)
+     */
+    @Override
+    public String copy(String sourceFileName, String fileName) {
+        Path source = resolve(sourceFileName);
+        if (!Files.isRegularFile(source)) {
+            return null;
+        }
+        // streams the file into a temporary file and moves that into place, same as saving a file
+        return save(fileName, null, null, source);
+    }
+
+    /**
+     * @see SitemapStorage#exists(String)
+     */
+    @Override
+    public boolean exists(String fileName) {
+        return Files.isRegularFile(resolve(fileName));
+    }
+
+    /**
+     * Files are streamed, so they are never loaded in memory completely. Note that reading still copies the data
+     * through a (small) buffer on the java heap.
+     * @see SitemapStorage#getAsStream(String)
+     */
+    @Override
+    public InputStream getAsStream(String fileName) {
+        try {
+            return Files.newInputStream(resolve(fileName));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading file " + fileName, e);
+        }
+    }
+
+    /**
+     * @see SitemapStorage#getAsBytes(String)
+     */
+    @Override
+    public byte[] getAsBytes(String fileName) {
+        try {
+            return Files.readAllBytes(resolve(fileName));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading file " + fileName, e);
+        }
+    }
+
+    /**
+     * @see SitemapStorage#list()
+     */
+    @Override
+    public List<FileInfo> list() {
+        List<FileInfo> result = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attributes.isRegularFile() && !name.startsWith(TEMP_FILE_PREFIX)) {
+                    result.add(new FileInfo(name, attributes.lastModifiedTime().toInstant(), attributes.size()));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error listing files in " + directory, e);
+        }
+        return result;
+    }
+
+    /**
+     * @see SitemapStorage#delete(String)
+     */
+    @Override
+    public void delete(String fileName) {
+        try {
+            Files.deleteIfExists(resolve(fileName));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error deleting file " + fileName, e);
+        }
+    }
+
+    /**
+     * Make sure we only access files in our own directory
+     */
+    private Path resolve(String fileName) {
+        if (fileName == null || fileName.isEmpty() || fileName.startsWith(TEMP_FILE_PREFIX)
+                || fileName.indexOf('/') >= 0 || fileName.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("Invalid file name " + fileName);
+        }
+        return directory.resolve(fileName);
+    }
+}
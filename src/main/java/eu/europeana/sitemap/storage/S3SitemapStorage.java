@@ -0,0 +1,169 @@
+package eu.europeana.sitemap.storage;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.s3.S3ObjectStorageClient;
+import eu.europeana.sitemap.s3.MultipartUploadOutputStream;
+import eu.europeana.sitemap.s3.S3Checksum;
+import eu.europeana.sitemap.s3.S3MultipartUploader;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores files in an S3 bucket. Most requests are done with the S3ObjectStorageClient, but files with a content-encoding
+ * are saved (and files are copied) with our own S3 client, because the S3ObjectStorageClient doesn't support that.
+ */
+public class S3SitemapStorage implements SitemapStorage {
+
+    private final S3ObjectStorageClient objectStorage;
+    private final S3MultipartUploader s3Uploader; // can be null
+    private final boolean md5ETags;
+
+    /**
+     * Setup a new S3 storage for a bucket that isn't encrypted, or only with S3 managed keys (SSE-S3)
+     * @param objectStorage interface to S3 file storage
+     * @param s3Uploader used for saving files with a content-encoding and for copying files. If null, this is not
+     *                   supported
+     */
+    public S3SitemapStorage(S3ObjectStorageClient objectStorage, S3MultipartUploader s3Uploader) {
+        this(objectStorage, s3Uploader, true);
+    }
+
+    /**
+     * Setup a new S3 storage
+     * @param objectStorage interface to S3 file storage
+     * @param s3Uploader used for saving files with a content-encoding and for copying files. If null, this is not
+     *                   supported
+     * @param md5ETags false if the bucket encrypts objects with KMS or customer provided keys, so ETags are not MD5
+     *                 checksums and saved files have to be verified with an extra request
+     */
+    public S3SitemapStorage(S3ObjectStorageClient objectStorage, S3MultipartUploader s3Uploader, boolean md5ETags) {
+        this.objectStorage = objectStorage;
+        this.s3Uploader = s3Uploader;
+        this.md5ETags = md5ETags;
+    }
+
+    /**
+     * @see SitemapStorage#save(String, String, String, byte[], byte[])
+     * Files with a content-encoding are sent with a Content-MD5 header, so S3 rejects corrupted data.
+     */
+    @Override
+    public String save(String fileName, String contentType, String contentEncoding, byte[] contents, byte[] md5) {
+        if (contentEncoding == null) {
+            return objectStorage.putObject(fileName, contentType, contents);
+        }
+        if (s3Uploader == null) {
+            throw new IllegalStateException("Saving files with a content-encoding requires an S3MultipartUploader");
+        }
+        byte[] checksum = (md5 == null ? S3Checksum.md5(contents, 0, contents.length) : md5);
+        return s3Uploader.putObject(fileName, contentType, contentEncoding, contents, checksum);
+    }
+
+    /**
+     * @see SitemapStorage#save(String, String, String, Path)
+     * The file is sent as a multipart upload, so only one part is kept in memory.
+     */
+    @Override
+    public String save(String fileName, String contentType, String contentEncoding, Path contents) {
+        if (s3Uploader == null) {
+            return SitemapStorage.super.save(fileName, contentType, contentEncoding, contents);
+        }
+        MultipartUploadOutputStream upload = s3Uploader.openUpload(fileName, contentType, contentEncoding);
+        try {
+            Files.copy(contents, upload);
+            upload.close();
+        } catch (IOException e) {
+            upload.abort();
+            throw new UncheckedIOException("Error saving file " + fileName, e);
+        }
+        if (upload.checkETag() == S3Checksum.ETagCheck.MISMATCH) {
+            throw new IllegalStateException("Error saving file " + fileName + ", checksum doesn't match ETag "
+                    + upload.getETag());
+        }
+        return upload.getETag();
+    }
+
+    /**
+     * @see SitemapStorage#copy(String, String)
+     */
+    @Override
+    public String copy(String sourceFileName, String fileName) {
+        if (s3Uploader == null) {
+            return null;
+        }
+        return s3Uploader.copyObject(sourceFileName, fileName);
+    }
+
+    /**
+     * The S3ObjectStorageClient only returns the ETag of a saved object, so for those requests we rely on the
+     * configuration. Our own S3 client also checks the encryption that S3 reports for each saved or copied object.
+     * @see SitemapStorage#hasMd5ETags()
+     */
+    @Override
+    public boolean hasMd5ETags() {
+        return md5ETags && (s3Uploader == null || s3Uploader.hasMd5ETags());
+    }
+
+    /**
+     * @see SitemapStorage#exists(String)
+     */
+    @Override
+    public boolean exists(String fileName) {
+        return objectStorage.isObjectAvailable(fileName);
+    }
+
+    /**
+     * @see SitemapStorage#getAsStream(String)
+     */
+    @Override
+    public InputStream getAsStream(String fileName) {
+        S3Object file = objectStorage.getObject(fileName);
+        if (file == null) {
+            return null;
+        }
+        return file.inputStream();
+    }
+
+    /**
+     * @see SitemapStorage#getAsBytes(String)
+     */
+    @Override
+    public byte[] getAsBytes(String fileName) {
+        try (InputStream in = getAsStream(fileName)) {
+            return (in == null ? null : in.readAllBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading file " + fileName, e);
+        }
+    }
+
+    /**
+     * @see SitemapStorage#list()
+     */
+    @Override
+    public List<FileInfo> list() {
+        List<FileInfo> result = new ArrayList<>();
+        String continuationToken = null;
+        do {
+            ListObjectsV2Response list = objectStorage.listAll(continuationToken);
+            continuationToken = list.nextContinuationToken();
+            for (software.amazon.awssdk.services.s3.model.S3Object file : list.contents()) {
+                result.add(new FileInfo(file.key(), file.lastModified(), file.size()));
+            }
+        } while (continuationToken != null);
+        return result;
+    }
+
+    /**
+     * @see SitemapStorage#delete(String)
+     */
+    @Override
+    public void delete(String fileName) {
+        objectStorage.deleteObject(fileName);
+    }
+}
@@ -0,0 +1,118 @@
+package eu.europeana.sitemap.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Location where sitemap files (and the active deployment files) are stored. Files are identified by their name only,
+ * there is no directory structure.
+ *
+ * All implementations return the hex-encoded MD5 checksum of the saved contents as ETag when they can (S3 does this
+ * for most objects), so callers can verify that a file was saved correctly.
+ *
+ * Errors are thrown as runtime exceptions, which type depends on the implementation.
+ */
+public interface SitemapStorage {
+
+    /**
+     * Basic information about a stored file
+     * @param name name of the file
+     * @param lastModified date when the file was last saved
+     * @param size size of the file in bytes
+     */
+    record FileInfo(String name, Instant lastModified, long size) {
+    }
+
+    /**
+     * Create a new file or replace an existing one
+     * @param fileName name of the file
+     * @param contentType content-type of the file
+     * @param contents contents of the file
+     * @return ETag of the saved file
+     */
+    default String save(String fileName, String contentType, byte[] contents) {
+        return save(fileName, contentType, null, contents, null);
+    }
+
+    /**
+     * Create a new file or replace an existing one
+     * @param fileName name of the file
+     * @param contentType content-type of the file
+     * @param contentEncoding content-encoding of the file, can be null
+     * @param contents contents of the file
+     * @param md5 MD5 checksum of the contents, can be null. If provided it may be used to verify the data received by
+     *            the storage
+     * @return ETag of the saved file
+     */
+    String save(String fileName, String contentType, String contentEncoding, byte[] contents, byte[] md5);
+
+    /**
+     * Create a new file or replace an existing one with the contents of a local file. Implementations should not load
+     * the entire file in memory, so this can be used for files that are too large for that.
+     * @param fileName name of the file
+     * @param contentType content-type of the file
+     * @param contentEncoding content-encoding of the file, can be null
+     * @param contents local file with the contents
+     * @return ETag of the saved file
+     */
+    default String save(String fileName, String contentType, String contentEncoding, Path contents) {
+        try {
+            return save(fileName, contentType, contentEncoding, Files.readAllBytes(contents), null);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading file " + contents, e);
+        }
+    }
+
+    /**
+     * Copy a file within the storage
+     * @param sourceFileName name of the file to copy
+     * @param fileName name of the copy
+     * @return ETag of the copy, or null if the file couldn't be copied
+     */
+    String copy(String sourceFileName, String fileName);
+
+    /**
+     * @return true if the ETags returned when saving or copying files are MD5 checksums of the contents (see
+     * S3Checksum), false if they can't be used to check if a file was saved correctly
+     */
+    default boolean hasMd5ETags() {
+        return true;
+    }
+
+    /**
+     * @param fileName name of the file
+     * @return true if the file exists, otherwise false
+     */
+    boolean exists(String fileName);
+
+    /**
+     * Retrieve the contents of a file. The caller is responsible for closing the stream.
+     * @param fileName name of the file
+     * @return stream with the contents of the file, or null if the file doesn't exist
+     */
+    InputStream getAsStream(String fileName);
+
+    /**
+     * Retrieve the contents of a (small) file
+     * @param fileName name of the file
+     * @return contents of the file, or null if the file doesn't exist
+     */
+    byte[] getAsBytes(String fileName);
+
+    /**
+     * @return information about all stored files
+     */
+    List<FileInfo> list();
+
+    /**
+     * Delete a file, nothing happens if the file doesn't exist
+     * @param fileName name of the file
+     */
+    void delete(String fileName);
+
+}
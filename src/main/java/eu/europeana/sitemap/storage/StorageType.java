@@ -0,0 +1,31 @@
+package eu.europeana.sitemap.storage;
+
+import java.util.Locale;
+
+/**
+ * Enumeration of supported storage implementations
+ */
+public enum StorageType {
+    /** S3 object storage, see S3SitemapStorage */
+    S3,
+    /** Directory on the local file system, see LocalSitemapStorage */
+    LOCAL,
+    /** In memory, files are lost when the application stops. See InMemorySitemapStorage */
+    MEMORY;
+
+    /**
+     * Initialize a storage type from a string (case-insensitive)
+     * @param name to parse
+     * @return storage type, or null if the name is not a supported storage type
+     */
+    public static StorageType fromString(String name) {
+        if (name != null) {
+            for (StorageType type : values()) {
+                if (type.name().equals(name.trim().toUpperCase(Locale.ROOT))) {
+                    return type;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -22,6 +22,8 @@ import eu.europeana.sitemap.StorageFileName;
 import eu.europeana.sitemap.exceptions.SiteMapNotFoundException;
 import eu.europeana.sitemap.service.ActiveDeploymentService;
 import eu.europeana.sitemap.service.Deployment;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.ResponseEntity;
 
@@ -31,6 +33,8 @@ import org.springframework.http.ResponseEntity;
  */
 public abstract class AbstractSitemapController {
 
+    private static final Logger LOG = LogManager.getLogger(AbstractSitemapController.class);
+
     private final SitemapType sitemapType;
     private final ActiveDeploymentService activeDeployment;
     private final SitemapFileController readController;
@@ -45,29 +49,58 @@ public abstract class AbstractSitemapController {
     /**
      * Return the sitemap index file
      *
+     * @param acceptEncoding value of the Accept-Encoding header of the request, can be null
      * @throws SiteMapNotFoundException if the index file wasn't found
      * @return contents of sitemap index file
      */
-    public ResponseEntity<InputStreamResource> getSitemapIndex() throws SiteMapNotFoundException {
+    public ResponseEntity<InputStreamResource> getSitemapIndex(String acceptEncoding) throws SiteMapNotFoundException {
         Deployment active = activeDeployment.getActiveDeployment(sitemapType);
         String fileName = StorageFileName.getSitemapIndexFileName(sitemapType, active);
-        return readController.fileXml(fileName);
+        return readController.fileXml(fileName, acceptEncoding);
     }
 
     /**
      * Return a sitemap file. Note that the to and from are fixed values, a list of all files with to/from values
      * can be found in the sitemap index file
      *
+     * If the file isn't available in the requested form (compressed or not), we return the other form so urls in
+     * previously generated sitemap index files keep working when compression is switched on or off.
+     *
      * @param from     start index
      * @param to       end index
+     * @param compressed true if the gzip-compressed file (.xml.gz) was requested
+     * @param acceptEncoding value of the Accept-Encoding header of the request, can be null
      * @throws SiteMapNotFoundException if the sitemap file wasn't found
      * @return contents of sitemap file
      */
-    public ResponseEntity<InputStreamResource> getSitemapFile(String from, String to) throws SiteMapNotFoundException {
+    public ResponseEntity<InputStreamResource> getSitemapFile(String from, String to, boolean compressed,
+                                                              String acceptEncoding) throws SiteMapNotFoundException {
         Deployment active = activeDeployment.getActiveDeployment(sitemapType);
         String appendix = "?from=" + from + "&to=" + to;
-        String fileName = StorageFileName.getSitemapFileName(sitemapType, active, appendix);
-        return readController.fileXml(fileName);
+        String fileName = StorageFileName.getSitemapFileName(sitemapType, active, appendix, compressed);
+        try {
+            return readController.fileXml(fileName, acceptEncoding);
+        } catch (SiteMapNotFoundException e) {
+            String otherFileName = StorageFileName.getSitemapFileName(sitemapType, active, appendix, !compressed);
+            LOG.debug("File {} not found, trying {}", fileName, otherFileName);
+            return readController.fileXml(otherFileName, acceptEncoding);
+        }
+    }
+
+    /**
+     * Return the urls that were added to, or removed from the sitemap in the last update, one url per line. The
+     * changelog is only available if that was enabled during the update and the previous update published a url list.
+     *
+     * @param added true to return the added urls, false to return the removed urls
+     * @param acceptEncoding value of the Accept-Encoding header of the request, can be null
+     * @throws SiteMapNotFoundException if there is no changelog for the active deployment
+     * @return list of added or removed urls
+     */
+    public ResponseEntity<InputStreamResource> getChangelog(boolean added, String acceptEncoding)
+            throws SiteMapNotFoundException {
+        Deployment active = activeDeployment.getActiveDeployment(sitemapType);
+        String fileName = StorageFileName.getSitemapChangelogFileName(sitemapType, active, added);
+        return readController.fileTxt(fileName, acceptEncoding);
     }
 
 }
@@ -24,11 +24,14 @@ import eu.europeana.sitemap.exceptions.SiteMapException;
 import eu.europeana.sitemap.exceptions.SiteMapNotFoundException;
 import eu.europeana.sitemap.service.ActiveDeploymentService;
 import eu.europeana.sitemap.service.update.UpdateEntityService;
+import eu.europeana.sitemap.service.update.UpdateProgress;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -66,21 +69,53 @@ public class SitemapEntityController extends AbstractSitemapController {
     }
 
     /**
-     * @see AbstractSitemapController#getSitemapIndex()
+     * @see AbstractSitemapController#getSitemapIndex(String)
      */
     @GetMapping(value = {"index"+ Constants.XML_EXTENSION,
             Constants.SITEMAP_ENTITY_FILENAME_BASE + Constants.SITEMAP_INDEX_SUFFIX + Constants.XML_EXTENSION})
-    public ResponseEntity<InputStreamResource> getEntitySitemapIndex() throws SiteMapNotFoundException {
-        return super.getSitemapIndex();
+    public ResponseEntity<InputStreamResource> getEntitySitemapIndex(@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+            required = false) String acceptEncoding) throws SiteMapNotFoundException {
+        return super.getSitemapIndex(acceptEncoding);
     }
 
     /**
-     * @see AbstractSitemapController#getSitemapFile(String, String)
+     * @see AbstractSitemapController#getSitemapFile(String, String, boolean, String)
      */
     @GetMapping(value = Constants.SITEMAP_ENTITY_FILENAME_BASE + Constants.XML_EXTENSION)
     public ResponseEntity<InputStreamResource> getEntitySitemapFile(@RequestParam(value = "from") String from,
-                                       @RequestParam(value = "to") String to) throws SiteMapNotFoundException {
-        return super.getSitemapFile(from, to);
+                                       @RequestParam(value = "to") String to,
+                                       @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding)
+            throws SiteMapNotFoundException {
+        return super.getSitemapFile(from, to, false, acceptEncoding);
+    }
+
+    /**
+     * @see AbstractSitemapController#getSitemapFile(String, String, boolean, String)
+     */
+    @GetMapping(value = Constants.SITEMAP_ENTITY_FILENAME_BASE + Constants.XML_EXTENSION + Constants.GZIP_EXTENSION)
+    public ResponseEntity<InputStreamResource> getEntitySitemapFileCompressed(@RequestParam(value = "from") String from,
+                                       @RequestParam(value = "to") String to,
+                                       @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding)
+            throws SiteMapNotFoundException {
+        return super.getSitemapFile(from, to, true, acceptEncoding);
+    }
+
+    /**
+     * @see AbstractSitemapController#getChangelog(boolean, String)
+     */
+    @GetMapping(value = "changes-added.txt", produces = MediaType.TEXT_PLAIN_VALUE)
+    public ResponseEntity<InputStreamResource> getEntityChangelogAdded(@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+            required = false) String acceptEncoding) throws SiteMapNotFoundException {
+        return super.getChangelog(true, acceptEncoding);
+    }
+
+    /**
+     * @see AbstractSitemapController#getChangelog(boolean, String)
+     */
+    @GetMapping(value = "changes-removed.txt", produces = MediaType.TEXT_PLAIN_VALUE)
+    public ResponseEntity<InputStreamResource> getEntityChangelogRemoved(@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+            required = false) String acceptEncoding) throws SiteMapNotFoundException {
+        return super.getChangelog(false, acceptEncoding);
     }
 
     /**
@@ -101,4 +136,13 @@ public class SitemapEntityController extends AbstractSitemapController {
         return null;
     }
 
+    /**
+     * Report the progress of the current entity sitemap update, or the result of the last update if none is in progress
+     * @return current phase, number of processed items and files, throughput and estimated time remaining
+     */
+    @GetMapping(value = "progress", produces = MediaType.APPLICATION_JSON_VALUE)
+    public UpdateProgress.Status progress() {
+        return updateService.getUpdateStatus();
+    }
+
 }
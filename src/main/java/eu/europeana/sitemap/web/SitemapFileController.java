@@ -1,5 +1,7 @@
 package eu.europeana.sitemap.web;
 
+import eu.europeana.sitemap.Constants;
+import eu.europeana.sitemap.StorageFileName;
 import eu.europeana.sitemap.exceptions.SiteMapNotFoundException;
 import eu.europeana.sitemap.service.ReadSitemapService;
 import jakarta.servlet.http.HttpServletResponse;
@@ -8,14 +10,21 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPInputStream;
+
 /**
  * Generic functionality for reading sitemap files (for testing and debugging)
  *
@@ -61,35 +70,96 @@ public class SitemapFileController {
     /**
      * Returns the contents of a particular file (in text/plain format)
      * @param fileName name of the requested file
+     * @param acceptEncoding value of the Accept-Encoding header of the request, can be null
      * @return contents of the requested file
      * @throws SiteMapNotFoundException when the requested file is not found
      */
     @GetMapping(value = "file.txt", produces = MediaType.TEXT_PLAIN_VALUE)
     public ResponseEntity<InputStreamResource> fileTxt(@RequestParam(value = "name", defaultValue = "")
-                              @Pattern(regexp = FILENAME_REGEX, message = INVALID_FILENAME_MSG) String fileName) throws SiteMapNotFoundException {
+                              @Pattern(regexp = FILENAME_REGEX, message = INVALID_FILENAME_MSG) String fileName,
+                              @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding)
+            throws SiteMapNotFoundException {
         LOG.debug("Retrieving text file {} ", fileName);
         if (fileName == null || fileName.isEmpty()) {
             throw new IllegalArgumentException("Please provide a file name");
         }
-        InputStreamResource result = new InputStreamResource(service.getFileAsStream(fileName));
-        return ResponseEntity.ok().contentType(MediaType.TEXT_PLAIN).body(result); // if we don't set content-type gzip will not work!
+        return getFile(fileName, MediaType.TEXT_PLAIN, acceptEncoding);
     }
 
     /**
      * Returns the contents of a particular file (in text/xml format)
      * @param fileName name of the requested file
+     * @param acceptEncoding value of the Accept-Encoding header of the request, can be null
      * @return contents of the requested file
      * @throws SiteMapNotFoundException when the requested file is not found
      */
     @GetMapping(value = {"file", "file.xml"}, produces = MediaType.TEXT_XML_VALUE)
     public ResponseEntity<InputStreamResource> fileXml(@RequestParam(value = "name", defaultValue = "")
-                           @Pattern(regexp = FILENAME_REGEX, message = INVALID_FILENAME_MSG) String fileName) throws SiteMapNotFoundException {
+                           @Pattern(regexp = FILENAME_REGEX, message = INVALID_FILENAME_MSG) String fileName,
+                           @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding)
+            throws SiteMapNotFoundException {
         LOG.debug("Retrieving xml file {} ", fileName);
         if (fileName == null || fileName.isEmpty()) {
             throw new IllegalArgumentException("Please provide a file name");
         }
-        InputStreamResource result = new InputStreamResource(service.getFileAsStream(fileName));
-        return ResponseEntity.ok().contentType(MediaType.TEXT_XML).body(result); // if we don't set content-type gzip will not work!
+        return getFile(fileName, MediaType.TEXT_XML, acceptEncoding);
+    }
+
+    /**
+     * Gzip-compressed files are sent as they are stored (with gzip content-encoding) to clients that accept that.
+     * For other clients we decompress the file while sending it.
+     * Note that we always need to set content-type, otherwise gzip compression of uncompressed files will not work!
+     */
+    private ResponseEntity<InputStreamResource> getFile(String fileName, MediaType mediaType, String acceptEncoding)
+            throws SiteMapNotFoundException {
+        InputStream file = service.getFileAsStream(fileName);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(mediaType);
+        if (StorageFileName.isCompressed(fileName)) {
+            response.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (acceptsGzip(acceptEncoding)) {
+                response.header(HttpHeaders.CONTENT_ENCODING, Constants.GZIP_ENCODING);
+            } else {
+                LOG.debug("Client doesn't accept gzip, decompressing file {}", fileName);
+                try {
+                    file = new GZIPInputStream(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error decompressing file " + fileName, e);
+                }
+            }
+        }
+        return response.body(new InputStreamResource(file));
+    }
+
+    /**
+     * Check if gzip content-encoding is acceptable according to the provided Accept-Encoding header value
+     * @param acceptEncoding value of the Accept-Encoding header, can be null
+     * @return true if gzip (or any encoding) is accepted with a non-zero quality, otherwise false
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.split(";");
+            String name = parts[0].trim();
+            if ((Constants.GZIP_ENCODING.equalsIgnoreCase(name) || "*".equals(name)) && getQuality(parts) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    private static double getQuality(String[] encodingParts) {
+        for (int i = 1; i < encodingParts.length; i++) {
+            String param = encodingParts[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2));
+                } catch (NumberFormatException e) {
+                    LOG.debug("Ignoring invalid quality value {}", param);
+                }
+            }
+        }
+        return 1;
     }
 }
@@ -3,6 +3,7 @@ package eu.europeana.sitemap;
 import eu.europeana.s3.S3ObjectStorageClient;
 import eu.europeana.sitemap.service.ActiveDeploymentService;
 import eu.europeana.sitemap.service.Deployment;
+import eu.europeana.sitemap.storage.S3SitemapStorage;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -42,7 +43,7 @@ public class ActiveDeploymentServiceTest {
 
     @Test
     public void testActiveInactive() {
-        ActiveDeploymentService ass = new ActiveDeploymentService(mockStorage);
+        ActiveDeploymentService ass = new ActiveDeploymentService(new S3SitemapStorage(mockStorage, null));
         // default green is first active when initializing
         assertEquals(Deployment.GREEN, ass.getActiveDeployment(SitemapType.RECORD));
         assertEquals(Deployment.BLUE, ass.getInactiveDeployment(SitemapType.RECORD));
@@ -50,7 +51,7 @@ public class ActiveDeploymentServiceTest {
 
     @Test
     public void testSwitch() {
-        ActiveDeploymentService ass = new ActiveDeploymentService(mockStorage);
+        ActiveDeploymentService ass = new ActiveDeploymentService(new S3SitemapStorage(mockStorage, null));
         Deployment active = ass.getActiveDeployment(SitemapType.ENTITY);
         if (Deployment.GREEN.equals(active)) {
             assertEquals(Deployment.BLUE, ass.switchDeployment(SitemapType.ENTITY));
@@ -63,7 +64,7 @@ public class ActiveDeploymentServiceTest {
 
     @Test
     public void testDeleteInactive() {
-        ActiveDeploymentService ass = new ActiveDeploymentService(mockStorage);
+        ActiveDeploymentService ass = new ActiveDeploymentService(new S3SitemapStorage(mockStorage, null));
 
         // files to delete
         String deleteFile1 = StorageFileName.getSitemapFileName(SitemapType.ENTITY, Deployment.BLUE, "1");
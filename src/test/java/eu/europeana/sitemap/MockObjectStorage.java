@@ -3,6 +3,7 @@ package eu.europeana.sitemap;
 
 import eu.europeana.s3.S3Object;
 import eu.europeana.s3.S3ObjectStorageClient;
+import eu.europeana.sitemap.s3.S3Checksum;
 import org.mockito.stubbing.Answer;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 
@@ -10,6 +11,8 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Mockito.*;
 
@@ -18,7 +21,8 @@ import static org.mockito.Mockito.*;
  */
 public class MockObjectStorage {
 
-    private static final Map<String, S3Object> storageMap = new HashMap<>();
+    private static final Map<String, S3Object> storageMap = new ConcurrentHashMap<>();
+    private static final AtomicInteger nrCorruptedSaves = new AtomicInteger();
 
     public static S3ObjectStorageClient setup(S3ObjectStorageClient mockStorage) {
         // simple mocking of listAll, we don't really support continuationTokens or maxPageSize
@@ -39,9 +43,12 @@ public class MockObjectStorage {
             String id = (String) args[0];
             String contentType = (String) args[1];
             byte[] content = (byte[]) args[2];
-            // generate some fake metadata
+            if (nrCorruptedSaves.getAndUpdate(i -> Math.max(0, i - 1)) > 0) {
+                content = Arrays.copyOf(content, content.length + 1);
+            }
+            // generate some fake metadata, like S3 the etag is the md5 checksum of the content
             Map<String, Object> metadata = new HashMap<>();
-            String eTag = UUID.randomUUID().toString();
+            String eTag = S3Checksum.toETag(S3Checksum.md5(content, 0, content.length));
             metadata.put(S3Object.ETAG, eTag);
             metadata.put(S3Object.LAST_MODIFIED, Instant.now());
             metadata.put(S3Object.CONTENT_TYPE, contentType);
@@ -83,6 +90,15 @@ public class MockObjectStorage {
      */
     public static void clear() {
         storageMap.clear();
+        nrCorruptedSaves.set(0);
+    }
+
+    /**
+     * Simulate data getting corrupted during transfer, so the saved file doesn't match its checksum
+     * @param count number of following saves that should be corrupted
+     */
+    public static void simulateCorruptedSaves(int count) {
+        nrCorruptedSaves.set(count);
     }
 
     private static software.amazon.awssdk.services.s3.model.S3Object convertToS3Summary(S3Object s3Object) {
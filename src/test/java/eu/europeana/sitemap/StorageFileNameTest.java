@@ -4,6 +4,8 @@ import eu.europeana.sitemap.service.Deployment;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("java:S5786")
 public class StorageFileNameTest {
@@ -23,6 +25,27 @@ public class StorageFileNameTest {
                 StorageFileName.getSitemapFileName(SitemapType.RECORD, Deployment.GREEN, appendix));
         assertEquals("sitemap-entity-blue.xml",
                 StorageFileName.getSitemapFileName(SitemapType.ENTITY, Deployment.BLUE, null));
+        assertEquals("sitemap-record-green.xml.gz?from=10&to=20",
+                StorageFileName.getSitemapFileName(SitemapType.RECORD, Deployment.GREEN, appendix, true));
+    }
+
+    @Test
+    public void testIsCompressed() {
+        assertTrue(StorageFileName.isCompressed("sitemap-record-green.xml.gz?from=10&to=20"));
+        assertFalse(StorageFileName.isCompressed("sitemap-record-green.xml?from=10&to=20"));
+        assertFalse(StorageFileName.isCompressed("sitemap-record-green-index.xml"));
+        assertTrue(StorageFileName.isCompressed("sitemap-record-green-added.txt.gz"));
+        assertFalse(StorageFileName.isCompressed("sitemap-record-active.txt"));
+    }
+
+    @Test
+    public void testGetChangelogFileNames() {
+        assertEquals("sitemap-record-blue-urls.txt.gz",
+                StorageFileName.getSitemapUrlListFileName(SitemapType.RECORD, Deployment.BLUE));
+        assertEquals("sitemap-entity-green-added.txt.gz",
+                StorageFileName.getSitemapChangelogFileName(SitemapType.ENTITY, Deployment.GREEN, true));
+        assertEquals("sitemap-record-green-removed.txt.gz",
+                StorageFileName.getSitemapChangelogFileName(SitemapType.RECORD, Deployment.GREEN, false));
     }
 
     @Test
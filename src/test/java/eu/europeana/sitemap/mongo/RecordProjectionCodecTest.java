@@ -0,0 +1,150 @@
+package eu.europeana.sitemap.mongo;
+
+import eu.europeana.sitemap.Constants;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the RecordProjectionCodec class
+ * @see RecordProjectionCodec
+ */
+@SuppressWarnings("java:S5786")
+public class RecordProjectionCodecTest {
+
+    private static final String CONTENT_TIER_URL = "http://www.europeana.eu/schemas/epf/contentTier";
+    private static final String METADATA_TIER_URL = "http://www.europeana.eu/schemas/epf/metadataTier";
+
+    private final RecordProjectionCodec codec = new RecordProjectionCodec();
+
+    private RecordProjection decode(Document doc) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            new DocumentCodec().encode(writer, doc, EncoderContext.builder().build());
+        }
+        try (BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(buffer.toByteArray()))) {
+            return codec.decode(reader, DecoderContext.builder().build());
+        }
+    }
+
+    private static List<Document> annotations(String... bodies) {
+        List<Document> result = new ArrayList<>();
+        for (String body : bodies) {
+            result.add(new Document("body", body));
+        }
+        return result;
+    }
+
+    /**
+     * Check decoding the output of the aggregation pipeline, with unknown fields in between
+     */
+    @Test
+    public void testDecodeAggregationResult() {
+        ObjectId id = new ObjectId();
+        Date updated = new Date(1_700_000_000_000L);
+        RecordProjection record = decode(new Document(Constants.ID, id)
+                .append(Constants.ABOUT, "/1/test")
+                .append("unknown", new Document("nested", List.of(1, 2, 3)))
+                .append(Constants.LASTUPDATED, updated)
+                .append(Constants.CONTENT_TIER, "3")
+                .append(Constants.METADATA_TIER, "B"));
+        assertEquals(new RecordProjection(id, "/1/test", 3, 'B', updated.getTime()), record);
+        assertTrue(record.hasTimestampUpdated());
+
+        RecordProjection oldRecord = decode(new Document(Constants.ID, "stringId")
+                .append(Constants.ABOUT, "/1/old")
+                .append(Constants.LASTUPDATED, null)
+                .append(Constants.CONTENT_TIER, "x")
+                .append(Constants.METADATA_TIER, "AB"));
+        assertEquals(new RecordProjection("stringId", "/1/old", -1, (char) 0, RecordProjection.NO_TIMESTAMP), oldRecord);
+        assertFalse(oldRecord.hasTimestampUpdated());
+    }
+
+    /**
+     * Check that tiers are read from the first and last quality annotation only, like in the aggregation pipeline
+     */
+    @Test
+    public void testDecodeFindResult() {
+        RecordProjection record = decode(new Document(Constants.ABOUT, "/1/test")
+                .append(RecordProjectionCodec.QUALITY_ANNOTATIONS,
+                        annotations(CONTENT_TIER_URL + "4", "http://other", METADATA_TIER_URL + "C")));
+        assertEquals(4, record.contentTier());
+        assertEquals('C', record.metadataTier());
+
+        RecordProjection swapped = decode(new Document(Constants.ABOUT, "/1/test")
+                .append(RecordProjectionCodec.QUALITY_ANNOTATIONS,
+                        annotations(METADATA_TIER_URL + "A", CONTENT_TIER_URL + "4")));
+        assertEquals(-1, swapped.contentTier());
+        assertEquals(0, swapped.metadataTier());
+
+        RecordProjection noAnnotations = decode(new Document(Constants.ABOUT, "/1/test")
+                .append(RecordProjectionCodec.QUALITY_ANNOTATIONS, List.of()));
+        assertEquals(-1, noAnnotations.contentTier());
+        assertEquals(0, noAnnotations.metadataTier());
+    }
+
+    /**
+     * Check decoding the find projection with only the first and last tier url
+     */
+    @Test
+    public void testDecodeProjectedTierUrls() {
+        RecordProjection record = decode(new Document(Constants.ABOUT, "/1/test")
+                .append(RecordProjectionCodec.CONTENT_TIER_URL, CONTENT_TIER_URL + "4")
+                .append(RecordProjectionCodec.METADATA_TIER_URL, METADATA_TIER_URL + "C"));
+        assertEquals(4, record.contentTier());
+        assertEquals('C', record.metadataTier());
+
+        // records without annotations have no tier url fields
+        RecordProjection noAnnotations = decode(new Document(Constants.ABOUT, "/1/test")
+                .append(RecordProjectionCodec.METADATA_TIER_URL, CONTENT_TIER_URL + "4"));
+        assertEquals(-1, noAnnotations.contentTier());
+        assertEquals(0, noAnnotations.metadataTier());
+    }
+
+    /**
+     * Check parsing tier values
+     */
+    @Test
+    public void testParseTiers() {
+        assertEquals("2", RecordProjectionCodec.getTierValue(CONTENT_TIER_URL + "2", Constants.CONTENT_TIER));
+        assertNull(RecordProjectionCodec.getTierValue("http://other", Constants.CONTENT_TIER));
+        assertEquals(12, RecordProjectionCodec.parseContentTier("12"));
+        assertEquals(-1, RecordProjectionCodec.parseContentTier(""));
+        assertEquals(-1, RecordProjectionCodec.parseContentTier("-1"));
+        assertEquals(-1, RecordProjectionCodec.parseContentTier("99999999999"));
+        assertEquals('0', RecordProjectionCodec.parseMetadataTier("0"));
+        assertEquals(0, RecordProjectionCodec.parseMetadataTier(null));
+    }
+
+    /**
+     * Check that an encoded projection decodes to the same values, including unknown values and string ids
+     */
+    @Test
+    public void testEncodeDecode() {
+        for (RecordProjection record : List.of(
+                new RecordProjection(new ObjectId(), "/1/test", 3, 'B', 1_700_000_000_000L),
+                new RecordProjection("stringId", "/2/test", 0, '0', RecordProjection.NO_TIMESTAMP),
+                new RecordProjection(null, null, -1, (char) 0, RecordProjection.NO_TIMESTAMP))) {
+            BasicOutputBuffer buffer = new BasicOutputBuffer();
+            try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+                codec.encode(writer, record, EncoderContext.builder().build());
+            }
+            try (BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(buffer.toByteArray()))) {
+                assertEquals(record, codec.decode(reader, DecoderContext.builder().build()));
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package eu.europeana.sitemap.s3;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests the MultipartUploadOutputStream class
+ * @see MultipartUploadOutputStream
+ */
+@SuppressWarnings("java:S5786")
+public class MultipartUploadOutputStreamTest {
+
+    private static final String BUCKET = "test-bucket";
+    private static final String KEY = "test.xml";
+    private static final int PART_SIZE = 10;
+
+    private S3Client s3Client;
+    private List<String> uploadedParts;
+    private List<String> uploadThreads;
+
+    @BeforeEach
+    public void setup() {
+        s3Client = mock(S3Client.class);
+        when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class)))
+                .thenReturn(PutObjectResponse.builder().eTag("single").build());
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload1").build());
+        // note that the part buffer is reused, so we need to read the contents while the request is made
+        uploadedParts = Collections.synchronizedList(new ArrayList<>());
+        uploadThreads = Collections.synchronizedList(new ArrayList<>());
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class))).thenAnswer(invocation -> {
+            uploadedParts.add(read(invocation.getArgument(1)));
+            uploadThreads.add(Thread.currentThread().getName());
+            return UploadPartResponse.builder().eTag("part").build();
+        });
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenReturn(CompleteMultipartUploadResponse.builder().eTag("multi").build());
+    }
+
+    /**
+     * Check that data smaller than 1 part is saved with a single put request
+     */
+    @Test
+    public void testSinglePut() throws IOException {
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(s3Client, BUCKET, KEY, "application/xml", null, PART_SIZE);
+        out.write("12345".getBytes(StandardCharsets.UTF_8));
+        out.close();
+
+        ArgumentCaptor<RequestBody> body = ArgumentCaptor.forClass(RequestBody.class);
+        verify(s3Client, times(1)).putObject(any(PutObjectRequest.class), body.capture());
+        verify(s3Client, never()).createMultipartUpload(any(CreateMultipartUploadRequest.class));
+        assertEquals("12345", read(body.getValue()));
+        assertEquals("single", out.getETag());
+        assertEquals(5, out.getBytesWritten());
+    }
+
+    /**
+     * Check that data is sent in parts of the requested size
+     */
+    @Test
+    public void testMultipart() throws IOException {
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(s3Client, BUCKET, KEY, "application/xml", null, PART_SIZE);
+        out.write("0123456789abcdefghij".getBytes(StandardCharsets.UTF_8));
+        out.write('k');
+        out.write("lmno".getBytes(StandardCharsets.UTF_8));
+        out.close();
+
+        ArgumentCaptor<UploadPartRequest> request = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+        verify(s3Client, times(1)).createMultipartUpload(any(CreateMultipartUploadRequest.class));
+        verify(s3Client, times(3)).uploadPart(request.capture(), any(RequestBody.class));
+        assertEquals(List.of("0123456789", "abcdefghij", "klmno"), uploadedParts);
+        assertEquals(3, request.getAllValues().get(2).partNumber());
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3Client, times(1)).completeMultipartUpload(complete.capture());
+        assertEquals(3, complete.getValue().multipartUpload().parts().size());
+        assertEquals("multi", out.getETag());
+        assertEquals(25, out.getBytesWritten());
+    }
+
+    /**
+     * Check that parts are uploaded by the uploader's threads and completed in the right order
+     */
+    @Test
+    public void testAsyncParts() throws IOException {
+        try (S3MultipartUploader uploader = new S3MultipartUploader(s3Client, BUCKET, PART_SIZE, 2)) {
+            MultipartUploadOutputStream out = uploader.openUpload(KEY, "application/xml", null);
+            out.write("0123456789abcdefghijklmno".getBytes(StandardCharsets.UTF_8));
+            out.close();
+
+            assertEquals(List.of("0123456789", "abcdefghij", "klmno"), uploadedParts.stream().sorted().toList());
+            assertTrue(uploadThreads.stream().allMatch(name -> name.startsWith("s3-part-upload-")));
+            ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+            verify(s3Client, times(1)).completeMultipartUpload(complete.capture());
+            assertEquals(List.of(1, 2, 3), complete.getValue().multipartUpload().parts().stream()
+                    .map(CompletedPart::partNumber).toList());
+            assertEquals("multi", out.getETag());
+        }
+    }
+
+    /**
+     * Check that a part that fails on an uploader thread aborts the multipart upload
+     */
+    @Test
+    public void testAsyncAbortOnError() {
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenThrow(S3Exception.builder().message("test error").build());
+        try (S3MultipartUploader uploader = new S3MultipartUploader(s3Client, BUCKET, PART_SIZE, 2)) {
+            MultipartUploadOutputStream out = uploader.openUpload(KEY, "application/xml", null);
+            assertThrows(IOException.class, () -> {
+                out.write("0123456789abcdefghij".getBytes(StandardCharsets.UTF_8));
+                out.close();
+            });
+            verify(s3Client, times(1)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+            verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+            assertNull(out.getETag());
+        }
+    }
+
+    /**
+     * Check that part buffers are reused
+     */
+    @Test
+    public void testPartBufferPool() {
+        PartBufferPool pool = new PartBufferPool(PART_SIZE, 1);
+        byte[] buffer = pool.take();
+        assertEquals(PART_SIZE, buffer.length);
+        pool.release(buffer);
+        assertSame(buffer, pool.take());
+    }
+
+    /**
+     * Check that an upload can be renamed until the multipart upload is started
+     */
+    @Test
+    public void testChangeKey() throws IOException {
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(s3Client, BUCKET, KEY, "application/xml", null, PART_SIZE);
+        out.write("12345".getBytes(StandardCharsets.UTF_8));
+        assertTrue(out.changeKey("renamed.xml"));
+        out.close();
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(s3Client).putObject(request.capture(), any(RequestBody.class));
+        assertEquals("renamed.xml", request.getValue().key());
+
+        MultipartUploadOutputStream multipart = new MultipartUploadOutputStream(s3Client, BUCKET, KEY, "application/xml", null, PART_SIZE);
+        multipart.write("0123456789abc".getBytes(StandardCharsets.UTF_8));
+        assertFalse(multipart.changeKey("renamed.xml"));
+        assertEquals(KEY, multipart.getKey());
+        multipart.close();
+    }
+
+    /**
+     * Check that a failed part upload aborts the multipart upload
+     */
+    @Test
+    public void testAbortOnError() {
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenThrow(S3Exception.builder().message("test error").build());
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(s3Client, BUCKET, KEY, "application/xml", null, PART_SIZE);
+
+        assertThrows(IOException.class, () -> out.write("0123456789".getBytes(StandardCharsets.UTF_8)));
+        verify(s3Client, times(1)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        assertThrows(IOException.class, () -> out.write('x'));
+        assertNull(out.getETag());
+    }
+
+    /**
+     * Check that the etag of a single put is compared with the checksum of the data
+     */
+    @Test
+    public void testCheckETag() throws IOException {
+        byte[] data = "12345".getBytes(StandardCharsets.UTF_8);
+        String md5 = S3Checksum.toETag(S3Checksum.md5(data, 0, data.length));
+        when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class)))
+                .thenReturn(PutObjectResponse.builder().eTag("\"" + md5 + "\"").build());
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(s3Client, BUCKET, KEY, "application/xml", null, PART_SIZE);
+        assertEquals(S3Checksum.ETagCheck.UNKNOWN, out.checkETag());
+        out.write(data);
+        out.close();
+
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(s3Client).putObject(request.capture(), any(RequestBody.class));
+        assertEquals(S3Checksum.toContentMd5(S3Checksum.md5(data, 0, data.length)), request.getValue().contentMD5());
+        assertEquals(S3Checksum.ETagCheck.MATCH, out.checkETag());
+    }
+
+    /**
+     * Check that a part with a wrong etag aborts the multipart upload
+     */
+    @Test
+    public void testPartChecksumMismatch() {
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenReturn(UploadPartResponse.builder().eTag("0123456789abcdef0123456789abcdef").build());
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(s3Client, BUCKET, KEY, "application/xml", null, PART_SIZE);
+
+        assertThrows(IOException.class, () -> out.write("0123456789".getBytes(StandardCharsets.UTF_8)));
+        verify(s3Client, times(1)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    /**
+     * Check that ETags of objects encrypted with KMS keys are not compared with the checksum of the data
+     */
+    @Test
+    public void testEncryptedETag() throws IOException {
+        String notMd5 = "0123456789abcdef0123456789abcdef";
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenReturn(UploadPartResponse.builder().eTag(notMd5).serverSideEncryption(ServerSideEncryption.AWS_KMS).build());
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenReturn(CompleteMultipartUploadResponse.builder().eTag(notMd5 + "-2")
+                        .serverSideEncryption(ServerSideEncryption.AWS_KMS).build());
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(s3Client, BUCKET, KEY, "application/xml", null, PART_SIZE);
+        out.write("0123456789abcde".getBytes(StandardCharsets.UTF_8));
+        out.close();
+        verify(s3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        assertEquals(S3Checksum.ETagCheck.UNKNOWN, out.checkETag());
+
+        when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class)))
+                .thenReturn(PutObjectResponse.builder().eTag(notMd5).serverSideEncryption(ServerSideEncryption.AWS_KMS).build());
+        MultipartUploadOutputStream single = new MultipartUploadOutputStream(s3Client, BUCKET, KEY, "application/xml", null, PART_SIZE);
+        single.write("12345".getBytes(StandardCharsets.UTF_8));
+        single.close();
+        assertEquals(S3Checksum.ETagCheck.UNKNOWN, single.checkETag());
+    }
+
+    /**
+     * Check which encryption types use MD5 checksums as ETag
+     */
+    @Test
+    public void testHasMd5ETag() {
+        assertTrue(S3Checksum.hasMd5ETag(null, null));
+        assertTrue(S3Checksum.hasMd5ETag(ServerSideEncryption.AES256, null));
+        assertFalse(S3Checksum.hasMd5ETag(ServerSideEncryption.AWS_KMS, null));
+        assertFalse(S3Checksum.hasMd5ETag(ServerSideEncryption.AWS_KMS_DSSE, null));
+        assertFalse(S3Checksum.hasMd5ETag(null, "AES256"));
+        assertEquals(S3Checksum.ETagCheck.UNKNOWN, S3Checksum.check("0123456789abcdef0123456789abcdef", "x", false));
+    }
+
+    private static String read(RequestBody body) throws IOException {
+        try (InputStream in = body.contentStreamProvider().newStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.mongo.RecordProjection;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the FileRecordSource class
+ * @see FileRecordSource
+ */
+@SuppressWarnings("java:S5786")
+public class FileRecordSourceTest {
+
+    private static final int NR_RECORDS = 100;
+    // small chunks, so records are spread over many chunks
+    private static final int CHUNK_SIZE = 1000;
+    private static final int THREADS = 3;
+    private static final long UPDATED = Instant.parse("2024-06-01T00:00:00Z").toEpochMilli();
+
+    @TempDir
+    private Path tempDir;
+
+    /**
+     * Records in reverse id order; even records have content tier 4, odd records tier 2. Every 10th record has no
+     * timestampUpdated
+     */
+    private static List<Document> createRecords() {
+        List<Document> result = new ArrayList<>();
+        for (int i = NR_RECORDS - 1; i >= 0; i--) {
+            Document record = new Document("_id", getId(i))
+                    .append("about", "/1/record" + i)
+                    .append("proxies", List.of(new Document("dcTitle", "Title of record " + i)))
+                    .append("qualityAnnotations", List.of(
+                            new Document("body", RecordTierFilter.TIER_URL_PREFIX + "contentTier" + (i % 2 == 0 ? 4 : 2)),
+                            new Document("body", RecordTierFilter.TIER_URL_PREFIX + "metadataTierA")));
+            if (i % 10 != 0) {
+                record.append("timestampUpdated", new Date(UPDATED + i));
+            }
+            result.add(record);
+        }
+        return result;
+    }
+
+    private static ObjectId getId(int i) {
+        return new ObjectId(String.format("5a0000000000000000%06x", i));
+    }
+
+    private Path writeBson(List<Document> records) throws IOException {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        for (Document record : records) {
+            new DocumentCodec().encode(new BsonBinaryWriter(buffer), record, EncoderContext.builder().build());
+        }
+        Path file = tempDir.resolve("record.bson");
+        Files.write(file, buffer.toByteArray());
+        return file;
+    }
+
+    private Path writeJson(List<Document> records) throws IOException {
+        StringBuilder json = new StringBuilder();
+        for (Document record : records) {
+            json.append(record.toJson()).append('\n');
+        }
+        json.append('\n');
+        Path file = tempDir.resolve("record.jsonl");
+        Files.writeString(file, json, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static List<RecordProjection> readAll(RecordSource source, Object after, Object upTo) {
+        List<RecordProjection> result = new ArrayList<>();
+        try (RecordSource.RecordCursor cursor = source.read(after, upTo)) {
+            cursor.forEachRemaining(result::add);
+        }
+        return result;
+    }
+
+    private static void checkSource(Path file) {
+        FileRecordSource source = new FileRecordSource(file, new RecordTierFilter("4", "a"), THREADS, CHUNK_SIZE);
+        try {
+            assertEquals(-1, source.estimateNrRecords());
+            source.prepare();
+            assertEquals(NR_RECORDS, source.estimateNrRecords());
+
+            List<RecordProjection> records = readAll(source, null, null);
+            assertEquals(NR_RECORDS / 2, records.size());
+            for (int i = 0; i < records.size(); i++) {
+                RecordProjection record = records.get(i);
+                assertEquals(getId(i * 2), record.id());
+                assertEquals("/1/record" + (i * 2), record.about());
+                assertEquals(4, record.contentTier());
+                assertEquals('A', record.metadataTier());
+                assertEquals(i % 5 != 0, record.hasTimestampUpdated());
+            }
+
+            List<RecordProjection> range = readAll(source, source.toId(getId(9).toString()), getId(20));
+            assertEquals(List.of(getId(10), getId(12), getId(14), getId(16), getId(18), getId(20)),
+                    range.stream().map(RecordProjection::id).toList());
+
+            int nrChanged = NR_RECORDS - NR_RECORDS / 10;
+            assertEquals(nrChanged, source.getChangedIds(Instant.ofEpochMilli(UPDATED), nrChanged).size());
+            assertNull(source.getChangedIds(Instant.ofEpochMilli(UPDATED), nrChanged - 1));
+            assertTrue(source.getChangedIds(Instant.ofEpochMilli(UPDATED + 90), NR_RECORDS).contains(getId(95).toString()));
+            assertEquals(5, source.sampleIds(5).size());
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Check reading a mongodump file
+     */
+    @Test
+    public void testBson() throws IOException {
+        checkSource(writeBson(createRecords()));
+    }
+
+    /**
+     * Check reading a mongoexport file
+     */
+    @Test
+    public void testJson() throws IOException {
+        checkSource(writeJson(createRecords()));
+    }
+
+    /**
+     * Check that a truncated dump is reported
+     */
+    @Test
+    public void testTruncatedBson() throws IOException {
+        Path file = writeBson(createRecords());
+        byte[] data = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(data, data.length - 10));
+        FileRecordSource source = new FileRecordSource(file, new RecordTierFilter("", ""), THREADS, CHUNK_SIZE);
+        assertThrows(IllegalStateException.class, source::prepare);
+        source.close();
+    }
+
+    /**
+     * Check that only supported file extensions are accepted
+     */
+    @Test
+    public void testFormat() {
+        assertEquals(FileRecordSource.Format.BSON, FileRecordSource.Format.fromFileName("record.bson"));
+        assertEquals(FileRecordSource.Format.JSONL, FileRecordSource.Format.fromFileName("record.ndjson"));
+        assertNull(FileRecordSource.Format.fromFileName("record.bson.gz"));
+        assertThrows(IllegalArgumentException.class, () ->
+                new FileRecordSource(Path.of("record.csv"), new RecordTierFilter("", ""), THREADS));
+    }
+}
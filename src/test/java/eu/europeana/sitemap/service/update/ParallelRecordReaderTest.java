@@ -0,0 +1,97 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.mongo.RecordProjection;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the ParallelRecordReader class
+ * @see ParallelRecordReader
+ */
+@SuppressWarnings("java:S5786")
+public class ParallelRecordReaderTest {
+
+    private static final int NR_RECORDS = 1000;
+
+    private static final List<String> IDS = new ArrayList<>();
+    static {
+        for (int i = 0; i < NR_RECORDS; i++) {
+            IDS.add(String.format("id%04d", i));
+        }
+    }
+
+    private static List<RecordProjection> readRange(Object after, Object upTo) {
+        List<RecordProjection> result = new ArrayList<>();
+        for (String id : IDS) {
+            if ((after == null || id.compareTo(after.toString()) > 0) && (upTo == null || id.compareTo(upTo.toString()) <= 0)) {
+                result.add(new RecordProjection(id, id, 4, 'A', RecordProjection.NO_TIMESTAMP));
+            }
+        }
+        return result;
+    }
+
+    private static List<Object> readAll(ParallelRecordReader reader) {
+        List<Object> result = new ArrayList<>();
+        reader.forEachRemaining(record -> result.add(record.id()));
+        return result;
+    }
+
+    /**
+     * Check that split points are sorted, distinct and after the start id
+     */
+    @Test
+    public void testSplitPoints() {
+        List<String> sample = new ArrayList<>(List.of("id0500", "id0100", "id0900", "id0100", "id0300", "id0700"));
+        assertEquals(List.of("id0300", "id0700"), ParallelRecordReader.getSplitPoints(sample, null, 3));
+        assertEquals(List.of("id0700", "id0900"), ParallelRecordReader.getSplitPoints(sample, "id0500", 3));
+        assertEquals(List.of("id0100", "id0300", "id0500", "id0700", "id0900"),
+                ParallelRecordReader.getSplitPoints(sample, null, 100));
+        assertTrue(ParallelRecordReader.getSplitPoints(sample, "id0900", 3).isEmpty());
+    }
+
+    /**
+     * Check that all records are returned in order, exactly once
+     */
+    @Test
+    public void testReadInOrder() {
+        List<String> sample = new ArrayList<>(IDS.subList(0, 100));
+        Collections.shuffle(sample, new Random(1));
+        List<Object> splitPoints = ParallelRecordReader.getSplitPoints(sample, null, 10);
+        try (ParallelRecordReader reader = new ParallelRecordReader(ParallelRecordReaderTest::readRange, null,
+                splitPoints, 3)) {
+            assertEquals(IDS, readAll(reader));
+            assertFalse(reader.hasNext());
+        }
+
+        // resume without split points
+        try (ParallelRecordReader reader = new ParallelRecordReader(ParallelRecordReaderTest::readRange, "id0989",
+                List.of(), 2)) {
+            assertEquals(IDS.subList(990, NR_RECORDS), readAll(reader));
+        }
+    }
+
+    /**
+     * Check that an error reading a range is thrown when that range is reached
+     */
+    @Test
+    public void testReadError() {
+        IllegalArgumentException error = new IllegalArgumentException("test");
+        try (ParallelRecordReader reader = new ParallelRecordReader((after, upTo) -> {
+            if ("id0500".equals(after)) {
+                throw error;
+            }
+            return readRange(after, upTo);
+        }, null, List.of("id0500"), 2)) {
+            for (int i = 0; i <= 500; i++) {
+                assertEquals(IDS.get(i), reader.next().id());
+            }
+            assertSame(error, assertThrows(IllegalArgumentException.class, reader::hasNext));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.mongo.RecordProjection;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the PrefetchingRecordReader class
+ * @see PrefetchingRecordReader
+ */
+@SuppressWarnings("java:S5786")
+public class PrefetchingRecordReaderTest {
+
+    private static final int NR_RECORDS = 2500;
+    private static final long SLOW_START_MS = 50;
+
+    private static List<RecordProjection> createRecords() {
+        List<RecordProjection> result = new ArrayList<>();
+        for (int i = 0; i < NR_RECORDS; i++) {
+            result.add(new RecordProjection(i, "/1/record" + i, 4, 'A', RecordProjection.NO_TIMESTAMP));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the records, but only after waiting a bit
+     */
+    private static Iterator<RecordProjection> slowStart(Iterator<RecordProjection> records) {
+        return new Iterator<>() {
+            private boolean started;
+
+            @Override
+            public boolean hasNext() {
+                if (!started) {
+                    started = true;
+                    try {
+                        Thread.sleep(SLOW_START_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return records.hasNext();
+            }
+
+            @Override
+            public RecordProjection next() {
+                return records.next();
+            }
+        };
+    }
+
+    /**
+     * Check that all records are returned in order and stalls are recorded
+     */
+    @Test
+    public void testReadInOrder() {
+        List<RecordProjection> records = createRecords();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        List<RecordProjection> result = new ArrayList<>();
+        try (PrefetchingRecordReader reader = new PrefetchingRecordReader(slowStart(records.iterator()),
+                PrefetchingRecordReader.BATCH_SIZE, new SitemapMetrics(registry))) {
+            reader.forEachRemaining(result::add);
+            assertFalse(reader.hasNext());
+            assertThrows(NoSuchElementException.class, reader::next);
+        }
+        assertEquals(records, result);
+        assertEquals(0, registry.get("sitemap.prefetch.queue").gauge().value());
+        // the generator has to wait for the first batch
+        assertTrue(registry.get("sitemap.prefetch.stall").tag("waiting", "generator").timer().count() > 0);
+    }
+
+    /**
+     * Check that an error while reading is thrown after all records read before the error are returned
+     */
+    @Test
+    public void testReadError() {
+        IllegalStateException error = new IllegalStateException("test");
+        Iterator<RecordProjection> records = createRecords().iterator();
+        Iterator<RecordProjection> failing = new Iterator<>() {
+            private int count;
+
+            @Override
+            public boolean hasNext() {
+                if (count == PrefetchingRecordReader.BATCH_SIZE + 1) {
+                    throw error;
+                }
+                return records.hasNext();
+            }
+
+            @Override
+            public RecordProjection next() {
+                count++;
+                return records.next();
+            }
+        };
+        try (PrefetchingRecordReader reader = new PrefetchingRecordReader(failing, NR_RECORDS, SitemapMetrics.noop())) {
+            for (int i = 0; i < PrefetchingRecordReader.BATCH_SIZE; i++) {
+                assertEquals(i, reader.next().id());
+            }
+            assertSame(error, assertThrows(IllegalStateException.class, reader::hasNext));
+        }
+    }
+
+    /**
+     * Check that we can stop before all records are read
+     */
+    @Test
+    public void testCloseEarly() {
+        PrefetchingRecordReader reader = new PrefetchingRecordReader(createRecords().iterator(),
+                PrefetchingRecordReader.BATCH_SIZE, SitemapMetrics.noop());
+        assertEquals(0, reader.next().id());
+        reader.close();
+    }
+}
@@ -0,0 +1,133 @@
+package eu.europeana.sitemap.service.update;
+
+import com.mongodb.BasicDBObject;
+import eu.europeana.sitemap.Constants;
+import eu.europeana.sitemap.mongo.RecordProjection;
+import eu.europeana.sitemap.mongo.RecordProjectionCodec;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the RecordTierFilter class and checking query plans
+ * @see RecordTierFilter
+ */
+@SuppressWarnings("java:S5786")
+public class RecordTierFilterTest {
+
+    private static final String CONTENT_TIER_URL = RecordTierFilter.TIER_URL_PREFIX + Constants.CONTENT_TIER;
+    private static final String METADATA_TIER_URL = RecordTierFilter.TIER_URL_PREFIX + Constants.METADATA_TIER;
+
+    /**
+     * Check that the projection only returns the first and last tier url, not the entire annotations array
+     */
+    @Test
+    public void testProjection() {
+        BasicDBObject projection = RecordTierFilter.getProjection();
+        assertFalse(projection.containsField(Constants.QUALITY_ANNOTATIONS_BODY));
+        assertEquals(new BasicDBObject(Constants.ARRAY_ELEMENT_AT, List.of(Constants.MONGO_QA_BODY, 0L)),
+                projection.get(RecordProjectionCodec.CONTENT_TIER_URL));
+        assertEquals(new BasicDBObject(Constants.ARRAY_ELEMENT_AT, List.of(Constants.MONGO_QA_BODY, -1L)),
+                projection.get(RecordProjectionCodec.METADATA_TIER_URL));
+    }
+
+    /**
+     * Check that the query filter matches the id range and complete tier urls
+     */
+    @Test
+    public void testQueryFilter() {
+        RecordTierFilter filter = new RecordTierFilter("3,4", "a");
+        BasicDBObject query = filter.getQueryFilter("1", "2");
+        assertEquals(new BasicDBObject(Constants.GT, "1").append(Constants.LTE, "2"), query.get(Constants.ID));
+        List<?> and = (List<?>) query.get(Constants.AND);
+        assertEquals(2, and.size());
+        BasicDBObject contentTierUrls = (BasicDBObject) ((BasicDBObject) and.get(0)).get(Constants.QUALITY_ANNOTATIONS_BODY);
+        assertEquals(Set.of(CONTENT_TIER_URL + "3", CONTENT_TIER_URL + "4"),
+                Set.copyOf((List<?>) contentTierUrls.get(Constants.IN)));
+        BasicDBObject metadataTierUrls = (BasicDBObject) ((BasicDBObject) and.get(1)).get(Constants.QUALITY_ANNOTATIONS_BODY);
+        assertEquals(List.of(METADATA_TIER_URL + "A"), metadataTierUrls.get(Constants.IN));
+
+        assertTrue(new RecordTierFilter("", "").getQueryFilter(null, null).isEmpty());
+    }
+
+    /**
+     * Check that repeated values, spaces and empty values in the configuration are accepted
+     */
+    @Test
+    public void testDuplicateTiers() {
+        RecordTierFilter filter = new RecordTierFilter("2,3,3", " a, A,,");
+        List<?> and = (List<?>) filter.getQueryFilter(null, null).get(Constants.AND);
+        BasicDBObject contentTierUrls = (BasicDBObject) ((BasicDBObject) and.get(0)).get(Constants.QUALITY_ANNOTATIONS_BODY);
+        assertEquals(List.of(CONTENT_TIER_URL + "2", CONTENT_TIER_URL + "3"), contentTierUrls.get(Constants.IN));
+        BasicDBObject metadataTierUrls = (BasicDBObject) ((BasicDBObject) and.get(1)).get(Constants.QUALITY_ANNOTATIONS_BODY);
+        assertEquals(List.of(METADATA_TIER_URL + "A"), metadataTierUrls.get(Constants.IN));
+        assertTrue(filter.includes(new RecordProjection("1", "/1/test", 3, 'A', 0)));
+        assertFalse(filter.includes(new RecordProjection("1", "/1/test", 4, 'A', 0)));
+    }
+
+    /**
+     * Check that only records with known and requested tiers are included
+     */
+    @Test
+    public void testIncludes() {
+        RecordTierFilter filter = new RecordTierFilter("3,4", "a,b");
+        assertTrue(filter.includes(new RecordProjection("1", "/1/test", 4, 'B', 0)));
+        assertFalse(filter.includes(new RecordProjection("1", "/1/test", 2, 'A', 0)));
+        assertFalse(filter.includes(new RecordProjection("1", "/1/test", 4, 'C', 0)));
+
+        RecordTierFilter noFilter = new RecordTierFilter("", "");
+        assertTrue(noFilter.includes(new RecordProjection("1", "/1/test", 1, '0', RecordProjection.NO_TIMESTAMP)));
+        assertFalse(noFilter.includes(new RecordProjection("1", "/1/test", -1, 'A', 0)));
+        assertFalse(noFilter.includes(new RecordProjection("1", "/1/test", 1, (char) 0, 0)));
+    }
+
+    /**
+     * Check that we find a collection scan in both find and aggregate explain results
+     */
+    @Test
+    public void testWinningPlanStages() {
+        Document collectionScan = new Document("stage", "COLLSCAN");
+        Document indexScan = new Document("stage", "FETCH")
+                .append("inputStage", new Document("stage", "IXSCAN"));
+        Document findExplain = new Document("queryPlanner", new Document("winningPlan", indexScan)
+                .append("rejectedPlans", List.of(collectionScan)));
+        assertEquals(Set.of("FETCH", "IXSCAN"), UpdateRecordServiceUtils.getWinningPlanStages(findExplain));
+
+        Document aggregateExplain = new Document("stages", List.of(
+                new Document("$cursor", new Document("queryPlanner", new Document("winningPlan", collectionScan))),
+                new Document("$project", new Document())));
+        assertTrue(UpdateRecordServiceUtils.getWinningPlanStages(aggregateExplain)
+                .contains("COLLSCAN"));
+
+        assertTrue(UpdateRecordServiceUtils.getWinningPlanStages(new Document()).isEmpty());
+    }
+
+    /**
+     * Check that only a winning plan with an index scan on _id counts as using the _id index
+     */
+    @Test
+    public void testUsesIdIndex() {
+        Document idIndexScan = new Document("stage", "FETCH").append("inputStage",
+                new Document("stage", "IXSCAN").append("keyPattern", new Document("_id", 1)));
+        Document tierIndexScan = new Document("stage", "FETCH").append("inputStage",
+                new Document("stage", "IXSCAN").append("keyPattern", new Document(Constants.QUALITY_ANNOTATIONS_BODY, 1)));
+        assertTrue(UpdateRecordServiceUtils.usesIdIndex(new Document("queryPlanner",
+                new Document("winningPlan", idIndexScan).append("rejectedPlans", List.of(tierIndexScan)))));
+        assertFalse(UpdateRecordServiceUtils.usesIdIndex(new Document("queryPlanner",
+                new Document("winningPlan", new Document("stage", "SORT").append("inputStage", tierIndexScan))
+                        .append("rejectedPlans", List.of(idIndexScan)))));
+        assertTrue(UpdateRecordServiceUtils.usesIdIndex(new Document("stages", List.of(
+                new Document("$cursor", new Document("queryPlanner", new Document("winningPlan", idIndexScan)))))));
+        assertFalse(UpdateRecordServiceUtils.usesIdIndex(new Document()));
+
+        Document stats = new Document("executionStats", new Document("nReturned", 10)
+                .append("totalDocsExamined", 40L));
+        assertEquals(40, UpdateRecordServiceUtils.getExplainCount(stats, "totalDocsExamined"));
+        assertEquals(10, UpdateRecordServiceUtils.getExplainCount(stats, "nReturned"));
+        assertEquals(-1, UpdateRecordServiceUtils.getExplainCount(stats, "totalKeysExamined"));
+    }
+}
@@ -0,0 +1,149 @@
+package eu.europeana.sitemap.service.update;
+
+import com.mongodb.MongoCursorNotFoundException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.mongo.RecordProjection;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the ResumableRecordCursor class
+ * @see ResumableRecordCursor
+ */
+@SuppressWarnings("java:S5786")
+public class ResumableRecordCursorTest {
+
+    private static final int NR_RECORDS = 10;
+    private static final long BACKOFF_MS = 1;
+
+    private final List<String> queries = new ArrayList<>();
+
+    /**
+     * Query that returns records 0 to 9 (with ids "id0" to "id9"), but fails after the provided number of records
+     */
+    private ResumableRecordCursor.RecordQuery failingQuery(RuntimeException error, int... failAfter) {
+        return (after, upTo) -> {
+            queries.add(after + "-" + upTo);
+            int start = (after == null ? 0 : Integer.parseInt(after.toString().substring(2)) + 1);
+            Integer fail = (queries.size() <= failAfter.length ? failAfter[queries.size() - 1] : null);
+            return new TestCursor(start, fail, error);
+        };
+    }
+
+    private static List<Object> readAll(Iterator<RecordProjection> cursor) {
+        List<Object> result = new ArrayList<>();
+        cursor.forEachRemaining(record -> result.add(record.id()));
+        return result;
+    }
+
+    /**
+     * Check that the query is restarted after the last returned record when the cursor is lost
+     */
+    @Test
+    public void testResume() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MongoException error = new MongoCursorNotFoundException(1L, new BsonDocument(), new ServerAddress());
+        try (ResumableRecordCursor cursor = new ResumableRecordCursor(failingQuery(error, 3, 0, 4), null, "id9",
+                new SitemapMetrics(registry), BACKOFF_MS)) {
+            assertEquals(List.of("id0", "id1", "id2", "id3", "id4", "id5", "id6", "id7", "id8", "id9"), readAll(cursor));
+        }
+        assertEquals(List.of("null-id9", "id2-id9", "id2-id9", "id6-id9"), queries);
+        assertEquals(3, registry.get("sitemap.mongo.cursor.restarts").counter().count());
+    }
+
+    /**
+     * Check that we give up when the error keeps happening
+     */
+    @Test
+    public void testTooManyRetries() {
+        MongoException error = new MongoSocketReadException("test", new ServerAddress());
+        try (ResumableRecordCursor cursor = new ResumableRecordCursor(failingQuery(error, 0, 0, 0, 0, 0, 0), "id4",
+                null, SitemapMetrics.noop(), BACKOFF_MS)) {
+            assertSame(error, assertThrows(MongoSocketReadException.class, cursor::hasNext));
+        }
+        assertEquals(6, queries.size());
+    }
+
+    /**
+     * Check that other errors are not retried
+     */
+    @Test
+    public void testNotRetryable() {
+        MongoException error = new MongoException("test");
+        assertFalse(ResumableRecordCursor.isRetryable(error));
+        try (ResumableRecordCursor cursor = new ResumableRecordCursor(failingQuery(error, 1), null, null,
+                SitemapMetrics.noop(), BACKOFF_MS)) {
+            assertEquals("id0", cursor.next().id());
+            assertSame(error, assertThrows(MongoException.class, cursor::hasNext));
+        }
+        assertEquals(1, queries.size());
+    }
+
+    /**
+     * Returns records from start up to NR_RECORDS, or throws an error after a number of records
+     */
+    private static final class TestCursor implements MongoCursor<RecordProjection> {
+        private int next;
+        private final Integer failAt;
+        private final RuntimeException error;
+
+        private TestCursor(int start, Integer failAfter, RuntimeException error) {
+            this.next = start;
+            this.failAt = (failAfter == null ? null : start + failAfter);
+            this.error = error;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (failAt != null && next == failAt) {
+                throw error;
+            }
+            return next < NR_RECORDS;
+        }
+
+        @Override
+        public RecordProjection next() {
+            RecordProjection result = new RecordProjection("id" + next, "/1/record" + next, 4, 'A',
+                    RecordProjection.NO_TIMESTAMP);
+            next++;
+            return result;
+        }
+
+        @Override
+        public int available() {
+            return NR_RECORDS - next;
+        }
+
+        @Override
+        public RecordProjection tryNext() {
+            return hasNext() ? next() : null;
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package eu.europeana.sitemap.service.update;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the SitemapEntryEncoder class
+ * @see SitemapEntryEncoder
+ */
+@SuppressWarnings("java:S5786")
+public class SitemapEntryEncoderTest {
+
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("Europe/Amsterdam");
+
+    private SitemapEntryEncoder encoder;
+    private ByteArrayOutputStream out;
+
+    @BeforeEach
+    public void setup() {
+        encoder = new SitemapEntryEncoder(TIME_ZONE);
+        out = new ByteArrayOutputStream();
+        encoder.setOutput(out);
+    }
+
+    /**
+     * Check that an item with all fields is encoded correctly
+     */
+    @Test
+    public void testEncodeItem() {
+        // 2024-06-30 23:30 UTC is already July 1st in Amsterdam
+        Date date = new Date(1719790200000L);
+        encoder.encodeItem(SitemapEntryEncoder.toBytes("https://www.europeana.eu/item"), "/123/abc",
+                UpdateRecordServiceUtils.getPriorityBytesForTiers(3), date);
+        encoder.flush();
+
+        assertEquals("<url>\n<loc>https://www.europeana.eu/item/123/abc</loc>\n<priority>0.8</priority>\n"
+                + "<lastmod>2024-07-01</lastmod>\n</url>\n", out.toString(StandardCharsets.UTF_8));
+        assertEquals(out.size(), encoder.getEncodedLength(SitemapEntryEncoder.toBytes("https://www.europeana.eu/item"),
+                "/123/abc", UpdateRecordServiceUtils.getPriorityBytesForTiers(3), date));
+    }
+
+    /**
+     * Check that optional fields are left out
+     */
+    @Test
+    public void testEncodeItemMinimal() {
+        encoder.encodeItem(null, "https://www.europeana.eu/en/collections/person/1", null, null);
+        encoder.flush();
+
+        assertEquals("<url>\n<loc>https://www.europeana.eu/en/collections/person/1</loc>\n</url>\n",
+                out.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Check that non-ascii characters (including surrogate pairs) are encoded the same as String.getBytes() does
+     */
+    @Test
+    public void testEncodeUtf8() {
+        String url = "/ü/ŝ/€/😀/\uD800/end";
+        encoder.encodeItem(null, url, null, null);
+        encoder.flush();
+
+        assertArrayEquals(("<url>\n<loc>" + url + "</loc>\n</url>\n").getBytes(StandardCharsets.UTF_8), out.toByteArray());
+        assertEquals(out.size(), encoder.getEncodedLength(null, url, null, null));
+        assertEquals(out.size(), encoder.getBytesWritten());
+    }
+
+    /**
+     * Check that special characters are escaped and characters that aren't allowed in xml are replaced
+     */
+    @Test
+    public void testEncodeEscaped() {
+        String url = "/a&b/<c>/'d'/\"e\"/\u0001/\t/é&ü/\uFFFF";
+        encoder.encodeItem(SitemapEntryEncoder.toBytes("https://www.europeana.eu/item"), url, null, null);
+        encoder.flush();
+
+        assertEquals("<url>\n<loc>https://www.europeana.eu/item/a&amp;b/&lt;c&gt;/&apos;d&apos;/&quot;e&quot;/?/\t/é&amp;ü/?"
+                + "</loc>\n</url>\n", out.toString(StandardCharsets.UTF_8));
+        assertEquals(out.size(), encoder.getEncodedLength(SitemapEntryEncoder.toBytes("https://www.europeana.eu/item"),
+                url, null, null));
+        assertEquals(out.size(), encoder.getBytesWritten());
+    }
+
+    /**
+     * Check the maximum url length
+     */
+    @Test
+    public void testValidUrlLength() {
+        byte[] prefix = SitemapEntryEncoder.toBytes("https://www.europeana.eu/item");
+        assertTrue(SitemapEntryEncoder.isValidUrlLength(prefix, "x".repeat(SitemapEntryEncoder.MAX_URL_LENGTH - prefix.length)));
+        assertFalse(SitemapEntryEncoder.isValidUrlLength(prefix, "x".repeat(SitemapEntryEncoder.MAX_URL_LENGTH - prefix.length + 1)));
+        assertFalse(SitemapEntryEncoder.isValidUrlLength(null, "x".repeat(SitemapEntryEncoder.MAX_URL_LENGTH + 1)));
+    }
+
+    /**
+     * Check that urls larger than the buffer are handled
+     */
+    @Test
+    public void testEncodeLargeUrl() {
+        String url = "x".repeat(100_000);
+        encoder.encodeItem(null, url, null, null);
+        encoder.encodeItem(null, url, null, null);
+        encoder.flush();
+
+        assertEquals(2 * ("<url>\n<loc></loc>\n</url>\n".length() + url.length()), out.size());
+    }
+
+    /**
+     * Check that cached dates are not returned for a different day
+     */
+    @Test
+    public void testDateCache() {
+        long day = 24L * 60 * 60 * 1000;
+        Date date1 = new Date(1719790200000L);
+        Date date2 = new Date(1719790200000L + 4096 * day); // same position in the cache
+        encoder.encodeItem(null, "a", null, date1);
+        encoder.encodeItem(null, "b", null, date2);
+        encoder.encodeItem(null, "c", null, date1);
+        encoder.flush();
+
+        String result = out.toString(StandardCharsets.UTF_8);
+        assertEquals("<url>\n<loc>a</loc>\n<lastmod>2024-07-01</lastmod>\n</url>\n"
+                + "<url>\n<loc>b</loc>\n<lastmod>2035-09-18</lastmod>\n</url>\n"
+                + "<url>\n<loc>c</loc>\n<lastmod>2024-07-01</lastmod>\n</url>\n", result);
+    }
+}
@@ -3,18 +3,54 @@ package eu.europeana.sitemap.service.update;
 import eu.europeana.s3.S3ObjectStorageClient;
 import eu.europeana.sitemap.MockObjectStorage;
 import eu.europeana.sitemap.SitemapType;
+import eu.europeana.sitemap.StorageFileName;
 import eu.europeana.sitemap.XmlUtils;
+import eu.europeana.sitemap.exceptions.SiteMapStorageException;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.s3.S3MultipartUploader;
 import eu.europeana.sitemap.service.Deployment;
+import eu.europeana.sitemap.storage.InMemorySitemapStorage;
+import eu.europeana.sitemap.storage.S3SitemapStorage;
+import eu.europeana.sitemap.storage.SitemapStorage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateFormatUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CopyObjectResult;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.springframework.test.util.AssertionErrors.assertEquals;
 import static org.springframework.test.util.AssertionErrors.assertTrue;
 
@@ -29,6 +65,7 @@ import static org.springframework.test.util.AssertionErrors.assertTrue;
 public class SitemapGeneratorTest {
 
     private static S3ObjectStorageClient mockStorage = mock(S3ObjectStorageClient.class);
+    private static SitemapStorage storage;
 
     /**
      * Setup mock objectstorage
@@ -36,6 +73,7 @@ public class SitemapGeneratorTest {
     @BeforeAll
     public static void setup() {
         mockStorage = MockObjectStorage.setup(mockStorage);
+        storage = new S3SitemapStorage(mockStorage, null);
     }
 
     /**
@@ -50,7 +88,7 @@ public class SitemapGeneratorTest {
      * Test the basic flow of the generator by generating 2 sitemap files and 1 index and checking contents
      */
     @Test
-    public void testGenerator() {
+    public void testGenerator() throws SiteMapStorageException {
         String websiteBaseUrl = "https://www.europeana.eu";
         String fileName = SitemapType.ENTITY.getFileNameBase();
         Deployment deployment = Deployment.BLUE;
@@ -66,7 +104,7 @@ public class SitemapGeneratorTest {
 
         // generate the files (2 sitemap files, one with 3 items and one with 2 items, also 1 index file)
         int itemsPerSitemap = 3;
-        SitemapGenerator generator = new SitemapGenerator(SitemapType.ENTITY, mockStorage);
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.ENTITY, storage);
         generator.init(Deployment.BLUE, websiteBaseUrl, itemsPerSitemap);
         for (int i = 1; i < (itemsPerSitemap * 2); i++) {
             generator.addItem(websiteBaseUrl + "/item/" + i + ".html", String.valueOf(i), new Date());
@@ -83,8 +121,8 @@ public class SitemapGeneratorTest {
         assertEquals("Index file should only contain 2 references to sitemap files", 2, StringUtils.countMatches(indexContent, "<sitemap>"));
         String expectFileInIndex1 = websiteBaseUrl + "/" + fileName + ".xml?from=1&amp;to=3";
         String expectFileInIndex2 = websiteBaseUrl + "/" + fileName + ".xml?from=4&amp;to=5";
-        assertTrue("Contains file1", indexContent.contains("<sitemap><loc>" + expectFileInIndex1 + "</loc></sitemap>"));
-        assertTrue("Contains file2", indexContent.contains("<sitemap><loc>" + expectFileInIndex2 + "</loc></sitemap>"));
+        assertTrue("Contains file1", indexContent.contains("<sitemap><loc>" + expectFileInIndex1 + "</loc><lastmod>"));
+        assertTrue("Contains file2", indexContent.contains("<sitemap><loc>" + expectFileInIndex2 + "</loc><lastmod>"));
 
         // check sitemap file 1 contents
         String sitemap1Content = XmlUtils.harmonizeXml(new String(mockStorage.getObjectAsBytes(expectSitemapFileName1)));
@@ -103,30 +141,478 @@ public class SitemapGeneratorTest {
         }
     }
 
+    /**
+     * Test that streaming sitemap files (using multipart uploads) results in the same files as normal generation
+     */
+    @Test
+    public void testGeneratorStreaming() throws SiteMapStorageException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        String fileName = SitemapType.RECORD.getFileNameBase();
+        String expectSitemapFileName1 = fileName + "-" + Deployment.GREEN + ".xml?from=1&to=4";
+        String expectSitemapFileName2 = fileName + "-" + Deployment.GREEN + ".xml?from=5&to=6";
+        String notExpectSitemapFileName2 = fileName + "-" + Deployment.GREEN + ".xml?from=5&to=8";
+
+        S3Client s3Client = mockS3Client(new HashMap<>());
+
+        int itemsPerSitemap = 4;
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, storage,
+                new S3MultipartUploader(s3Client, "test", S3MultipartUploader.MIN_PART_SIZE), new SitemapUploader(storage, 0, 0), false);
+        generator.init(Deployment.GREEN, websiteBaseUrl, itemsPerSitemap);
+        for (int i = 1; i <= 6; i++) {
+            generator.addItem(websiteBaseUrl + "/item/" + i + ".html", "1.0", new Date());
+        }
+        generator.finish();
+
+        assertTrue(expectSitemapFileName1, mockStorage.isObjectAvailable(expectSitemapFileName1));
+        assertTrue(expectSitemapFileName2, mockStorage.isObjectAvailable(expectSitemapFileName2));
+        assertFalse(mockStorage.isObjectAvailable(notExpectSitemapFileName2));
+        String sitemap2Content = XmlUtils.harmonizeXml(new String(mockStorage.getObjectAsBytes(expectSitemapFileName2)));
+        assertEquals("Sitemap file " + expectSitemapFileName2 + " should contain 2 items", 2, StringUtils.countMatches(sitemap2Content, "<url>"));
+        assertTrue("Sitemap file should be closed", sitemap2Content.endsWith("</urlset>"));
+    }
+
+    /**
+     * Test that gzip-compressed sitemap files are saved with content-encoding and that the index refers to them
+     */
+    @Test
+    public void testGeneratorGzip() throws SiteMapStorageException, IOException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        String fileName = SitemapType.RECORD.getFileNameBase();
+        String expectIndexFileName = fileName + "-" + Deployment.BLUE + "-index.xml";
+        String expectSitemapFileName1 = fileName + "-" + Deployment.BLUE + ".xml.gz?from=1&to=4";
+        String expectSitemapFileName2 = fileName + "-" + Deployment.BLUE + ".xml.gz?from=5&to=6";
+
+        Map<String, String> contentEncodings = new HashMap<>();
+        S3Client s3Client = mockS3Client(contentEncodings);
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, storage,
+                new S3MultipartUploader(s3Client, "test", S3MultipartUploader.MIN_PART_SIZE), new SitemapUploader(storage, 0, 0), true);
+        generator.init(Deployment.BLUE, websiteBaseUrl, 4);
+        for (int i = 1; i <= 6; i++) {
+            generator.addItem(websiteBaseUrl + "/item/" + i + ".html", "1.0", new Date());
+        }
+        generator.finish();
+
+        assertEquals("Content-encoding of " + expectSitemapFileName1, "gzip", contentEncodings.get(expectSitemapFileName1));
+        assertEquals("Content-encoding of " + expectSitemapFileName2, "gzip", contentEncodings.get(expectSitemapFileName2));
+
+        String indexContent = XmlUtils.harmonizeXml(new String(mockStorage.getObjectAsBytes(expectIndexFileName)));
+        assertTrue("Index should refer to compressed file", indexContent.contains("<sitemap><loc>" + websiteBaseUrl
+                + "/" + fileName + ".xml.gz?from=5&amp;to=6</loc><lastmod>"));
+
+        byte[] compressed = mockStorage.getObjectAsBytes(expectSitemapFileName2);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            String sitemap2Content = XmlUtils.harmonizeXml(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            assertEquals("Sitemap file " + expectSitemapFileName2 + " should contain 2 items", 2, StringUtils.countMatches(sitemap2Content, "<url>"));
+            assertTrue("Sitemap file should be closed", sitemap2Content.endsWith("</urlset>"));
+        }
+    }
+
+    /**
+     * Test that generation works without S3, with gzip compression and saving files in the background
+     */
+    @Test
+    public void testGeneratorInMemoryStorage() throws SiteMapStorageException, IOException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        String fileName = SitemapType.RECORD.getFileNameBase();
+        InMemorySitemapStorage memoryStorage = new InMemorySitemapStorage();
+        try (SitemapUploader uploader = new SitemapUploader(memoryStorage, 2, 1024 * 1024)) {
+            SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, memoryStorage, null, uploader, true);
+            generator.init(Deployment.BLUE, websiteBaseUrl, 4);
+            for (int i = 1; i <= 6; i++) {
+                generator.addItem(websiteBaseUrl + "/item/" + i + ".html", "1.0", new Date());
+            }
+            generator.finish();
+        }
+
+        assertEquals("Storage should contain 2 sitemap files, index and manifest", 4, memoryStorage.list().size());
+        String indexContent = XmlUtils.harmonizeXml(new String(memoryStorage.getAsBytes(fileName + "-" + Deployment.BLUE
+                + "-index.xml"), StandardCharsets.UTF_8));
+        assertEquals("Index file should contain 2 references to sitemap files", 2, StringUtils.countMatches(indexContent, "<sitemap>"));
+        byte[] compressed = memoryStorage.getAsBytes(fileName + "-" + Deployment.BLUE + ".xml.gz?from=1&to=4");
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            String sitemap1Content = XmlUtils.harmonizeXml(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            assertEquals("Sitemap file should contain 4 items", 4, StringUtils.countMatches(sitemap1Content, "<url>"));
+        }
+    }
+
+    /**
+     * Test that an interrupted generation can be resumed from the last checkpoint and that this results in the same
+     * sitemap files as an uninterrupted generation
+     */
+    @Test
+    public void testGeneratorResume() throws SiteMapStorageException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        String fileName = SitemapType.RECORD.getFileNameBase() + "-" + Deployment.GREEN;
+        String checkpointFileName = fileName + "-checkpoint.txt";
+        Date lastModified = new Date(1_700_000_000_000L);
+        InMemorySitemapStorage expectedStorage = new InMemorySitemapStorage();
+        try (SitemapUploader uploader = new SitemapUploader(expectedStorage, 0, 1024 * 1024)) {
+            SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, expectedStorage, null, uploader, false);
+            generator.init(Deployment.GREEN, websiteBaseUrl, 3);
+            for (int i = 1; i <= 10; i++) {
+                generator.addItem(null, websiteBaseUrl + "/item/" + i, null, lastModified, i);
+            }
+            generator.finish();
+        }
+
+        // generate 7 items and then stop without finishing, so only the first 2 files are saved
+        InMemorySitemapStorage memoryStorage = new InMemorySitemapStorage();
+        try (SitemapUploader uploader = new SitemapUploader(memoryStorage, 2, 1024 * 1024)) {
+            SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, memoryStorage, null, uploader, false);
+            generator.enableCheckpoints();
+            generator.init(Deployment.GREEN, websiteBaseUrl, 3);
+            for (int i = 1; i <= 7; i++) {
+                generator.addItem(null, websiteBaseUrl + "/item/" + i, null, lastModified, i);
+            }
+            uploader.awaitCompletion();
+        }
+        SitemapCheckpoint checkpoint = SitemapCheckpoint.load(memoryStorage, checkpointFileName);
+        Assertions.assertNotNull(checkpoint);
+        assertEquals("Checkpoint should be after the 6th item", "6", checkpoint.position());
+        assertEquals("Checkpoint should contain 2 sitemap files", 2, checkpoint.indexEntries().size());
+
+        try (SitemapUploader uploader = new SitemapUploader(memoryStorage, 2, 1024 * 1024)) {
+            SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, memoryStorage, null, uploader, false);
+            generator.enableCheckpoints();
+            generator.init(Deployment.GREEN, websiteBaseUrl, 3, SitemapGenerator.MAX_BYTES_PER_SITEMAP, checkpoint);
+            int position = Integer.parseInt(generator.getResumePosition());
+            for (int i = position + 1; i <= 10; i++) {
+                generator.addItem(null, websiteBaseUrl + "/item/" + i, null, lastModified, i);
+            }
+            generator.finish();
+        }
+
+        assertFalse(memoryStorage.exists(checkpointFileName), "Checkpoint should be deleted when generation is finished");
+        String indexContent = new String(memoryStorage.getAsBytes(fileName + "-index.xml"), StandardCharsets.UTF_8);
+        assertEquals("Index file should contain 4 references to sitemap files", 4, StringUtils.countMatches(indexContent, "<sitemap>"));
+        for (String suffix : new String[]{"1&to=3", "4&to=6", "7&to=9", "10&to=10"}) {
+            String sitemapFile = fileName + ".xml?from=" + suffix;
+            Assertions.assertArrayEquals(expectedStorage.getAsBytes(sitemapFile), memoryStorage.getAsBytes(sitemapFile),
+                    "Sitemap file " + sitemapFile + " should be the same as after an uninterrupted generation");
+        }
+    }
+
+    /**
+     * Test that no checkpoints are saved for files that are completed within the checkpoint interval
+     */
+    @Test
+    public void testGeneratorCheckpointInterval() throws SiteMapStorageException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        String checkpointFileName = SitemapType.RECORD.getFileNameBase() + "-" + Deployment.GREEN + "-checkpoint.txt";
+        InMemorySitemapStorage memoryStorage = new InMemorySitemapStorage();
+        try (SitemapUploader uploader = new SitemapUploader(memoryStorage, 0, 1024 * 1024)) {
+            SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, memoryStorage, null, uploader, false);
+            generator.enableCheckpoints(Duration.ofHours(1));
+            generator.init(Deployment.GREEN, websiteBaseUrl, 3);
+            for (int i = 1; i <= 7; i++) {
+                generator.addItem(null, websiteBaseUrl + "/item/" + i, null, null, i);
+            }
+            uploader.awaitCompletion();
+        }
+        assertFalse(memoryStorage.exists(checkpointFileName), "No checkpoint should be saved within the interval");
+    }
+
+    /**
+     * Test that generation metrics are recorded
+     */
+    @Test
+    public void testGeneratorMetrics() throws SiteMapStorageException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        MeterRegistry registry = new SimpleMeterRegistry();
+        SitemapMetrics metrics = new SitemapMetrics(registry);
+        InMemorySitemapStorage memoryStorage = new InMemorySitemapStorage();
+        try (SitemapUploader uploader = new SitemapUploader(memoryStorage, 0, 1024 * 1024, metrics)) {
+            SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, memoryStorage, null, uploader, false, metrics);
+            generator.init(Deployment.GREEN, websiteBaseUrl, 4);
+            for (int i = 1; i <= 5; i++) {
+                generator.addItem(websiteBaseUrl + "/item/" + i, null, null);
+            }
+            assertEquals("Current file should contain 1 item", 1.0,
+                    registry.get("sitemap.file.items").tag("type", "record").gauge().value());
+            assertEquals("Current file should be filled for a quarter", 0.25,
+                    registry.get("sitemap.file.fill").tag("type", "record").gauge().value());
+            generator.finish();
+        }
+
+        assertEquals("Current file gauge should be reset", 0.0,
+                registry.get("sitemap.file.items").tag("type", "record").gauge().value());
+        assertEquals("All items should be counted", 5.0,
+                registry.get("sitemap.items").tag("type", "record").counter().count());
+        assertEquals("Both sitemap files should be counted", 2.0,
+                registry.get("sitemap.files").tag("type", "record").tag("unchanged", "false").counter().count());
+        assertTrue("Encoded bytes should be counted",
+                registry.get("sitemap.encoded").tag("type", "record").counter().count() > 0);
+        // 2 sitemap files, the index and the manifest
+        assertEquals("All saved files should be timed", 4L,
+                registry.get("sitemap.storage.save").tag("outcome", "success").timer().count());
+    }
+
+    /**
+     * Test that files of the active deployment can be carried over, so only a changed file is regenerated
+     */
+    @Test
+    public void testGeneratorDelta() throws SiteMapStorageException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        String fileName = SitemapType.RECORD.getFileNameBase();
+        Date lastModified = new Date(1_700_000_000_000L);
+        InMemorySitemapStorage memoryStorage = new InMemorySitemapStorage();
+        try (SitemapUploader uploader = new SitemapUploader(memoryStorage, 2, 1024 * 1024)) {
+            SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, memoryStorage, null, uploader, false);
+            generator.init(Deployment.BLUE, websiteBaseUrl, 3);
+            for (int i = 1; i <= 9; i++) {
+                generator.addItem(null, websiteBaseUrl + "/item/" + i, null, lastModified, i);
+            }
+            generator.finish();
+        }
+
+        // regenerate only the middle file, where 1 item is removed and 1 item is changed
+        SitemapManifest greenManifest;
+        try (SitemapUploader uploader = new SitemapUploader(memoryStorage, 2, 1024 * 1024)) {
+            SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, memoryStorage, null, uploader, false);
+            generator.init(Deployment.GREEN, websiteBaseUrl, 3);
+            assertTrue("Active files should have item information", generator.canAddUnchangedFiles());
+            List<String> activeFiles = new ArrayList<>(generator.getActiveManifest().getEntries().keySet());
+            assertEquals("Active deployment should have 3 files", 3, activeFiles.size());
+            generator.addUnchangedFile(activeFiles.get(0));
+            generator.addItem(null, websiteBaseUrl + "/item/4", null, lastModified, 4);
+            generator.addItem(null, websiteBaseUrl + "/item/6", null, new Date(), 6);
+            generator.completeSitemapFile();
+            generator.addUnchangedFile(activeFiles.get(2));
+            generator.finish();
+            greenManifest = SitemapManifest.load(memoryStorage, fileName + "-" + Deployment.GREEN + "-manifest.txt");
+            assertEquals("Full generation date should be the one of the active deployment",
+                    generator.getActiveManifest().getFullGenerationStarted(), greenManifest.getFullGenerationStarted());
+        }
+
+        String blue = fileName + "-" + Deployment.BLUE + ".xml?from=";
+        String green = fileName + "-" + Deployment.GREEN + ".xml?from=";
+        Assertions.assertArrayEquals(memoryStorage.getAsBytes(blue + "1&to=3"), memoryStorage.getAsBytes(green + "1&to=3"));
+        Assertions.assertArrayEquals(memoryStorage.getAsBytes(blue + "7&to=9"), memoryStorage.getAsBytes(green + "6&to=8"));
+        String sitemap2Content = new String(memoryStorage.getAsBytes(green + "4&to=5"), StandardCharsets.UTF_8);
+        assertEquals("Regenerated file should contain 2 items", 2, StringUtils.countMatches(sitemap2Content, "<url>"));
+        assertFalse(memoryStorage.exists(green + "9&to=8"), "There should be no empty last file");
+
+        SitemapManifest.Entry entry3 = greenManifest.get(fileName + ".xml?from=6&to=8");
+        assertEquals("Carried over file should have 3 items", 3L, entry3.itemCount());
+        assertEquals("Carried over file should have the same last id", "9", entry3.lastId());
+        assertEquals("Regenerated file should have a new last id", "6",
+                greenManifest.get(fileName + ".xml?from=4&to=5").lastId());
+        String indexContent = new String(memoryStorage.getAsBytes(fileName + "-" + Deployment.GREEN + "-index.xml"),
+                StandardCharsets.UTF_8);
+        assertEquals("Index file should contain 3 references to sitemap files", 3, StringUtils.countMatches(indexContent, "<sitemap>"));
+    }
+
+    /**
+     * Test that urls are escaped and items with a url that's too long are skipped
+     */
+    @Test
+    public void testGeneratorEscapeAndSkipLongUrl() throws SiteMapStorageException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        InMemorySitemapStorage memoryStorage = new InMemorySitemapStorage();
+        try (SitemapUploader uploader = new SitemapUploader(memoryStorage, 0, 1024 * 1024)) {
+            SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, memoryStorage, null, uploader, false);
+            generator.init(Deployment.BLUE, websiteBaseUrl, 3);
+            generator.addItem(websiteBaseUrl + "/item/1?a=1&b=2", null, null);
+            generator.addItem(websiteBaseUrl + "/item/" + "x".repeat(SitemapEntryEncoder.MAX_URL_LENGTH), null, null);
+            generator.addItem(websiteBaseUrl + "/item/3", null, null);
+            generator.finish();
+        }
+
+        String content = new String(memoryStorage.getAsBytes(SitemapType.RECORD.getFileNameBase() + "-" + Deployment.BLUE
+                + ".xml?from=1&to=2"), StandardCharsets.UTF_8);
+        assertEquals("Sitemap file should contain 2 items", 2, StringUtils.countMatches(content, "<url>"));
+        assertTrue("Url should be escaped", content.contains("<loc>" + websiteBaseUrl + "/item/1?a=1&amp;b=2</loc>"));
+    }
+
+    /**
+     * Create a mock S3 client that sends all uploads to our mock storage
+     * @param contentEncodings map to which the content-encoding of all uploaded files is added
+     */
+    private static S3Client mockS3Client(Map<String, String> contentEncodings) {
+        S3Client s3Client = mock(S3Client.class);
+        when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class))).thenAnswer((Answer<PutObjectResponse>) invocation -> {
+            PutObjectRequest request = invocation.getArgument(0);
+            RequestBody body = invocation.getArgument(1);
+            try (InputStream in = body.contentStreamProvider().newStream()) {
+                if (request.contentEncoding() != null) {
+                    contentEncodings.put(request.key(), request.contentEncoding());
+                }
+                String eTag = mockStorage.putObject(request.key(), request.contentType(), in.readAllBytes());
+                return PutObjectResponse.builder().eTag(eTag).build();
+            }
+        });
+        when(s3Client.copyObject(any(CopyObjectRequest.class))).thenAnswer((Answer<CopyObjectResponse>) invocation -> {
+            CopyObjectRequest request = invocation.getArgument(0);
+            // S3 copies metadata by default
+            if (contentEncodings.containsKey(request.sourceKey())) {
+                contentEncodings.put(request.destinationKey(), contentEncodings.get(request.sourceKey()));
+            }
+            String eTag = mockStorage.putObject(request.destinationKey(), "application/xml",
+                    mockStorage.getObjectAsBytes(request.sourceKey()));
+            return CopyObjectResponse.builder().copyObjectResult(CopyObjectResult.builder().eTag(eTag).build()).build();
+        });
+        return s3Client;
+    }
+
+    /**
+     * Test that a new file is started when the maximum file size is reached and that from/to values stay consistent
+     */
+    @Test
+    public void testGeneratorMaxFileSize() throws SiteMapStorageException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        String fileName = SitemapType.RECORD.getFileNameBase();
+        long maxBytes = 1000;
+        int nrItems = 20;
+
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, storage);
+        generator.init(Deployment.BLUE, websiteBaseUrl, 100, maxBytes);
+        for (int i = 1; i <= nrItems; i++) {
+            // vary url length so files contain a different number of items
+            generator.addItem(websiteBaseUrl + "/item/" + "x".repeat(i * 5) + ".html", "0.5", new Date());
+        }
+        generator.finish();
+
+        String indexContent = new String(mockStorage.getObjectAsBytes(fileName + "-" + Deployment.BLUE + "-index.xml"));
+        int nrFiles = StringUtils.countMatches(indexContent, "<sitemap>");
+        assertTrue("Expected multiple files", nrFiles > 1);
+        long from = 1;
+        int itemsFound = 0;
+        while (from <= nrItems) {
+            String fromParam = "?from=" + from + "&amp;to=";
+            int start = indexContent.indexOf(fromParam);
+            assertTrue("Index should contain file starting at " + from, start > 0);
+            long to = Long.parseLong(indexContent.substring(start + fromParam.length(), indexContent.indexOf("</loc>", start)));
+
+            byte[] contents = mockStorage.getObjectAsBytes(fileName + "-" + Deployment.BLUE + ".xml?from=" + from + "&to=" + to);
+            assertTrue("File size " + contents.length + " exceeds maximum", contents.length <= maxBytes);
+            int itemsInFile = StringUtils.countMatches(new String(contents), "<url>");
+            assertEquals("Number of items in file starting at " + from, (int) (to - from + 1), itemsInFile);
+            itemsFound += itemsInFile;
+            from = to + 1;
+        }
+        assertEquals("Total number of items", nrItems, itemsFound);
+    }
+
+    /**
+     * Test that files that are the same as in the active deployment are copied and keep their last-modified date
+     */
+    @Test
+    public void testGeneratorUnchangedFiles() throws SiteMapStorageException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        String fileName = SitemapType.RECORD.getFileNameBase();
+        String oldDate = "2020-01-01T00:00:00+00:00";
+        S3Client s3Client = mockS3Client(new HashMap<>());
+
+        // first generate blue deployment and change the dates in its manifest
+        generateRecords(s3Client, Deployment.BLUE, websiteBaseUrl, "a");
+        String blueManifest = fileName + "-" + Deployment.BLUE + "-manifest.txt";
+        String manifest = new String(mockStorage.getObjectAsBytes(blueManifest), StandardCharsets.UTF_8);
+        assertEquals("Manifest should contain 2 files", 2, StringUtils.countMatches(manifest, fileName + ".xml?from="));
+        mockStorage.putObject(blueManifest, "text/plain",
+                manifest.replaceAll("(?m)^(" + fileName + "[^\t]*\t[^\t]+\t)[^\t\n]+$", "$1" + oldDate)
+                        .getBytes(StandardCharsets.UTF_8));
+
+        // then generate green deployment where only the second file is different
+        generateRecords(s3Client, Deployment.GREEN, websiteBaseUrl, "b");
+        verify(s3Client, times(1)).copyObject(any(CopyObjectRequest.class));
+        assertTrue("Unchanged file should be copied", mockStorage.isObjectAvailable(fileName + "-" + Deployment.GREEN + ".xml?from=1&to=4"));
+
+        String indexContent = XmlUtils.harmonizeXml(new String(mockStorage.getObjectAsBytes(fileName + "-" + Deployment.GREEN + "-index.xml")));
+        assertTrue("Unchanged file should keep its last-modified date", indexContent.contains("?from=1&amp;to=4</loc><lastmod>" + oldDate.toLowerCase(Locale.ROOT)));
+        assertFalse(indexContent.contains("?from=5&amp;to=6</loc><lastmod>" + oldDate.toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * Test that the last-modified date of a file in the index is the most recent last-modified date of its items,
+     * unless the file changed without any item being modified
+     */
+    @Test
+    public void testGeneratorFileLastModified() throws SiteMapStorageException {
+        String websiteBaseUrl = "https://www.europeana.eu";
+        InMemorySitemapStorage memoryStorage = new InMemorySitemapStorage();
+        Date[] dates = {new Date(1_600_000_000_000L), new Date(1_700_000_000_000L), new Date(1_650_000_000_000L)};
+        String format = DateFormatUtils.ISO_8601_EXTENDED_DATETIME_TIME_ZONE_FORMAT.getPattern();
+
+        long blueStart = System.currentTimeMillis();
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, memoryStorage);
+        generator.init(Deployment.BLUE, websiteBaseUrl, 3);
+        for (int i = 0; i < dates.length; i++) {
+            generator.addItem(websiteBaseUrl + "/item/" + i, "1.0", dates[i]);
+        }
+        generator.addItem(websiteBaseUrl + "/item/3", "1.0", null);
+        generator.finish();
+        String blueIndex = new String(memoryStorage.getAsBytes(
+                StorageFileName.getSitemapIndexFileName(SitemapType.RECORD, Deployment.BLUE)), StandardCharsets.UTF_8);
+        assertTrue("First file should have the date of its most recently modified item",
+                blueIndex.contains("?from=1&amp;to=3</loc>\n<lastmod>" + DateFormatUtils.format(dates[1], format)));
+        assertGenerationDate("Second file has no item dates, so it should have the generation date",
+                getLastModified(blueIndex, "?from=4&amp;to=4"), blueStart);
+
+        // the first file changes, but its most recently modified item is the same
+        long greenStart = System.currentTimeMillis();
+        generator = new SitemapGenerator(SitemapType.RECORD, memoryStorage);
+        generator.init(Deployment.GREEN, websiteBaseUrl, 3);
+        generator.addItem(websiteBaseUrl + "/item/0", "1.0", dates[0]);
+        generator.addItem(websiteBaseUrl + "/item/1", "1.0", dates[1]);
+        generator.addItem(websiteBaseUrl + "/item/3", "1.0", null);
+        generator.finish();
+        String greenIndex = new String(memoryStorage.getAsBytes(
+                StorageFileName.getSitemapIndexFileName(SitemapType.RECORD, Deployment.GREEN)), StandardCharsets.UTF_8);
+        assertGenerationDate("Changed file without newer items should get the generation date",
+                getLastModified(greenIndex, "?from=1&amp;to=3"), greenStart);
+    }
+
+    private static OffsetDateTime getLastModified(String index, String fromTo) {
+        Matcher matcher = Pattern.compile(Pattern.quote(fromTo + "</loc>\n<lastmod>") + "([^<]+)</lastmod>").matcher(index);
+        assertTrue("Index should contain file " + fromTo, matcher.find());
+        return OffsetDateTime.parse(matcher.group(1));
+    }
+
+    private static void assertGenerationDate(String message, OffsetDateTime lastModified, long generationStart) {
+        // lastmod dates have no milliseconds
+        long seconds = lastModified.toEpochSecond();
+        assertTrue(message + ", but was " + lastModified, seconds >= generationStart / 1000
+                && seconds <= System.currentTimeMillis() / 1000);
+    }
+
+    private void generateRecords(S3Client s3Client, Deployment deployment, String websiteBaseUrl, String lastItemSuffix)
+            throws SiteMapStorageException {
+        SitemapStorage s3Storage = new S3SitemapStorage(mockStorage,
+                new S3MultipartUploader(s3Client, "test", S3MultipartUploader.MIN_PART_SIZE));
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, s3Storage, null,
+                new SitemapUploader(s3Storage, 0, 0), false);
+        generator.init(deployment, websiteBaseUrl, 4);
+        for (int i = 1; i <= 5; i++) {
+            generator.addItem(websiteBaseUrl + "/item/" + i + ".html", "1.0", new Date(0));
+        }
+        generator.addItem(websiteBaseUrl + "/item/6" + lastItemSuffix + ".html", "1.0", new Date(0));
+        generator.finish();
+    }
+
     @Test
     public void testGenerateNotStarted1() {
-        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, mockStorage);
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, storage);
         Assertions.assertThrows(IllegalStateException.class, () ->
                 generator.addItem("http://some.item/1", null, null));
     }
 
     @Test
     public void testGenerateNotStarted2() {
-        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, mockStorage);
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, storage);
         Assertions.assertThrows(IllegalStateException.class, generator::finish);
     }
 
     @Test
     public void testGenerateStartTwice() {
-        SitemapGenerator generator = new SitemapGenerator(SitemapType.ENTITY, mockStorage);
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.ENTITY, storage);
         generator.init(Deployment.BLUE, "https://www.fail.com", 5);
         Assertions.assertThrows(IllegalStateException.class, () ->
             generator.init(Deployment.GREEN, "https://www.fail.com", 5));
     }
 
     @Test
-    public void testGenerateFinishTwice() {
-        SitemapGenerator generator = new SitemapGenerator(SitemapType.ENTITY, mockStorage);
+    public void testGenerateFinishTwice() throws SiteMapStorageException {
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.ENTITY, storage);
         generator.init(Deployment.BLUE, "https://www.fail.com", 5);
         generator.addItem("http://some.item/1", null, null);
         generator.finish();
@@ -134,8 +620,8 @@ public class SitemapGeneratorTest {
     }
 
     @Test
-    public void testGenerateAddAfterFinish() {
-        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, mockStorage);
+    public void testGenerateAddAfterFinish() throws SiteMapStorageException {
+        SitemapGenerator generator = new SitemapGenerator(SitemapType.RECORD, storage);
         generator.init(Deployment.GREEN, "https://www.fail.com", 7);
         generator.addItem("http://some.item/1", null, null);
         generator.finish();
@@ -12,6 +12,8 @@ import eu.europeana.sitemap.exceptions.SiteMapException;
 import eu.europeana.sitemap.mongo.MongoProvider;
 import eu.europeana.sitemap.service.ActiveDeploymentService;
 import eu.europeana.sitemap.service.ReadSitemapServiceImpl;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.junit.jupiter.api.BeforeEach;
@@ -19,6 +21,8 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 
@@ -29,7 +33,10 @@ import java.nio.charset.StandardCharsets;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.springframework.test.util.AssertionErrors.assertTrue;
 
 
@@ -42,7 +49,8 @@ import static org.springframework.test.util.AssertionErrors.assertTrue;
  */
 @WireMockTest(httpsEnabled = true)
 @TestPropertySource("classpath:sitemap-test.properties")
-@SpringBootTest(classes = {UpdateEntityService.class, SitemapConfiguration.class, PortalUrl.class})
+@SpringBootTest(classes = {UpdateEntityService.class, SitemapConfiguration.class, PortalUrl.class,
+        SitemapUpdateEntityServiceTest.MeterRegistryConfig.class})
 public class SitemapUpdateEntityServiceTest {
 
     private static final String PORTAL_BASE_URL = "https://www-test.eanadev.org";
@@ -69,6 +77,19 @@ public class SitemapUpdateEntityServiceTest {
     private PortalUrl portalUrl;
     @Autowired
     private UpdateEntityService entityService;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * Registry from which we can read the metrics
+     */
+    @TestConfiguration
+    static class MeterRegistryConfig {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
 
     @BeforeEach
     public void init() throws IOException {
@@ -134,6 +155,87 @@ public class SitemapUpdateEntityServiceTest {
         assertTrue("String \"" + expected +"\" not found in sitemap file:\n"+ generatedSitemap,
                 XmlUtils.harmonizeXml(generatedSitemap).contains(expected));
 
+        // check reported progress
+        UpdateProgress.Status status = entityService.getUpdateStatus();
+        assertEquals(UpdateProgress.Phase.DONE, status.phase());
+        assertEquals(20, status.itemsProcessed());
+        assertEquals(20, status.estimatedItems());
+        assertEquals(1, status.filesWritten());
+        assertNull(status.etaSeconds());
+    }
+
+    /**
+     * Test that pages retrieved at the same time are added to the sitemap in page order, even if a later page is
+     * returned first
+     */
+    @Test
+    public void testConcurrentPages() throws SiteMapException {
+        configuration.setEntityApi(getMockEntityApiUrl());
+        configuration.setEntityApiKey(TEST_WSKEY);
+        MockObjectStorage.clear();
+        int total = 250;
+        for (int page = 1; page <= 3; page++) {
+            wmExtension.stubFor(get(urlPathMatching("/entity/search"))
+                    .withQueryParam("wskey", equalTo(TEST_WSKEY))
+                    .withQueryParam("page", equalTo(String.valueOf(page)))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withFixedDelay(page == 2 ? 500 : 0)
+                            .withHeader("Content-Type", "application/json;charset=UTF-8")
+                            .withBody(getEntityPage(page, total))));
+        }
+
+        entityService.update();
+
+        String generatedSitemap = XmlUtils.harmonizeXml(new String(
+                mockStorage.getObjectAsBytes("sitemap-entity-blue.xml?from=1&to=" + total)));
+        int lastPosition = -1;
+        for (int i = 1; i <= total; i++) {
+            String expected = "<url><loc>" + PORTAL_BASE_URL + "/en/collections/person/" + i + "</loc></url>";
+            int position = generatedSitemap.indexOf(expected);
+            assertTrue("Entity " + i + " should come after entity " + (i - 1), position > lastPosition);
+            lastPosition = position;
+        }
+        assertEquals(total, entityService.getUpdateStatus().itemsProcessed());
+    }
+
+    /**
+     * Test that the gauges of the current sitemap file are reset when an update fails halfway
+     */
+    @Test
+    public void testFailedUpdateClearsCurrentFile() {
+        configuration.setEntityApi(getMockEntityApiUrl());
+        configuration.setEntityApiKey(TEST_WSKEY);
+        MockObjectStorage.clear();
+        wmExtension.stubFor(get(urlPathMatching("/entity/search"))
+                .withQueryParam("wskey", equalTo(TEST_WSKEY))
+                .withQueryParam("page", equalTo("1"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json;charset=UTF-8")
+                        .withBody(getEntityPage(1, 250))));
+        wmExtension.stubFor(get(urlPathMatching("/entity/search"))
+                .withQueryParam("wskey", equalTo(TEST_WSKEY))
+                .withQueryParam("page", equalTo("2"))
+                .willReturn(aResponse().withStatus(500)));
+
+        assertThrows(SiteMapException.class, () -> entityService.update());
+
+        assertEquals(0, meterRegistry.get("sitemap.file.items").tag("type", "entity").gauge().value());
+        assertEquals(0, meterRegistry.get("sitemap.file.fill").tag("type", "entity").gauge().value());
+    }
+
+    private static String getEntityPage(int page, int total) {
+        StringBuilder items = new StringBuilder();
+        int first = (page - 1) * 100 + 1;
+        for (int i = first; i < first + 100 && i <= total; i++) {
+            if (i > first) {
+                items.append(',');
+            }
+            items.append("{\"id\":\"http://data.europeana.eu/agent/base/").append(i).append("\",\"type\":\"Agent\"}");
+        }
+        return "{\"type\":\"ResultPage\",\"partOf\":{\"type\":\"ResultList\",\"total\":" + total
+                + "},\"items\":[" + items + "]}";
     }
 
 
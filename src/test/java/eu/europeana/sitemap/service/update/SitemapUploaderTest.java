@@ -0,0 +1,218 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.s3.S3ObjectStorageClient;
+import eu.europeana.sitemap.MockObjectStorage;
+import eu.europeana.sitemap.exceptions.SiteMapStorageException;
+import eu.europeana.sitemap.metrics.SitemapMetrics;
+import eu.europeana.sitemap.s3.S3MultipartUploader;
+import eu.europeana.sitemap.storage.S3SitemapStorage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.ServerSideEncryption;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests the SitemapUploader class
+ * @see SitemapUploader
+ */
+@SuppressWarnings("java:S5786")
+public class SitemapUploaderTest {
+
+    private static S3ObjectStorageClient mockStorage = mock(S3ObjectStorageClient.class);
+
+    /**
+     * Setup mock objectstorage
+     */
+    @BeforeAll
+    public static void setup() {
+        mockStorage = MockObjectStorage.setup(mockStorage);
+    }
+
+    /**
+     * Clear mock storage before each test
+     */
+    @BeforeEach
+    public void init() {
+        MockObjectStorage.clear();
+    }
+
+    @Test
+    public void testSaveInBackground() throws SiteMapStorageException {
+        try (SitemapUploader uploader = new SitemapUploader(new S3SitemapStorage(mockStorage, null), 2, 10)) {
+            for (int i = 0; i < 10; i++) {
+                uploader.save("file" + i, "text/plain", ("content" + i).getBytes(StandardCharsets.UTF_8));
+            }
+            uploader.awaitCompletion();
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mockStorage.isObjectAvailable("file" + i));
+        }
+    }
+
+    @Test
+    public void testMaxBytesInFlight() throws InterruptedException, SiteMapStorageException {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger saved = new AtomicInteger();
+        try (SitemapUploader uploader = new SitemapUploader(new S3SitemapStorage(mockStorage, null), 2, 10)) {
+            uploader.submit("file1", 10, () -> {
+                try {
+                    return release.await(5, TimeUnit.SECONDS) && saved.incrementAndGet() > 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            });
+            // the second file has to wait until the first one is done, so it can only finish after we release the first
+            Thread second = new Thread(() -> uploader.submit("file2", 5, () -> saved.incrementAndGet() > 0));
+            second.start();
+            second.join(200);
+            assertTrue(second.isAlive());
+            assertEquals(0, saved.get());
+
+            release.countDown();
+            second.join(5000);
+            assertFalse(second.isAlive());
+            uploader.awaitCompletion();
+            assertEquals(2, saved.get());
+        }
+    }
+
+    @Test
+    public void testFailedSave() {
+        try (SitemapUploader uploader = new SitemapUploader(new S3SitemapStorage(mockStorage, null), 2, 10)) {
+            // make sure all files are submitted before any of them fails
+            CountDownLatch submitted = new CountDownLatch(1);
+            uploader.submit("file1", 1, () -> true);
+            uploader.submit("file2", 1, () -> {
+                awaitQuietly(submitted);
+                return false;
+            });
+            uploader.submit("file3", 1, () -> {
+                awaitQuietly(submitted);
+                throw new IllegalStateException("test error");
+            });
+            submitted.countDown();
+            SiteMapStorageException e = assertThrows(SiteMapStorageException.class, uploader::awaitCompletion);
+            assertTrue(e.getMessage().contains("file2"));
+            assertTrue(e.getMessage().contains("file3"));
+            // no new files are accepted after a failure
+            assertThrows(IllegalStateException.class, () -> uploader.submit("file4", 1, () -> true));
+        }
+    }
+
+    /**
+     * Check that a save is verified using the returned etag, without checking if the file exists
+     */
+    @Test
+    public void testSaveVerifiedByETag() throws SiteMapStorageException {
+        clearInvocations(mockStorage);
+        try (SitemapUploader uploader = new SitemapUploader(new S3SitemapStorage(mockStorage, null), 1, 10)) {
+            uploader.save("file1", "text/plain", "content".getBytes(StandardCharsets.UTF_8));
+            uploader.awaitCompletion();
+        }
+        verify(mockStorage, times(1)).putObject(anyString(), anyString(), any(byte[].class));
+        verify(mockStorage, never()).isObjectAvailable(anyString());
+    }
+
+    /**
+     * Check that a corrupted save is retried
+     */
+    @Test
+    public void testSaveChecksumMismatch() throws SiteMapStorageException {
+        clearInvocations(mockStorage);
+        MockObjectStorage.simulateCorruptedSaves(1);
+        try (SitemapUploader uploader = new SitemapUploader(new S3SitemapStorage(mockStorage, null), 1, 10)) {
+            uploader.save("file1", "text/plain", "content".getBytes(StandardCharsets.UTF_8));
+            uploader.awaitCompletion();
+        }
+        verify(mockStorage, times(2)).putObject(anyString(), anyString(), any(byte[].class));
+        assertEquals("content", new String(mockStorage.getObjectAsBytes("file1"), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Check that we give up if saves keep getting corrupted
+     */
+    @Test
+    public void testSaveChecksumMismatchFails() {
+        MockObjectStorage.simulateCorruptedSaves(Integer.MAX_VALUE);
+        MeterRegistry registry = new SimpleMeterRegistry();
+        try (SitemapUploader uploader = new SitemapUploader(new S3SitemapStorage(mockStorage, null), 1, 10,
+                new SitemapMetrics(registry))) {
+            uploader.save("file1", "text/plain", "content".getBytes(StandardCharsets.UTF_8));
+            SiteMapStorageException e = assertThrows(SiteMapStorageException.class, uploader::awaitCompletion);
+            assertTrue(e.getMessage().contains("file1"));
+        }
+        assertEquals(3, registry.get("sitemap.storage.save").tag("outcome", "failure").timer().count());
+        assertEquals(2, registry.get("sitemap.storage.save.retries").counter().count());
+        assertEquals(1, registry.get("sitemap.storage.save.failed").counter().count());
+    }
+
+    /**
+     * Check that files saved in a bucket with KMS encryption are verified by checking if they exist, because their
+     * ETag isn't an MD5 checksum
+     */
+    @Test
+    public void testSaveEncryptedObject() throws SiteMapStorageException {
+        clearInvocations(mockStorage);
+        S3Client s3Client = mock(S3Client.class);
+        when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class))).thenAnswer(invocation -> {
+            PutObjectRequest request = invocation.getArgument(0);
+            try (InputStream in = ((RequestBody) invocation.getArgument(1)).contentStreamProvider().newStream()) {
+                mockStorage.putObject(request.key(), request.contentType(), in.readAllBytes());
+            }
+            return PutObjectResponse.builder().eTag("0123456789abcdef0123456789abcdef")
+                    .serverSideEncryption(ServerSideEncryption.AWS_KMS).build();
+        });
+        S3SitemapStorage storage = new S3SitemapStorage(mockStorage,
+                new S3MultipartUploader(s3Client, "test", S3MultipartUploader.MIN_PART_SIZE));
+        try (SitemapUploader uploader = new SitemapUploader(storage, 1, 10)) {
+            uploader.save("file1", "text/plain", "gzip", "content".getBytes(StandardCharsets.UTF_8));
+            uploader.awaitCompletion();
+        }
+        assertFalse(storage.hasMd5ETags());
+        verify(s3Client, times(1)).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+        verify(mockStorage, times(1)).isObjectAvailable("file1");
+        assertEquals("content", new String(mockStorage.getObjectAsBytes("file1"), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Check that ETags are not compared with the checksum if the bucket is configured as encrypted
+     */
+    @Test
+    public void testSaveWithoutMd5ETags() throws SiteMapStorageException {
+        clearInvocations(mockStorage);
+        MockObjectStorage.simulateCorruptedSaves(1);
+        try (SitemapUploader uploader = new SitemapUploader(new S3SitemapStorage(mockStorage, null, false), 1, 10)) {
+            uploader.save("file1", "text/plain", "content".getBytes(StandardCharsets.UTF_8));
+            uploader.awaitCompletion();
+        }
+        // the (simulated) corruption can't be detected, but the save doesn't fail because of a different etag
+        verify(mockStorage, times(1)).putObject(anyString(), anyString(), any(byte[].class));
+        verify(mockStorage, times(1)).isObjectAvailable("file1");
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
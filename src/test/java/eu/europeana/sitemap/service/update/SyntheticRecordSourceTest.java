@@ -0,0 +1,90 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.mongo.RecordProjection;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the SyntheticRecordSource class
+ * @see SyntheticRecordSource
+ */
+@SuppressWarnings("java:S5786")
+public class SyntheticRecordSourceTest {
+
+    private static final int NR_RECORDS = 50_000;
+    private static final long SEED = 42;
+
+    private static List<RecordProjection> readAll(RecordSource source, Object after, Object upTo) {
+        List<RecordProjection> result = new ArrayList<>();
+        try (RecordSource.RecordCursor cursor = source.read(after, upTo)) {
+            cursor.forEachRemaining(result::add);
+        }
+        return result;
+    }
+
+    /**
+     * Check that the same seed always generates the same records, sorted by id
+     */
+    @Test
+    public void testDeterministic() {
+        List<RecordProjection> records = readAll(new SyntheticRecordSource(NR_RECORDS, SEED, 0), null, null);
+        assertEquals(NR_RECORDS, records.size());
+        assertEquals(records, readAll(new SyntheticRecordSource(NR_RECORDS, SEED, 0), null, null));
+        assertNotEquals(records, readAll(new SyntheticRecordSource(NR_RECORDS, SEED + 1, 0), null, null));
+        for (int i = 1; i < records.size(); i++) {
+            assertTrue(records.get(i - 1).id().toString().compareTo(records.get(i).id().toString()) < 0);
+        }
+        assertTrue(records.get(0).about().matches("/\\d+/.+"));
+    }
+
+    /**
+     * Check that reading an id range returns the same records as reading everything
+     */
+    @Test
+    public void testReadRange() {
+        SyntheticRecordSource source = new SyntheticRecordSource(NR_RECORDS, SEED, 0);
+        List<RecordProjection> all = readAll(source, null, null);
+        Object after = source.toId(all.get(99).id().toString());
+        Object upTo = source.toId(all.get(199).id().toString());
+        assertEquals(all.subList(100, 200), readAll(source, after, upTo));
+        assertEquals(all.subList(NR_RECORDS - 10, NR_RECORDS), readAll(source, all.get(NR_RECORDS - 11).id(), null));
+
+        List<Object> samples = source.sampleIds(100);
+        assertEquals(100, samples.size());
+        assertEquals(samples, source.sampleIds(100));
+    }
+
+    /**
+     * Check that tiers and timestamps are spread roughly like in production
+     */
+    @Test
+    public void testDistribution() {
+        List<RecordProjection> records = readAll(new SyntheticRecordSource(NR_RECORDS, SEED, 0), null, null);
+        long contentTier4 = records.stream().filter(r -> r.contentTier() == 4).count();
+        long metadataTierA = records.stream().filter(r -> r.metadataTier() == 'A').count();
+        long noTimestamp = records.stream().filter(r -> !r.hasTimestampUpdated()).count();
+        assertEquals(0.25, (double) contentTier4 / NR_RECORDS, 0.02);
+        assertEquals(0.40, (double) metadataTierA / NR_RECORDS, 0.02);
+        assertEquals(0.02, (double) noTimestamp / NR_RECORDS, 0.005);
+    }
+
+    /**
+     * Check that changed ids match the generated timestamps
+     */
+    @Test
+    public void testChangedIds() {
+        SyntheticRecordSource source = new SyntheticRecordSource(NR_RECORDS, SEED, 0);
+        Instant since = Instant.parse("2024-01-01T00:00:00Z");
+        long expected = readAll(source, null, null).stream()
+                .filter(r -> r.hasTimestampUpdated() && r.timestampUpdated() >= since.toEpochMilli())
+                .count();
+        assertTrue(expected > 0);
+        assertEquals(expected, source.getChangedIds(since, (int) expected).size());
+        assertNull(source.getChangedIds(since, (int) expected - 1));
+    }
+}
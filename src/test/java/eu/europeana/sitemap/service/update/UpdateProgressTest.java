@@ -0,0 +1,72 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.SitemapType;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the UpdateProgress class
+ * @see UpdateProgress
+ */
+@SuppressWarnings("java:S5786")
+public class UpdateProgressTest {
+
+    /**
+     * Check that nothing is reported before an update is started
+     */
+    @Test
+    public void testIdle() {
+        UpdateProgress.Status status = new UpdateProgress(SitemapType.RECORD).getStatus();
+        assertEquals(UpdateProgress.Phase.IDLE, status.phase());
+        assertNull(status.started());
+        assertEquals(-1, status.estimatedItems());
+        assertNull(status.etaSeconds());
+    }
+
+    /**
+     * Check throughput and estimated time remaining while generating, when resuming after 100 items
+     */
+    @Test
+    public void testGenerateEta() {
+        UpdateProgress progress = new UpdateProgress(SitemapType.RECORD);
+        progress.start();
+        assertEquals(UpdateProgress.Phase.DELETE, progress.getStatus().phase());
+
+        progress.startGeneration(100, 2);
+        long generateStart = System.nanoTime();
+        progress.setEstimatedItems(1100);
+        progress.setItemsProcessed(300);
+        progress.setFilesWritten(3);
+
+        // 200 new items in 2 seconds means 800 remaining items should take 8 seconds
+        UpdateProgress.Status status = progress.getStatus(generateStart + TimeUnit.SECONDS.toNanos(2));
+        assertEquals(UpdateProgress.Phase.GENERATE, status.phase());
+        assertNotNull(status.started());
+        assertEquals(300, status.itemsProcessed());
+        assertEquals(3, status.filesWritten());
+        assertEquals(100, status.itemsPerSecond(), 1);
+        assertEquals(8L, status.etaSeconds());
+    }
+
+    /**
+     * Check that there's no estimated time remaining once generation is done
+     */
+    @Test
+    public void testEnd() {
+        UpdateProgress progress = new UpdateProgress(SitemapType.ENTITY);
+        progress.start();
+        progress.startGeneration(0, 0);
+        progress.setEstimatedItems(10);
+        progress.setItemsProcessed(5);
+        progress.setPhase(UpdateProgress.Phase.FINISH);
+        assertNull(progress.getStatus().etaSeconds());
+
+        progress.end(false);
+        UpdateProgress.Status status = progress.getStatus();
+        assertEquals(UpdateProgress.Phase.FAILED, status.phase());
+        assertEquals(5, status.itemsProcessed());
+    }
+}
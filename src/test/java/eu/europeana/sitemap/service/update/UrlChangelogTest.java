@@ -0,0 +1,162 @@
+package eu.europeana.sitemap.service.update;
+
+import eu.europeana.sitemap.SitemapType;
+import eu.europeana.sitemap.StorageFileName;
+import eu.europeana.sitemap.service.Deployment;
+import eu.europeana.sitemap.storage.InMemorySitemapStorage;
+import eu.europeana.sitemap.storage.SitemapStorage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the UrlChangelog and ExternalUrlSorter classes
+ * @see UrlChangelog
+ * @see ExternalUrlSorter
+ */
+@SuppressWarnings("java:S5786")
+public class UrlChangelogTest {
+
+    private static final byte[] PREFIX = "https://www.europeana.eu/item".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testSortWithSpillFiles() {
+        List<String> result = new ArrayList<>();
+        try (ExternalUrlSorter sorter = new ExternalUrlSorter(tempDir, 3)) {
+            for (String url : List.of("e", "b", "a", "d", "b", "f", "c", "a", "g", "e")) {
+                sorter.add(url);
+            }
+            assertEquals(10, sorter.size());
+            assertEquals(3, sorter.getNrSpillFiles());
+            sorter.sorted().forEachRemaining(result::add);
+        }
+        assertEquals(List.of("a", "b", "c", "d", "e", "f", "g"), result);
+        assertEquals(0, countTempFiles());
+    }
+
+    @Test
+    public void testPublishWithoutPreviousUrlList() throws IOException {
+        SitemapStorage storage = new InMemorySitemapStorage();
+        try (UrlChangelog changelog = new UrlChangelog(storage, SitemapType.RECORD, tempDir, 2)) {
+            changelog.add(PREFIX, "/3/c");
+            changelog.add(PREFIX, "/1/a");
+            changelog.add(PREFIX, "/2/b");
+
+            UrlChangelog.Result result = changelog.publish(Deployment.BLUE, Deployment.GREEN);
+            assertEquals(new UrlChangelog.Result(3, -1, -1), result);
+        }
+        assertEquals(List.of("https://www.europeana.eu/item/1/a", "https://www.europeana.eu/item/2/b",
+                "https://www.europeana.eu/item/3/c"), readLines(storage,
+                StorageFileName.getSitemapUrlListFileName(SitemapType.RECORD, Deployment.BLUE)));
+        assertFalse(storage.exists(StorageFileName.getSitemapChangelogFileName(SitemapType.RECORD, Deployment.BLUE, true)));
+        assertFalse(storage.exists(StorageFileName.getSitemapChangelogFileName(SitemapType.RECORD, Deployment.BLUE, false)));
+        assertEquals(0, countTempFiles());
+    }
+
+    @Test
+    public void testPublishChangelog() throws IOException {
+        SitemapStorage storage = new InMemorySitemapStorage();
+        storage.save(StorageFileName.getSitemapUrlListFileName(SitemapType.RECORD, Deployment.GREEN), "text/plain",
+                "gzip", gzip("https://www.europeana.eu/item/1/a\nhttps://www.europeana.eu/item/2/b\n"), null);
+        // a sitemap file carried over from the active deployment
+        String carriedFile = StorageFileName.getSitemapFileName(SitemapType.RECORD, Deployment.BLUE,
+                "?from=1&to=2", true);
+        storage.save(carriedFile, "text/xml", "gzip", gzip("""
+                <?xml version="1.0" encoding="UTF-8"?>
+                <urlset xmlns="http://www.sitemaps.org/schemas/sitemap/0.9">
+                <url>
+                <loc>https://www.europeana.eu/item/4/d?x=1&amp;y=2</loc>
+                </url>
+                </urlset>
+                """), null);
+
+        try (UrlChangelog changelog = new UrlChangelog(storage, SitemapType.RECORD, tempDir, 1000)) {
+            changelog.add(PREFIX, "/2/b");
+            changelog.add(PREFIX, "/3/c");
+            changelog.addFromSitemapFile(carriedFile);
+
+            UrlChangelog.Result result = changelog.publish(Deployment.BLUE, Deployment.GREEN);
+            assertEquals(new UrlChangelog.Result(3, 2, 1), result);
+        }
+        assertEquals(List.of("https://www.europeana.eu/item/3/c", "https://www.europeana.eu/item/4/d?x=1&y=2"),
+                readLines(storage, StorageFileName.getSitemapChangelogFileName(SitemapType.RECORD, Deployment.BLUE, true)));
+        assertEquals(List.of("https://www.europeana.eu/item/1/a"),
+                readLines(storage, StorageFileName.getSitemapChangelogFileName(SitemapType.RECORD, Deployment.BLUE, false)));
+    }
+
+    @Test
+    public void testMissingSitemapFile() {
+        SitemapStorage storage = new InMemorySitemapStorage();
+        String urlListFile = StorageFileName.getSitemapUrlListFileName(SitemapType.RECORD, Deployment.BLUE);
+        storage.save(urlListFile, "text/plain", "gzip", new byte[0], null);
+        try (UrlChangelog changelog = new UrlChangelog(storage, SitemapType.RECORD, tempDir, 1000)) {
+            changelog.add(PREFIX, "/1/a");
+            changelog.addFromSitemapFile("does-not-exist.xml");
+
+            assertNull(changelog.publish(Deployment.BLUE, Deployment.GREEN));
+        }
+        // an outdated url list should not be used for the next changelog
+        assertFalse(storage.exists(urlListFile));
+    }
+
+    @Test
+    public void testCompare() throws IOException {
+        Iterator<String> current = List.of("a", "c", "d", "f").iterator();
+        Iterator<String> previous = List.of("b", "c", "e", "f", "g").iterator();
+        StringWriter urls = new StringWriter();
+        StringWriter added = new StringWriter();
+        StringWriter removed = new StringWriter();
+        long[] counts = UrlChangelog.compare(current, previous, urls, added, removed);
+        assertEquals(4, counts[0]);
+        assertEquals(2, counts[1]);
+        assertEquals(3, counts[2]);
+        assertEquals("a\nc\nd\nf\n", urls.toString());
+        assertEquals("a\nd\n", added.toString());
+        assertEquals("b\ne\ng\n", removed.toString());
+    }
+
+    private long countTempFiles() {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.count();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> readLines(SitemapStorage storage, String fileName) throws IOException {
+        assertTrue(storage.exists(fileName), "File " + fileName + " not found");
+        try (InputStream in = new GZIPInputStream(storage.getAsStream(fileName))) {
+            String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return text.isEmpty() ? List.of() : List.of(text.split("\n"));
+        }
+    }
+}
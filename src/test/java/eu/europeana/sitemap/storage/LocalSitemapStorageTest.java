@@ -0,0 +1,99 @@
+package eu.europeana.sitemap.storage;
+
+import eu.europeana.sitemap.s3.S3Checksum;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the LocalSitemapStorage class
+ * @see LocalSitemapStorage
+ */
+@SuppressWarnings("java:S5786")
+public class LocalSitemapStorageTest {
+
+    private static final String FILE_NAME = "sitemap-record-blue.xml?from=1&to=45000";
+
+    @TempDir
+    private Path directory;
+
+    private LocalSitemapStorage storage;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        storage = new LocalSitemapStorage(directory.resolve("sitemap"));
+    }
+
+    /**
+     * Check that saved files can be read and that the returned etag is the md5 checksum of the contents
+     */
+    @Test
+    public void testSaveAndRead() throws IOException {
+        byte[] contents = "test contents".getBytes(StandardCharsets.UTF_8);
+        assertFalse(storage.exists(FILE_NAME));
+        assertNull(storage.getAsStream(FILE_NAME));
+        assertNull(storage.getAsBytes(FILE_NAME));
+
+        String eTag = storage.save(FILE_NAME, "application/xml", contents);
+        assertEquals(S3Checksum.toETag(S3Checksum.md5(contents, 0, contents.length)), eTag);
+        assertTrue(storage.exists(FILE_NAME));
+        assertArrayEquals(contents, storage.getAsBytes(FILE_NAME));
+        try (InputStream in = storage.getAsStream(FILE_NAME)) {
+            assertArrayEquals(contents, in.readAllBytes());
+        }
+    }
+
+    /**
+     * Check that existing files are replaced and no temporary files are left behind
+     */
+    @Test
+    public void testReplace() throws IOException {
+        storage.save("active.txt", "text/plain", "blue".getBytes(StandardCharsets.UTF_8));
+        storage.save("active.txt", "text/plain", "green".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("green", new String(storage.getAsBytes("active.txt"), StandardCharsets.UTF_8));
+        try (var files = Files.list(directory.resolve("sitemap"))) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    /**
+     * Check listing, copying and deleting files
+     */
+    @Test
+    public void testListCopyDelete() {
+        String eTag = storage.save("file1", "text/plain", "12345".getBytes(StandardCharsets.UTF_8));
+        assertEquals(eTag, storage.copy("file1", "file2"));
+        assertEquals("12345", new String(storage.getAsBytes("file2"), StandardCharsets.UTF_8));
+        assertNull(storage.copy("file3", "file4"));
+
+        List<SitemapStorage.FileInfo> files = storage.list();
+        assertEquals(2, files.size());
+        assertTrue(files.stream().allMatch(file -> file.size() == 5 && file.lastModified() != null));
+
+        storage.delete("file1");
+        storage.delete("file3");
+        assertFalse(storage.exists("file1"));
+        assertEquals(List.of("file2"), storage.list().stream().map(SitemapStorage.FileInfo::name).toList());
+    }
+
+    /**
+     * Check that we can't access files outside the storage directory
+     */
+    @Test
+    public void testInvalidFileName() {
+        byte[] contents = new byte[0];
+        assertThrows(IllegalArgumentException.class, () -> storage.save("../test", "text/plain", contents));
+        assertThrows(IllegalArgumentException.class, () -> storage.getAsBytes("/etc/passwd"));
+        assertThrows(IllegalArgumentException.class, () -> storage.exists(""));
+    }
+}